@@ -0,0 +1,48 @@
+package benchmark;
+
+import main.Catalogo;
+import main.EsitoImportazione;
+import main.Libro;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caricamento del catalogo: {@code aggiungiLibro} uno alla volta contro l'importazione
+ * massiva {@code aggiungiLibri}. Ogni misura parte da un catalogo vuoto e da libri nuovi,
+ * con ISBN-13 validi (indice a chiavi numeriche) o con codici testuali (indice a stringhe).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class CaricamentoBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int dimensione;
+
+    @Param({"true", "false"})
+    boolean isbnValidi;
+
+    List<Libro> libri;
+
+    @Setup(Level.Iteration)
+    public void preparaLibri() {
+        libri = DatiDiProva.libri(dimensione, isbnValidi);
+    }
+
+    @Benchmark
+    public Catalogo aggiungiLibro() {
+        Catalogo catalogo = new Catalogo();
+        for (Libro libro : libri) catalogo.aggiungiLibro(libro);
+        return catalogo;
+    }
+
+    @Benchmark
+    public EsitoImportazione aggiungiLibri() {
+        return new Catalogo().aggiungiLibri(libri);
+    }
+}
@@ -0,0 +1,61 @@
+package benchmark;
+
+import main.Catalogo;
+import main.Libro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Genera cataloghi sintetici, uguali a ogni esecuzione, per i benchmark. */
+final class DatiDiProva {
+
+    /** Quota di libri in prestito nei cataloghi generati, come in una biblioteca reale. */
+    static final double QUOTA_IN_PRESTITO = 0.03;
+
+    private DatiDiProva() {}
+
+    /** ISBN-13 valido: il percorso a chiavi numeriche del catalogo, quello dei cataloghi veri. */
+    static String isbn(int i) {
+        return isbn(i, true);
+    }
+
+    /**
+     * ISBN del libro {@code i}: un ISBN-13 valido (prefisso 978, {@code i} su nove cifre e cifra
+     * di controllo) oppure, con {@code valido} falso, un codice che il catalogo tiene come stringa.
+     */
+    static String isbn(int i, boolean valido) {
+        if (!valido) return "BENCH-" + i;
+        long corpo = 978_000_000_000L + i;
+        int somma = 0;
+        long cifre = corpo;
+        for (int k = 0; k < 12; k++, cifre /= 10) somma += (int) (cifre % 10) * (k % 2 == 0 ? 3 : 1);
+        return Long.toString(corpo * 10 + (10 - somma % 10) % 10);
+    }
+
+    /** Circa 20 libri per autore: gli autori si ripetono come nei cataloghi veri. */
+    static String autore(int i, int dimensione) {
+        return "Autore " + (i % Math.max(1, dimensione / 20));
+    }
+
+    static List<Libro> libri(int dimensione) {
+        return libri(dimensione, true);
+    }
+
+    static List<Libro> libri(int dimensione, boolean isbnValidi) {
+        List<Libro> libri = new ArrayList<>(dimensione);
+        for (int i = 0; i < dimensione; i++) {
+            libri.add(new Libro(isbn(i, isbnValidi), "Titolo " + i, autore(i, dimensione), 1900 + i % 120));
+        }
+        return libri;
+    }
+
+    static Catalogo catalogo(int dimensione) {
+        return catalogo(dimensione, true);
+    }
+
+    static Catalogo catalogo(int dimensione, boolean isbnValidi) {
+        Catalogo catalogo = new Catalogo();
+        catalogo.aggiungiLibri(libri(dimensione, isbnValidi));
+        return catalogo;
+    }
+}
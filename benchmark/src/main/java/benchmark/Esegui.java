@@ -0,0 +1,33 @@
+package benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Esegue i benchmark selezionati con più numeri di thread, per vedere come scalano
+ * letture e prestiti sotto contesa. Accetta le stesse opzioni di JMH, ad esempio:
+ * <pre>
+ *   java -cp benchmarks.jar benchmark.Esegui Ricerca -p dimensione=1000,100000
+ * </pre>
+ * I numeri di thread si scelgono con {@code -Dthread=1,4,16} (predefinito).
+ */
+public class Esegui {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions riga = new CommandLineOptions(args);
+        for (String t : System.getProperty("thread", "1,4,16").split(",")) {
+            int thread = Integer.parseInt(t.trim());
+            Options opzioni = new OptionsBuilder()
+                .parent(riga)
+                .threads(thread)
+                .result("jmh-" + thread + "-thread.json")
+                .resultFormat(org.openjdk.jmh.results.format.ResultFormatType.JSON)
+                .build();
+            new Runner(opzioni).run();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package benchmark;
+
+import main.Catalogo;
+import main.GestorePrestiti;
+import main.Libro;
+import main.RegistroPrestiti;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prestiti: andata e ritorno {@code prestaLibro}/{@code restituisciLibro} e la query
+ * {@code getPrestitiScaduti}. Ogni thread presta solo i libri della propria fetta di
+ * catalogo, così il benchmark misura il motore e non i conflitti sullo stesso libro.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class PrestitiBenchmark {
+
+    private static final int FETTA = 1024;
+    private static final LocalDate OGGI = LocalDate.of(2024, 6, 1);
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int dimensione;
+
+    Catalogo catalogo;
+    GestorePrestiti gestore;
+    final AtomicInteger prossimaFetta = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void preparaCatalogo() {
+        catalogo = DatiDiProva.catalogo(dimensione);
+        Clock clock = Clock.fixed(OGGI.atStartOfDay().toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+        gestore = new GestorePrestiti(catalogo, clock, RegistroPrestiti.nessuno());
+
+        // prestiti aperti con scadenze nell'arco di due mesi, metà già scaduti
+        Clock passato = Clock.offset(clock, java.time.Duration.ofDays(-30));
+        // chiuso subito: altrimenti i suoi indici resterebbero agganciati al catalogo durante la misura
+        try (GestorePrestiti gestorePassato = new GestorePrestiti(catalogo, passato, RegistroPrestiti.nessuno())) {
+            int inPrestito = (int) (dimensione * DatiDiProva.QUOTA_IN_PRESTITO);
+            for (int i = 0; i < inPrestito; i++) {
+                gestorePassato.prestaLibro(DatiDiProva.isbn(dimensione - 1 - i), "Utente " + i, 1 + i % 60);
+            }
+        }
+    }
+
+    /**
+     * La fetta di ISBN riservata a un thread di misura: i libri disponibili sono divisi tra
+     * i thread, così due fette non si sovrappongono mai, nemmeno sui cataloghi piccoli.
+     */
+    @State(Scope.Thread)
+    public static class Fetta {
+        int inizio;
+        int dimensione;
+
+        @Setup(Level.Trial)
+        public void assegna(PrestitiBenchmark benchmark, BenchmarkParams parametri) {
+            int thread = parametri.getThreads();
+            int libere = (int) (benchmark.dimensione * (1 - DatiDiProva.QUOTA_IN_PRESTITO));
+            if (libere < thread) {
+                throw new IllegalStateException(libere + " libri disponibili non bastano per " + thread + " thread");
+            }
+            dimensione = Math.min(FETTA, libere / thread);
+            inizio = (benchmark.prossimaFetta.getAndIncrement() % thread) * dimensione;
+        }
+
+        String isbnCasuale() {
+            return DatiDiProva.isbn(inizio + ThreadLocalRandom.current().nextInt(dimensione));
+        }
+    }
+
+    @Benchmark
+    public void prestaERestituisci(Fetta fetta) {
+        String isbn = fetta.isbnCasuale();
+        gestore.prestaLibro(isbn, "Utente", 14);
+        gestore.restituisciLibro(isbn);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Libro> getPrestitiScaduti() {
+        return gestore.getPrestitiScaduti();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long streamPrestitiScadutiCount() {
+        return gestore.streamPrestitiScaduti(OGGI).count();
+    }
+}
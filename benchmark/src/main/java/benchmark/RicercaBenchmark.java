@@ -0,0 +1,76 @@
+package benchmark;
+
+import main.Catalogo;
+import main.GestorePrestiti;
+import main.Libro;
+import main.RegistroPrestiti;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Letture sul catalogo: ricerca per ISBN (trovato / mancante), per autore e per disponibilità.
+ * Gli ISBN sono ISBN-13 validi o codici testuali, per misurare entrambi gli indici ISBN.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+@State(Scope.Benchmark)
+public class RicercaBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int dimensione;
+
+    @Param({"true", "false"})
+    boolean isbnValidi;
+
+    Catalogo catalogo;
+
+    @Setup(Level.Trial)
+    public void preparaCatalogo() {
+        catalogo = DatiDiProva.catalogo(dimensione, isbnValidi);
+        try (GestorePrestiti gestore = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), RegistroPrestiti.nessuno())) {
+            int inPrestito = (int) (dimensione * DatiDiProva.QUOTA_IN_PRESTITO);
+            for (int i = 0; i < inPrestito; i++) {
+                gestore.prestaLibro(DatiDiProva.isbn(i * (dimensione / Math.max(1, inPrestito)), isbnValidi), "Utente " + i, 30);
+            }
+        }
+    }
+
+    private int casuale() {
+        return ThreadLocalRandom.current().nextInt(dimensione);
+    }
+
+    @Benchmark
+    public Optional<Libro> cercaPerIsbnTrovato() {
+        return catalogo.cercaPerIsbn(DatiDiProva.isbn(casuale(), isbnValidi));
+    }
+
+    @Benchmark
+    public Optional<Libro> cercaPerIsbnMancante() {
+        return catalogo.cercaPerIsbn(DatiDiProva.isbn(dimensione + casuale(), isbnValidi));
+    }
+
+    @Benchmark
+    public List<Libro> cercaPerAutore() {
+        return catalogo.cercaPerAutore(DatiDiProva.autore(casuale(), dimensione));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Libro> getLibriInPrestito() {
+        return catalogo.getLibriInPrestito();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Libro> getLibriDisponibili() {
+        return catalogo.getLibriDisponibili();
+    }
+}
@@ -0,0 +1,286 @@
+package main;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Cache dei risultati delle ricerche ripetute, attivata da {@link Catalogo#abilitaCache(long)}.
+ *
+ * <p>I risultati stanno in una {@link ConcurrentHashMap}, quindi un successo non prende lock.
+ * L'ordine d'uso per lo sfratto LRU è una {@link LinkedHashMap} in ordine di accesso, toccata
+ * solo sotto il lock di {@link #manutenzione}: i successi vengono accodati in un buffer che
+ * chi prende il lock riporta nell'ordine, e se il buffer è pieno se ne perde qualcuno. Ogni
+ * risultato pesa quanto i libri che contiene più uno, e la cache sfratta finché il peso non
+ * rientra nel massimo.
+ *
+ * <p>Un risultato nuovo che richiederebbe uno sfratto entra solo se è stato chiesto più spesso
+ * del primo risultato da sfrattare, secondo una stima delle frequenze recenti ({@link Frequenze},
+ * come in TinyLFU): una scansione di ricerche viste una volta sola non svuota la cache dalle
+ * ricerche dei cruscotti.
+ *
+ * <p>Invalidazione: ogni {@link Tipo} ha una versione, incrementata dal catalogo dopo ogni
+ * modifica che può cambiarne i risultati, quando tutti gli osservatori (anche l'indice delle
+ * scadenze dei gestori) l'hanno già vista. Disponibili, prestiti e scaduti ricordano la
+ * versione letta prima del calcolo e valgono finché non cambia; i risultati per autore
+ * cambiano solo con aggiunte e rimozioni, e vengono tolti soltanto quelli il cui testo cercato
+ * compare nell'autore del libro aggiunto o rimosso.
+ */
+final class CacheRicerche {
+
+    /** Ricerche che passano dalla cache. */
+    enum Tipo {
+        /** {@link Catalogo#cercaPerAutore(String)}, per testo cercato. */
+        AUTORE(false),
+        /** {@link Catalogo#getLibriDisponibili()}. */
+        DISPONIBILI(true),
+        /** {@link Catalogo#getLibriInPrestito()}. */
+        IN_PRESTITO(true),
+        /** {@link GestorePrestiti#getPrestitiScaduti(java.time.LocalDate)}, per data. */
+        PRESTITI_SCADUTI(true);
+
+        /** {@code true} se ogni prestito o restituzione può cambiarne il risultato. */
+        final boolean seguePrestiti;
+
+        Tipo(boolean seguePrestiti) { this.seguePrestiti = seguePrestiti; }
+    }
+
+    private record Chiave(Tipo tipo, String parametro) {}
+
+    /** Un risultato, con la versione del suo tipo letta prima di calcolarlo. Confrontato per identità. */
+    private static final class Voce {
+        final Chiave chiave;
+        final List<Libro> risultato;
+        final long versione;
+        final int peso;
+
+        Voce(Chiave chiave, List<Libro> risultato, long versione) {
+            this.chiave = chiave;
+            this.risultato = risultato;
+            this.versione = versione;
+            this.peso = risultato.size() + 1;
+        }
+    }
+
+    private static final int LETTURE_IN_SOSPESO = 128;
+
+    private final long pesoMassimo;
+    private final Map<Chiave, Voce> voci = new ConcurrentHashMap<>();
+
+    /** Le stesse voci, dalla usata meno di recente; guardato da {@link #manutenzione}. */
+    private final LinkedHashMap<Chiave, Voce> ordine = new LinkedHashMap<>(16, 0.75f, true);
+    /** Successi non ancora riportati in {@link #ordine}. */
+    private final ArrayBlockingQueue<Voce> letture = new ArrayBlockingQueue<>(LETTURE_IN_SOSPESO);
+    private final ReentrantLock manutenzione = new ReentrantLock();
+    private long peso;                    // guardato da manutenzione
+    private int risultatiPerAutore;       // guardato da manutenzione
+
+    private final Frequenze frequenze;
+    private final AtomicLongArray versioni = new AtomicLongArray(Tipo.values().length);
+
+    private final LongAdder successi = new LongAdder();
+    private final LongAdder mancati = new LongAdder();
+    private final LongAdder sfratti = new LongAdder();
+    private final LongAdder rifiutati = new LongAdder();
+    private final LongAdder invalidazioni = new LongAdder();
+
+    CacheRicerche(long pesoMassimo) {
+        this.pesoMassimo = pesoMassimo;
+        this.frequenze = new Frequenze((int) Math.min(pesoMassimo, 1 << 16));
+    }
+
+    /**
+     * Il risultato in cache per la ricerca, se è ancora valido; altrimenti lo calcola con
+     * {@code calcolo} e prova a metterlo in cache. Il risultato non è modificabile.
+     */
+    List<Libro> ottieni(Tipo tipo, String parametro, Supplier<List<Libro>> calcolo) {
+        Chiave chiave = new Chiave(tipo, tipo == Tipo.AUTORE ? IndiceAutori.normalizza(parametro.trim()) : parametro);
+        frequenze.registra(chiave);
+        Voce voce = voci.get(chiave);
+        if (voce != null) {
+            if (!tipo.seguePrestiti || voce.versione == versioni.get(tipo.ordinal())) {
+                successi.increment();
+                if (!letture.offer(voce)) manutenzioneSePossibile();
+                return voce.risultato;
+            }
+            togli(voce, invalidazioni);
+        }
+        mancati.increment();
+        long versione = versioni.get(tipo.ordinal());
+        List<Libro> risultato = Collections.unmodifiableList(calcolo.get());
+        // una modifica arrivata durante il calcolo lo rende già vecchio
+        if (versioni.get(tipo.ordinal()) != versione) return risultato;
+        Voce nuova = new Voce(chiave, risultato, versione);
+        if (inserisci(nuova) && versioni.get(tipo.ordinal()) != versione) {
+            // la modifica è arrivata tra il controllo e l'inserimento, e può non averla vista
+            togli(nuova, invalidazioni);
+        }
+        return risultato;
+    }
+
+    /** Dopo prestiti o restituzioni: i risultati che ne dipendono non valgono più. */
+    void prestitiCambiati() {
+        for (Tipo tipo : Tipo.values()) {
+            if (tipo.seguePrestiti) versioni.incrementAndGet(tipo.ordinal());
+        }
+    }
+
+    /** Dopo l'aggiunta o la rimozione di {@code libro}: cambiano le liste e le ricerche del suo autore. */
+    void libroCambiato(Libro libro) {
+        for (int t = 0; t < versioni.length(); t++) versioni.incrementAndGet(t);
+        String autore = IndiceAutori.normalizza(libro.getAutore());
+        manutenzione.lock();
+        try {
+            if (risultatiPerAutore == 0) return;
+            for (Iterator<Voce> i = ordine.values().iterator(); i.hasNext(); ) {
+                Voce voce = i.next();
+                if (voce.chiave.tipo() == Tipo.AUTORE && autore.contains(voce.chiave.parametro())) {
+                    i.remove();
+                    scollega(voce);
+                    invalidazioni.increment();
+                }
+            }
+        } finally {
+            manutenzione.unlock();
+        }
+    }
+
+    StatisticheCache statistiche() {
+        manutenzione.lock();
+        try {
+            return new StatisticheCache(successi.sum(), mancati.sum(), sfratti.sum(), rifiutati.sum(),
+                                        invalidazioni.sum(), ordine.size(), peso, pesoMassimo);
+        } finally {
+            manutenzione.unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------ manutenzione
+
+    /**
+     * Inserisce {@code nuova}, sfrattando i risultati usati meno di recente se serve spazio.
+     *
+     * @return {@code false} se il risultato non è stato ammesso
+     */
+    private boolean inserisci(Voce nuova) {
+        if (nuova.peso > pesoMassimo) {
+            rifiutati.increment();
+            return false;
+        }
+        manutenzione.lock();
+        try {
+            svuotaLetture();
+            Voce presente = ordine.remove(nuova.chiave);
+            if (presente != null) scollega(presente);
+            if (peso + nuova.peso > pesoMassimo) {
+                Voce vittima = ordine.values().iterator().next();
+                if (frequenze.stima(nuova.chiave) <= frequenze.stima(vittima.chiave)) {
+                    rifiutati.increment();
+                    return false;
+                }
+                for (Iterator<Voce> i = ordine.values().iterator(); peso + nuova.peso > pesoMassimo; ) {
+                    Voce sfrattata = i.next();
+                    i.remove();
+                    scollega(sfrattata);
+                    sfratti.increment();
+                }
+            }
+            ordine.put(nuova.chiave, nuova);
+            voci.put(nuova.chiave, nuova);
+            peso += nuova.peso;
+            if (nuova.chiave.tipo() == Tipo.AUTORE) risultatiPerAutore++;
+            return true;
+        } finally {
+            manutenzione.unlock();
+        }
+    }
+
+    /** Toglie {@code voce}, se è ancora quella in cache, e la conta in {@code motivo}. */
+    private void togli(Voce voce, LongAdder motivo) {
+        manutenzione.lock();
+        try {
+            if (voci.get(voce.chiave) != voce) return;
+            ordine.remove(voce.chiave);
+            scollega(voce);
+            motivo.increment();
+        } finally {
+            manutenzione.unlock();
+        }
+    }
+
+    /** Toglie da {@link #voci} e dal peso una voce appena tolta da {@link #ordine}. Con il lock. */
+    private void scollega(Voce voce) {
+        voci.remove(voce.chiave, voce);
+        peso -= voce.peso;
+        if (voce.chiave.tipo() == Tipo.AUTORE) risultatiPerAutore--;
+    }
+
+    private void manutenzioneSePossibile() {
+        if (!manutenzione.tryLock()) return;
+        try {
+            svuotaLetture();
+        } finally {
+            manutenzione.unlock();
+        }
+    }
+
+    /** Riporta i successi accodati nell'ordine d'uso. Con il lock. */
+    private void svuotaLetture() {
+        for (Voce voce; (voce = letture.poll()) != null; ) {
+            if (voci.get(voce.chiave) == voce) ordine.get(voce.chiave);   // get sposta in coda
+        }
+    }
+
+    /**
+     * Stima delle frequenze recenti delle chiavi: un count-min sketch a quattro righe di
+     * contatori saturati a 15, dimezzati ogni dieci registrazioni per contatore, così pesano
+     * di più le richieste recenti. Gli incrementi concorrenti non sono atomici e qualcuno può
+     * perdersi: per confrontare due chiavi una stima basta.
+     */
+    private static final class Frequenze {
+        private static final int[] SEMI = {0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[] contatori;
+        private final int larghezza;
+        private int registrazioni;
+
+        Frequenze(int dimensione) {
+            larghezza = Integer.highestOneBit(Math.max(64, dimensione - 1)) << 1;
+            contatori = new int[SEMI.length * larghezza];
+        }
+
+        void registra(Object chiave) {
+            int h = chiave.hashCode();
+            for (int r = 0; r < SEMI.length; r++) {
+                int i = posizione(h, r);
+                if (contatori[i] < 15) contatori[i]++;
+            }
+            if (++registrazioni >= 10 * larghezza) dimezza();
+        }
+
+        int stima(Object chiave) {
+            int h = chiave.hashCode();
+            int minimo = Integer.MAX_VALUE;
+            for (int r = 0; r < SEMI.length; r++) minimo = Math.min(minimo, contatori[posizione(h, r)]);
+            return minimo;
+        }
+
+        private int posizione(int h, int riga) {
+            int x = h * SEMI[riga];
+            return riga * larghezza + ((x ^ (x >>> 16)) & (larghezza - 1));
+        }
+
+        private void dimezza() {
+            registrazioni = 0;
+            for (int i = 0; i < contatori.length; i++) contatori[i] >>>= 1;
+        }
+    }
+}
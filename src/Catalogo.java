@@ -1,7 +1,27 @@
+package main;
+
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Gestisce la collezione di libri della biblioteca.
@@ -9,21 +29,93 @@ import java.util.Optional;
  * <p>Funzionalità <b>IMPLEMENTATE</b>:
  * <ul>
  *   <li>{@link #aggiungiLibro(Libro)}     – aggiunge un libro al catalogo</li>
+ *   <li>{@link #aggiungiLibri(Collection)} – importazione massiva con rapporto per elemento</li>
  *   <li>{@link #cercaPerIsbn(String)}     – cerca un libro per ISBN</li>
  *   <li>{@link #getTuttiILibri()}         – restituisce tutti i libri</li>
+ *   <li>{@link #cercaPerAutore(String)}   – cerca i libri per autore (indice a trigrammi)</li>
+ *   <li>{@link #rimuoviLibro(String)}     – rimuove un libro dal catalogo</li>
+ *   <li>{@link #aggiungiCopie(String, int)} – altre copie fisiche di un titolo già presente</li>
+ *   <li>{@link #getLibriDisponibili()}    – libri disponibili (partizione mantenuta incrementalmente)</li>
+ *   <li>{@link #getLibriInPrestito()}     – libri in prestito (partizione mantenuta incrementalmente)</li>
+ *   <li>{@link #cercaPerAnno(int, int)}   – titoli di un intervallo di anni (indice ordinato per anno)</li>
+ *   <li>{@link #getFaccette(int)}         – titoli per decennio e per autore (contatori incrementali)</li>
+ *   <li>{@link #versioneCorrente()}       – fotografia immutabile di libri e prestiti per i report</li>
+ *   <li>{@link #getTuttiILibri(String, int)} e simili – pagine con cursore, costo proporzionale alla pagina</li>
+ *   <li>{@link #abilitaCache(long)}       – cache dei risultati ripetuti, invalidata dalle modifiche</li>
+ *   <li>{@link #streamTuttiILibri()} e simili – stream pigri, senza liste intermedie</li>
  * </ul>
  *
- * <p>Funzionalità <b>DA IMPLEMENTARE</b> (cerca i commenti TODO):
- * <ul>
- *   <li>{@link #cercaPerAutore(String)}   – branch: {@code feature/cerca-autore}</li>
- *   <li>{@link #getLibriDisponibili()}    – branch: {@code feature/libri-disponibili}</li>
- *   <li>{@link #getLibriInPrestito()}     – branch: {@code feature/libri-in-prestito}</li>
- *   <li>{@link #rimuoviLibro(String)}     – branch: {@code feature/rimuovi-libro}</li>
- * </ul>
+ * <p>Thread-safety: {@link #aggiungiLibro(Libro)} e {@link #rimuoviLibro(String)} sono
+ * serializzati da un lock di scrittura; tutte le letture sono lock-free e non bloccano
+ * mai i prestiti. Prestiti e restituzioni sono sincronizzati per singolo {@link Libro}.
+ *
+ * <p>Le ricerche emettono eventi JFR e, dopo {@link #abilitaMetriche()}, alimentano le
+ * {@link Metriche} del catalogo, condivise con i {@link GestorePrestiti} che lo usano.
+ *
+ * <p>Per cataloghi da milioni di titoli {@link CatalogoCompatto} offre la stessa API
+ * con una frazione della memoria.
  */
 public class Catalogo {
 
-    private final List<Libro> libri = new ArrayList<>();
+    /** Istantanea immutabile dell'elenco: gli slot {@code [0, dimensione)} non cambiano più. */
+    private record Vista(Libro[] elementi, int dimensione) {}
+
+    /** Serializza aggiunte e rimozioni; condiviso con {@link CatalogoCompatto}. */
+    final Object scrittura = new Object();
+
+    /**
+     * Elenco dei libri in ordine di inserimento. Gli scrittori aggiungono oltre
+     * {@code dimensione} e pubblicano una nuova {@link Vista}; una rimozione copia l'array.
+     * I lettori vedono quindi sempre un'istantanea coerente senza prendere lock.
+     */
+    private volatile Vista vista = new Vista(new Libro[16], 0);
+
+    /** Prossimo numero d'ordine di inserimento ({@link Libro#getSequenza()}); guardato da {@link #scrittura}. */
+    private long prossimaSequenza;
+
+    /**
+     * Indice ISBN → libro, sempre allineato a {@link #vista}. Gli ISBN-10/13 validi usano la
+     * chiave numerica di {@link Isbn} in una {@link MappaLong}, così la ricerca non alloca e
+     * "88-06-22715-7" trova "9788806227159"; gli altri codici (es. "ISBN-001") restano
+     * nella mappa per stringa normalizzata.
+     */
+    private final MappaLong<Libro> indiceIsbn13 = new MappaLong<>();
+    private final Map<String, Libro> indiceIsbn = new ConcurrentHashMap<>();
+
+    /** Indice a trigrammi sugli autori, usato da {@link #cercaPerAutore(String)}. */
+    private final IndiceAutori<Libro> indiceAutori = new IndiceAutori<>();
+
+    /** Indice per anno e conteggi per decennio e autore, delle sole prime copie. */
+    private final IndiceFaccette<Libro> indiceFaccette = new IndiceFaccette<>();
+
+    /**
+     * Partizioni per disponibilità, aggiornate da {@link Libro} a ogni prestito/restituzione
+     * tramite {@link #libroPrestato(Libro)} e {@link #libroRestituito(Libro, String, LocalDate)}.
+     */
+    private final Set<Libro> disponibili = ConcurrentHashMap.newKeySet();
+    private final Set<Libro> inPrestito  = ConcurrentHashMap.newKeySet();
+
+    private final List<OsservatoreCatalogo> osservatori = new CopyOnWriteArrayList<>();
+
+    /** Notifiche trattenute dal cestino in corso sul thread, vedi {@link #inCestino(List, Runnable)}. */
+    private final ThreadLocal<Cestino> cestino = new ThreadLocal<>();
+
+    private static final class Cestino {
+        final List<Libro> prestati = new ArrayList<>();
+        final List<OsservatoreCatalogo.Restituzione> restituiti = new ArrayList<>();
+    }
+
+    /** Metriche delle operazioni, {@code null} finché non vengono abilitate. */
+    private volatile Metriche metriche;
+
+    /** Versioni per {@link #versioneCorrente()}, {@code null} fino alla prima richiesta. */
+    private volatile StoricoCatalogo storico;
+
+    /** Indice a parole per {@link #cercaPerTesto(String, int)}, {@code null} fino alla prima ricerca. */
+    private volatile IndiceTesto indiceTesto;
+
+    /** Cache delle ricerche ripetute, {@code null} finché non viene abilitata. */
+    private volatile CacheRicerche cache;
 
     // ===================================================================
     //  FUNZIONALITÀ IMPLEMENTATE
@@ -37,10 +129,65 @@ public class Catalogo {
      */
     public void aggiungiLibro(Libro libro) {
         if (libro == null) throw new IllegalArgumentException("Il libro non può essere null");
-        if (cercaPerIsbn(libro.getIsbn()).isPresent()) {
-            throw new IllegalArgumentException("ISBN già presente: " + libro.getIsbn());
+        synchronized (scrittura) {
+            // il lock del libro impedisce che cambi stato tra la scelta della partizione e il collegamento
+            synchronized (libro) {
+                if (libro.getCatalogo() != null) {
+                    throw new IllegalArgumentException("Il libro appartiene già a un catalogo: " + libro.getIsbn());
+                }
+                if (!indicizza(libro)) {
+                    throw new IllegalArgumentException("ISBN già presente: " + libro.getIsbn());
+                }
+                accoda(libro);
+                indiceAutori.aggiungi(libro.getAutore(), libro);
+                indiceFaccette.aggiungi(libro.getAnnoPubblicazione(), libro.getSequenza(), libro.getAutore(), libro);
+                (libro.isDisponibile() ? disponibili : inPrestito).add(libro);
+                libro.setCatalogo(this);
+                notificaAggiunta(libro);
+            }
+        }
+    }
+
+    /**
+     * Importa un lotto di libri in un solo passaggio, pensato per i caricamenti notturni.
+     *
+     * <p>A differenza di {@link #aggiungiLibro(Libro)} non lancia eccezioni sui conflitti:
+     * i duplicati (rispetto al catalogo o interni al lotto) e gli elementi non validi
+     * vengono scartati e riportati nell'{@link EsitoImportazione}. L'elenco interno viene
+     * dimensionato una volta sola e gli indici secondari vengono aggiornati in blocco alla fine.
+     *
+     * @param nuovi libri da importare (non null; può contenere elementi null)
+     * @return un esito per ogni elemento, nello stesso ordine
+     */
+    public EsitoImportazione aggiungiLibri(Collection<Libro> nuovi) {
+        if (nuovi == null) throw new IllegalArgumentException("Il lotto non può essere null");
+        EsitoImportazione esito = new EsitoImportazione(nuovi.size());
+        synchronized (scrittura) {
+            Map<String, Libro> accettati = new LinkedHashMap<>(Math.max(16, nuovi.size() * 4 / 3 + 1));
+            for (Libro libro : nuovi) {
+                esito.registra(libro, classificaECollega(libro, accettati));
+            }
+            if (accettati.isEmpty()) return esito;
+
+            accodaTutti(accettati.values());
+            for (Libro libro : accettati.values()) indicizza(libro);
+            for (Libro libro : accettati.values()) {
+                indiceAutori.aggiungi(libro.getAutore(), libro);
+                indiceFaccette.aggiungi(libro.getAnnoPubblicazione(), libro.getSequenza(), libro.getAutore(), libro);
+            }
+            for (Libro libro : accettati.values()) {
+                synchronized (libro) {
+                    notificaAggiunta(libro);
+                }
+            }
         }
-        libri.add(libro);
+        return esito;
+    }
+
+    /** Variante di {@link #aggiungiLibri(Collection)} per sorgenti in streaming. */
+    public EsitoImportazione aggiungiLibri(Stream<Libro> nuovi) {
+        if (nuovi == null) throw new IllegalArgumentException("Il lotto non può essere null");
+        return aggiungiLibri(nuovi.toList());
     }
 
     /**
@@ -50,85 +197,331 @@ public class Catalogo {
      * @return {@link Optional} contenente il libro, oppure vuoto se non trovato
      */
     public Optional<Libro> cercaPerIsbn(String isbn) {
-        if (isbn == null || isbn.isBlank()) return Optional.empty();
-        String isbnNorm = isbn.trim();
-        return libri.stream()
-                    .filter(l -> l.getIsbn().equalsIgnoreCase(isbnNorm))
-                    .findFirst();
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.CERCA_PER_ISBN, isbn);
+        Libro trovato = trova(isbn);
+        misura.concludi(true, trovato == null ? 0 : 1, getTotaleLibri());
+        return Optional.ofNullable(trovato);
     }
 
     /**
-     * Restituisce una vista non modificabile di tutti i libri nel catalogo.
+     * Restituisce un'istantanea non modificabile di tutti i libri nel catalogo,
+     * in ordine di inserimento. Aggiunte e rimozioni successive non la modificano,
+     * ma lo stato di prestito dei libri è quello attuale: per un report coerente
+     * anche sui prestiti si usa {@link #versioneCorrente()}.
      */
     public List<Libro> getTuttiILibri() {
-        return Collections.unmodifiableList(libri);
+        Vista v = vista;
+        return Collections.unmodifiableList(Arrays.asList(v.elementi()).subList(0, v.dimensione()));
     }
 
-    // ===================================================================
-    //  FUNZIONALITÀ DA IMPLEMENTARE
-    // ===================================================================
-
     /**
      * Restituisce tutti i libri di un dato autore (confronto case-insensitive,
      * ricerca per sottostringa: "Eco" trova anche "Umberto Eco").
      *
+     * <p>La ricerca usa un indice a trigrammi aggiornato da {@link #aggiungiLibro(Libro)}
+     * e {@link #rimuoviLibro(String)}: vengono verificati solo gli autori candidati,
+     * non l'intero catalogo.
+     *
      * @param autore stringa da cercare nel campo autore
      * @return lista (eventualmente vuota) di libri che corrispondono
-     *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/cerca-autore}.
-     * <p>Suggerimento: usa {@code stream().filter(...).toList()} oppure un ciclo for.
-     * Ricorda il confronto case-insensitive con {@code toLowerCase()}.
      */
     public List<Libro> cercaPerAutore(String autore) {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("cercaPerAutore() non ancora implementato");
+        if (autore == null || autore.isBlank()) return List.of();
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.CERCA_PER_AUTORE, autore);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.AUTORE, autore, () -> indiceAutori.cerca(autore.trim()));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
     }
 
     /**
-     * Restituisce la lista dei libri attualmente disponibili per il prestito.
+     * Rimuove un libro dal catalogo dato il suo ISBN.
      *
-     * @return lista (eventualmente vuota) dei libri con {@code disponibile == true}
+     * @param isbn ISBN del libro da rimuovere
+     * @return {@code true} se il libro è stato trovato e rimosso, {@code false} altrimenti
+     * @throws IllegalStateException se il libro esiste ma è attualmente in prestito
+     */
+    public boolean rimuoviLibro(String isbn) {
+        synchronized (scrittura) {
+            Libro libro = trova(isbn);
+            if (libro == null) return false;
+
+            // sotto i lock delle copie nessun prestito può inserirsi tra il controllo e lo scollegamento
+            List<Libro> copie = copieDi(libro);
+            conLock(new ArrayList<>(copie), 0, () -> {
+                for (Libro copia : copie) {
+                    if (!copia.isDisponibile()) {
+                        throw new IllegalStateException("Il libro \"" + copia.getTitolo() + "\" è in prestito e non può essere rimosso");
+                    }
+                }
+                for (Libro copia : copie) copia.setCatalogo(null);
+            });
+            long chiave = Isbn.chiave(libro.getIsbn());
+            if (chiave != Isbn.NON_VALIDO) indiceIsbn13.remove(chiave);
+            else indiceIsbn.remove(normalizzaIsbn(libro.getIsbn()));
+            togli(copie);
+            indiceAutori.rimuovi(libro.getAutore(), libro);
+            indiceFaccette.rimuovi(libro.getAnnoPubblicazione(), libro.getSequenza(), libro.getAutore());
+            disponibili.removeAll(copie);
+            for (Libro copia : copie) notificaRimozione(copia);
+            return true;
+        }
+    }
+
+    /**
+     * Aggiunge {@code numero} copie fisiche di un titolo già in catalogo. Ogni copia è un
+     * {@link Libro} con lo stesso ISBN e il proprio {@link Libro#getCopia() numero}, ed è
+     * prestata e restituita per conto suo; {@link GestorePrestiti#prestaLibro(String, String, int)}
+     * ne sceglie una libera con un compare-and-set ({@link Copie}), senza lock globali.
+     *
+     * <p>Le copie contano nel totale, nei disponibili e nei libri in prestito, ma le ricerche
+     * per ISBN, autore e testo trovano il titolo una volta sola, con la prima copia.
+     * {@link #rimuoviLibro(String)} toglie tutte le copie, se nessuna è in prestito.
      *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/libri-disponibili}.
-     * <p>Suggerimento: filtra {@code libri} con {@code l.isDisponibile()}.
+     * @param isbn   ISBN di un libro presente
+     * @param numero copie da aggiungere (> 0); in tutto al più {@value Copie#MASSIMO}
+     * @throws IllegalArgumentException se {@code numero <= 0} o si supera il massimo
+     * @throws IllegalStateException    se nel catalogo non c'è un libro con quell'ISBN
+     */
+    public void aggiungiCopie(String isbn, int numero) {
+        if (numero <= 0) throw new IllegalArgumentException("Il numero di copie deve essere > 0");
+        synchronized (scrittura) {
+            Libro primo = trova(isbn);
+            if (primo == null) throw new IllegalStateException("Nessun libro con ISBN: " + isbn);
+            Copie copie;
+            synchronized (primo) {
+                copie = primo.getCopie();
+                int totale = (copie == null ? 1 : copie.numero()) + numero;
+                if (totale > Copie.MASSIMO) {
+                    throw new IllegalArgumentException("Al più " + Copie.MASSIMO + " copie per titolo: " + isbn);
+                }
+                // creata sotto il lock della prima copia, che quindi non cambia stato prima di vederla
+                if (copie == null) {
+                    copie = new Copie(primo);
+                    primo.setCopie(copie);
+                }
+            }
+            for (int i = 0; i < numero; i++) {
+                Libro copia = new Libro(primo, copie.numero() + 1);
+                synchronized (copia) {
+                    accoda(copia);
+                    disponibili.add(copia);
+                    copia.setCatalogo(this);
+                    copia.setCopie(copie);
+                    copie.aggiungi(copia);
+                    notificaAggiunta(copia);
+                }
+            }
+        }
+    }
+
+    /**
+     * Numero di copie fisiche del titolo: 1 per i libri aggiunti una volta sola,
+     * 0 se l'ISBN non è in catalogo.
+     */
+    public int getCopie(String isbn) {
+        Libro libro = trova(isbn);
+        if (libro == null) return 0;
+        Copie copie = libro.getCopie();
+        return copie == null ? 1 : copie.numero();
+    }
+
+    /** Copie del titolo disponibili per il prestito, contate sulla bitmap senza scorrere le copie. */
+    public int getCopieDisponibili(String isbn) {
+        Libro libro = trova(isbn);
+        if (libro == null) return 0;
+        Copie copie = libro.getCopie();
+        return copie == null ? (haCopiaLibera(libro) ? 1 : 0) : copie.disponibili();
+    }
+
+    /**
+     * Restituisce la lista dei libri attualmente disponibili per il prestito, in ordine di
+     * inserimento come {@link #streamLibriDisponibili()} e le pagine.
+     *
+     * <p>Costo proporzionale al numero di libri restituiti (più il loro ordinamento), non alla
+     * dimensione del catalogo.
+     *
+     * @return lista (eventualmente vuota) dei libri con {@code disponibile == true}
      */
     public List<Libro> getLibriDisponibili() {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("getLibriDisponibili() non ancora implementato");
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.LIBRI_DISPONIBILI, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.DISPONIBILI, null, () -> inOrdine(disponibili));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
     }
 
     /**
-     * Restituisce la lista dei libri attualmente in prestito.
+     * Restituisce la lista dei libri attualmente in prestito, in ordine di inserimento come
+     * {@link #streamLibriInPrestito()} e le pagine.
      *
-     * @return lista (eventualmente vuota) dei libri con {@code disponibile == false}
+     * <p>Costo proporzionale al numero di libri restituiti (più il loro ordinamento), non alla
+     * dimensione del catalogo.
      *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/libri-in-prestito}.
-     * <p>Suggerimento: è il complementare di {@link #getLibriDisponibili()}.
+     * @return lista (eventualmente vuota) dei libri con {@code disponibile == false}
      */
     public List<Libro> getLibriInPrestito() {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("getLibriInPrestito() non ancora implementato");
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.LIBRI_IN_PRESTITO, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.IN_PRESTITO, null, () -> inOrdine(inPrestito));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    /** I libri di {@code insieme}, che è in ordine di hash, riportati all'ordine di inserimento. */
+    private static List<Libro> inOrdine(Set<Libro> insieme) {
+        List<Libro> libri = new ArrayList<>(insieme);
+        libri.sort(Comparator.comparingLong(Libro::getSequenza));
+        return libri;
+    }
+
+    // ===================================================================
+    //  PAGINE E STREAM
+    // ===================================================================
+
+    /**
+     * Tutti i libri in ordine di inserimento, letti pigramente da un'istantanea dell'elenco:
+     * nessuna lista viene materializzata e {@code findFirst}, {@code anyMatch} e {@code limit}
+     * si fermano appena hanno ciò che serve.
+     */
+    public Stream<Libro> streamTuttiILibri() {
+        return stream(scorri(-1, Filtro.TUTTI));
+    }
+
+    /** Come {@link #streamTuttiILibri()}, con i soli libri disponibili quando vengono letti. */
+    public Stream<Libro> streamLibriDisponibili() {
+        return stream(scorri(-1, Filtro.DISPONIBILI));
+    }
+
+    /** Come {@link #streamTuttiILibri()}, con i soli libri in prestito quando vengono letti. */
+    public Stream<Libro> streamLibriInPrestito() {
+        return stream(scorri(-1, Filtro.IN_PRESTITO));
     }
 
     /**
-     * Rimuove un libro dal catalogo dato il suo ISBN.
+     * Una pagina di {@link #getTuttiILibri()}: al più {@code dimensione} libri dopo il cursore,
+     * in ordine di inserimento. Il costo è proporzionale alla pagina, non al catalogo.
      *
-     * @param isbn ISBN del libro da rimuovere
-     * @return {@code true} se il libro è stato trovato e rimosso, {@code false} altrimenti
-     * @throws IllegalStateException se il libro esiste ma è attualmente in prestito
+     * @param cursore {@link Pagina#cursore()} della pagina precedente, {@code null} per la prima
+     * @throws IllegalArgumentException se il cursore non è valido o {@code dimensione <= 0}
+     */
+    public Pagina getTuttiILibri(String cursore, int dimensione) {
+        return pagina(scorri(daCursore(cursore, dimensione), Filtro.TUTTI), dimensione);
+    }
+
+    /**
+     * Una pagina di {@link #getLibriDisponibili()}, in ordine di inserimento. I libri in prestito
+     * vengono saltati, quindi il costo cresce con quelli incontrati prima di riempire la pagina.
+     */
+    public Pagina getLibriDisponibili(String cursore, int dimensione) {
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.LIBRI_DISPONIBILI, cursore);
+        Pagina pagina = pagina(scorri(daCursore(cursore, dimensione), Filtro.DISPONIBILI), dimensione);
+        misura.concludi(true, pagina.libri().size(), getTotaleLibri());
+        return pagina;
+    }
+
+    /** Una pagina di {@link #getLibriInPrestito()}, come {@link #getLibriDisponibili(String, int)}. */
+    public Pagina getLibriInPrestito(String cursore, int dimensione) {
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.LIBRI_IN_PRESTITO, cursore);
+        Pagina pagina = pagina(scorri(daCursore(cursore, dimensione), Filtro.IN_PRESTITO), dimensione);
+        misura.concludi(true, pagina.libri().size(), getTotaleLibri());
+        return pagina;
+    }
+
+    /**
+     * Una pagina di {@link #cercaPerAutore(String)}, in ordine di inserimento. Le corrispondenze
+     * vengono ordinate a ogni chiamata, ma i libri (le viste, nel catalogo compatto) vengono
+     * creati solo per la pagina.
+     */
+    public Pagina cercaPerAutore(String autore, String cursore, int dimensione) {
+        long dopo = daCursore(cursore, dimensione);
+        if (autore == null || autore.isBlank()) return new Pagina(List.of(), null);
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.CERCA_PER_AUTORE, autore);
+        Pagina pagina = paginaPerAutore(autore.trim(), dopo, dimensione);
+        misura.concludi(true, pagina.libri().size(), getTotaleLibri());
+        return pagina;
+    }
+
+    /**
+     * Numero di libri trovati da {@link #cercaPerAutore(String)}, contati solo fino a
+     * {@code massimo}: basta a un'interfaccia che mostra "più di 1000 risultati".
+     */
+    public int contaPerAutore(String autore, int massimo) {
+        if (autore == null || autore.isBlank() || massimo <= 0) return 0;
+        return contaAutore(autore.trim(), massimo);
+    }
+
+    /** {@code true} se {@link #cercaPerAutore(String)} troverebbe almeno un libro; si ferma al primo. */
+    public boolean esistePerAutore(String autore) {
+        return contaPerAutore(autore, 1) > 0;
+    }
+
+    // ===================================================================
+    //  ANNI E FACCETTE
+    // ===================================================================
+
+    /**
+     * Titoli pubblicati dall'anno {@code da} all'anno {@code a} compresi, in ordine di anno e
+     * poi di inserimento. La ricerca legge solo la parte dell'indice per anno che copre
+     * l'intervallo ({@link IndiceFaccette}), non il catalogo. Come in
+     * {@link #cercaPerAutore(String)}, un titolo con più copie compare una volta.
      *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/rimuovi-libro}.
-     * <p>Suggerimenti:
-     * <ol>
-     *   <li>Usa {@link #cercaPerIsbn(String)} per trovare il libro.</li>
-     *   <li>Se non trovato, ritorna {@code false}.</li>
-     *   <li>Se trovato ma {@code !libro.isDisponibile()}, lancia {@link IllegalStateException}.</li>
-     *   <li>Altrimenti rimuovilo da {@code libri} e ritorna {@code true}.</li>
-     * </ol>
+     * @throws IllegalArgumentException se {@code da > a}
      */
-    public boolean rimuoviLibro(String isbn) {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("rimuoviLibro() non ancora implementato");
+    public List<Libro> cercaPerAnno(int da, int a) {
+        return perAnno(da, a, false);
+    }
+
+    /**
+     * Come {@link #cercaPerAnno(int, int)}, con i soli titoli che hanno ora una copia da
+     * prestare: lo stato di prestito è letto solo per i titoli dell'intervallo.
+     */
+    public List<Libro> cercaDisponibiliPerAnno(int da, int a) {
+        return perAnno(da, a, true);
+    }
+
+    /**
+     * Numero di titoli pubblicati da {@code da} ad {@code a} compresi, dai contatori per anno:
+     * il costo è proporzionale agli anni dell'intervallo, non ai titoli.
+     *
+     * @throws IllegalArgumentException se {@code da > a}
+     */
+    public int contaPerAnno(int da, int a) {
+        validaAnni(da, a);
+        return contaAnni(da, a);
+    }
+
+    /**
+     * Titoli per decennio di pubblicazione e per autore, dai contatori aggiornati a ogni
+     * aggiunta e rimozione: il costo dipende dal numero di decenni e di autori, non di libri.
+     *
+     * @param massimoAutori quanti autori riportare, dai più numerosi (> 0)
+     */
+    public Faccette getFaccette(int massimoAutori) {
+        if (massimoAutori <= 0) throw new IllegalArgumentException("Il numero di autori deve essere > 0");
+        return faccette(massimoAutori);
+    }
+
+    private List<Libro> perAnno(int da, int a, boolean soloDisponibili) {
+        validaAnni(da, a);
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.CERCA_PER_ANNO, new Misura.Intervallo(da, a));
+        List<Libro> risultati = new ArrayList<>();
+        visitaAnni(da, a, libro -> {
+            if (!soloDisponibili || haCopiaLibera(libro)) risultati.add(libro);
+            return true;
+        });
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    private static void validaAnni(int da, int a) {
+        if (da > a) throw new IllegalArgumentException("Intervallo di anni non valido: " + da + "-" + a);
+    }
+
+    /**
+     * {@code true} se il titolo ha una copia che si può prestare ora a chiunque: una copia messa
+     * da parte per una prenotazione non conta, come nella bitmap delle {@link Copie}.
+     */
+    private static boolean haCopiaLibera(Libro libro) {
+        Copie copie = libro.getCopie();
+        return copie == null ? libro.isDisponibile() && libro.getRiservatoA() == null : copie.primaLibera() != null;
     }
 
     // ===================================================================
@@ -136,5 +529,555 @@ public class Catalogo {
     // ===================================================================
 
     /** Numero totale di libri nel catalogo. */
-    public int getTotaleLibri() { return libri.size(); }
+    public int getTotaleLibri() { return vista.dimensione(); }
+
+    /** Numero di libri disponibili, in tempo costante. */
+    public int getNumeroDisponibili() { return disponibili.size(); }
+
+    /** Numero di libri in prestito, in tempo costante. */
+    public int getNumeroInPrestito() { return inPrestito.size(); }
+
+    /**
+     * Abilita le metriche di latenza e throughput (se non lo sono già) e le restituisce.
+     * Coprono le ricerche di questo catalogo e i prestiti dei {@link GestorePrestiti} collegati.
+     */
+    public Metriche abilitaMetriche() {
+        synchronized (scrittura) {
+            if (metriche == null) metriche = new Metriche(this::getTotaleLibri);
+            return metriche;
+        }
+    }
+
+    /** Disabilita le metriche; un'istantanea già ottenuta resta leggibile. */
+    public void disabilitaMetriche() {
+        metriche = null;
+    }
+
+    /**
+     * Abilita, vuota, la cache dei risultati di {@link #cercaPerAutore(String)},
+     * {@link #getLibriDisponibili()}, {@link #getLibriInPrestito()} e
+     * {@link GestorePrestiti#getPrestitiScaduti(LocalDate)}; se era già abilitata la sostituisce.
+     *
+     * <p>Ogni risultato pesa quanto i libri che contiene più uno; oltre {@code pesoMassimo} la
+     * cache toglie i risultati usati meno di recente, ma un risultato nuovo entra solo se è stato
+     * chiesto più spesso di quello che toglierebbe. Aggiunte e rimozioni invalidano le liste e le
+     * ricerche per autore che trovano il libro, prestiti e restituzioni le sole liste.
+     *
+     * <p>Finché la cache è abilitata queste ricerche restituiscono liste non modificabili,
+     * condivise tra le chiamate.
+     *
+     * @param pesoMassimo peso massimo dei risultati in cache (> 0)
+     */
+    public void abilitaCache(long pesoMassimo) {
+        if (pesoMassimo <= 0) throw new IllegalArgumentException("Il peso massimo della cache deve essere > 0");
+        cache = new CacheRicerche(pesoMassimo);
+    }
+
+    /** Disabilita la cache e ne libera i risultati. */
+    public void disabilitaCache() {
+        cache = null;
+    }
+
+    /** I contatori della cache delle ricerche, vuoto se non è abilitata. */
+    public Optional<StatisticheCache> getStatisticheCache() {
+        CacheRicerche c = cache;
+        return c == null ? Optional.empty() : Optional.of(c.statistiche());
+    }
+
+    /** Il risultato di {@code calcolo}, dalla cache se è abilitata e lo contiene ancora valido. */
+    List<Libro> dallaCache(CacheRicerche.Tipo tipo, String parametro, Supplier<List<Libro>> calcolo) {
+        CacheRicerche c = cache;
+        return c == null ? calcolo.get() : c.ottieni(tipo, parametro, calcolo);
+    }
+
+    /**
+     * Versione immutabile del catalogo e dei prestiti in questo istante, per report ed
+     * esportazioni che devono leggere uno stato coerente senza bloccare i prestiti.
+     *
+     * <p>La prima chiamata attiva lo storico delle versioni ({@link StoricoCatalogo}), che da
+     * quel momento segue ogni modifica copiando pochi nodi; le chiamate successive costano
+     * una lettura.
+     */
+    public VersioneCatalogo versioneCorrente() {
+        if (storico == null) {
+            conScrittureFerme(() -> {
+                if (storico != null) return;
+                List<Libro> libri = getTuttiILibri();
+                StoricoCatalogo s = new StoricoCatalogo(libri);
+                aggiungiOsservatore(s);
+                s.popola(libri);
+                storico = s;
+            });
+        }
+        StoricoCatalogo s = storico;
+        return new VersioneCatalogo(s, s.stato());
+    }
+
+    /**
+     * Cerca per parole del titolo e dell'autore, senza badare a maiuscole e accenti
+     * ("marquez" trova "García Márquez") e ignorando articoli e preposizioni. Restituisce i
+     * {@code massimo} libri più pertinenti secondo BM25, dal più pertinente: contano di più le
+     * parole rare nel catalogo e quelle ripetute in un titolo breve. Basta una parola in comune.
+     *
+     * <p>La prima chiamata costruisce l'indice a parole ({@link IndiceTesto}), che da quel
+     * momento segue aggiunte e rimozioni; ogni ricerca legge solo le liste delle parole cercate.
+     *
+     * @param testo   parole da cercare
+     * @param massimo numero massimo di risultati (> 0)
+     */
+    public List<Libro> cercaPerTesto(String testo, int massimo) {
+        if (massimo <= 0) throw new IllegalArgumentException("Il numero di risultati deve essere > 0");
+        if (testo == null || testo.isBlank()) return List.of();
+        Misura misura = new Misura.Ricerca(metriche, Metriche.Operazione.CERCA_PER_TESTO, testo);
+        if (indiceTesto == null) {
+            conScrittureFerme(() -> {
+                if (indiceTesto != null) return;
+                IndiceTesto indice = new IndiceTesto();
+                for (Libro libro : getTuttiILibri()) indice.aggiungi(libro);
+                aggiungiOsservatore(indice);
+                indiceTesto = indice;
+            });
+        }
+        List<Libro> risultati = new ArrayList<>();
+        for (IndiceTesto.Risultato r : indiceTesto.cerca(testo, massimo)) {
+            Libro libro = trova(r.isbn());             // può essere stato rimosso nel frattempo
+            if (libro != null) risultati.add(libro);
+        }
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return Collections.unmodifiableList(risultati);
+    }
+
+    /** Le metriche correnti, vuoto se non sono abilitate. */
+    public Optional<Metriche> getMetriche() {
+        return Optional.ofNullable(metriche);
+    }
+
+    /** Metriche correnti o {@code null}, per le misure di {@link GestorePrestiti}. */
+    Metriche metriche() { return metriche; }
+
+    /** Come {@link #cercaPerIsbn(String)}, senza misura: per chi ne ha già una aperta. */
+    Libro trova(String isbn) {
+        if (isbn == null || isbn.isBlank()) return null;
+        long chiave = Isbn.chiave(isbn);
+        return chiave != Isbn.NON_VALIDO ? indiceIsbn13.get(chiave) : indiceIsbn.get(normalizzaIsbn(isbn));
+    }
+
+    /** La copia {@code k} (da 1) del titolo, o {@code null}. */
+    Libro copia(String isbn, int k) {
+        Libro libro = trova(isbn);
+        if (libro == null || k == 1) return libro;
+        Copie copie = libro.getCopie();
+        return copie == null ? null : copie.copia(k);
+    }
+
+    /** Tutte le copie del titolo di {@code libro}, in ordine di numero. */
+    static List<Libro> copieDi(Libro libro) {
+        Copie copie = libro.getCopie();
+        if (copie == null) return List.of(libro);
+        List<Libro> tutte = new ArrayList<>(copie.numero());
+        for (int k = 1; k <= copie.numero(); k++) tutte.add(copie.copia(k));
+        return tutte;
+    }
+
+    /** Esegue {@code azione} senza aggiunte né rimozioni concorrenti, cioè con il lock di scrittura. */
+    void conScrittureFerme(Runnable azione) {
+        synchronized (scrittura) {
+            azione.run();
+        }
+    }
+
+    /** Registra un osservatore che riceverà tutte le modifiche successive del catalogo. */
+    void aggiungiOsservatore(OsservatoreCatalogo osservatore) {
+        osservatori.add(osservatore);
+    }
+
+    /** Toglie un osservatore: dalla prossima modifica non riceve più notifiche. */
+    void rimuoviOsservatore(OsservatoreCatalogo osservatore) {
+        osservatori.remove(osservatore);
+    }
+
+    /**
+     * Registra un indice dei prestiti e gli passa come {@code libroPrestato} quelli già aperti.
+     * Prima registra, poi legge: un prestito concorrente arriva per notifica, per lettura o in
+     * entrambi i modi, quindi {@code libroPrestato} dell'osservatore deve essere idempotente.
+     * Ogni libro è riletto con il suo lock di prestito, lo stesso delle notifiche: se nel
+     * frattempo è stato restituito la restituzione è già arrivata e il libro viene saltato.
+     */
+    void aggiungiOsservatoreDeiPrestiti(OsservatoreCatalogo osservatore) {
+        conScrittureFerme(() -> {
+            aggiungiOsservatore(osservatore);
+            for (Libro libro : streamLibriInPrestito().toList()) {
+                conLock(lockDelCestino(List.of(libro)), 0, () -> {
+                    if (!libro.isDisponibile()) osservatore.libroPrestato(libro);
+                });
+            }
+        });
+    }
+
+    /**
+     * Notifica l'aggiunta agli osservatori. Va chiamato con il lock del libro, così nessun
+     * prestito può essere notificato prima dell'aggiunta dello stesso libro.
+     */
+    final void notificaAggiunta(Libro libro) {
+        for (OsservatoreCatalogo o : osservatori) o.libroAggiunto(libro);
+        CacheRicerche c = cache;
+        if (c != null) c.libroCambiato(libro);
+    }
+
+    final void notificaRimozione(Libro libro) {
+        for (OsservatoreCatalogo o : osservatori) o.libroRimosso(libro);
+        CacheRicerche c = cache;
+        if (c != null) c.libroCambiato(libro);
+    }
+
+    /**
+     * Invalida i risultati in cache che dipendono dai prestiti. Viene dopo gli osservatori:
+     * un risultato calcolato prima che l'indice delle scadenze veda la modifica non deve
+     * sopravvivere all'invalidazione.
+     */
+    private void prestitiCambiati() {
+        CacheRicerche c = cache;
+        if (c != null) c.prestitiCambiati();
+    }
+
+    final void notificaPrestito(Libro libro) {
+        Cestino c = cestino.get();
+        if (c != null) {
+            c.prestati.add(libro);
+            return;
+        }
+        for (OsservatoreCatalogo o : osservatori) o.libroPrestato(libro);
+        prestitiCambiati();
+    }
+
+    final void notificaRestituzione(Libro libro, String utente, LocalDate dataPrevista) {
+        Cestino c = cestino.get();
+        if (c != null) {
+            c.restituiti.add(new OsservatoreCatalogo.Restituzione(libro, utente, dataPrevista));
+            return;
+        }
+        for (OsservatoreCatalogo o : osservatori) o.libroRestituito(libro, utente, dataPrevista);
+        prestitiCambiati();
+    }
+
+    /**
+     * Esegue {@code azione} tenendo i lock di prestito di tutti i {@code libri}, presi in un
+     * ordine globale ({@link #lockDelCestino(List)}) così che due cestini con libri in comune
+     * non possano bloccarsi a vicenda. Le notifiche di prestito e restituzione dell'azione
+     * vengono trattenute e consegnate agli osservatori in blocco alla fine, ancora sotto i
+     * lock: il giornale ne fa un solo record e lo storico una sola versione.
+     */
+    final void inCestino(List<Libro> libri, Runnable azione) {
+        conLock(lockDelCestino(libri), 0, () -> {
+            Cestino c = new Cestino();
+            cestino.set(c);
+            try {
+                azione.run();
+            } finally {
+                cestino.remove();
+                for (OsservatoreCatalogo o : osservatori) {
+                    if (!c.prestati.isEmpty()) o.libriPrestati(c.prestati);
+                    if (!c.restituiti.isEmpty()) o.libriRestituiti(c.restituiti);
+                }
+                if (!c.prestati.isEmpty() || !c.restituiti.isEmpty()) prestitiCambiati();
+            }
+        });
+    }
+
+    static void conLock(List<Object> lock, int i, Runnable azione) {
+        if (i == lock.size()) {
+            azione.run();
+            return;
+        }
+        synchronized (lock.get(i)) {
+            conLock(lock, i + 1, azione);
+        }
+    }
+
+    /**
+     * Lock che proteggono lo stato di prestito dei {@code libri}, distinti e in ordine globale.
+     * Qui sono i libri stessi, ordinati per chiave ISBN e numero di copia (unici nel catalogo).
+     */
+    List<Object> lockDelCestino(List<Libro> libri) {
+        List<Libro> ordinati = new ArrayList<>(libri);
+        ordinati.sort(Comparator.comparing((Libro l) -> chiaveIsbn(l.getIsbn())).thenComparingInt(Libro::getCopia));
+        return new ArrayList<>(ordinati);
+    }
+
+    /** {@code true} se {@code libro} è ancora nel catalogo. Da chiamare con il suo lock di prestito. */
+    boolean contiene(Libro libro) {
+        return libro.getCatalogo() == this;
+    }
+
+    /** Chiamato da {@link Libro#segnaComePrestato(String, int)} dopo il cambio di stato. */
+    void libroPrestato(Libro libro) {
+        Copie copie = libro.getCopie();
+        if (copie != null) copie.segnaOccupata(libro.getCopia());
+        disponibili.remove(libro);
+        inPrestito.add(libro);
+        notificaPrestito(libro);
+    }
+
+    /** Chiamato da {@link Libro#segnaComRestituito()} dopo il cambio di stato. */
+    void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        inPrestito.remove(libro);
+        disponibili.add(libro);
+        Copie copie = libro.getCopie();
+        if (copie != null) copie.segnaLibera(libro.getCopia());
+        notificaRestituzione(libro, utente, dataPrevista);
+    }
+
+    /**
+     * Chiamato da {@link Libro#setRiservatoA(String)}: una copia messa da parte esce dalla bitmap
+     * delle copie libere, e vi rientra quando la riserva cade.
+     */
+    void riservaCambiata(Libro libro) {
+        Copie copie = libro.getCopie();
+        if (copie == null) return;
+        if (libro.isDisponibile() && libro.getRiservatoA() == null) copie.segnaLibera(libro.getCopia());
+        else copie.segnaOccupata(libro.getCopia());
+    }
+
+    // ------------------------------------------------------------------ scorrimenti
+
+    /** Disponibilità richiesta da uno scorrimento. */
+    enum Filtro {
+        TUTTI, DISPONIBILI, IN_PRESTITO;
+
+        boolean accetta(Libro libro) {
+            return this == TUTTI || libro.isDisponibile() == (this == DISPONIBILI);
+        }
+    }
+
+    /**
+     * Iteratore pigro sui libri in ordine di inserimento, che ricorda la posizione
+     * ({@link #sequenza()}) dell'ultimo libro restituito per costruire il cursore.
+     */
+    abstract static class Scorrimento implements Iterator<Libro> {
+        private boolean pronto;
+        private boolean finito;
+        private long restituita = -1;
+        /** Impostati da {@link #avanza()}. */
+        Libro libro;
+        long sequenza;
+
+        /** Porta {@link #libro} e {@link #sequenza} al libro successivo; {@code false} se non ce ne sono. */
+        abstract boolean avanza();
+
+        @Override
+        public boolean hasNext() {
+            if (!pronto && !finito) {
+                pronto = avanza();
+                finito = !pronto;
+            }
+            return pronto;
+        }
+
+        @Override
+        public Libro next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            pronto = false;
+            restituita = sequenza;
+            return libro;
+        }
+
+        /** Posizione dell'ultimo libro restituito da {@link #next()}. */
+        long sequenza() { return restituita; }
+    }
+
+    /** I libri inseriti dopo la posizione {@code dopo} che passano {@code filtro}, da un'istantanea. */
+    Scorrimento scorri(long dopo, Filtro filtro) {
+        Vista v = vista;
+        int inizio = primoDopo(v, dopo);
+        return new Scorrimento() {
+            private int i = inizio;
+
+            @Override
+            boolean avanza() {
+                while (i < v.dimensione()) {
+                    Libro candidato = v.elementi()[i++];
+                    if (filtro.accetta(candidato)) {
+                        libro = candidato;
+                        sequenza = candidato.getSequenza();
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Pagina di libri dell'autore inseriti dopo {@code dopo}; {@code autore} è già senza spazi esterni. */
+    Pagina paginaPerAutore(String autore, long dopo, int dimensione) {
+        // sequenza letta una volta sola: l'ordinamento non deve vederla cambiare
+        record Trovato(Libro libro, long sequenza) {}
+        List<Trovato> trovati = new ArrayList<>();
+        indiceAutori.visita(autore, libro -> {
+            long sequenza = libro.getSequenza();
+            if (sequenza > dopo) trovati.add(new Trovato(libro, sequenza));
+            return true;
+        });
+        trovati.sort(Comparator.comparingLong(Trovato::sequenza));
+        List<Libro> libri = new ArrayList<>(Math.min(dimensione, trovati.size()));
+        for (int i = 0; i < trovati.size() && libri.size() < dimensione; i++) libri.add(trovati.get(i).libro());
+        String cursore = libri.size() == dimensione ? cursore(trovati.get(dimensione - 1).sequenza()) : null;
+        return new Pagina(Collections.unmodifiableList(libri), cursore);
+    }
+
+    /** Passa a {@code visitatore} i titoli pubblicati da {@code da} ad {@code a}, per anno e poi per inserimento. */
+    void visitaAnni(int da, int a, Predicate<Libro> visitatore) {
+        indiceFaccette.visita(da, a, visitatore);
+    }
+
+    /** Titoli pubblicati da {@code da} ad {@code a}; l'intervallo è già valido. */
+    int contaAnni(int da, int a) {
+        return indiceFaccette.conta(da, a);
+    }
+
+    /** Faccette con al più {@code massimoAutori} autori. */
+    Faccette faccette(int massimoAutori) {
+        return indiceFaccette.faccette(massimoAutori);
+    }
+
+    /** Conta i libri dell'autore fino a {@code massimo}; {@code autore} è già senza spazi esterni. */
+    int contaAutore(String autore, int massimo) {
+        int[] contati = {0};
+        indiceAutori.visita(autore, libro -> ++contati[0] < massimo);
+        return contati[0];
+    }
+
+    /** Primo indice di {@code v} con sequenza maggiore di {@code dopo}: le sequenze crescono lungo l'elenco. */
+    private static int primoDopo(Vista v, long dopo) {
+        int basso = 0;
+        int alto = v.dimensione();
+        while (basso < alto) {
+            int medio = (basso + alto) >>> 1;
+            if (v.elementi()[medio].getSequenza() <= dopo) basso = medio + 1;
+            else alto = medio;
+        }
+        return basso;
+    }
+
+    static Pagina pagina(Scorrimento scorrimento, int dimensione) {
+        List<Libro> libri = new ArrayList<>(Math.min(dimensione, 256));
+        while (libri.size() < dimensione && scorrimento.hasNext()) libri.add(scorrimento.next());
+        String cursore = libri.size() == dimensione ? cursore(scorrimento.sequenza()) : null;
+        return new Pagina(Collections.unmodifiableList(libri), cursore);
+    }
+
+    static String cursore(long sequenza) {
+        return Long.toString(sequenza);
+    }
+
+    /** Posizione codificata nel cursore, -1 per la prima pagina. */
+    static long daCursore(String cursore, int dimensione) {
+        if (dimensione <= 0) throw new IllegalArgumentException("La dimensione della pagina deve essere > 0");
+        if (cursore == null) return -1;
+        try {
+            long sequenza = Long.parseLong(cursore);
+            if (sequenza >= 0) return sequenza;
+        } catch (NumberFormatException e) {
+            // gestito sotto
+        }
+        throw new IllegalArgumentException("Cursore non valido: " + cursore);
+    }
+
+    private static Stream<Libro> stream(Scorrimento scorrimento) {
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(scorrimento, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /** Inserisce nell'indice ISBN; {@code false} se l'ISBN c'è già. Da chiamare con il lock di scrittura. */
+    private boolean indicizza(Libro libro) {
+        long chiave = Isbn.chiave(libro.getIsbn());
+        if (chiave != Isbn.NON_VALIDO) return indiceIsbn13.putIfAbsent(chiave, libro) == null;
+        return indiceIsbn.putIfAbsent(normalizzaIsbn(libro.getIsbn()), libro) == null;
+    }
+
+    /** Aggiunge in coda all'elenco. Da chiamare con il lock di scrittura. */
+    private void accoda(Libro libro) {
+        Vista v = vista;
+        Libro[] elementi = v.elementi();
+        if (v.dimensione() == elementi.length) {
+            elementi = Arrays.copyOf(elementi, elementi.length * 2);
+        }
+        libro.setSequenza(prossimaSequenza++);
+        elementi[v.dimensione()] = libro;
+        vista = new Vista(elementi, v.dimensione() + 1);
+    }
+
+    /**
+     * Primo passaggio di {@link #aggiungiLibri(Collection)}: scarta duplicati e libri non validi,
+     * collega gli altri al catalogo e li mette in {@code accettati}. Da chiamare con il lock di scrittura.
+     */
+    private EsitoImportazione.Stato classificaECollega(Libro libro, Map<String, Libro> accettati) {
+        if (libro == null) return EsitoImportazione.Stato.NON_VALIDO;
+        String chiave = chiaveIsbn(libro.getIsbn());
+        if (trova(libro.getIsbn()) != null) return EsitoImportazione.Stato.DUPLICATO_CATALOGO;
+        if (accettati.containsKey(chiave)) return EsitoImportazione.Stato.DUPLICATO_LOTTO;
+        synchronized (libro) {
+            if (libro.getCatalogo() != null) return EsitoImportazione.Stato.NON_VALIDO;
+            (libro.isDisponibile() ? disponibili : inPrestito).add(libro);
+            libro.setCatalogo(this);
+        }
+        accettati.put(chiave, libro);
+        return EsitoImportazione.Stato.AGGIUNTO;
+    }
+
+    /** Aggiunge in coda più libri con un solo ridimensionamento e una sola pubblicazione. */
+    private void accodaTutti(Collection<Libro> nuovi) {
+        Vista v = vista;
+        int dimensione = v.dimensione() + nuovi.size();
+        Libro[] elementi = v.elementi();
+        if (dimensione > elementi.length) {
+            elementi = Arrays.copyOf(elementi, Math.max(dimensione, elementi.length * 2));
+        }
+        int i = v.dimensione();
+        for (Libro libro : nuovi) {
+            libro.setSequenza(prossimaSequenza++);
+            elementi[i++] = libro;
+        }
+        vista = new Vista(elementi, dimensione);
+    }
+
+    /**
+     * Toglie dall'elenco le copie di un titolo in una sola passata, copiando l'array, così le
+     * istantanee già distribuite restano intatte.
+     */
+    private void togli(List<Libro> copie) {
+        Vista v = vista;
+        Libro[] elementi = v.elementi();
+        Libro primo = copie.get(0);
+        Copie gruppo = copie.size() == 1 ? null : primo.getCopie();
+        Libro[] copia = new Libro[elementi.length];
+        int n = 0;
+        for (int i = 0; i < v.dimensione(); i++) {
+            Libro l = elementi[i];
+            if (l != primo && (gruppo == null || l.getCopie() != gruppo)) copia[n++] = l;
+        }
+        vista = new Vista(copia, n);
+    }
+
+    /**
+     * Chiave usata dall'indice ISBN: spazi esterni rimossi e lettere minuscole,
+     * così da mantenere la semantica case-insensitive di {@link #cercaPerIsbn(String)}.
+     */
+    static String normalizzaIsbn(String isbn) {
+        return isbn.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Chiave di uguaglianza tra ISBN, per chi non usa gli indici del catalogo: le 13 cifre
+     * di un ISBN valido (vedi {@link Isbn}), altrimenti {@link #normalizzaIsbn(String)}.
+     */
+    static String chiaveIsbn(String isbn) {
+        long chiave = Isbn.chiave(isbn);
+        return chiave != Isbn.NON_VALIDO ? Long.toString(chiave) : normalizzaIsbn(isbn);
+    }
+
+    /** Come {@link #chiaveIsbn(String)}, ma distingue le copie dello stesso titolo. */
+    static String chiaveCopia(Libro libro) {
+        String chiave = chiaveIsbn(libro.getIsbn());
+        return libro.getCopia() == 1 ? chiave : chiave + "#" + libro.getCopia();
+    }
 }
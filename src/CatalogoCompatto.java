@@ -0,0 +1,867 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * {@link Catalogo} compatto per cataloghi molto grandi (milioni di titoli).
+ *
+ * <p>Invece di un oggetto {@link Libro} per titolo, con le sue stringhe e i nodi degli indici,
+ * i dati sono tenuti in colonne di tipi primitivi:
+ * <ul>
+ *   <li>ISBN valido codificato in un {@code long} con {@link Isbn#compatta(String)}, formattazione
+ *       compresa (gli altri codici in un {@link PoolStringhe});</li>
+ *   <li>titolo e autore come identificativi in un {@link PoolStringhe} deduplicato;</li>
+ *   <li>anno e numero di copia come {@code short};</li>
+ *   <li>prestitario e scadenza (epoch day) impacchettati in un {@code long} per riga, più due
+ *       bitmap per i libri presenti e per quelli in prestito;</li>
+ *   <li>l'utente per cui il libro è messo da parte da una prenotazione, come identificativo
+ *       nello stesso {@link PoolStringhe} dei prestitari.</li>
+ * </ul>
+ * L'indice ISBN è una tabella ad indirizzamento aperto di {@code int}, e i libri di uno
+ * stesso autore sono concatenati tramite un array di successori. Il costo per titolo
+ * scende così da qualche centinaio di byte a qualche decina, più il testo del titolo.
+ *
+ * <p>L'API è quella di {@link Catalogo}, con queste differenze:
+ * <ul>
+ *   <li>{@link #aggiungiLibro(Libro)} <b>copia</b> i dati del libro: l'oggetto passato non
+ *       viene collegato al catalogo e i prestiti successivi non lo modificano;</li>
+ *   <li>i {@link Libro} restituiti sono viste create al momento, che leggono e modificano
+ *       le colonne: due ricerche dello stesso libro danno oggetti diversi ma uguali
+ *       per {@link Libro#equals(Object)};</li>
+ *   <li>l'anno di pubblicazione deve stare in uno {@code short};</li>
+ *   <li>le copie di {@link #aggiungiCopie(String, int)} sono righe in più, fuori dall'indice
+ *       ISBN e dalle catene degli autori: si trovano dalla prima copia, come nel catalogo normale;</li>
+ *   <li>lo spazio dei libri rimossi non viene recuperato (il catalogo è pensato per
+ *       crescere; per compattarlo basta reimportarlo con {@link #aggiungiLibri(Collection)}).</li>
+ * </ul>
+ *
+ * <p>Thread-safety: come in {@link Catalogo}, aggiunte e rimozioni sono serializzate da un
+ * lock di scrittura e le ricerche non prendono lock. Prestiti, restituzioni e riserve sono
+ * sincronizzati su una striscia di 64 libri consecutivi, che protegge anche le bitmap;
+ * le viste leggono il prestito senza lock, con una sola lettura atomica della riga, così
+ * chi le scorre tenendo altri lock (per esempio {@link Giornale#checkpoint()}) non
+ * attende i prestiti in corso.
+ */
+public class CatalogoCompatto extends Catalogo {
+
+    private static final int NESSUNO = -1;
+    /** Prestitario {@code null}, ammesso da {@link Libro#segnaComePrestato(String, int)}. */
+    private static final int IGNOTO = -2;
+    /** Voce dell'indice ISBN di un libro rimosso. */
+    private static final int RIMOSSO = -1;
+    private static final int STRISCE = 64;
+    /** Prestito di una riga disponibile: nessun prestitario, scadenza 0. */
+    private static final long LIBERO = codifica(NESSUNO, 0);
+
+    /**
+     * Colonne pubblicate. Le righe {@code [0, dimensione)} sono state scritte prima della
+     * pubblicazione; i lettori considerano valide solo quelle con il bit in {@code presenti}.
+     * Per le copie oltre la prima ({@code copia > 1}) {@code successivo} non concatena gli
+     * autori ma indica la riga della prima copia; {@code riservato} è {@link #NESSUNO} per le
+     * righe non messe da parte.
+     */
+    private record Colonne(int dimensione,
+                           long[] isbn, int[] titolo, int[] autore, short[] anno, short[] copia, int[] successivo,
+                           AtomicLongArray prestito, AtomicIntegerArray riservato,
+                           AtomicLongArray presenti, AtomicLongArray prestati,
+                           int[] indice, AtomicIntegerArray primoPerAutore) {}
+
+    private final Object[] strisce = new Object[STRISCE];
+    private volatile Colonne colonne;
+
+    /** Copie dei titoli che ne hanno più di una, per riga della prima copia. */
+    private final Map<Integer, Copie> copie = new ConcurrentHashMap<>();
+
+    private final PoolStringhe isbnTestuali = new PoolStringhe();
+    private final PoolStringhe titoli = new PoolStringhe();
+    private final PoolStringhe autori = new PoolStringhe();
+    private final PoolStringhe utenti = new PoolStringhe();
+
+    /** Indice a trigrammi sugli autori: associa ogni autore al suo identificativo in {@link #autori}. */
+    private final IndiceAutori<Integer> indiceAutori = new IndiceAutori<>();
+
+    /** Indice per anno e conteggi per faccetta, sulle righe. */
+    private final IndiceFaccette<Integer> indiceFaccette = new IndiceFaccette<>();
+
+    private volatile int totale;
+    private final AtomicInteger numeroInPrestito = new AtomicInteger();
+
+    public CatalogoCompatto() {
+        for (int i = 0; i < STRISCE; i++) strisce[i] = new Object();
+        AtomicIntegerArray primoPerAutore = new AtomicIntegerArray(16);
+        for (int a = 0; a < primoPerAutore.length(); a++) primoPerAutore.set(a, NESSUNO);
+        colonne = new Colonne(0, new long[16], new int[16], new int[16], new short[16], new short[16], new int[16],
+                              new AtomicLongArray(16), new AtomicIntegerArray(16), new AtomicLongArray(1), new AtomicLongArray(1),
+                              new int[32], primoPerAutore);
+    }
+
+    // ===================================================================
+    //  OPERAZIONI DEL CATALOGO
+    // ===================================================================
+
+    /**
+     * Aggiunge al catalogo una copia del libro, compreso l'eventuale prestito in corso.
+     *
+     * @throws IllegalArgumentException se {@code libro} è null, il suo ISBN è già presente,
+     *                                  appartiene a un altro catalogo o l'anno non sta in uno {@code short}
+     */
+    @Override
+    public void aggiungiLibro(Libro libro) {
+        if (libro == null) throw new IllegalArgumentException("Il libro non può essere null");
+        synchronized (scrittura) {
+            synchronized (libro) {
+                if (libro.getCatalogo() != null) {
+                    throw new IllegalArgumentException("Il libro appartiene già a un catalogo: " + libro.getIsbn());
+                }
+                if (posizione(colonne, libro.getIsbn()) != NESSUNO) {
+                    throw new IllegalArgumentException("ISBN già presente: " + libro.getIsbn());
+                }
+                if (!annoValido(libro)) {
+                    throw new IllegalArgumentException("Anno di pubblicazione fuori intervallo: " + libro.getAnnoPubblicazione());
+                }
+                riserva(1);
+                inserisci(libro);
+            }
+        }
+    }
+
+    @Override
+    public EsitoImportazione aggiungiLibri(Collection<Libro> nuovi) {
+        if (nuovi == null) throw new IllegalArgumentException("Il lotto non può essere null");
+        EsitoImportazione esito = new EsitoImportazione(nuovi.size());
+        synchronized (scrittura) {
+            riserva(nuovi.size());
+            Set<String> chiaviLotto = new HashSet<>();
+            for (Libro libro : nuovi) {
+                if (libro == null) {
+                    esito.registra(null, EsitoImportazione.Stato.NON_VALIDO);
+                    continue;
+                }
+                synchronized (libro) {
+                    String chiave = chiaveIsbn(libro.getIsbn());
+                    EsitoImportazione.Stato stato;
+                    if (chiaviLotto.contains(chiave)) {
+                        stato = EsitoImportazione.Stato.DUPLICATO_LOTTO;
+                    } else if (posizione(colonne, libro.getIsbn()) != NESSUNO) {
+                        stato = EsitoImportazione.Stato.DUPLICATO_CATALOGO;
+                    } else if (libro.getCatalogo() != null || !annoValido(libro)) {
+                        stato = EsitoImportazione.Stato.NON_VALIDO;
+                    } else {
+                        inserisci(libro);
+                        chiaviLotto.add(chiave);
+                        stato = EsitoImportazione.Stato.AGGIUNTO;
+                    }
+                    esito.registra(libro, stato);
+                }
+            }
+        }
+        return esito;
+    }
+
+    @Override
+    public Optional<Libro> cercaPerIsbn(String isbn) {
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.CERCA_PER_ISBN, isbn);
+        Libro trovato = trova(isbn);
+        misura.concludi(true, trovato == null ? 0 : 1, getTotaleLibri());
+        return Optional.ofNullable(trovato);
+    }
+
+    /**
+     * Istantanea non modificabile di tutti i libri, in ordine di inserimento.
+     * Le viste vengono create solo quando si accede agli elementi.
+     */
+    @Override
+    public List<Libro> getTuttiILibri() {
+        Colonne c = colonne;
+        int[] righe = new int[totale];
+        int n = 0;
+        for (int i = presenti(c, 0); i >= 0 && n < righe.length; i = presenti(c, i + 1)) righe[n++] = i;
+        return new ElencoViste(c, n == righe.length ? righe : Arrays.copyOf(righe, n));
+    }
+
+    @Override
+    public List<Libro> cercaPerAutore(String autore) {
+        if (autore == null || autore.isBlank()) return List.of();
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.CERCA_PER_AUTORE, autore);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.AUTORE, autore, () -> cercaRighePerAutore(autore.trim()));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    private List<Libro> cercaRighePerAutore(String autore) {
+        List<Libro> risultati = new ArrayList<>();
+        for (int id : indiceAutori.cerca(autore)) {
+            AtomicIntegerArray primo = colonne.primoPerAutore();
+            if (id >= primo.length()) continue;
+            int i = primo.get(id);
+            Colonne c = colonne;   // riletto dopo la testa della catena, quindi contiene già la sua riga
+            for (; i != NESSUNO; i = c.successivo()[i]) {
+                if (presente(c, i)) risultati.add(vista(c, i));
+            }
+        }
+        return risultati;
+    }
+
+    @Override
+    public boolean rimuoviLibro(String isbn) {
+        synchronized (scrittura) {
+            Colonne c = colonne;
+            int i = isbn == null || isbn.isBlank() ? NESSUNO : posizione(c, isbn);
+            if (i == NESSUNO) return false;
+
+            Libro libro = vista(c, i);
+            List<Libro> tutte = copieDi(libro);
+            // sotto le strisce delle copie nessun prestito può inserirsi tra il controllo e la rimozione
+            conLock(lockDelCestino(tutte), 0, () -> {
+                for (Libro copia : tutte) {
+                    if (!copia.isDisponibile()) {
+                        throw new IllegalStateException("Il libro \"" + copia.getTitolo() + "\" è in prestito e non può essere rimosso");
+                    }
+                }
+                for (Libro copia : tutte) imposta(c.presenti(), ((VistaLibro) copia).riga, false);
+            });
+            copie.remove(i);
+            togliDaIndice(c, i);
+            togliDaAutore(c, i);
+            indiceFaccette.rimuovi(c.anno()[i], i, libro.getAutore());
+            totale -= tutte.size();
+            for (Libro copia : tutte) notificaRimozione(copia);
+            return true;
+        }
+    }
+
+    /** Ogni copia è una riga in più, con il numero di copia e il riferimento alla prima. */
+    @Override
+    public void aggiungiCopie(String isbn, int numero) {
+        if (numero <= 0) throw new IllegalArgumentException("Il numero di copie deve essere > 0");
+        synchronized (scrittura) {
+            int primo = isbn == null || isbn.isBlank() ? NESSUNO : posizione(colonne, isbn);
+            if (primo == NESSUNO) throw new IllegalStateException("Nessun libro con ISBN: " + isbn);
+            Copie gruppo;
+            synchronized (striscia(primo)) {
+                gruppo = copie.get(primo);
+                int totale = (gruppo == null ? 1 : gruppo.numero()) + numero;
+                if (totale > Copie.MASSIMO) {
+                    throw new IllegalArgumentException("Al più " + Copie.MASSIMO + " copie per titolo: " + isbn);
+                }
+                // creata sotto la striscia della prima copia, che quindi non cambia stato prima di vederla
+                if (gruppo == null) {
+                    gruppo = new Copie(vista(colonne, primo));
+                    copie.put(primo, gruppo);
+                }
+            }
+            riserva(numero);
+            for (int n = 0; n < numero; n++) inserisciCopia(primo, gruppo);
+        }
+    }
+
+    @Override
+    public List<Libro> getLibriDisponibili() {
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.LIBRI_DISPONIBILI, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.DISPONIBILI, null, () -> filtra(false));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    @Override
+    public List<Libro> getLibriInPrestito() {
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.LIBRI_IN_PRESTITO, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.IN_PRESTITO, null, () -> filtra(true));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    @Override
+    public int getTotaleLibri() { return totale; }
+
+    @Override
+    public int getNumeroDisponibili() { return totale - numeroInPrestito.get(); }
+
+    @Override
+    public int getNumeroInPrestito() { return numeroInPrestito.get(); }
+
+    @Override
+    Libro trova(String isbn) {
+        if (isbn == null || isbn.isBlank()) return null;
+        Colonne c = colonne;
+        int i = posizione(c, isbn);
+        return i == NESSUNO ? null : vista(c, i);
+    }
+
+    // ===================================================================
+    //  PRESTITI (chiamati dalle viste)
+    // ===================================================================
+
+    private void presta(int i, String utente, LocalDate scadenza, Libro vista) {
+        int giorno = Math.toIntExact(scadenza.toEpochDay());
+        synchronized (striscia(i)) {
+            Colonne c = colonne;
+            if (!presente(c, i)) {
+                throw new IllegalStateException("Il libro \"" + vista.getTitolo() + "\" non è più nel catalogo");
+            }
+            long corrente = c.prestito().get(i);
+            if (corrente != LIBERO) {
+                throw new IllegalStateException(
+                    "Il libro \"" + vista.getTitolo() + "\" non è disponibile (in prestito a " + utente(prestitario(corrente)) + ")");
+            }
+            int riservato = c.riservato().get(i);
+            if (riservato != NESSUNO && !utenti.get(riservato).equals(utente)) {
+                throw new IllegalStateException("Il libro \"" + vista.getTitolo() + "\" è riservato a " + utenti.get(riservato));
+            }
+            c.riservato().set(i, NESSUNO);
+            c.prestito().set(i, codifica(utente == null ? IGNOTO : utenti.interna(utente), giorno));
+            imposta(c.prestati(), i, true);
+            numeroInPrestito.incrementAndGet();
+            Copie gruppo = copieDella(c, i);
+            if (gruppo != null) gruppo.segnaOccupata(c.copia()[i]);
+            notificaPrestito(vista);
+        }
+    }
+
+    private void restituisci(int i, Libro vista) {
+        synchronized (striscia(i)) {
+            Colonne c = colonne;
+            long chiuso = c.prestito().get(i);
+            if (chiuso == LIBERO) {
+                throw new IllegalStateException("Il libro \"" + vista.getTitolo() + "\" era già disponibile");
+            }
+            c.prestito().set(i, LIBERO);
+            imposta(c.prestati(), i, false);
+            numeroInPrestito.decrementAndGet();
+            Copie gruppo = copieDella(c, i);
+            if (gruppo != null) gruppo.segnaLibera(c.copia()[i]);
+            notificaRestituzione(vista, utente(prestitario(chiuso)), LocalDate.ofEpochDay(giorno(chiuso)));
+        }
+    }
+
+    /** Mette da parte la riga per {@code utente}, o la libera con {@code null}. Da chiamare con il lock della striscia. */
+    private void metteDaParte(int i, String utente, Libro vista) {
+        colonne.riservato().set(i, utente == null ? NESSUNO : utenti.interna(utente));
+        riservaCambiata(vista);
+    }
+
+    private String riservatoA(int i) {
+        int id = colonne.riservato().get(i);
+        return id == NESSUNO ? null : utenti.get(id);
+    }
+
+    /** Le strisce delle righe dei libri, in ordine di indice. */
+    @Override
+    List<Object> lockDelCestino(List<Libro> libri) {
+        boolean[] usate = new boolean[STRISCE];
+        for (Libro libro : libri) usate[(((VistaLibro) libro).riga >>> 6) & (STRISCE - 1)] = true;
+        List<Object> lock = new ArrayList<>();
+        for (int s = 0; s < STRISCE; s++) {
+            if (usate[s]) lock.add(strisce[s]);
+        }
+        return lock;
+    }
+
+    @Override
+    boolean contiene(Libro libro) {
+        return libro instanceof VistaLibro v && v.catalogo == this && presente(colonne, v.riga);
+    }
+
+    private boolean inPrestito(int i) {
+        return colonne.prestito().get(i) != LIBERO;
+    }
+
+    /** Prestitario e scadenza letti insieme, {@code null} se il libro è disponibile. */
+    private Libro.Prestito statoPrestito(int i) {
+        long prestito = colonne.prestito().get(i);
+        if (prestito == LIBERO) return null;
+        return new Libro.Prestito(utente(prestitario(prestito)), LocalDate.ofEpochDay(giorno(prestito)));
+    }
+
+    /** Prestitario nei 32 bit alti e giorno di scadenza nei 32 bassi, da leggere e scrivere insieme. */
+    private static long codifica(int prestitario, int giorno) {
+        return ((long) prestitario << 32) | (giorno & 0xFFFFFFFFL);
+    }
+
+    private static int prestitario(long prestito) {
+        return (int) (prestito >> 32);
+    }
+
+    private static int giorno(long prestito) {
+        return (int) prestito;
+    }
+
+    private String utente(int id) {
+        return id == IGNOTO ? null : utenti.get(id);
+    }
+
+    /** Le copie del titolo della riga {@code i}, {@code null} se ne ha una sola. */
+    private Copie copieDella(Colonne c, int i) {
+        return copie.get(c.copia()[i] == 1 ? i : c.successivo()[i]);
+    }
+
+    // ===================================================================
+    //  COLONNE
+    // ===================================================================
+
+    /** Scrive una nuova riga e la pubblica. Da chiamare con il lock di scrittura, dopo {@link #riserva(int)}. */
+    private void inserisci(Libro libro) {
+        Colonne c = colonne;
+        int i = c.dimensione();
+        long isbn = Isbn.compatta(libro.getIsbn());
+        if (isbn < 0) isbn = -1L - isbnTestuali.interna(libro.getIsbn());
+        int autore = autori.interna(libro.getAutore());
+        if (autore >= c.primoPerAutore().length()) c = conAutori(c, autore + 1);
+
+        c.isbn()[i] = isbn;
+        c.titolo()[i] = titoli.interna(libro.getTitolo());
+        c.autore()[i] = autore;
+        c.anno()[i] = (short) libro.getAnnoPubblicazione();
+        c.copia()[i] = 1;
+        c.successivo()[i] = c.primoPerAutore().get(autore);
+        String utente = libro.getPrestitarioCorrente();
+        LocalDate scadenza = libro.getDataRestituzionePrevista();
+        boolean inPrestito = !libro.isDisponibile();
+        c.prestito().set(i, !inPrestito ? LIBERO : codifica(utente == null ? IGNOTO : utenti.interna(utente),
+                                                             scadenza != null ? Math.toIntExact(scadenza.toEpochDay()) : 0));
+        c.riservato().set(i, NESSUNO);
+        inserisciInIndice(c.indice(), hash(libro.getIsbn()), i);
+
+        colonne = c = conDimensione(c, i + 1);
+        // dopo la pubblicazione: chi legge la nuova testa della catena rilegge colonne che la contengono
+        c.primoPerAutore().set(autore, i);
+        if (c.successivo()[i] == NESSUNO) indiceAutori.aggiungi(libro.getAutore(), autore);
+        indiceFaccette.aggiungi(c.anno()[i], i, libro.getAutore(), i);
+        totale++;
+        synchronized (striscia(i)) {
+            if (inPrestito) {
+                imposta(c.prestati(), i, true);
+                numeroInPrestito.incrementAndGet();
+            }
+            imposta(c.presenti(), i, true);   // da qui in poi la riga è visibile ai lettori
+            notificaAggiunta(vista(c, i));
+        }
+    }
+
+    /**
+     * Scrive e pubblica la riga di una nuova copia del titolo della riga {@code primo}, disponibile.
+     * Non entra negli indici: le ricerche trovano la prima copia, e da lì {@code gruppo}.
+     * Da chiamare con il lock di scrittura, dopo {@link #riserva(int)}.
+     */
+    private void inserisciCopia(int primo, Copie gruppo) {
+        Colonne c = colonne;
+        int i = c.dimensione();
+        c.isbn()[i] = c.isbn()[primo];
+        c.titolo()[i] = c.titolo()[primo];
+        c.autore()[i] = c.autore()[primo];
+        c.anno()[i] = c.anno()[primo];
+        c.copia()[i] = (short) (gruppo.numero() + 1);
+        c.successivo()[i] = primo;
+        c.prestito().set(i, LIBERO);
+        c.riservato().set(i, NESSUNO);
+        colonne = c = conDimensione(c, i + 1);
+        totale++;
+        synchronized (striscia(i)) {
+            imposta(c.presenti(), i, true);
+            Libro copia = vista(c, i);
+            gruppo.aggiungi(copia);
+            notificaAggiunta(copia);
+        }
+    }
+
+    private static Colonne conDimensione(Colonne c, int dimensione) {
+        return new Colonne(dimensione, c.isbn(), c.titolo(), c.autore(), c.anno(), c.copia(), c.successivo(),
+                           c.prestito(), c.riservato(), c.presenti(), c.prestati(), c.indice(), c.primoPerAutore());
+    }
+
+    /**
+     * Garantisce spazio per altre {@code n} righe, con al più un ridimensionamento delle
+     * colonne e dell'indice. Da chiamare con il lock di scrittura.
+     */
+    private void riserva(int n) {
+        Colonne c = colonne;
+        int necessarie = c.dimensione() + n;
+        if (necessarie > c.isbn().length) {
+            int capacita = Math.max(necessarie, c.isbn().length + (c.isbn().length >> 1));
+            // prestiti e restituzioni scrivono nelle colonne: niente copie mentre sono in corso
+            conTutteLeStrisce(0, () -> colonne = copia(colonne, capacita));
+            c = colonne;
+        }
+        if (4L * necessarie > 3L * c.indice().length) {   // fattore di carico massimo 3/4
+            colonne = reindicizza(c, Integer.highestOneBit(Math.max(necessarie * 2 - 1, 31)) << 1);
+        }
+    }
+
+    private void conTutteLeStrisce(int da, Runnable azione) {
+        if (da == STRISCE) {
+            azione.run();
+            return;
+        }
+        synchronized (strisce[da]) {
+            conTutteLeStrisce(da + 1, azione);
+        }
+    }
+
+    private static Colonne copia(Colonne c, int capacita) {
+        int parole = (capacita + 63) >>> 6;
+        AtomicLongArray presenti = new AtomicLongArray(parole);
+        AtomicLongArray prestati = new AtomicLongArray(parole);
+        for (int w = 0; w < c.presenti().length(); w++) {
+            presenti.set(w, c.presenti().get(w));
+            prestati.set(w, c.prestati().get(w));
+        }
+        AtomicLongArray prestito = new AtomicLongArray(capacita);
+        AtomicIntegerArray riservato = new AtomicIntegerArray(capacita);
+        for (int i = 0; i < c.dimensione(); i++) {
+            prestito.set(i, c.prestito().get(i));
+            riservato.set(i, c.riservato().get(i));
+        }
+        return new Colonne(c.dimensione(),
+            Arrays.copyOf(c.isbn(), capacita), Arrays.copyOf(c.titolo(), capacita),
+            Arrays.copyOf(c.autore(), capacita), Arrays.copyOf(c.anno(), capacita), Arrays.copyOf(c.copia(), capacita),
+            Arrays.copyOf(c.successivo(), capacita), prestito, riservato, presenti, prestati, c.indice(), c.primoPerAutore());
+    }
+
+    private Colonne conAutori(Colonne c, int necessari) {
+        AtomicIntegerArray vecchio = c.primoPerAutore();
+        AtomicIntegerArray primo = new AtomicIntegerArray(Math.max(necessari, vecchio.length() * 2));
+        for (int a = 0; a < primo.length(); a++) primo.set(a, a < vecchio.length() ? vecchio.get(a) : NESSUNO);
+        return colonne = new Colonne(c.dimensione(), c.isbn(), c.titolo(), c.autore(), c.anno(), c.copia(), c.successivo(),
+                                     c.prestito(), c.riservato(), c.presenti(), c.prestati(), c.indice(), primo);
+    }
+
+    // ===================================================================
+    //  SCORRIMENTI: la posizione di un libro è la sua riga
+    // ===================================================================
+
+    /** Scorre le bitmap a parole dalla riga {@code dopo + 1}, creando le viste solo per i libri letti. */
+    @Override
+    Scorrimento scorri(long dopo, Filtro filtro) {
+        Colonne c = colonne;
+        int parole = (c.dimensione() + 63) >>> 6;
+        long inizio = dopo + 1;
+        return new Scorrimento() {
+            private int w = (int) Math.min(inizio >>> 6, parole);
+            private long bit = w < parole ? parola(c, w, filtro) & (-1L << inizio) : 0;
+
+            @Override
+            boolean avanza() {
+                while (bit == 0) {
+                    if (++w >= parole) return false;
+                    bit = parola(c, w, filtro);
+                }
+                int riga = (w << 6) + Long.numberOfTrailingZeros(bit);
+                bit &= bit - 1;
+                if (riga >= c.dimensione()) return false;     // aggiunta in corso, oltre l'istantanea
+                libro = vista(c, riga);
+                sequenza = riga;
+                return true;
+            }
+        };
+    }
+
+    private static long parola(Colonne c, int w, Filtro filtro) {
+        long presenti = c.presenti().get(w);
+        return switch (filtro) {
+            case TUTTI -> presenti;
+            case DISPONIBILI -> presenti & ~c.prestati().get(w);
+            case IN_PRESTITO -> presenti & c.prestati().get(w);
+        };
+    }
+
+    @Override
+    Pagina paginaPerAutore(String autore, long dopo, int dimensione) {
+        IntStream.Builder righe = IntStream.builder();
+        visitaRighe(autore, i -> {
+            if (i > dopo) righe.add(i);
+            return true;
+        });
+        int[] trovate = righe.build().sorted().toArray();
+        Colonne c = colonne;
+        List<Libro> libri = new ArrayList<>(Math.min(dimensione, trovate.length));
+        for (int k = 0; k < trovate.length && libri.size() < dimensione; k++) libri.add(vista(c, trovate[k]));
+        String cursore = libri.size() == dimensione ? cursore(trovate[dimensione - 1]) : null;
+        return new Pagina(Collections.unmodifiableList(libri), cursore);
+    }
+
+    @Override
+    int contaAutore(String autore, int massimo) {
+        int[] contati = {0};
+        visitaRighe(autore, i -> ++contati[0] < massimo);
+        return contati[0];
+    }
+
+    @Override
+    void visitaAnni(int da, int a, Predicate<Libro> visitatore) {
+        Colonne c = colonne;
+        // righe oltre l'istantanea sono aggiunte in corso, come in scorri
+        indiceFaccette.visita(da, a, i -> i >= c.dimensione() || !presente(c, i) || visitatore.test(vista(c, i)));
+    }
+
+    @Override
+    int contaAnni(int da, int a) {
+        return indiceFaccette.conta(da, a);
+    }
+
+    @Override
+    Faccette faccette(int massimoAutori) {
+        return indiceFaccette.faccette(massimoAutori);
+    }
+
+    /** Passa a {@code visitatore} le righe presenti degli autori che contengono {@code autore}, finché restituisce true. */
+    private void visitaRighe(String autore, IntPredicate visitatore) {
+        indiceAutori.visita(autore, id -> {
+            AtomicIntegerArray primo = colonne.primoPerAutore();
+            if (id >= primo.length()) return true;
+            int i = primo.get(id);
+            Colonne c = colonne;   // riletto dopo la testa della catena, quindi contiene già la sua riga
+            for (; i != NESSUNO; i = c.successivo()[i]) {
+                if (presente(c, i) && !visitatore.test(i)) return false;
+            }
+            return true;
+        });
+    }
+
+    /** Ricostruisce l'indice ISBN con {@code slot} posizioni, saltando i libri rimossi e le copie oltre la prima. */
+    private Colonne reindicizza(Colonne c, int slot) {
+        int[] indice = new int[slot];
+        for (int i = presenti(c, 0); i >= 0; i = presenti(c, i + 1)) {
+            if (c.copia()[i] == 1) inserisciInIndice(indice, hashRiga(c.isbn()[i]), i);
+        }
+        return new Colonne(c.dimensione(), c.isbn(), c.titolo(), c.autore(), c.anno(), c.copia(), c.successivo(),
+                           c.prestito(), c.riservato(), c.presenti(), c.prestati(), indice, c.primoPerAutore());
+    }
+
+    private static void inserisciInIndice(int[] indice, int hash, int riga) {
+        int maschera = indice.length - 1;
+        int s = hash & maschera;
+        while (indice[s] > 0) s = (s + 1) & maschera;
+        indice[s] = riga + 1;
+    }
+
+    /** Riga del libro con ISBN equivalente a {@code isbn} (vedi {@link Catalogo#chiaveIsbn(String)}), o {@link #NESSUNO}. */
+    private int posizione(Colonne c, String isbn) {
+        long cercato = Isbn.chiave(isbn);
+        String chiave = cercato == Isbn.NON_VALIDO ? normalizzaIsbn(isbn) : null;
+        int[] indice = c.indice();
+        int maschera = indice.length - 1;
+        for (int s = hash(cercato, chiave) & maschera; ; s = (s + 1) & maschera) {
+            int voce = indice[s];
+            if (voce == 0) return NESSUNO;
+            if (voce == RIMOSSO) continue;
+            int i = voce - 1;
+            // righe oltre l'istantanea sono aggiunte in corso; il bit va letto prima dei dati della riga
+            if (i >= c.dimensione() || !presente(c, i)) continue;
+            long valore = c.isbn()[i];
+            if (chiave == null ? chiaveNumerica(valore) == cercato
+                               : valore < 0 && chiave.equals(normalizzaIsbn(isbnTestuale(valore)))) return i;
+        }
+    }
+
+    private void togliDaIndice(Colonne c, int riga) {
+        long isbn = c.isbn()[riga];
+        int[] indice = c.indice();
+        int maschera = indice.length - 1;
+        int s = hashRiga(isbn) & maschera;
+        while (indice[s] != riga + 1) s = (s + 1) & maschera;
+        indice[s] = RIMOSSO;
+    }
+
+    /** Toglie la riga dalla catena del suo autore; se era l'ultima, toglie l'autore dall'indice. */
+    private void togliDaAutore(Colonne c, int riga) {
+        int autore = c.autore()[riga];
+        AtomicIntegerArray primo = c.primoPerAutore();
+        int[] successivo = c.successivo();
+        if (primo.get(autore) == riga) {
+            primo.set(autore, successivo[riga]);
+        } else {
+            int i = primo.get(autore);
+            while (successivo[i] != riga) i = successivo[i];
+            successivo[i] = successivo[riga];
+        }
+        if (primo.get(autore) == NESSUNO) indiceAutori.rimuovi(autori.get(autore), autore);
+    }
+
+    /** Libri presenti con il bit di prestito uguale a {@code inPrestito}, scorrendo le bitmap a parole. */
+    private List<Libro> filtra(boolean inPrestito) {
+        Colonne c = colonne;
+        List<Libro> risultati = new ArrayList<>(inPrestito ? numeroInPrestito.get() : getNumeroDisponibili());
+        int parole = (c.dimensione() + 63) >>> 6;
+        for (int w = 0; w < parole; w++) {
+            long prestati = c.prestati().get(w);
+            long bit = c.presenti().get(w) & (inPrestito ? prestati : ~prestati);
+            while (bit != 0) {
+                risultati.add(vista(c, (w << 6) + Long.numberOfTrailingZeros(bit)));
+                bit &= bit - 1;
+            }
+        }
+        return risultati;
+    }
+
+    /** Prima riga presente a partire da {@code da}, o -1. */
+    private static int presenti(Colonne c, int da) {
+        int parole = (c.dimensione() + 63) >>> 6;
+        for (int w = da >>> 6; w < parole; w++) {
+            long bit = c.presenti().get(w);
+            if (w == da >>> 6) bit &= -1L << da;
+            if (bit != 0) return (w << 6) + Long.numberOfTrailingZeros(bit);
+        }
+        return -1;
+    }
+
+    private static boolean presente(Colonne c, int i) {
+        return (c.presenti().get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    /** Aggiorna un bit; chi scrive nella stessa parola tiene la stessa striscia, quindi basta get/set. */
+    private static void imposta(AtomicLongArray bitmap, int i, boolean valore) {
+        long parola = bitmap.get(i >>> 6);
+        bitmap.set(i >>> 6, valore ? parola | (1L << i) : parola & ~(1L << i));
+    }
+
+    private Object striscia(int i) {
+        return strisce[(i >>> 6) & (STRISCE - 1)];
+    }
+
+    private static boolean annoValido(Libro libro) {
+        int anno = libro.getAnnoPubblicazione();
+        return anno >= Short.MIN_VALUE && anno <= Short.MAX_VALUE;
+    }
+
+    // ===================================================================
+    //  ISBN
+    // ===================================================================
+
+    /** Testo di una riga con ISBN non codificato. */
+    private String isbnTestuale(long valore) {
+        return isbnTestuali.get((int) (-1L - valore));
+    }
+
+    /** Chiave {@link Isbn} di una riga, o {@link Isbn#NON_VALIDO} se l'ISBN non è valido. */
+    private long chiaveNumerica(long valore) {
+        return valore >= 0 ? Isbn.chiaveDi(valore) : Isbn.chiave(isbnTestuale(valore));
+    }
+
+    private int hashRiga(long valore) {
+        return valore >= 0 ? hash(Isbn.chiaveDi(valore), null) : hash(isbnTestuale(valore));
+    }
+
+    private static int hash(String isbn) {
+        long chiave = Isbn.chiave(isbn);
+        return hash(chiave, chiave == Isbn.NON_VALIDO ? normalizzaIsbn(isbn) : null);
+    }
+
+    /** Hash della chiave numerica, o del testo normalizzato per i codici non ISBN. */
+    private static int hash(long chiave, String testo) {
+        int h = testo == null ? Long.hashCode(chiave * 0x9E3779B97F4A7C15L) : testo.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // ===================================================================
+    //  VISTE
+    // ===================================================================
+
+    private Libro vista(Colonne c, int i) {
+        long isbn = c.isbn()[i];
+        return new VistaLibro(this, i,
+            isbn >= 0 ? Isbn.formato(isbn) : isbnTestuale(isbn),
+            titoli.get(c.titolo()[i]), autori.get(c.autore()[i]), c.anno()[i], c.copia()[i]);
+    }
+
+    /** Elenco restituito da {@link #getTuttiILibri()}: righe fissate, viste create a ogni accesso. */
+    private final class ElencoViste extends AbstractList<Libro> implements RandomAccess {
+        private final Colonne colonne;
+        private final int[] righe;
+
+        ElencoViste(Colonne colonne, int[] righe) {
+            this.colonne = colonne;
+            this.righe = righe;
+        }
+
+        @Override public Libro get(int i) { return vista(colonne, righe[i]); }
+        @Override public int size()       { return righe.length; }
+    }
+
+    /**
+     * {@link Libro} che non ha stato proprio: prestito e riserva sono letti e scritti nelle colonne
+     * del catalogo. Titolo, autore e ISBN vengono copiati alla creazione, perché non cambiano mai.
+     */
+    private static final class VistaLibro extends Libro {
+        private final CatalogoCompatto catalogo;
+        private final int riga;
+
+        VistaLibro(CatalogoCompatto catalogo, int riga, String isbn, String titolo, String autore, int anno, int copia) {
+            super(isbn, titolo, autore, anno, copia);
+            this.catalogo = catalogo;
+            this.riga = riga;
+        }
+
+        @Override
+        public boolean isDisponibile() {
+            return !catalogo.inPrestito(riga);
+        }
+
+        @Override
+        Prestito getPrestito() {
+            return catalogo.statoPrestito(riga);
+        }
+
+        @Override
+        void segnaComePrestato(String utente, LocalDate dataRestituzionePrevista) {
+            catalogo.presta(riga, utente, dataRestituzionePrevista, this);
+        }
+
+        @Override
+        public void segnaComRestituito() {
+            catalogo.restituisci(riga, this);
+        }
+
+        @Override
+        public String getRiservatoA() {
+            return catalogo.riservatoA(riga);
+        }
+
+        @Override
+        void setRiservatoA(String utente) {
+            catalogo.metteDaParte(riga, utente, this);
+        }
+
+        @Override
+        Copie getCopie() {
+            return catalogo.copieDella(catalogo.colonne, riga);
+        }
+
+        @Override
+        Catalogo getCatalogo() { return catalogo; }
+
+        @Override
+        void setCatalogo(Catalogo catalogo) {
+            throw new IllegalStateException("Una vista appartiene sempre al suo catalogo compatto");
+        }
+
+        @Override
+        public String toString() {
+            Prestito stato = catalogo.statoPrestito(riga);
+            String riservato = catalogo.riservatoA(riga);
+            String descrizione = stato == null
+                ? (riservato == null ? "[DISPONIBILE]" : "[RISERVATO a " + riservato + "]")
+                : "[PRESTATO a " + stato.utente() + " - restituzione entro " + stato.dataRestituzionePrevista() + "]";
+            return String.format("[%s%s] \"%s\" di %s (%d) %s",
+                getIsbn(), getCopia() > 1 ? " copia " + getCopia() : "", getTitolo(), getAutore(),
+                getAnnoPubblicazione(), descrizione);
+        }
+    }
+}
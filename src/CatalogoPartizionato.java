@@ -0,0 +1,389 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Catalogo diviso in {@code N} partizioni per ISBN, ciascuna un {@link Catalogo} completo con
+ * il proprio lock di scrittura e i propri indici. Pensato per il catalogo unico di più sedi:
+ * le aggiunte e le rimozioni di partizioni diverse non si serializzano più su un solo lock.
+ *
+ * <p>Le operazioni su un solo libro ({@link #cercaPerIsbn(String)}, {@link #aggiungiLibro(Libro)},
+ * {@link #rimuoviLibro(String)}, i prestiti di {@link GestorePrestiti}) vanno alla partizione
+ * della chiave ISBN ({@link Catalogo#chiaveIsbn(String)}), quindi ISBN equivalenti finiscono
+ * sempre nella stessa. Le ricerche che riguardano tutto il catalogo (per autore, per anno,
+ * per disponibilità) interrogano le partizioni in parallelo su un {@link ForkJoinPool} e
+ * uniscono i risultati in ordine di partizione; sotto {@link #SOGLIA_PARALLELA} libri le interrogano
+ * in sequenza, perché dividere il lavoro costerebbe più della ricerca.
+ *
+ * <p>Le partizioni notificano questo catalogo, che inoltra ai propri osservatori: giornale,
+ * indici di {@link GestorePrestiti} e versioni funzionano come con un catalogo unico.
+ * L'ordine di {@link #getTuttiILibri()}, di {@link #getLibriDisponibili()},
+ * {@link #getLibriInPrestito()} e delle pagine è per partizione, poi di inserimento.
+ */
+public class CatalogoPartizionato extends Catalogo {
+
+    /** Sotto questo numero di libri le ricerche su tutte le partizioni restano sequenziali. */
+    static final int SOGLIA_PARALLELA = 20_000;
+
+    /** Bit bassi della posizione di un libro riservati alla posizione nella sua partizione. */
+    private static final int BIT_POSIZIONE = 48;
+    private static final long MASCHERA_POSIZIONE = (1L << BIT_POSIZIONE) - 1;
+
+    private final Catalogo[] partizioni;
+    private final ForkJoinPool pool;
+
+    /** Una partizione per processore disponibile. */
+    public CatalogoPartizionato() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CatalogoPartizionato(int partizioni) {
+        this(partizioni, Catalogo::new);
+    }
+
+    /**
+     * @param partizioni numero di partizioni (da 1 a 65536)
+     * @param fabbrica   crea ogni partizione, ad esempio {@code CatalogoCompatto::new}
+     */
+    public CatalogoPartizionato(int partizioni, Supplier<Catalogo> fabbrica) {
+        this(partizioni, fabbrica, ForkJoinPool.commonPool());
+    }
+
+    public CatalogoPartizionato(int partizioni, Supplier<Catalogo> fabbrica, ForkJoinPool pool) {
+        if (partizioni <= 0 || partizioni > 1 << (63 - BIT_POSIZIONE))
+            throw new IllegalArgumentException("Il numero di partizioni deve essere tra 1 e " + (1 << (63 - BIT_POSIZIONE)));
+        if (fabbrica == null || pool == null) throw new IllegalArgumentException("Fabbrica e pool non possono essere null");
+        this.partizioni = new Catalogo[partizioni];
+        this.pool = pool;
+        Inoltro inoltro = new Inoltro();
+        for (int p = 0; p < partizioni; p++) {
+            Catalogo partizione = fabbrica.get();
+            if (partizione == null || partizione.getTotaleLibri() != 0)
+                throw new IllegalArgumentException("La fabbrica deve creare cataloghi vuoti");
+            partizione.aggiungiOsservatore(inoltro);
+            this.partizioni[p] = partizione;
+        }
+    }
+
+    public int getNumeroPartizioni() { return partizioni.length; }
+
+    // ===================================================================
+    //  OPERAZIONI SU UN LIBRO: una sola partizione
+    // ===================================================================
+
+    @Override
+    public void aggiungiLibro(Libro libro) {
+        if (libro == null) throw new IllegalArgumentException("Il libro non può essere null");
+        partizione(libro.getIsbn()).aggiungiLibro(libro);
+    }
+
+    /**
+     * Divide il lotto per partizione e importa le parti in parallelo. I duplicati interni al
+     * lotto cadono nella stessa partizione, quindi gli esiti sono gli stessi di un catalogo unico.
+     */
+    @Override
+    public EsitoImportazione aggiungiLibri(Collection<Libro> nuovi) {
+        if (nuovi == null) throw new IllegalArgumentException("Il lotto non può essere null");
+        List<List<Libro>> parti = new ArrayList<>(partizioni.length);
+        for (int p = 0; p < partizioni.length; p++) parti.add(new ArrayList<>());
+        int[] destinazioni = new int[nuovi.size()];
+        int k = 0;
+        for (Libro libro : nuovi) {
+            int p = libro == null ? -1 : indice(libro.getIsbn());
+            destinazioni[k++] = p;
+            if (p >= 0) parti.get(p).add(libro);
+        }
+        List<EsitoImportazione> esitiParti = raccogli(nuovi.size(), p -> List.of(
+            parti.get(p).isEmpty() ? new EsitoImportazione(0) : partizioni[p].aggiungiLibri(parti.get(p))));
+
+        EsitoImportazione esito = new EsitoImportazione(nuovi.size());
+        int[] letti = new int[partizioni.length];
+        k = 0;
+        for (Libro libro : nuovi) {
+            int p = destinazioni[k++];
+            if (p < 0) esito.registra(null, EsitoImportazione.Stato.NON_VALIDO);
+            else esito.registra(libro, esitiParti.get(p).getEsiti().get(letti[p]++).stato());
+        }
+        return esito;
+    }
+
+    @Override
+    public boolean rimuoviLibro(String isbn) {
+        if (isbn == null || isbn.isBlank()) return false;
+        return partizione(isbn).rimuoviLibro(isbn);
+    }
+
+    /** Le copie stanno nella partizione del titolo, come i loro prestiti. */
+    @Override
+    public void aggiungiCopie(String isbn, int numero) {
+        if (isbn == null || isbn.isBlank()) throw new IllegalStateException("Nessun libro con ISBN: " + isbn);
+        partizione(isbn).aggiungiCopie(isbn, numero);
+    }
+
+    @Override
+    Libro trova(String isbn) {
+        if (isbn == null || isbn.isBlank()) return null;
+        return partizione(isbn).trova(isbn);
+    }
+
+    // ===================================================================
+    //  OPERAZIONI SU TUTTO IL CATALOGO: tutte le partizioni
+    // ===================================================================
+
+    /** I libri di ogni partizione, una dopo l'altra; ogni parte è un'istantanea come in {@link Catalogo}. */
+    @Override
+    public List<Libro> getTuttiILibri() {
+        List<Libro> tutti = new ArrayList<>(getTotaleLibri());
+        for (Catalogo p : partizioni) tutti.addAll(p.getTuttiILibri());
+        return Collections.unmodifiableList(tutti);
+    }
+
+    @Override
+    public List<Libro> cercaPerAutore(String autore) {
+        if (autore == null || autore.isBlank()) return List.of();
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.CERCA_PER_AUTORE, autore);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.AUTORE, autore,
+            () -> raccogli(getTotaleLibri(), p -> partizioni[p].cercaPerAutore(autore)));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    @Override
+    public List<Libro> getLibriDisponibili() {
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.LIBRI_DISPONIBILI, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.DISPONIBILI, null,
+            () -> raccogli(getTotaleLibri(), p -> partizioni[p].getLibriDisponibili()));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    @Override
+    public List<Libro> getLibriInPrestito() {
+        Misura misura = new Misura.Ricerca(metriche(), Metriche.Operazione.LIBRI_IN_PRESTITO, null);
+        List<Libro> risultati = dallaCache(CacheRicerche.Tipo.IN_PRESTITO, null,
+            () -> raccogli(getTotaleLibri(), p -> partizioni[p].getLibriInPrestito()));
+        misura.concludi(true, risultati.size(), getTotaleLibri());
+        return risultati;
+    }
+
+    @Override
+    public int getTotaleLibri() {
+        int n = 0;
+        for (Catalogo p : partizioni) n += p.getTotaleLibri();
+        return n;
+    }
+
+    @Override
+    public int getNumeroDisponibili() {
+        int n = 0;
+        for (Catalogo p : partizioni) n += p.getNumeroDisponibili();
+        return n;
+    }
+
+    @Override
+    public int getNumeroInPrestito() {
+        int n = 0;
+        for (Catalogo p : partizioni) n += p.getNumeroInPrestito();
+        return n;
+    }
+
+    /** Ferma le aggiunte e le rimozioni di tutte le partizioni, prendendone i lock in ordine. */
+    @Override
+    void conScrittureFerme(Runnable azione) {
+        List<Object> lock = new ArrayList<>(partizioni.length);
+        for (Catalogo p : partizioni) lock.add(p.scrittura);
+        conLock(lock, 0, () -> super.conScrittureFerme(azione));
+    }
+
+    // ===================================================================
+    //  SCORRIMENTI E CESTINI
+    // ===================================================================
+
+    /** Posizione globale: partizione nei bit alti, posizione nella partizione nei 48 bassi. */
+    @Override
+    Scorrimento scorri(long dopo, Filtro filtro) {
+        int prima = dopo < 0 ? 0 : (int) (dopo >>> BIT_POSIZIONE);
+        long dopoNellaPrima = dopo < 0 ? -1 : dopo & MASCHERA_POSIZIONE;
+        return new Scorrimento() {
+            private int p = prima;
+            private Scorrimento corrente = p < partizioni.length ? partizioni[p].scorri(dopoNellaPrima, filtro) : null;
+
+            @Override
+            boolean avanza() {
+                while (corrente != null) {
+                    if (corrente.hasNext()) {
+                        libro = corrente.next();
+                        sequenza = ((long) p << BIT_POSIZIONE) | corrente.sequenza();
+                        return true;
+                    }
+                    corrente = ++p < partizioni.length ? partizioni[p].scorri(-1, filtro) : null;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    Pagina paginaPerAutore(String autore, long dopo, int dimensione) {
+        List<Libro> libri = new ArrayList<>(Math.min(dimensione, 256));
+        String cursore = null;
+        for (int p = dopo < 0 ? 0 : (int) (dopo >>> BIT_POSIZIONE); p < partizioni.length && libri.size() < dimensione; p++) {
+            long dopoQui = dopo >= 0 && p == (int) (dopo >>> BIT_POSIZIONE) ? dopo & MASCHERA_POSIZIONE : -1;
+            Pagina parte = partizioni[p].paginaPerAutore(autore, dopoQui, dimensione - libri.size());
+            libri.addAll(parte.libri());
+            if (parte.cursore() != null) cursore = cursore(((long) p << BIT_POSIZIONE) | daCursore(parte.cursore(), 1));
+        }
+        return new Pagina(Collections.unmodifiableList(libri), libri.size() == dimensione ? cursore : null);
+    }
+
+    @Override
+    int contaAutore(String autore, int massimo) {
+        int n = 0;
+        for (int p = 0; p < partizioni.length && n < massimo; p++) n += partizioni[p].contaAutore(autore, massimo - n);
+        return n;
+    }
+
+    /**
+     * Raccoglie l'intervallo da tutte le partizioni, in parallelo oltre la soglia, e lo riordina
+     * per anno; l'ordinamento è stabile, quindi a parità di anno l'ordine è per partizione e
+     * poi di inserimento, come in {@link #getTuttiILibri()}.
+     */
+    @Override
+    void visitaAnni(int da, int a, Predicate<Libro> visitatore) {
+        List<Libro> libri = raccogli(contaAnni(da, a), p -> {
+            List<Libro> parte = new ArrayList<>();
+            partizioni[p].visitaAnni(da, a, parte::add);
+            return parte;
+        });
+        libri.sort(Comparator.comparingInt(Libro::getAnnoPubblicazione));
+        for (Libro libro : libri) {
+            if (!visitatore.test(libro)) return;
+        }
+    }
+
+    @Override
+    int contaAnni(int da, int a) {
+        int n = 0;
+        for (Catalogo p : partizioni) n += p.contaAnni(da, a);
+        return n;
+    }
+
+    /** Somma i conteggi completi delle partizioni: un autore può averne in più d'una. */
+    @Override
+    Faccette faccette(int massimoAutori) {
+        SortedMap<Integer, Integer> decenni = new TreeMap<>();
+        Map<String, Integer> autori = new HashMap<>();
+        for (Catalogo p : partizioni) {
+            Faccette parte = p.faccette(Integer.MAX_VALUE);
+            parte.perDecennio().forEach((decennio, n) -> decenni.merge(decennio, n, Integer::sum));
+            parte.perAutore().forEach((autore, n) -> autori.merge(autore, n, Integer::sum));
+        }
+        return Faccette.di(decenni, autori, massimoAutori);
+    }
+
+    /** I lock di ogni partizione nel loro ordine, partizione per partizione. */
+    @Override
+    List<Object> lockDelCestino(List<Libro> libri) {
+        List<List<Libro>> perPartizione = new ArrayList<>(partizioni.length);
+        for (int p = 0; p < partizioni.length; p++) perPartizione.add(new ArrayList<>());
+        for (Libro libro : libri) perPartizione.get(indice(libro.getIsbn())).add(libro);
+        List<Object> lock = new ArrayList<>();
+        for (int p = 0; p < partizioni.length; p++) {
+            if (!perPartizione.get(p).isEmpty()) lock.addAll(partizioni[p].lockDelCestino(perPartizione.get(p)));
+        }
+        return lock;
+    }
+
+    @Override
+    boolean contiene(Libro libro) {
+        return partizione(libro.getIsbn()).contiene(libro);
+    }
+
+    // ===================================================================
+    //  HELPER
+    // ===================================================================
+
+    private Catalogo partizione(String isbn) {
+        return partizioni[indice(isbn)];
+    }
+
+    /** Partizione della chiave ISBN, senza allocare per gli ISBN validi. */
+    private int indice(String isbn) {
+        long chiave = Isbn.chiave(isbn);
+        long h = chiave != Isbn.NON_VALIDO ? chiave : normalizzaIsbn(isbn).hashCode();
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) partizioni.length);
+    }
+
+    /**
+     * Esegue {@code query} su ogni partizione e concatena i risultati in ordine di partizione:
+     * in parallelo sul pool se il lavoro stimato supera {@link #SOGLIA_PARALLELA}.
+     */
+    private <T> List<T> raccogli(int lavoro, IntFunction<List<T>> query) {
+        if (lavoro < SOGLIA_PARALLELA || partizioni.length == 1) {
+            List<T> risultati = new ArrayList<>();
+            for (int p = 0; p < partizioni.length; p++) risultati.addAll(query.apply(p));
+            return risultati;
+        }
+        return pool.invoke(new Raccolta<>(0, partizioni.length, query));
+    }
+
+    /** Divide a metà l'intervallo di partizioni finché ne resta una, poi unisce nell'ordine. */
+    private static final class Raccolta<T> extends RecursiveTask<List<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int da;
+        private final int a;
+        private final transient IntFunction<List<T>> query;
+
+        Raccolta(int da, int a, IntFunction<List<T>> query) {
+            this.da = da;
+            this.a = a;
+            this.query = query;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (a - da == 1) return query.apply(da);
+            int mezzo = (da + a) >>> 1;
+            Raccolta<T> sinistra = new Raccolta<>(da, mezzo, query);
+            sinistra.fork();
+            List<T> destra = new Raccolta<>(mezzo, a, query).compute();
+            List<T> risultati = new ArrayList<>(sinistra.join());
+            risultati.addAll(destra);
+            return risultati;
+        }
+    }
+
+    /** Inoltra ai nostri osservatori le notifiche delle partizioni. */
+    private final class Inoltro implements OsservatoreCatalogo {
+
+        @Override
+        public void libroAggiunto(Libro libro) { notificaAggiunta(libro); }
+
+        @Override
+        public void libroRimosso(Libro libro) { notificaRimozione(libro); }
+
+        @Override
+        public void libroPrestato(Libro libro) { notificaPrestito(libro); }
+
+        @Override
+        public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+            notificaRestituzione(libro, utente, dataPrevista);
+        }
+    }
+}
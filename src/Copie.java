@@ -0,0 +1,133 @@
+package main;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Le copie fisiche di un titolo con più esemplari ({@link Catalogo#aggiungiCopie(String, int)}).
+ * Ogni copia è un {@link Libro} con lo stesso ISBN e il proprio {@link Libro#getCopia() numero},
+ * quindi con il proprio stato di prestito.
+ *
+ * <p>Le copie libere sono i bit accesi di una bitmap atomica. {@link #prendi()} riserva una
+ * copia libera spegnendo un bit con un compare-and-set, senza lock e senza scorrere le copie:
+ * prestiti concorrenti dello stesso titolo si contendono al più una parola da 64 bit, e
+ * ripartono da parole diverse quando le copie sono più di 64. Il catalogo tiene la bitmap
+ * allineata ai prestiti fatti in ogni altro modo (cestini, {@link Libro#segnaComePrestato},
+ * ripristino dal giornale): spegne il bit a ogni prestito e lo riaccende a ogni restituzione,
+ * sotto il lock della copia. Le copie messe da parte per una prenotazione
+ * ({@link Libro#getRiservatoA()}) non sono libere.
+ */
+final class Copie {
+
+    /** Numero massimo di copie di un titolo. */
+    static final int MASSIMO = 1024;
+
+    private static final int BIT = 64;
+
+    /** {@code elenco[k - 1]} è la copia {@code k}; cresce solo in coda, con il lock di scrittura del catalogo. */
+    private volatile Libro[] elenco;
+    private volatile int numero;
+    private final AtomicLongArray libere = new AtomicLongArray(MASSIMO / BIT);
+
+    /** Va chiamato con il lock di {@code prima}, così il suo stato non cambia prima che la bitmap lo rifletta. */
+    Copie(Libro prima) {
+        elenco = new Libro[] {prima};
+        numero = 1;
+        if (prima.isDisponibile() && prima.getRiservatoA() == null) segnaLibera(1);
+    }
+
+    /** Aggiunge in coda una nuova copia. Con il lock di scrittura del catalogo e quello della copia. */
+    void aggiungi(Libro copia) {
+        Libro[] e = elenco;
+        if (numero == e.length) e = Arrays.copyOf(e, Math.min(MASSIMO, e.length * 2));
+        e[numero] = copia;
+        elenco = e;
+        numero++;
+        if (copia.isDisponibile()) segnaLibera(copia.getCopia());
+    }
+
+    int numero() { return numero; }
+
+    /** La copia {@code k} (da 1), o {@code null}. */
+    Libro copia(int k) {
+        return k >= 1 && k <= numero ? elenco[k - 1] : null;
+    }
+
+    /** Copie libere, contando i bit accesi: costa una lettura ogni 64 copie. */
+    int disponibili() {
+        int n = 0;
+        for (int w = 0, parole = parole(); w < parole; w++) n += Long.bitCount(libere.get(w));
+        return n;
+    }
+
+    /**
+     * Riserva una copia libera e la restituisce, o {@code null} se sono tutte prese. La copia
+     * va poi prestata; se nel frattempo qualcuno l'ha prestata per altra via, il prestito
+     * fallisce e il chiamante ne chiede un'altra.
+     */
+    Libro prendi() {
+        int parole = parole();
+        int inizio = parole == 1 ? 0 : ThreadLocalRandom.current().nextInt(parole);
+        for (int i = 0; i < parole; i++) {
+            int w = (inizio + i) % parole;
+            for (long bit = libere.get(w); bit != 0; bit = libere.get(w)) {
+                long primo = Long.lowestOneBit(bit);
+                if (libere.compareAndSet(w, bit, bit & ~primo)) {
+                    return elenco[w * BIT + Long.numberOfTrailingZeros(primo)];
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Una copia libera senza riservarla, o {@code null}; per i cestini, che poi la bloccano e la controllano. */
+    Libro primaLibera() {
+        for (int w = 0, parole = parole(); w < parole; w++) {
+            long bit = libere.get(w);
+            if (bit != 0) return elenco[w * BIT + Long.numberOfTrailingZeros(bit)];
+        }
+        return null;
+    }
+
+    /**
+     * L'unica copia in prestito, {@code null} se non ce n'è nessuna.
+     *
+     * @throws IllegalStateException se ce n'è più di una: va indicata quale
+     */
+    Libro unicaInPrestito() {
+        Libro trovata = null;
+        for (int w = 0, parole = parole(); w < parole; w++) {
+            long occupate = ~libere.get(w);
+            for (; occupate != 0; occupate &= occupate - 1) {
+                int k = w * BIT + Long.numberOfTrailingZeros(occupate) + 1;
+                if (k > numero) break;
+                Libro copia = elenco[k - 1];
+                if (copia.isDisponibile()) continue;                 // riservata, non ancora prestata
+                if (trovata != null) {
+                    throw new IllegalStateException("Più copie di \"" + copia.getTitolo() + "\" sono in prestito: indicare la copia");
+                }
+                trovata = copia;
+            }
+        }
+        return trovata;
+    }
+
+    /** Segna libera la copia {@code k}. Dalle notifiche del catalogo, con il lock della copia. */
+    void segnaLibera(int k) {
+        int w = (k - 1) / BIT;
+        long bit = 1L << ((k - 1) % BIT);
+        libere.getAndUpdate(w, v -> v | bit);
+    }
+
+    /** Segna occupata la copia {@code k}; se era già stata riservata da {@link #prendi()} non cambia nulla. */
+    void segnaOccupata(int k) {
+        int w = (k - 1) / BIT;
+        long bit = 1L << ((k - 1) % BIT);
+        libere.getAndUpdate(w, v -> v & ~bit);
+    }
+
+    private int parole() {
+        return (numero + BIT - 1) / BIT;
+    }
+}
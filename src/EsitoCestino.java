@@ -0,0 +1,69 @@
+package main;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rapporto di {@link GestorePrestiti#prestaLibri} e {@link GestorePrestiti#restituisciLibri}:
+ * un esito per ogni ISBN del cestino, nello stesso ordine. Il cestino è tutto o niente:
+ * basta un ISBN non eseguibile perché nessuno venga applicato, e gli altri risultano
+ * {@link Stato#ANNULLATO}. Le ripetizioni dello stesso libro vengono solo ignorate.
+ */
+public class EsitoCestino {
+
+    public enum Stato {
+        ESEGUITO,
+        /** ISBN null o vuoto. */
+        NON_VALIDO,
+        NON_TROVATO,
+        /** Prestito di un libro già in prestito. */
+        NON_DISPONIBILE,
+        /** Restituzione di un libro che non era in prestito. */
+        GIA_DISPONIBILE,
+        /** Restituzione di un titolo con più copie in prestito: va indicata la copia. */
+        COPIA_DA_INDICARE,
+        /** Prestarlo porterebbe l'utente oltre il limite di {@link GestorePrestiti#setLimitePrestiti(int)}. */
+        OLTRE_LIMITE,
+        /** Lo stesso libro compare più volte nel cestino: conta la prima occorrenza, le altre sono ignorate. */
+        DUPLICATO,
+        /** Eseguibile, ma non applicato perché un altro elemento del cestino è fallito. */
+        ANNULLATO
+    }
+
+    /** @param libro il libro trovato ({@code null} per {@link Stato#NON_VALIDO} e {@link Stato#NON_TROVATO}) */
+    public record Esito(String isbn, Libro libro, Stato stato) {}
+
+    private final List<Esito> esiti;
+    private final boolean riuscito;
+
+    EsitoCestino(List<Esito> esiti, boolean riuscito) {
+        this.esiti = esiti;
+        this.riuscito = riuscito;
+    }
+
+    /** {@code true} se il cestino è stato applicato. */
+    public boolean isRiuscito()    { return riuscito; }
+
+    /** Libri prestati o restituiti: tutti quelli distinti del cestino, oppure zero. */
+    public int getEseguiti() {
+        return (int) esiti.stream().filter(e -> e.stato() == Stato.ESEGUITO).count();
+    }
+
+    /** Gli esiti, uno per ISBN del cestino e nello stesso ordine. */
+    public List<Esito> getEsiti()  { return Collections.unmodifiableList(esiti); }
+
+    /** Gli esiti degli elementi che hanno impedito il cestino; vuoto se è riuscito. */
+    public List<Esito> getScartati() {
+        if (riuscito) return List.of();
+        return esiti.stream()
+            .filter(e -> e.stato() != Stato.ESEGUITO && e.stato() != Stato.ANNULLATO && e.stato() != Stato.DUPLICATO)
+            .toList();
+    }
+
+    @Override
+    public String toString() {
+        return riuscito
+            ? String.format("Cestino: %d libri", getEseguiti())
+            : String.format("Cestino annullato: %d elementi su %d non eseguibili", getScartati().size(), esiti.size());
+    }
+}
@@ -0,0 +1,49 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rapporto di {@link Catalogo#aggiungiLibri(java.util.Collection)}: un esito per ogni
+ * elemento del lotto, nello stesso ordine, invece di un'eccezione al primo conflitto.
+ */
+public class EsitoImportazione {
+
+    public enum Stato {
+        AGGIUNTO,
+        /** L'ISBN era già nel catalogo prima dell'importazione. */
+        DUPLICATO_CATALOGO,
+        /** L'ISBN compare più volte nel lotto: vince la prima occorrenza. */
+        DUPLICATO_LOTTO,
+        /** Elemento null o libro che appartiene già a un altro catalogo. */
+        NON_VALIDO
+    }
+
+    /** @param libro il libro del lotto ({@code null} se l'elemento era null) */
+    public record Esito(Libro libro, Stato stato) {}
+
+    private final List<Esito> esiti;
+    private int aggiunti;
+
+    EsitoImportazione(int dimensione) {
+        this.esiti = new ArrayList<>(dimensione);
+    }
+
+    void registra(Libro libro, Stato stato) {
+        esiti.add(new Esito(libro, stato));
+        if (stato == Stato.AGGIUNTO) aggiunti++;
+    }
+
+    /** Gli esiti, uno per elemento del lotto e nello stesso ordine. */
+    public List<Esito> getEsiti()  { return Collections.unmodifiableList(esiti); }
+
+    public int getAggiunti()       { return aggiunti; }
+
+    public int getScartati()       { return esiti.size() - aggiunti; }
+
+    @Override
+    public String toString() {
+        return String.format("Importazione: %d aggiunti, %d scartati", aggiunti, getScartati());
+    }
+}
@@ -0,0 +1,66 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Evento compatto registrato da {@link GestorePrestiti} a ogni prestito o restituzione.
+ *
+ * <p>Contiene solo i dati grezzi: la formattazione ({@link #formatta()}) avviene
+ * nel thread che consuma gli eventi, non in quello che registra il prestito.
+ * Un cestino ({@link GestorePrestiti#prestaLibri}) produce un solo evento di tipo
+ * {@link Tipo#PRESTITI} o {@link Tipo#RESTITUZIONI}, con ISBN e titoli separati da ", ".
+ *
+ * @param copia                    esemplare prestato o restituito ({@link Libro#getCopia()}); per
+ *                                 i cestini 0, e ogni copia oltre la prima è indicata nell'ISBN
+ *                                 come in {@link Libro#toString()} ({@code "ISBN copia 3"})
+ * @param utente                   prestitario ({@code null} per le restituzioni)
+ * @param dataRestituzionePrevista scadenza del prestito ({@code null} per le restituzioni)
+ */
+public record EventoPrestito(Tipo tipo, String isbn, int copia, String titolo, String utente,
+                             LocalDate dataRestituzionePrevista) {
+
+    public enum Tipo { PRESTITO, RESTITUZIONE, PRESTITI, RESTITUZIONI }
+
+    static EventoPrestito prestito(Libro libro, String utente, LocalDate dataRestituzionePrevista) {
+        return new EventoPrestito(Tipo.PRESTITO, libro.getIsbn(), libro.getCopia(), libro.getTitolo(), utente,
+                                  dataRestituzionePrevista);
+    }
+
+    static EventoPrestito restituzione(Libro libro) {
+        return new EventoPrestito(Tipo.RESTITUZIONE, libro.getIsbn(), libro.getCopia(), libro.getTitolo(), null, null);
+    }
+
+    static EventoPrestito prestiti(List<Libro> libri, String utente, LocalDate dataRestituzionePrevista) {
+        return new EventoPrestito(Tipo.PRESTITI, unisci(libri, true), 0, unisci(libri, false), utente, dataRestituzionePrevista);
+    }
+
+    static EventoPrestito restituzioni(List<Libro> libri) {
+        return new EventoPrestito(Tipo.RESTITUZIONI, unisci(libri, true), 0, unisci(libri, false), null, null);
+    }
+
+    private static String unisci(List<Libro> libri, boolean isbn) {
+        return libri.stream().map(isbn ? EventoPrestito::isbnConCopia : Libro::getTitolo).collect(Collectors.joining(", "));
+    }
+
+    private static String isbnConCopia(Libro libro) {
+        return libro.getCopia() > 1 ? libro.getIsbn() + " copia " + libro.getCopia() : libro.getIsbn();
+    }
+
+    /** Messaggio leggibile, lo stesso stampato un tempo direttamente da {@link GestorePrestiti}. */
+    public String formatta() {
+        return switch (tipo) {
+            case PRESTITO -> String.format("✅ Prestito registrato: \"%s\"%s → %s (restituzione entro %s)",
+                titolo, suffissoCopia(), utente, dataRestituzionePrevista);
+            case RESTITUZIONE -> String.format("↩️ Restituzione registrata: \"%s\"%s", titolo, suffissoCopia());
+            case PRESTITI -> String.format("✅ Prestiti registrati: %s → %s (restituzione entro %s)",
+                titolo, utente, dataRestituzionePrevista);
+            case RESTITUZIONI -> String.format("↩️ Restituzioni registrate: %s", titolo);
+        };
+    }
+
+    private String suffissoCopia() {
+        return copia > 1 ? " (copia " + copia + ")" : "";
+    }
+}
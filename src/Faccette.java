@@ -0,0 +1,32 @@
+package main;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Conteggi dei titoli del catalogo per decennio di pubblicazione e per autore, restituiti da
+ * {@link Catalogo#getFaccette(int)} per i filtri accanto ai risultati di una ricerca.
+ * Un titolo con più copie conta una volta, come nelle ricerche.
+ *
+ * @param perDecennio primo anno del decennio ({@link #decennio(int)}) → titoli, in ordine di decennio
+ * @param perAutore   autore → titoli, dal più numeroso (a parità, per nome), al più quanti richiesti
+ */
+public record Faccette(SortedMap<Integer, Integer> perDecennio, Map<String, Integer> perAutore) {
+
+    /** Primo anno del decennio di {@code anno}: 1940 per gli anni dal 1940 al 1949. */
+    public static int decennio(int anno) {
+        return Math.floorDiv(anno, 10) * 10;
+    }
+
+    /** Ordina gli autori, tiene i primi {@code massimoAutori} e rende le mappe non modificabili. */
+    static Faccette di(SortedMap<Integer, Integer> perDecennio, Map<String, Integer> perAutore, int massimoAutori) {
+        Map<String, Integer> primi = new LinkedHashMap<>();
+        perAutore.entrySet().stream()
+            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+            .limit(massimoAutori)
+            .forEach(e -> primi.put(e.getKey(), e.getValue()));
+        return new Faccette(Collections.unmodifiableSortedMap(perDecennio), Collections.unmodifiableMap(primi));
+    }
+}
@@ -0,0 +1,271 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Flusso delle modifiche di un {@link Catalogo} ({@link ModificaCatalogo}) per i sistemi a
+ * valle: indicizzatore, promemoria SMS, statistiche. Chi si iscrive riceve ogni aggiunta,
+ * rimozione, prestito e restituzione successiva, senza dover rileggere il catalogo.
+ *
+ * <p>Le modifiche vengono numerate e tenute in un registro circolare delle ultime
+ * {@code ritenzione}. Ogni iscritto ha solo un cursore nel registro e riceve le modifiche
+ * quando le chiede con {@link Flow.Subscription#request(long)}, su un thread
+ * dell'{@link Executor} e mai su quello del prestito, che paga solo la scrittura nel
+ * registro e non aspetta mai gli iscritti. Un iscritto che resta indietro di più di
+ * {@code ritenzione} modifiche le perderebbe: riceve {@code onError} con
+ * {@link IllegalStateException} e dovrà ripartire da una lettura completa.
+ *
+ * <p>{@link #iscrivi(Flow.Subscriber, long)} riparte dalla modifica successiva a un numero
+ * di sequenza già ricevuto, finché è ancora nel registro. La numerazione parte da quando il
+ * flusso è attivato e non sopravvive al riavvio: per quello c'è il {@link Giornale}.
+ */
+public final class FlussoModifiche implements Flow.Publisher<ModificaCatalogo>, OsservatoreCatalogo, AutoCloseable {
+
+    public static final int RITENZIONE_PREDEFINITA = 65_536;
+
+    private final AtomicReferenceArray<ModificaCatalogo> registro;
+    private final int maschera;
+    private final Executor esecutore;
+    private final List<Iscrizione> iscrizioni = new CopyOnWriteArrayList<>();
+
+    /** Sequenza della prossima modifica; scritta solo con il lock del flusso. */
+    private volatile long prossima = 1;
+    private volatile boolean chiuso;
+
+    private FlussoModifiche(int ritenzione, Executor esecutore) {
+        int capacita = Integer.highestOneBit(ritenzione - 1) << 1;
+        this.registro = new AtomicReferenceArray<>(Math.max(capacita, 1));
+        this.maschera = registro.length() - 1;
+        this.esecutore = esecutore;
+    }
+
+    /** Attiva il flusso di {@code catalogo}, con i parametri predefiniti e il {@link ForkJoinPool} comune. */
+    public static FlussoModifiche attiva(Catalogo catalogo) {
+        return attiva(catalogo, RITENZIONE_PREDEFINITA, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param ritenzione modifiche tenute per chi riparte o resta indietro (arrotondato a una potenza di 2)
+     * @param esecutore  thread su cui vengono chiamati gli iscritti
+     */
+    public static FlussoModifiche attiva(Catalogo catalogo, int ritenzione, Executor esecutore) {
+        if (catalogo == null || esecutore == null) throw new IllegalArgumentException("Catalogo ed esecutore non possono essere null");
+        if (ritenzione <= 0 || ritenzione > 1 << 30) throw new IllegalArgumentException("La ritenzione deve essere tra 1 e 2^30");
+        FlussoModifiche flusso = new FlussoModifiche(ritenzione, esecutore);
+        catalogo.aggiungiOsservatore(flusso);
+        return flusso;
+    }
+
+    /** Iscrive {@code iscritto} alle modifiche successive all'iscrizione. */
+    @Override
+    public void subscribe(Flow.Subscriber<? super ModificaCatalogo> iscritto) {
+        iscrivi(iscritto, prossima - 1);
+    }
+
+    /**
+     * Iscrive {@code iscritto} a partire dalla modifica successiva a {@code dopo}: 0 per
+     * tutte quelle ancora nel registro, l'ultima sequenza ricevuta per riprendere. Se quella
+     * modifica non è più nel registro l'iscritto riceve subito {@code onError}.
+     */
+    public void iscrivi(Flow.Subscriber<? super ModificaCatalogo> iscritto, long dopo) {
+        if (iscritto == null) throw new NullPointerException("L'iscritto non può essere null");
+        if (dopo < 0 || dopo >= prossima) throw new IllegalArgumentException("Sequenza non ancora pubblicata: " + dopo);
+        Iscrizione iscrizione = new Iscrizione(iscritto, dopo == 0 ? getPrimaDisponibile() : dopo + 1);
+        iscritto.onSubscribe(iscrizione);
+        if (!iscrizione.terminata) iscrizioni.add(iscrizione);
+        iscrizione.segnala();
+    }
+
+    /** Sequenza dell'ultima modifica pubblicata, 0 se nessuna. */
+    public long getUltimaSequenza() { return prossima - 1; }
+
+    /** Sequenza della modifica più vecchia ancora nel registro. */
+    public long getPrimaDisponibile() { return Math.max(1, prossima - registro.length()); }
+
+    public int getNumeroIscritti() { return iscrizioni.size(); }
+
+    /** Non pubblica più modifiche; gli iscritti ricevono quelle rimaste e poi {@code onComplete}. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            chiuso = true;
+        }
+        for (Iscrizione i : iscrizioni) i.segnala();
+    }
+
+    // ------------------------------------------------------------------ notifiche
+
+    @Override
+    public void libroAggiunto(Libro libro) {
+        String utente = libro.getPrestitarioCorrente();
+        LocalDate scadenza = libro.getDataRestituzionePrevista();
+        synchronized (this) {
+            pubblica(new ModificaCatalogo.Aggiunta(prossima, libro.getIsbn(), libro.getCopia(), libro.getTitolo(), libro.getAutore(),
+                                                   libro.getAnnoPubblicazione()));
+            // come nel giornale: un libro che arriva già in prestito porta con sé il prestito
+            if (utente != null && scadenza != null) pubblica(new ModificaCatalogo.Prestito(prossima, libro.getIsbn(), libro.getCopia(), utente, scadenza));
+        }
+        segnala();
+    }
+
+    @Override
+    public void libroRimosso(Libro libro) {
+        synchronized (this) {
+            pubblica(new ModificaCatalogo.Rimozione(prossima, libro.getIsbn(), libro.getCopia()));
+        }
+        segnala();
+    }
+
+    @Override
+    public void libroPrestato(Libro libro) {
+        synchronized (this) {
+            pubblica(prestito(libro));
+        }
+        segnala();
+    }
+
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        synchronized (this) {
+            pubblica(new ModificaCatalogo.Restituzione(prossima, libro.getIsbn(), libro.getCopia(), utente, dataPrevista));
+        }
+        segnala();
+    }
+
+    /** Le modifiche di un cestino prendono numeri consecutivi. */
+    @Override
+    public void libriPrestati(List<Libro> libri) {
+        synchronized (this) {
+            for (Libro libro : libri) pubblica(prestito(libro));
+        }
+        segnala();
+    }
+
+    @Override
+    public void libriRestituiti(List<OsservatoreCatalogo.Restituzione> restituzioni) {
+        synchronized (this) {
+            for (OsservatoreCatalogo.Restituzione r : restituzioni) {
+                pubblica(new ModificaCatalogo.Restituzione(prossima, r.libro().getIsbn(), r.libro().getCopia(),
+                                                           r.utente(), r.dataPrevista()));
+            }
+        }
+        segnala();
+    }
+
+    /** Da chiamare solo sotto il lock del flusso, da cui la sequenza corrente è già stata letta. */
+    private ModificaCatalogo.Prestito prestito(Libro libro) {
+        return new ModificaCatalogo.Prestito(prossima, libro.getIsbn(), libro.getCopia(), libro.getPrestitarioCorrente(),
+                                             libro.getDataRestituzionePrevista());
+    }
+
+    /** Scrive la modifica nel registro e la rende visibile agli iscritti. Con il lock del flusso. */
+    private void pubblica(ModificaCatalogo modifica) {
+        if (chiuso) return;
+        registro.set((int) (modifica.sequenza() & maschera), modifica);
+        prossima = modifica.sequenza() + 1;
+    }
+
+    private void segnala() {
+        for (Iscrizione i : iscrizioni) {
+            if (i.richiesti.get() > 0) i.segnala();
+        }
+    }
+
+    // ------------------------------------------------------------------ iscrizioni
+
+    /**
+     * Cursore di un iscritto nel registro. I segnali all'iscritto sono serializzati da
+     * {@link #attivita}: chi la porta da 0 a 1 pianifica la consegna sull'esecutore, che
+     * continua finché non restano segnalazioni arretrate.
+     */
+    private final class Iscrizione implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ModificaCatalogo> iscritto;
+        private final AtomicLong richiesti = new AtomicLong();
+        private final AtomicInteger attivita = new AtomicInteger();
+        /** Sequenza della prossima modifica da consegnare; usata solo dalla consegna. */
+        private long cursore;
+        private volatile Throwable richiestaNonValida;
+        private volatile boolean terminata;
+
+        Iscrizione(Flow.Subscriber<? super ModificaCatalogo> iscritto, long cursore) {
+            this.iscritto = iscritto;
+            this.cursore = cursore;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) richiestaNonValida = new IllegalArgumentException("Richiesta non positiva: " + n);
+            else richiesti.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            segnala();
+        }
+
+        @Override
+        public void cancel() {
+            terminata = true;
+            iscrizioni.remove(this);
+        }
+
+        void segnala() {
+            if (attivita.getAndIncrement() == 0) {
+                try {
+                    esecutore.execute(this::consegna);
+                } catch (RuntimeException e) {
+                    termina(e);
+                }
+            }
+        }
+
+        private void consegna() {
+            int arretrate = 1;
+            do {
+                consegnaDisponibili();
+                arretrate = attivita.addAndGet(-arretrate);
+            } while (arretrate != 0);
+        }
+
+        private void consegnaDisponibili() {
+            if (terminata) return;
+            if (richiestaNonValida != null) {
+                termina(richiestaNonValida);
+                return;
+            }
+            while (richiesti.get() > 0 && cursore < prossima) {
+                ModificaCatalogo modifica = registro.get((int) (cursore & maschera));
+                if (modifica == null || modifica.sequenza() != cursore) {
+                    termina(new IllegalStateException("Modifica " + cursore + " non più disponibile: la più vecchia è la "
+                                                      + getPrimaDisponibile()));
+                    return;
+                }
+                cursore++;
+                if (richiesti.get() != Long.MAX_VALUE) richiesti.decrementAndGet();
+                try {
+                    iscritto.onNext(modifica);
+                } catch (RuntimeException e) {
+                    cancel();
+                    iscritto.onError(e);
+                    return;
+                }
+                if (terminata) return;
+            }
+            if (chiuso && cursore >= prossima) {
+                cancel();
+                iscritto.onComplete();
+            }
+        }
+
+        private void termina(Throwable errore) {
+            if (terminata) return;
+            cancel();
+            iscritto.onError(errore);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package main;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generatore di carico per {@link ServizioPrestiti}: simula {@code client} sportelli che
+ * ripetono, ciascuno dal proprio thread, una miscela di ricerche e prestiti per la durata
+ * indicata, e misura la latenza di ogni richiesta vista dal client.
+ *
+ * <p>Miscela: 70% ricerca per ISBN, 10% ricerca per autore, 10% prestito e 10% restituzione
+ * di un libro prestato in precedenza dallo stesso client. I prestiti di un libro già preso
+ * da un altro client rispondono 409 e contano come errori, come al banco.
+ *
+ * <p>Da riga di comando avvia un catalogo sintetico e il servizio su loopback:
+ * <pre>
+ *   java -cp target/classes main.GeneratoreCarico [libri] [client] [secondi]
+ * </pre>
+ */
+public final class GeneratoreCarico {
+
+    /**
+     * Esito di una prova.
+     *
+     * @param richieste richieste completate, comprese quelle con errore
+     * @param errori    risposte diverse da 2xx e richieste fallite per errori di rete
+     * @param latenze   latenze per tipo di richiesta, misurate dal client
+     */
+    public record Risultato(int client, Duration durata, long richieste, long errori, Metriche.Istantanea latenze) {
+
+        public double richiesteAlSecondo() {
+            return durata.isZero() ? 0 : richieste * 1e9 / durata.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d client, %d richieste in %d ms (%.0f/s), %d errori%n%s",
+                client, richieste, durata.toMillis(), richiesteAlSecondo(), errori, latenze);
+        }
+    }
+
+    private GeneratoreCarico() {}
+
+    /**
+     * Esegue la prova contro un servizio già avviato.
+     *
+     * @param base   indirizzo del servizio, es. {@code http://127.0.0.1:8080}
+     * @param isbn   ISBN presenti nel catalogo, tra cui scegliere a caso
+     * @param autori autori (o parti di nome) da cercare
+     */
+    public static Risultato esegui(URI base, List<String> isbn, List<String> autori, int client, Duration durata)
+            throws InterruptedException {
+        if (isbn.isEmpty() || autori.isEmpty()) throw new IllegalArgumentException("Servono almeno un ISBN e un autore");
+        if (client <= 0) throw new IllegalArgumentException("Il numero di client deve essere > 0");
+
+        ExecutorService esecutore = ServizioPrestiti.threadPerRichiesta("carico-");
+        HttpClient http = HttpClient.newBuilder()
+            .executor(esecutore)
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+        Metriche metriche = new Metriche(() -> isbn.size());
+        LongAdder richieste = new LongAdder();
+        LongAdder errori = new LongAdder();
+        long inizio = System.nanoTime();
+        long fine = inizio + durata.toNanos();
+        try {
+            List<Future<?>> sportelli = new ArrayList<>(client);
+            for (int c = 0; c < client; c++) {
+                String utente = "sportello-" + c;
+                sportelli.add(esecutore.submit(() -> {
+                    Deque<String> prestati = new ArrayDeque<>();
+                    while (System.nanoTime() < fine) {
+                        boolean riuscita = richiesta(http, base, isbn, autori, utente, prestati, metriche);
+                        richieste.increment();
+                        if (!riuscita) errori.increment();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : sportelli) {
+                try {
+                    f.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    throw new IllegalStateException("Client interrotto da un errore inatteso", e.getCause());
+                }
+            }
+        } finally {
+            esecutore.shutdownNow();
+            esecutore.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        return new Risultato(client, Duration.ofNanos(System.nanoTime() - inizio), richieste.sum(), errori.sum(),
+                             metriche.istantanea());
+    }
+
+    /** Sceglie e invia una richiesta; {@code true} se la risposta è 2xx. */
+    private static boolean richiesta(HttpClient http, URI base, List<String> isbn, List<String> autori,
+                                     String utente, Deque<String> prestati, Metriche metriche) {
+        ThreadLocalRandom caso = ThreadLocalRandom.current();
+        int dado = caso.nextInt(100);
+        Metriche.Operazione operazione;
+        HttpRequest.Builder richiesta;
+        String prestato = null;
+        if (dado < 70) {
+            operazione = Metriche.Operazione.CERCA_PER_ISBN;
+            richiesta = HttpRequest.newBuilder(base.resolve("/libri/" + codifica(scegli(isbn, caso)))).GET();
+        } else if (dado < 80) {
+            operazione = Metriche.Operazione.CERCA_PER_AUTORE;
+            richiesta = HttpRequest.newBuilder(base.resolve("/libri?autore=" + codifica(scegli(autori, caso)))).GET();
+        } else if (dado < 90 || prestati.isEmpty()) {
+            operazione = Metriche.Operazione.PRESTITO;
+            prestato = scegli(isbn, caso);
+            richiesta = post(base, "/prestiti", "isbn=" + codifica(prestato) + "&utente=" + codifica(utente) + "&giorni=14");
+        } else {
+            operazione = Metriche.Operazione.RESTITUZIONE;
+            richiesta = post(base, "/restituzioni", "isbn=" + codifica(prestati.pollFirst()));
+        }
+
+        long t0 = System.nanoTime();
+        boolean riuscita;
+        try {
+            HttpResponse<Void> risposta = http.send(richiesta.timeout(Duration.ofSeconds(30)).build(),
+                                                    HttpResponse.BodyHandlers.discarding());
+            riuscita = risposta.statusCode() / 100 == 2;
+        } catch (IOException e) {
+            riuscita = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        metriche.registra(operazione, System.nanoTime() - t0, riuscita);
+        if (riuscita && prestato != null) prestati.addLast(prestato);
+        return riuscita;
+    }
+
+    private static HttpRequest.Builder post(URI base, String percorso, String form) {
+        return HttpRequest.newBuilder(base.resolve(percorso))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(form));
+    }
+
+    private static String scegli(List<String> valori, ThreadLocalRandom caso) {
+        return valori.get(caso.nextInt(valori.size()));
+    }
+
+    private static String codifica(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    public static void main(String[] args) throws Exception {
+        // niente ACK ritardati sulle risposte piccole, se chi lancia non ha già deciso (vedi ServizioPrestiti)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        int libri = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int client = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int secondi = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Catalogo catalogo = new Catalogo();
+        List<String> isbn = new ArrayList<>(libri);
+        List<String> autori = new ArrayList<>();
+        List<Libro> lotto = new ArrayList<>(libri);
+        for (int i = 0; i < libri; i++) {
+            isbn.add(String.format("CARICO-%07d", i));
+            if (i % 20 == 0) autori.add("Autore " + i / 20);
+            lotto.add(new Libro(isbn.get(i), "Titolo " + i, "Autore " + i / 20, 1900 + i % 120));
+        }
+        catalogo.aggiungiLibri(lotto);
+        GestorePrestiti gestore = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+
+        try (ServizioPrestiti servizio = ServizioPrestiti.avvia(catalogo, gestore, 0)) {
+            URI base = URI.create("http://127.0.0.1:" + servizio.getPorta());
+            System.out.println("Servizio su " + base + ", " + libri + " libri");
+            System.out.println(esegui(base, isbn, autori, client, Duration.ofSeconds(secondi)));
+        }
+    }
+}
@@ -1,4 +1,14 @@
+package main;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Gestisce le operazioni di prestito e restituzione dei libri.
@@ -6,21 +16,77 @@ import java.util.List;
  * <p>Funzionalità <b>IMPLEMENTATE</b>:
  * <ul>
  *   <li>{@link #prestaLibro(String, String, int)} – registra un prestito</li>
+ *   <li>{@link #restituisciLibro(String)}         – registra una restituzione</li>
+ *   <li>{@link #restituisciLibro(String, int)}    – restituzione di una copia precisa</li>
+ *   <li>{@link #prestaLibri(Collection, String, int)} – presta un cestino di libri, tutto o niente</li>
+ *   <li>{@link #restituisciLibri(Collection)}     – restituisce un cestino di libri, tutto o niente</li>
+ *   <li>{@link #getPrestitiScaduti()}             – prestiti scaduti (indice per scadenza)</li>
+ *   <li>{@link #getPrestitiScaduti(LocalDate, String, int)} – prestiti scaduti a pagine</li>
+ *   <li>{@link #getPrestitiDi(String)}            – prestiti aperti di un utente (indice per utente)</li>
+ *   <li>{@link #setLimitePrestiti(int)}           – numero massimo di prestiti aperti per utente</li>
+ *   <li>{@link #prenota(String, String)}          – coda di prenotazione di un titolo tutto in prestito</li>
  * </ul>
  *
- * <p>Funzionalità <b>DA IMPLEMENTARE</b> (cerca i commenti TODO):
- * <ul>
- *   <li>{@link #restituisciLibro(String)}  – branch: {@code feature/restituzione}</li>
- *   <li>{@link #getPrestitiScaduti()}      – branch: {@code feature/prestiti-scaduti}</li>
- * </ul>
+ * <p>Le date sono calcolate con il {@link Clock} passato al costruttore, così i test
+ * possono fissare "oggi". Ogni prestito e restituzione produce un {@link EventoPrestito}
+ * per il {@link RegistroPrestiti} configurato; quello predefinito scrive su console da un
+ * thread di background, senza rallentare il prestito.
+ *
+ * <p>Prestiti, restituzioni e ricerche dei prestiti scaduti emettono eventi JFR e finiscono
+ * nelle {@link Metriche} del catalogo, se abilitate ({@link Catalogo#abilitaMetriche()}).
+ *
+ * <p>Il gestore tiene i suoi indici registrandosi come osservatore del catalogo:
+ * {@link #close()} lo stacca, e va chiamato quando il gestore non serve più e il catalogo
+ * resta in uso, altrimenti ogni prestito continua ad aggiornarne gli indici.
  */
-public class GestorePrestiti {
+public class GestorePrestiti implements AutoCloseable {
+
+    /** Valore di {@link #setLimitePrestiti(int)} che non pone limiti. */
+    public static final int NESSUN_LIMITE = Integer.MAX_VALUE;
+
+    /** Giorni per ritirare una copia messa da parte, se non cambiati con {@link #setGiorniRitiro(int)}. */
+    public static final int GIORNI_RITIRO_PREDEFINITI = 3;
 
     private final Catalogo catalogo;
+    private final Clock clock;
+    private final IndiceScadenze indiceScadenze;
+    private final IndicePrestitari indicePrestitari;
+    private final Prenotazioni prenotazioni;
+    private final RegistroPrestiti registro;
+    private volatile int limitePrestiti = NESSUN_LIMITE;
 
     public GestorePrestiti(Catalogo catalogo) {
+        this(catalogo, Clock.systemDefaultZone());
+    }
+
+    public GestorePrestiti(Catalogo catalogo, Clock clock) {
+        this(catalogo, clock, RegistroAsincrono.consoleCondivisa());
+    }
+
+    public GestorePrestiti(Catalogo catalogo, Clock clock, RegistroPrestiti registro) {
         if (catalogo == null) throw new IllegalArgumentException("Catalogo non può essere null");
+        if (clock == null) throw new IllegalArgumentException("Clock non può essere null");
+        if (registro == null) throw new IllegalArgumentException("Registro non può essere null");
         this.catalogo = catalogo;
+        this.clock = clock;
+        this.registro = registro;
+        this.indiceScadenze = new IndiceScadenze();
+        this.indicePrestitari = new IndicePrestitari();
+        this.prenotazioni = new Prenotazioni(catalogo, clock);
+        catalogo.aggiungiOsservatoreDeiPrestiti(indiceScadenze);
+        catalogo.aggiungiOsservatoreDeiPrestiti(indicePrestitari);
+        catalogo.aggiungiOsservatore(prenotazioni);
+    }
+
+    /**
+     * Stacca dal catalogo gli indici e le prenotazioni del gestore. Dopo la chiusura il
+     * gestore non va più usato; il catalogo e il registro restano aperti.
+     */
+    @Override
+    public void close() {
+        catalogo.rimuoviOsservatore(prenotazioni);
+        catalogo.rimuoviOsservatore(indicePrestitari);
+        catalogo.rimuoviOsservatore(indiceScadenze);
     }
 
     // ===================================================================
@@ -30,69 +96,334 @@ public class GestorePrestiti {
     /**
      * Registra il prestito di un libro a un utente.
      *
+     * <p>Per un titolo con più copie ({@link Catalogo#aggiungiCopie(String, int)}) viene prestata
+     * una copia libera qualsiasi, riservata con un compare-and-set sulla bitmap delle copie:
+     * prestiti concorrenti dello stesso titolo non prendono lock comuni e non scorrono le copie.
+     * Se per l'utente c'è una copia messa da parte ({@link #prenota(String, String)}) viene
+     * prestata quella; le copie messe da parte per altri non vengono prestate.
+     *
      * @param isbn   ISBN del libro da prestare
      * @param utente nome dell'utente
      * @param giorni durata del prestito in giorni (deve essere > 0)
+     * @return il libro prestato: la copia scelta, per i titoli con più copie
      * @throws IllegalArgumentException se ISBN o utente sono vuoti, o giorni <= 0
-     * @throws IllegalStateException    se il libro non esiste o non è disponibile
+     * @throws IllegalStateException    se il libro non esiste o non è disponibile (nessuna copia
+     *                                  libera o non riservata ad altri), o se l'utente ha già raggiunto il
+     *                                  {@linkplain #setLimitePrestiti(int) limite}
      */
-    public void prestaLibro(String isbn, String utente, int giorni) {
+    public Libro prestaLibro(String isbn, String utente, int giorni) {
         validaParametriPrestito(isbn, utente, giorni);
 
-        Libro libro = trovaoFallisci(isbn);
-        libro.segnaComePrestato(utente, giorni);
+        Misura misura = new Misura.Prestito(catalogo.metriche(), isbn, utente, giorni);
+        boolean riuscito = false;
+        try {
+            Libro libro = trovaoFallisci(isbn);
+            LocalDate scadenza = LocalDate.now(clock).plusDays(giorni);
+            int limite = limitePrestiti;
+            if (limite == NESSUN_LIMITE) {
+                libro = presta(libro, utente, scadenza);
+            } else {
+                // sotto il lock dell'utente nessun altro suo prestito si inserisce tra controllo e prestito
+                IndicePrestitari.Prestitario prestitario = indicePrestitari.prestitario(utente);
+                synchronized (prestitario) {
+                    if (prestitario.numero() >= limite) {
+                        throw new IllegalStateException("L'utente " + utente + " ha già " + prestitario.numero()
+                            + " libri in prestito (limite " + limite + ")");
+                    }
+                    libro = presta(libro, utente, scadenza);
+                }
+            }
+            riuscito = true;
 
-        System.out.printf("✅ Prestito registrato: \"%s\" → %s (restituzione entro %s)%n",
-            libro.getTitolo(), utente, libro.getDataRestituzionePrevista());
+            registro.registra(EventoPrestito.prestito(libro, utente, scadenza));
+            return libro;
+        } finally {
+            misura.concludi(riuscito, riuscito ? 1 : 0, catalogo.getTotaleLibri());
+        }
     }
 
-    // ===================================================================
-    //  FUNZIONALITÀ DA IMPLEMENTARE
-    // ===================================================================
-
     /**
-     * Registra la restituzione di un libro.
+     * Registra la restituzione di un libro. Per un titolo con più copie restituisce l'unica
+     * in prestito; se sono più d'una va indicata con {@link #restituisciLibro(String, int)}.
      *
      * @param isbn ISBN del libro restituito
+     * @return il libro restituito
      * @throws IllegalArgumentException se ISBN è vuoto
-     * @throws IllegalStateException    se il libro non esiste o era già disponibile
+     * @throws IllegalStateException    se il libro non esiste o era già disponibile,
+     *                                  o se più copie del titolo sono in prestito
+     */
+    public Libro restituisciLibro(String isbn) {
+        validaIsbn(isbn);
+        return restituisci(isbn, 0);
+    }
+
+    /**
+     * Registra la restituzione della copia {@code copia} di un titolo ({@link Libro#getCopia()}).
+     *
+     * @return il libro restituito
+     * @throws IllegalArgumentException se ISBN è vuoto o {@code copia <= 0}
+     * @throws IllegalStateException    se la copia non esiste o era già disponibile
+     */
+    public Libro restituisciLibro(String isbn, int copia) {
+        validaIsbn(isbn);
+        if (copia <= 0) throw new IllegalArgumentException("Il numero della copia deve essere > 0");
+        return restituisci(isbn, copia);
+    }
+
+    /** Restituisce la copia {@code copia}, o con 0 l'unica in prestito del titolo. */
+    private Libro restituisci(String isbn, int copia) {
+        Misura misura = new Misura.Restituzione(catalogo.metriche(), isbn);
+        boolean riuscita = false;
+        try {
+            Libro libro;
+            if (copia > 0) {
+                libro = catalogo.copia(isbn, copia);
+                if (libro == null) throw new IllegalStateException("Nessuna copia " + copia + " del libro con ISBN: " + isbn);
+            } else {
+                libro = trovaoFallisci(isbn);
+                Copie copie = libro.getCopie();
+                Libro prestata = copie == null ? null : copie.unicaInPrestito();
+                if (prestata != null) libro = prestata;
+            }
+            nelCatalogo(libro, libro::segnaComRestituito);
+            riuscita = true;
+
+            registro.registra(EventoPrestito.restituzione(libro));
+            return libro;
+        } finally {
+            misura.concludi(riuscita, riuscita ? 1 : 0, catalogo.getTotaleLibri());
+        }
+    }
+
+    /**
+     * Presta a un utente tutti i libri di un cestino, oppure nessuno.
      *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/restituzione}.
-     * <p>Suggerimenti:
-     * <ol>
-     *   <li>Valida che {@code isbn} non sia null/vuoto (vedi {@link #validaIsbn(String)}).</li>
-     *   <li>Usa {@link #trovaoFallisci(String)} per recuperare il libro.</li>
-     *   <li>Chiama {@link Libro#segnaComRestituito()} sul libro trovato.</li>
-     *   <li>Stampa un messaggio di conferma.</li>
-     * </ol>
+     * <p>Gli ISBN vengono risolti in un solo passaggio, poi i libri vengono bloccati tutti
+     * insieme (in un ordine globale, quindi senza stalli con altri cestini) e controllati:
+     * se anche uno solo non è prestabile non cambia nulla. Il cestino produce un solo
+     * {@link EventoPrestito} e un solo record nel {@link Giornale}, che lo rende durevole
+     * con una sola attesa invece di una per libro.
+     *
+     * <p>Di un titolo con più copie viene prestata la copia messa da parte per l'utente, se c'è,
+     * altrimenti una copia libera, scelta prima di bloccare:
+     * se nel frattempo viene prestata da altri, l'elemento risulta
+     * {@link EsitoCestino.Stato#NON_DISPONIBILE} come per un titolo con una copia sola.
+     *
+     * @param isbn   ISBN dei libri da prestare (non vuoto)
+     * @param utente nome dell'utente
+     * @param giorni durata del prestito in giorni (deve essere > 0)
+     * @return un esito per ogni ISBN, nello stesso ordine
+     * @throws IllegalArgumentException se il cestino è vuoto, l'utente è vuoto o giorni <= 0
      */
-    public void restituisciLibro(String isbn) {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("restituisciLibro() non ancora implementato");
+    public EsitoCestino prestaLibri(Collection<String> isbn, String utente, int giorni) {
+        validaCestino(isbn);
+        if (utente == null || utente.isBlank())
+            throw new IllegalArgumentException("Il nome dell'utente non può essere vuoto");
+        if (giorni <= 0)
+            throw new IllegalArgumentException("La durata del prestito deve essere > 0 giorni");
+
+        Misura misura = new Misura.Prestito(catalogo.metriche(), isbn, utente, giorni);
+        EsitoCestino esito = null;
+        try {
+            LocalDate scadenza = LocalDate.now(clock).plusDays(giorni);
+            int limite = limitePrestiti;
+            if (limite == NESSUN_LIMITE) {
+                esito = eseguiCestino(isbn, libro -> libro.segnaComePrestato(utente, scadenza), utente, NESSUN_LIMITE);
+            } else {
+                IndicePrestitari.Prestitario prestitario = indicePrestitari.prestitario(utente);
+                synchronized (prestitario) {
+                    esito = eseguiCestino(isbn, libro -> libro.segnaComePrestato(utente, scadenza), utente,
+                                          Math.max(0, limite - prestitario.numero()));
+                }
+            }
+            if (esito.isRiuscito()) registro.registra(EventoPrestito.prestiti(libri(esito), utente, scadenza));
+            return esito;
+        } finally {
+            boolean riuscito = esito != null && esito.isRiuscito();
+            misura.concludi(riuscito, riuscito ? esito.getEseguiti() : 0, catalogo.getTotaleLibri());
+        }
+    }
+
+    /**
+     * Restituisce tutti i libri di un cestino, oppure nessuno: come
+     * {@link #prestaLibri(Collection, String, int)}, un solo evento e un solo record di giornale.
+     * Di un titolo con più copie viene restituita l'unica in prestito; se sono più d'una
+     * l'elemento risulta {@link EsitoCestino.Stato#COPIA_DA_INDICARE}.
+     *
+     * @param isbn ISBN dei libri restituiti (non vuoto)
+     * @return un esito per ogni ISBN, nello stesso ordine
+     * @throws IllegalArgumentException se il cestino è vuoto
+     */
+    public EsitoCestino restituisciLibri(Collection<String> isbn) {
+        validaCestino(isbn);
+
+        Misura misura = new Misura.Restituzione(catalogo.metriche(), isbn);
+        EsitoCestino esito = null;
+        try {
+            esito = eseguiCestino(isbn, Libro::segnaComRestituito, null, NESSUN_LIMITE);
+            if (esito.isRiuscito()) registro.registra(EventoPrestito.restituzioni(libri(esito)));
+            return esito;
+        } finally {
+            boolean riuscita = esito != null && esito.isRiuscito();
+            misura.concludi(riuscita, riuscita ? esito.getEseguiti() : 0, catalogo.getTotaleLibri());
+        }
+    }
+
+    /**
+     * Prestiti aperti di un utente, in ordine di scadenza, letti dall'indice per utente
+     * senza scorrere il catalogo.
+     *
+     * @param utente nome dell'utente, come passato a {@link #prestaLibro(String, String, int)}
+     * @return lista (eventualmente vuota) dei libri in prestito all'utente
+     */
+    public List<Libro> getPrestitiDi(String utente) {
+        if (utente == null || utente.isBlank()) return List.of();
+        return indicePrestitari.prestitiDi(utente);
+    }
+
+    /** Numero di prestiti aperti di un utente, in tempo costante. */
+    public int getNumeroPrestitiDi(String utente) {
+        if (utente == null || utente.isBlank()) return 0;
+        return indicePrestitari.numeroPrestiti(utente);
+    }
+
+    /**
+     * Imposta il numero massimo di prestiti aperti per utente, controllato da
+     * {@link #prestaLibro(String, String, int)} e {@link #prestaLibri(Collection, String, int)}.
+     * I prestiti già aperti oltre il nuovo limite restano validi. I prestiti fatti direttamente
+     * su {@link Libro} non sono soggetti al limite, ma vengono contati.
+     *
+     * @param limite massimo (> 0), oppure {@link #NESSUN_LIMITE}
+     */
+    public void setLimitePrestiti(int limite) {
+        if (limite <= 0) throw new IllegalArgumentException("Il limite di prestiti deve essere > 0");
+        this.limitePrestiti = limite;
+    }
+
+    public int getLimitePrestiti() { return limitePrestiti; }
+
+    /**
+     * Mette l'utente in coda per un titolo. Le prenotazioni sono servite in ordine di arrivo:
+     * se c'è già una copia libera viene messa da parte subito, altrimenti la prima copia
+     * restituita passa direttamente alla prima prenotazione in coda, senza tornare libera
+     * nemmeno per un istante. La copia resta da parte per {@linkplain #setGiorniRitiro(int)
+     * qualche giorno}; poi la prenotazione scade e la copia passa alla successiva.
+     *
+     * <p>Le code sono per titolo e senza lock: accodarsi non rallenta i prestiti degli altri
+     * titoli. Le prenotazioni non sono nel {@link Giornale} e non sopravvivono a un riavvio.
+     *
+     * @param isbn   ISBN del titolo
+     * @param utente nome dell'utente
+     * @return la prenotazione, o quella ancora aperta dell'utente per lo stesso titolo
+     * @throws IllegalArgumentException se ISBN o utente sono vuoti
+     * @throws IllegalStateException    se il libro non esiste
+     */
+    public Prenotazione prenota(String isbn, String utente) {
+        validaIsbn(isbn);
+        if (utente == null || utente.isBlank())
+            throw new IllegalArgumentException("Il nome dell'utente non può essere vuoto");
+        return prenotazioni.prenota(trovaoFallisci(isbn), utente);
+    }
+
+    /**
+     * Annulla la prenotazione aperta dell'utente per un titolo; la copia eventualmente messa
+     * da parte per lui passa alla prenotazione successiva.
+     *
+     * @return {@code true} se c'era una prenotazione da annullare
+     */
+    public boolean annullaPrenotazione(String isbn, String utente) {
+        if (isbn == null || isbn.isBlank() || utente == null || utente.isBlank()) return false;
+        Libro libro = catalogo.trova(isbn);
+        return libro != null && prenotazioni.annulla(libro, utente);
+    }
+
+    /** Prenotazioni di un titolo ancora in attesa di una copia. */
+    public int getNumeroInAttesa(String isbn) {
+        if (isbn == null || isbn.isBlank()) return 0;
+        return prenotazioni.numeroInAttesa(isbn);
+    }
+
+    /**
+     * Imposta per quanti giorni una copia resta da parte per chi l'ha prenotata. Vale per le
+     * copie messe da parte da ora in poi.
+     *
+     * @param giorni giorni per il ritiro (>= 0; 0 = entro oggi)
+     */
+    public void setGiorniRitiro(int giorni) {
+        if (giorni < 0) throw new IllegalArgumentException("I giorni per il ritiro devono essere >= 0");
+        prenotazioni.setGiorniRitiro(giorni);
+    }
+
+    public int getGiorniRitiro() { return prenotazioni.giorniRitiro(); }
+
+    /**
+     * Fa scadere le prenotazioni la cui copia non è stata ritirata in tempo, passando le
+     * copie alle prenotazioni successive. Le scadenze vengono comunque controllate a ogni
+     * prestito o prenotazione del titolo; questo metodo serve a liberare anche le copie dei
+     * titoli che nessuno tocca, ad esempio una volta al giorno.
+     *
+     * @return quante prenotazioni sono scadute
+     */
+    public int rilasciaRitiriScaduti() {
+        return prenotazioni.rilasciaScadute();
     }
 
     /**
      * Restituisce la lista dei libri il cui termine di restituzione è già scaduto
      * (data di restituzione prevista precedente a oggi).
      *
-     * @return lista (eventualmente vuota) di libri in ritardo
-     *
-     * <p><b>TODO</b> – Implementa questo metodo nel branch {@code feature/prestiti-scaduti}.
-     * <p>Suggerimenti:
-     * <ol>
-     *   <li>Recupera tutti i libri con {@code catalogo.getTuttiILibri()}.</li>
-     *   <li>Filtra quelli che hanno {@code !isDisponibile()} e
-     *       {@code getDataRestituzionePrevista().isBefore(LocalDate.now())}.</li>
-     *   <li>Ritorna la lista filtrata.</li>
-     * </ol>
+     * @return lista (eventualmente vuota) di libri in ritardo, in ordine di scadenza
      */
     public List<Libro> getPrestitiScaduti() {
-        // TODO: sostituisci questa riga con l'implementazione reale
-        throw new UnsupportedOperationException("getPrestitiScaduti() non ancora implementato");
+        return getPrestitiScaduti(LocalDate.now(clock));
+    }
+
+    /**
+     * Restituisce i prestiti con data di restituzione prevista precedente a {@code data}.
+     *
+     * @param data data di riferimento (non null)
+     * @return lista (eventualmente vuota) di libri in ritardo, in ordine di scadenza
+     */
+    public List<Libro> getPrestitiScaduti(LocalDate data) {
+        if (data == null) throw new IllegalArgumentException("La data non può essere null");
+        Misura misura = new Misura.Ricerca(catalogo.metriche(), Metriche.Operazione.PRESTITI_SCADUTI, null);
+        List<Libro> scaduti = catalogo.dallaCache(CacheRicerche.Tipo.PRESTITI_SCADUTI, data.toString(),
+                                                  () -> streamPrestitiScaduti(data).toList());
+        misura.concludi(true, scaduti.size(), catalogo.getTotaleLibri());
+        return scaduti;
+    }
+
+    /**
+     * Una pagina di {@link #getPrestitiScaduti(LocalDate)}: al più {@code dimensione} prestiti
+     * dopo il cursore, in ordine di scadenza, letti dall'indice senza scorrere quelli precedenti.
+     *
+     * @param cursore {@link Pagina#cursore()} della pagina precedente, {@code null} per la prima
+     * @throws IllegalArgumentException se la data è null, il cursore non è valido o {@code dimensione <= 0}
+     */
+    public Pagina getPrestitiScaduti(LocalDate data, String cursore, int dimensione) {
+        if (data == null) throw new IllegalArgumentException("La data non può essere null");
+        if (dimensione <= 0) throw new IllegalArgumentException("La dimensione della pagina deve essere > 0");
+        Misura misura = new Misura.Ricerca(catalogo.metriche(), Metriche.Operazione.PRESTITI_SCADUTI, cursore);
+        Pagina pagina = indiceScadenze.pagina(data, cursore, dimensione);
+        misura.concludi(true, pagina.libri().size(), catalogo.getTotaleLibri());
+        return pagina;
+    }
+
+    /**
+     * Variante in streaming di {@link #getPrestitiScaduti(LocalDate)}: i prestiti vengono
+     * letti dall'indice man mano, senza materializzare una lista.
+     * Lo stream va consumato prima di registrare altri prestiti o restituzioni.
+     *
+     * @param data data di riferimento (non null)
+     * @return stream dei libri in ritardo, in ordine di scadenza
+     */
+    public Stream<Libro> streamPrestitiScaduti(LocalDate data) {
+        if (data == null) throw new IllegalArgumentException("La data non può essere null");
+        return indiceScadenze.scadutiAl(data);
     }
 
     // ===================================================================
-    //  METODI HELPER (già implementati, usali nei TODO)
+    //  METODI HELPER
     // ===================================================================
 
     private void validaParametriPrestito(String isbn, String utente, int giorni) {
@@ -103,6 +434,148 @@ public class GestorePrestiti {
             throw new IllegalArgumentException("La durata del prestito deve essere > 0 giorni");
     }
 
+    private static void validaCestino(Collection<String> isbn) {
+        if (isbn == null || isbn.isEmpty())
+            throw new IllegalArgumentException("Il cestino non può essere vuoto");
+    }
+
+    /**
+     * Risolve gli ISBN del cestino, blocca i libri trovati e, se sono tutti nello stato
+     * richiesto (disponibili per un prestito, in prestito per una restituzione), applica
+     * {@code azione} a ciascuno; altrimenti non tocca nulla. I libri eseguibili oltre i primi
+     * {@code quota} risultano {@link EsitoCestino.Stato#OLTRE_LIMITE}.
+     *
+     * @param utente chi prende i libri in prestito, {@code null} per una restituzione
+     */
+    private EsitoCestino eseguiCestino(Collection<String> codici, Consumer<Libro> azione, String utente, int quota) {
+        boolean prestito = utente != null;
+        List<String> isbn = new ArrayList<>(codici);
+        EsitoCestino.Stato[] stati = new EsitoCestino.Stato[isbn.size()];
+        Libro[] trovati = new Libro[isbn.size()];
+        List<Libro> libri = new ArrayList<>(isbn.size());
+        Set<String> visti = new HashSet<>();
+        for (int i = 0; i < isbn.size(); i++) {
+            String codice = isbn.get(i);
+            if (codice == null || codice.isBlank()) stati[i] = EsitoCestino.Stato.NON_VALIDO;
+            else if ((trovati[i] = catalogo.trova(codice)) == null) stati[i] = EsitoCestino.Stato.NON_TROVATO;
+            else if (!visti.add(Catalogo.chiaveIsbn(trovati[i].getIsbn()))) stati[i] = EsitoCestino.Stato.DUPLICATO;
+            else {
+                if (trovati[i].getCopie() != null) stati[i] = scegliCopia(trovati, i, utente);
+                if (stati[i] == null) libri.add(trovati[i]);
+            }
+        }
+
+        boolean[] riuscito = {false};
+        catalogo.inCestino(libri, () -> {
+            boolean applicabile = true;
+            int residui = quota;
+            for (int i = 0; i < stati.length; i++) {
+                if (stati[i] == null) {
+                    Libro libro = trovati[i];
+                    if (!catalogo.contiene(libro)) stati[i] = EsitoCestino.Stato.NON_TROVATO;
+                    else if (prestito && !prestabileA(libro, utente)) stati[i] = EsitoCestino.Stato.NON_DISPONIBILE;
+                    else if (!prestito && libro.isDisponibile()) stati[i] = EsitoCestino.Stato.GIA_DISPONIBILE;
+                    else if (residui-- <= 0) stati[i] = EsitoCestino.Stato.OLTRE_LIMITE;
+                }
+                applicabile &= stati[i] == null || stati[i] == EsitoCestino.Stato.DUPLICATO;
+            }
+            if (!applicabile) return;
+            for (Libro libro : libri) azione.accept(libro);
+            riuscito[0] = true;
+        });
+
+        List<EsitoCestino.Esito> esiti = new ArrayList<>(isbn.size());
+        for (int i = 0; i < stati.length; i++) {
+            EsitoCestino.Stato stato = stati[i] != null ? stati[i]
+                : riuscito[0] ? EsitoCestino.Stato.ESEGUITO : EsitoCestino.Stato.ANNULLATO;
+            esiti.add(new EsitoCestino.Esito(isbn.get(i), trovati[i], stato));
+        }
+        return new EsitoCestino(esiti, riuscito[0]);
+    }
+
+    /** Disponibile e non messo da parte per un altro utente; va letto con il lock del libro. */
+    private static boolean prestabileA(Libro libro, String utente) {
+        String riservatoA = libro.getRiservatoA();
+        return libro.isDisponibile() && (riservatoA == null || riservatoA.equals(utente));
+    }
+
+    /**
+     * Presta la copia messa da parte per l'utente, se c'è; altrimenti {@code libro} o, per un
+     * titolo con più copie, una copia libera: la riserva sulla bitmap e la presta, e se nel
+     * frattempo qualcuno l'ha prestata per altra via ne prende un'altra.
+     */
+    private Libro presta(Libro libro, String utente, LocalDate scadenza) {
+        Libro riservata = prenotazioni.riservataA(libro, utente);
+        if (riservata != null) {
+            try {
+                nelCatalogo(riservata, () -> riservata.segnaComePrestato(utente, scadenza));
+                return riservata;
+            } catch (IllegalStateException e) {
+                // la riserva è scaduta ed è passata a un altro dopo la lettura
+            }
+        }
+        Copie copie = libro.getCopie();
+        if (copie == null) {
+            nelCatalogo(libro, () -> libro.segnaComePrestato(utente, scadenza));
+            return libro;
+        }
+        for (;;) {
+            Libro copia = copie.prendi();
+            if (copia == null) {
+                throw new IllegalStateException("Nessuna copia di \"" + libro.getTitolo() + "\" è disponibile");
+            }
+            try {
+                nelCatalogo(copia, () -> copia.segnaComePrestato(utente, scadenza));
+                return copia;
+            } catch (IllegalStateException e) {
+                // prestata da un cestino o direttamente su Libro dopo la lettura della bitmap
+            }
+        }
+    }
+
+    /**
+     * Esegue {@code azione} sotto il lock di prestito di {@code libro}, se è ancora nel catalogo:
+     * un prestito o una restituzione in gara con {@link Catalogo#rimuoviLibro(String)} non cambia
+     * un libro già scollegato, che non aggiornerebbe più indici, giornale e flusso delle modifiche.
+     *
+     * @throws IllegalStateException se il libro è stato rimosso
+     */
+    private void nelCatalogo(Libro libro, Runnable azione) {
+        Catalogo.conLock(catalogo.lockDelCestino(List.of(libro)), 0, () -> {
+            if (!catalogo.contiene(libro)) {
+                throw new IllegalStateException("Il libro \"" + libro.getTitolo() + "\" non è più nel catalogo");
+            }
+            azione.run();
+        });
+    }
+
+    /**
+     * Sostituisce in {@code trovati[i]} la copia su cui agire: da prestare, quella messa da parte
+     * per {@code utente} o una libera (la prima copia se non ce ne sono, e il controllo sotto lock
+     * la darà non disponibile); da restituire ({@code utente} null), l'unica in prestito.
+     * Restituisce lo stato di scarto, o {@code null}.
+     */
+    private EsitoCestino.Stato scegliCopia(Libro[] trovati, int i, String utente) {
+        Copie copie = trovati[i].getCopie();
+        Libro copia;
+        try {
+            if (utente == null) copia = copie.unicaInPrestito();
+            else if ((copia = prenotazioni.riservataA(trovati[i], utente)) == null) copia = copie.primaLibera();
+        } catch (IllegalStateException e) {
+            return EsitoCestino.Stato.COPIA_DA_INDICARE;
+        }
+        if (copia != null) trovati[i] = copia;
+        return null;
+    }
+
+    /** I libri eseguiti di un cestino, nell'ordine del cestino. */
+    private static List<Libro> libri(EsitoCestino esito) {
+        return esito.getEsiti().stream()
+            .filter(e -> e.stato() == EsitoCestino.Stato.ESEGUITO)
+            .map(EsitoCestino.Esito::libro)
+            .toList();
+    }
+
     /** Lancia {@link IllegalArgumentException} se l'ISBN è null o vuoto. */
     private void validaIsbn(String isbn) {
         if (isbn == null || isbn.isBlank())
@@ -116,7 +589,8 @@ public class GestorePrestiti {
      * @return il libro trovato
      */
     private Libro trovaoFallisci(String isbn) {
-        return catalogo.cercaPerIsbn(isbn)
-            .orElseThrow(() -> new IllegalStateException("Nessun libro con ISBN: " + isbn));
+        Libro libro = catalogo.trova(isbn);
+        if (libro == null) throw new IllegalStateException("Nessun libro con ISBN: " + isbn);
+        return libro;
     }
 }
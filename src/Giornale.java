@@ -0,0 +1,468 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Giornale append-only (write-ahead log) delle modifiche a un {@link Catalogo}:
+ * aggiunte, rimozioni, prestiti e restituzioni. Al riavvio {@link #apri(Path, Catalogo)}
+ * ricostruisce il catalogo rileggendo l'ultimo checkpoint e poi il giornale.
+ *
+ * <p>Formato di un record: {@code [int lunghezza][byte tipo][dati][int crc32]}, dove il CRC
+ * copre tipo e dati. Un record incompleto o corrotto in coda (crash durante la scrittura)
+ * viene scartato e il file troncato a quel punto.
+ *
+ * <p>Commit di gruppo: i record vengono accodati in memoria e un thread dedicato li scrive
+ * e fa un solo {@code force} per tutto ciò che si è accumulato nel frattempo.
+ * Prestiti e restituzioni attendono che il proprio record sia su disco prima di tornare
+ * al chiamante (un cestino di {@link GestorePrestiti#prestaLibri} è un solo record, quindi
+ * una sola attesa, e dopo un crash c'è per intero o non c'è); aggiunte e rimozioni no (per non rallentare le importazioni massive):
+ * diventano durevoli al commit successivo o con {@link #sincronizza()}.
+ *
+ * <p>{@link #checkpoint()} scrive lo stato completo in un file a parte e svuota il giornale.
+ */
+public class Giornale implements OsservatoreCatalogo, AutoCloseable {
+
+    static final String FILE_GIORNALE   = "giornale.wal";
+    static final String FILE_CHECKPOINT = "catalogo.checkpoint";
+
+    private static final byte AGGIUNTA     = 1;
+    private static final byte RIMOZIONE    = 2;
+    private static final byte PRESTITO     = 3;
+    private static final byte RESTITUZIONE = 4;
+    /** Cestino: {@code [int n]} seguito da n corpi di PRESTITO o RESTITUZIONE, applicati tutti o nessuno. */
+    private static final byte PRESTITI     = 5;
+    private static final byte RESTITUZIONI = 6;
+    /** Aggiunta di una copia oltre la prima ({@link Catalogo#aggiungiCopie}): {@code [isbn][int copia]}. */
+    private static final byte COPIA        = 7;
+    /**
+     * Come i tipi da 3 a 6, ma con {@code [int copia]} dopo l'ISBN di ogni prestito o restituzione.
+     * Si usano solo se c'è di mezzo una copia oltre la prima, così i giornali dei titoli con una
+     * copia sola restano quelli di prima.
+     */
+    private static final byte PRESTITO_COPIA     = 8;
+    private static final byte RESTITUZIONE_COPIA = 9;
+    private static final byte PRESTITI_COPIE     = 10;
+    private static final byte RESTITUZIONI_COPIE = 11;
+
+    private final Path cartella;
+    private final Catalogo catalogo;
+    private final FileChannel canale;
+
+    /** Protegge il buffer dei record in attesa e i numeri di sequenza. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition lavoro   = lock.newCondition();
+    private final Condition durevole = lock.newCondition();
+    /**
+     * Serializza le scritture sul canale tra il thread di commit e {@link #checkpoint()}. Si prende
+     * dopo {@link #lock}; il thread di commit lo tiene dallo scambio del buffer alla scrittura.
+     */
+    private final ReentrantLock io = new ReentrantLock();
+
+    private ByteBuffer inAttesa = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer libero   = ByteBuffer.allocate(64 * 1024);
+    private long ultimoLsn;
+    private long lsnDurevole;
+    private IOException errore;
+    private boolean chiuso;
+    private final Thread committer;
+
+    private Giornale(Path cartella, Catalogo catalogo, FileChannel canale) {
+        this.cartella = cartella;
+        this.catalogo = catalogo;
+        this.canale = canale;
+        this.committer = new Thread(this::ciclaCommit, "giornale-commit");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Ripristina {@code catalogo} dal checkpoint e dal giornale presenti in {@code cartella}
+     * (se esistono), poi apre il giornale in append e lo registra come osservatore del catalogo.
+     *
+     * @param catalogo catalogo da ricostruire, normalmente vuoto
+     */
+    public static Giornale apri(Path cartella, Catalogo catalogo) throws IOException {
+        if (cartella == null || catalogo == null) throw new IllegalArgumentException("Cartella e catalogo non possono essere null");
+        Files.createDirectories(cartella);
+
+        Path checkpoint = cartella.resolve(FILE_CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            try (FileChannel c = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+                rigioca(c, catalogo);
+            }
+        }
+        FileChannel canale = FileChannel.open(cartella.resolve(FILE_GIORNALE),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valido = rigioca(canale, catalogo);
+        canale.truncate(valido);
+        canale.position(valido);
+
+        Giornale giornale = new Giornale(cartella, catalogo, canale);
+        giornale.committer.start();
+        catalogo.aggiungiOsservatore(giornale);
+        return giornale;
+    }
+
+    // ------------------------------------------------------------------ osservatore
+
+    @Override
+    public void libroAggiunto(Libro libro) {
+        accoda(recordAggiunta(libro));
+        String utente = libro.getPrestitarioCorrente();
+        LocalDate scadenza = libro.getDataRestituzionePrevista();
+        if (utente != null && scadenza != null) accoda(recordPrestito(libro, utente, scadenza));
+    }
+
+    /** Una rimozione toglie tutte le copie del titolo: basta il record della prima. */
+    @Override
+    public void libroRimosso(Libro libro) {
+        if (libro.getCopia() == 1) accoda(record(RIMOZIONE, out -> out.writeUTF(libro.getIsbn())));
+    }
+
+    @Override
+    public void libroPrestato(Libro libro) {
+        attendi(accoda(recordPrestito(libro, libro.getPrestitarioCorrente(), libro.getDataRestituzionePrevista())));
+    }
+
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        boolean conCopia = libro.getCopia() > 1;
+        attendi(accoda(record(conCopia ? RESTITUZIONE_COPIA : RESTITUZIONE, out -> scriviIsbn(out, libro, conCopia))));
+    }
+
+    @Override
+    public void libriPrestati(List<Libro> libri) {
+        boolean conCopia = libri.stream().anyMatch(l -> l.getCopia() > 1);
+        attendi(accoda(record(conCopia ? PRESTITI_COPIE : PRESTITI, out -> {
+            out.writeInt(libri.size());
+            for (Libro libro : libri) {
+                scriviPrestito(out, libro, conCopia, libro.getPrestitarioCorrente(), libro.getDataRestituzionePrevista());
+            }
+        })));
+    }
+
+    @Override
+    public void libriRestituiti(List<Restituzione> restituzioni) {
+        boolean conCopia = restituzioni.stream().anyMatch(r -> r.libro().getCopia() > 1);
+        attendi(accoda(record(conCopia ? RESTITUZIONI_COPIE : RESTITUZIONI, out -> {
+            out.writeInt(restituzioni.size());
+            for (Restituzione r : restituzioni) scriviIsbn(out, r.libro(), conCopia);
+        })));
+    }
+
+    // ------------------------------------------------------------------ API
+
+    /** Attende che tutti i record accodati finora siano su disco. */
+    public void sincronizza() {
+        lock.lock();
+        try {
+            attendi(ultimoLsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Scrive lo stato attuale del catalogo nel file di checkpoint (in modo atomico) e svuota
+     * il giornale. Durante il checkpoint le nuove modifiche attendono.
+     */
+    public void checkpoint() throws IOException {
+        lock.lock();
+        io.lock();
+        try {
+            scriviInAttesa();
+
+            Path temporaneo = cartella.resolve(FILE_CHECKPOINT + ".tmp");
+            try (FileChannel c = FileChannel.open(temporaneo, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                for (Libro libro : catalogo.getTuttiILibri()) {
+                    buffer = scriviInCanale(c, buffer, recordAggiunta(libro));
+                    String utente = libro.getPrestitarioCorrente();
+                    LocalDate scadenza = libro.getDataRestituzionePrevista();
+                    if (utente != null && scadenza != null) {
+                        buffer = scriviInCanale(c, buffer, recordPrestito(libro, utente, scadenza));
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) c.write(buffer);
+                c.force(true);
+            }
+            Files.move(temporaneo, cartella.resolve(FILE_CHECKPOINT),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            canale.truncate(0);
+            canale.position(0);
+            canale.force(true);
+        } finally {
+            io.unlock();
+            lock.unlock();
+        }
+    }
+
+    /** Scrive i record rimasti, ferma il thread di commit e chiude il file. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (chiuso) return;
+            chiuso = true;
+            lavoro.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+            canale.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ------------------------------------------------------------------ commit di gruppo
+
+    private long accoda(byte[] record) {
+        lock.lock();
+        try {
+            if (chiuso) throw new IllegalStateException("Giornale chiuso");
+            if (inAttesa.remaining() < record.length) {
+                ByteBuffer piuGrande = ByteBuffer.allocate(Math.max(inAttesa.capacity() * 2, inAttesa.position() + record.length));
+                inAttesa.flip();
+                piuGrande.put(inAttesa);
+                inAttesa = piuGrande;
+            }
+            inAttesa.put(record);
+            lavoro.signal();
+            return ++ultimoLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void attendi(long lsn) {
+        lock.lock();
+        try {
+            while (lsnDurevole < lsn && errore == null) durevole.awaitUninterruptibly();
+            if (errore != null) throw new UncheckedIOException("Giornale non scrivibile", errore);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ciclaCommit() {
+        while (true) {
+            ByteBuffer lotto;
+            long lsnLotto;
+            lock.lock();
+            try {
+                while (inAttesa.position() == 0 && !chiuso) lavoro.awaitUninterruptibly();
+                if (inAttesa.position() == 0) return;   // chiuso e nulla da scrivere
+                lotto = inAttesa;
+                inAttesa = libero;
+                lsnLotto = ultimoLsn;
+                // preso prima di lasciare lock: un checkpoint non può inserirsi tra lo scambio e la
+                // scrittura, segnare durevoli i record successivi e troncare il giornale prima del lotto
+                io.lock();
+            } finally {
+                lock.unlock();
+            }
+
+            IOException fallimento = null;
+            try {
+                lotto.flip();
+                while (lotto.hasRemaining()) canale.write(lotto);
+                canale.force(false);
+            } catch (IOException e) {
+                fallimento = e;
+            } finally {
+                io.unlock();
+            }
+
+            lock.lock();
+            try {
+                lotto.clear();
+                libero = lotto;
+                if (fallimento != null) errore = fallimento;
+                else lsnDurevole = Math.max(lsnDurevole, lsnLotto);
+                durevole.signalAll();
+                if (fallimento != null) return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Scrive subito il buffer in attesa. Da chiamare con entrambi i lock. */
+    private void scriviInAttesa() throws IOException {
+        inAttesa.flip();
+        while (inAttesa.hasRemaining()) canale.write(inAttesa);
+        inAttesa.clear();
+        canale.force(false);
+        lsnDurevole = ultimoLsn;
+        durevole.signalAll();
+    }
+
+    private static ByteBuffer scriviInCanale(FileChannel c, ByteBuffer buffer, byte[] record) throws IOException {
+        if (buffer.remaining() < record.length) {
+            buffer.flip();
+            while (buffer.hasRemaining()) c.write(buffer);
+            buffer.clear();
+            if (buffer.capacity() < record.length) buffer = ByteBuffer.allocate(record.length);
+        }
+        return buffer.put(record);
+    }
+
+    // ------------------------------------------------------------------ formato dei record
+
+    private interface Scrittore {
+        void scrivi(DataOutputStream out) throws IOException;
+    }
+
+    /** Le copie oltre la prima seguono sempre la prima nell'elenco, quindi nel giornale e nel checkpoint. */
+    private static byte[] recordAggiunta(Libro libro) {
+        if (libro.getCopia() > 1) return record(COPIA, out -> scriviIsbn(out, libro, true));
+        return record(AGGIUNTA, out -> {
+            out.writeUTF(libro.getIsbn());
+            out.writeUTF(libro.getTitolo());
+            out.writeUTF(libro.getAutore());
+            out.writeInt(libro.getAnnoPubblicazione());
+        });
+    }
+
+    private static byte[] recordPrestito(Libro libro, String utente, LocalDate scadenza) {
+        boolean conCopia = libro.getCopia() > 1;
+        return record(conCopia ? PRESTITO_COPIA : PRESTITO, out -> scriviPrestito(out, libro, conCopia, utente, scadenza));
+    }
+
+    private static void scriviIsbn(DataOutputStream out, Libro libro, boolean conCopia) throws IOException {
+        out.writeUTF(libro.getIsbn());
+        if (conCopia) out.writeInt(libro.getCopia());
+    }
+
+    private static void scriviPrestito(DataOutputStream out, Libro libro, boolean conCopia, String utente,
+                                       LocalDate scadenza) throws IOException {
+        scriviIsbn(out, libro, conCopia);
+        out.writeUTF(utente);
+        out.writeLong(scadenza.toEpochDay());
+    }
+
+    private static byte[] record(byte tipo, Scrittore dati) {
+        try {
+            ByteArrayOutputStream corpo = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(corpo);
+            out.writeByte(tipo);
+            dati.scrivi(out);
+            byte[] contenuto = corpo.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(contenuto);
+            ByteBuffer record = ByteBuffer.allocate(4 + contenuto.length + 4);
+            record.putInt(contenuto.length).put(contenuto).putInt((int) crc.getValue());
+            return record.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // impossibile su un ByteArrayOutputStream
+        }
+    }
+
+    /**
+     * Applica al catalogo i record del canale, dalla posizione corrente.
+     * L'applicazione è tollerante (un prestito già presente o una rimozione di un libro
+     * assente vengono ignorati), perché un checkpoint può già contenere l'effetto dei
+     * primi record del giornale che lo segue.
+     *
+     * @return posizione subito dopo l'ultimo record valido
+     */
+    private static long rigioca(FileChannel canale, Catalogo catalogo) throws IOException {
+        canale.position(0);
+        InputStream flusso = new BufferedInputStream(Channels.newInputStream(canale), 64 * 1024);
+        DataInputStream in = new DataInputStream(flusso);
+        long valido = 0;
+        while (true) {
+            byte[] contenuto;
+            try {
+                int lunghezza = in.readInt();
+                if (lunghezza <= 0 || lunghezza > canale.size()) break;
+                contenuto = new byte[lunghezza];
+                in.readFully(contenuto);
+                CRC32 crc = new CRC32();
+                crc.update(contenuto);
+                if (in.readInt() != (int) crc.getValue()) break;
+            } catch (EOFException codaIncompleta) {
+                break;
+            }
+            applica(contenuto, catalogo);
+            valido += 4 + contenuto.length + 4;
+        }
+        return valido;
+    }
+
+    private static void applica(byte[] contenuto, Catalogo catalogo) throws IOException {
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(contenuto));
+        byte tipo = in.readByte();
+        byte elemento = switch (tipo) {
+            case PRESTITI -> PRESTITO;
+            case RESTITUZIONI -> RESTITUZIONE;
+            case PRESTITI_COPIE -> PRESTITO_COPIA;
+            case RESTITUZIONI_COPIE -> RESTITUZIONE_COPIA;
+            default -> 0;
+        };
+        if (elemento != 0) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) applica(elemento, in, catalogo);
+        } else {
+            applica(tipo, in, catalogo);
+        }
+    }
+
+    private static void applica(byte tipo, DataInputStream in, Catalogo catalogo) throws IOException {
+        String isbn = in.readUTF();
+        int copia = tipo == COPIA || tipo == PRESTITO_COPIA || tipo == RESTITUZIONE_COPIA ? in.readInt() : 1;
+        Libro esistente = catalogo.copia(isbn, copia);
+        switch (tipo) {
+            case AGGIUNTA -> {
+                String titolo = in.readUTF();
+                String autore = in.readUTF();
+                int anno = in.readInt();
+                if (esistente == null) catalogo.aggiungiLibro(new Libro(isbn, titolo, autore, anno));
+            }
+            case COPIA -> {
+                int mancanti = copia - catalogo.getCopie(isbn);
+                if (esistente == null && mancanti > 0 && catalogo.trova(isbn) != null) catalogo.aggiungiCopie(isbn, mancanti);
+            }
+            case RIMOZIONE -> {
+                if (esistente != null && catalogo.getCopieDisponibili(isbn) == catalogo.getCopie(isbn)) {
+                    catalogo.rimuoviLibro(isbn);
+                }
+            }
+            case PRESTITO, PRESTITO_COPIA -> {
+                String utente = in.readUTF();
+                LocalDate scadenza = LocalDate.ofEpochDay(in.readLong());
+                if (esistente != null && esistente.isDisponibile()) esistente.segnaComePrestato(utente, scadenza);
+            }
+            case RESTITUZIONE, RESTITUZIONE_COPIA -> {
+                if (esistente != null && !esistente.isDisponibile()) esistente.segnaComRestituito();
+            }
+            default -> throw new IOException("Tipo di record sconosciuto: " + tipo);
+        }
+    }
+}
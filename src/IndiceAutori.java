@@ -0,0 +1,125 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Indice invertito a trigrammi sui nomi degli autori, usato da
+ * {@link Catalogo#cercaPerAutore(String)}.
+ *
+ * <p>Ogni autore (normalizzato in minuscolo) viene scomposto nei suoi trigrammi;
+ * per ogni trigramma si tiene l'insieme degli autori che lo contengono.
+ * Una ricerca per sottostringa di almeno 3 caratteri verifica quindi solo gli
+ * autori della posting list più corta, invece di scorrere tutto il catalogo.
+ * Le query più corte (tipiche dei primi tasti dell'autocompletamento)
+ * scorrono gli autori distinti, che sono molti meno dei libri.
+ *
+ * <p>L'indice è aggiornato incrementalmente da {@link #aggiungi(String, Object)} e
+ * {@link #rimuovi(String, Object)}, che il catalogo chiama sotto il proprio lock di scrittura;
+ * {@link #cerca(String)} può girare in parallelo senza lock.
+ *
+ * @param <T> elementi associati agli autori: i {@link Libro} in {@link Catalogo},
+ *            gli identificativi degli autori in {@link CatalogoCompatto}
+ */
+class IndiceAutori<T> {
+
+    private static final int N = 3;
+
+    /** Autore normalizzato → elementi di quell'autore. */
+    private final Map<String, Set<T>> elementiPerAutore = new ConcurrentHashMap<>();
+
+    /** Trigramma → autori normalizzati che lo contengono. */
+    private final Map<String, Set<String>> autoriPerTrigramma = new ConcurrentHashMap<>();
+
+    void aggiungi(String nomeAutore, T elemento) {
+        String autore = normalizza(nomeAutore);
+        Set<T> elementi = elementiPerAutore.get(autore);
+        if (elementi == null) {
+            elementi = ConcurrentHashMap.newKeySet();
+            elementi.add(elemento);
+            for (String trigramma : trigrammi(autore)) {
+                autoriPerTrigramma.computeIfAbsent(trigramma, k -> ConcurrentHashMap.newKeySet()).add(autore);
+            }
+            elementiPerAutore.put(autore, elementi);
+            return;
+        }
+        elementi.add(elemento);
+    }
+
+    void rimuovi(String nomeAutore, T elemento) {
+        String autore = normalizza(nomeAutore);
+        Set<T> elementi = elementiPerAutore.get(autore);
+        if (elementi == null || !elementi.remove(elemento) || !elementi.isEmpty()) return;
+
+        elementiPerAutore.remove(autore);
+        for (String trigramma : trigrammi(autore)) {
+            Set<String> autori = autoriPerTrigramma.get(trigramma);
+            if (autori != null && autori.remove(autore) && autori.isEmpty()) {
+                autoriPerTrigramma.remove(trigramma);
+            }
+        }
+    }
+
+    /**
+     * Restituisce gli elementi il cui autore contiene {@code testo} (case-insensitive).
+     *
+     * @param testo sottostringa già privata degli spazi esterni, non vuota
+     */
+    List<T> cerca(String testo) {
+        String query = normalizza(testo);
+        List<T> risultati = new ArrayList<>();
+        for (String autore : candidati(query)) {
+            if (!autore.contains(query)) continue;
+            Set<T> elementi = elementiPerAutore.get(autore);
+            if (elementi != null) risultati.addAll(elementi);   // può sparire per una rimozione concorrente
+        }
+        return risultati;
+    }
+
+    /**
+     * Passa a {@code visitatore} gli elementi il cui autore contiene {@code testo}, come
+     * {@link #cerca(String)} ma senza raccoglierli, fermandosi appena restituisce {@code false}.
+     */
+    void visita(String testo, Predicate<T> visitatore) {
+        String query = normalizza(testo);
+        for (String autore : candidati(query)) {
+            if (!autore.contains(query)) continue;
+            Set<T> elementi = elementiPerAutore.get(autore);
+            if (elementi == null) continue;
+            for (T elemento : elementi) {
+                if (!visitatore.test(elemento)) return;
+            }
+        }
+    }
+
+    /** Autori da verificare: la posting list più corta tra i trigrammi della query. */
+    private Iterable<String> candidati(String query) {
+        if (query.length() < N) return elementiPerAutore.keySet();
+
+        Set<String> migliore = null;
+        for (String trigramma : trigrammi(query)) {
+            Set<String> autori = autoriPerTrigramma.get(trigramma);
+            if (autori == null) return Set.of();
+            if (migliore == null || autori.size() < migliore.size()) migliore = autori;
+        }
+        return migliore;
+    }
+
+    private static Set<String> trigrammi(String s) {
+        Set<String> risultato = new LinkedHashSet<>();
+        for (int i = 0; i + N <= s.length(); i++) {
+            risultato.add(s.substring(i, i + N));
+        }
+        return risultato;
+    }
+
+    static String normalizza(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
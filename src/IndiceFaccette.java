@@ -0,0 +1,97 @@
+package main;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Indice per anno di pubblicazione e conteggi per faccetta, usato da
+ * {@link Catalogo#cercaPerAnno(int, int)}, {@link Catalogo#contaPerAnno(int, int)} e
+ * {@link Catalogo#getFaccette(int)}.
+ *
+ * <p>I titoli stanno in una skip list ordinata per anno e poi per posizione di inserimento:
+ * un intervallo di anni è una sua sotto-vista, letta senza toccare gli altri anni. Accanto ci
+ * sono un istogramma dei titoli per anno e un contatore per autore, aggiornati a ogni aggiunta
+ * e rimozione, così contare un intervallo costa quanto gli anni che copre e le faccette quanto
+ * i decenni e gli autori, non quanto il catalogo.
+ *
+ * <p>Come {@link IndiceAutori}, l'indice è aggiornato sotto il lock di scrittura del catalogo
+ * e letto in parallelo senza lock.
+ *
+ * @param <T> elementi indicizzati: i {@link Libro} in {@link Catalogo}, le righe in
+ *            {@link CatalogoCompatto}
+ */
+final class IndiceFaccette<T> {
+
+    /** Posizione di un titolo nell'indice: anno, poi ordine di inserimento. */
+    private record Chiave(int anno, long sequenza) implements Comparable<Chiave> {
+        @Override
+        public int compareTo(Chiave altra) {
+            int confronto = Integer.compare(anno, altra.anno);
+            return confronto != 0 ? confronto : Long.compare(sequenza, altra.sequenza);
+        }
+    }
+
+    private final ConcurrentSkipListMap<Chiave, T> perAnno = new ConcurrentSkipListMap<>();
+
+    /** Anno → titoli; le voci a zero vengono tolte, ma un lettore può vederle per un istante. */
+    private final ConcurrentSkipListMap<Integer, AtomicInteger> titoliPerAnno = new ConcurrentSkipListMap<>();
+
+    /** Autore, così come è scritto → titoli. */
+    private final Map<String, AtomicInteger> titoliPerAutore = new ConcurrentHashMap<>();
+
+    void aggiungi(int anno, long sequenza, String autore, T elemento) {
+        perAnno.put(new Chiave(anno, sequenza), elemento);
+        titoliPerAnno.computeIfAbsent(anno, k -> new AtomicInteger()).incrementAndGet();
+        titoliPerAutore.computeIfAbsent(autore, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    /** Toglie il titolo aggiunto con gli stessi anno, sequenza e autore. */
+    void rimuovi(int anno, long sequenza, String autore) {
+        if (perAnno.remove(new Chiave(anno, sequenza)) == null) return;
+        decrementa(titoliPerAnno, anno);
+        decrementa(titoliPerAutore, autore);
+    }
+
+    /**
+     * Passa a {@code visitatore} gli elementi pubblicati dall'anno {@code da} all'anno {@code a}
+     * compresi, per anno e poi per inserimento, fermandosi appena restituisce {@code false}.
+     */
+    void visita(int da, int a, Predicate<T> visitatore) {
+        for (T elemento : perAnno.subMap(new Chiave(da, Long.MIN_VALUE), true, new Chiave(a, Long.MAX_VALUE), true).values()) {
+            if (!visitatore.test(elemento)) return;
+        }
+    }
+
+    /** Titoli pubblicati da {@code da} ad {@code a} compresi. */
+    int conta(int da, int a) {
+        int n = 0;
+        for (AtomicInteger titoli : titoliPerAnno.subMap(da, true, a, true).values()) n += titoli.get();
+        return n;
+    }
+
+    /** Tutti i decenni; gli autori fino a {@code massimoAutori}. */
+    Faccette faccette(int massimoAutori) {
+        SortedMap<Integer, Integer> decenni = new TreeMap<>();
+        titoliPerAnno.forEach((anno, titoli) -> {
+            int n = titoli.get();
+            if (n > 0) decenni.merge(Faccette.decennio(anno), n, Integer::sum);
+        });
+        Map<String, Integer> autori = new HashMap<>();
+        titoliPerAutore.forEach((autore, titoli) -> {
+            int n = titoli.get();
+            if (n > 0) autori.put(autore, n);
+        });
+        return Faccette.di(decenni, autori, massimoAutori);
+    }
+
+    private static <K> void decrementa(Map<K, AtomicInteger> conteggi, K chiave) {
+        AtomicInteger titoli = conteggi.get(chiave);
+        if (titoli != null && titoli.decrementAndGet() == 0) conteggi.remove(chiave, titoli);
+    }
+}
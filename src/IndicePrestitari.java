@@ -0,0 +1,78 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indice utente → prestiti aperti, usato da {@link GestorePrestiti#getPrestitiDi(String)}
+ * e dal limite di prestiti per utente.
+ *
+ * <p>Come {@link IndiceScadenze} si aggiorna ricevendo le notifiche del catalogo, che arrivano
+ * sotto il lock del libro subito dopo il cambio di stato: l'indice non vede mai un prestito
+ * prima che sia avvenuto. Contare i prestiti di un utente costa quanto leggere la dimensione
+ * di un insieme, senza scorrere il catalogo.
+ */
+final class IndicePrestitari implements OsservatoreCatalogo {
+
+    /**
+     * Prestiti aperti di un utente. L'oggetto fa anche da lock per chi deve controllare il
+     * numero di prestiti e prestare senza che un altro prestito allo stesso utente si inserisca.
+     */
+    static final class Prestitario {
+        private final Set<Libro> libri = ConcurrentHashMap.newKeySet();
+
+        int numero() { return libri.size(); }
+    }
+
+    private final Map<String, Prestitario> perUtente = new ConcurrentHashMap<>();
+
+    @Override
+    public void libroAggiunto(Libro libro) {
+        if (!libro.isDisponibile()) libroPrestato(libro);
+    }
+
+    @Override
+    public void libroPrestato(Libro libro) {
+        String utente = libro.getPrestitarioCorrente();
+        if (utente != null) prestitario(utente).libri.add(libro);
+    }
+
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        Prestitario p = utente == null ? null : perUtente.get(utente);
+        if (p != null) p.libri.remove(libro);
+    }
+
+    /**
+     * La voce di {@code utente}, creata se manca. Le voci non vengono tolte quando i prestiti
+     * tornano a zero, così il lock di un utente resta sempre lo stesso oggetto.
+     */
+    Prestitario prestitario(String utente) {
+        return perUtente.computeIfAbsent(utente, u -> new Prestitario());
+    }
+
+    int numeroPrestiti(String utente) {
+        Prestitario p = perUtente.get(utente);
+        return p == null ? 0 : p.numero();
+    }
+
+    /** Prestiti aperti di {@code utente}, in ordine di scadenza. */
+    List<Libro> prestitiDi(String utente) {
+        Prestitario p = perUtente.get(utente);
+        if (p == null) return List.of();
+        // scadenze lette una volta sola: l'ordinamento non deve vederle cambiare
+        record Voce(Libro libro, LocalDate scadenza) {}
+        List<Voce> voci = new ArrayList<>(p.numero());
+        for (Libro libro : p.libri) {
+            LocalDate scadenza = libro.getDataRestituzionePrevista();
+            if (scadenza != null) voci.add(new Voce(libro, scadenza));   // null: restituito nel frattempo
+        }
+        voci.sort(Comparator.comparing(Voce::scadenza));
+        return voci.stream().map(Voce::libro).toList();
+    }
+}
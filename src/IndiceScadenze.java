@@ -0,0 +1,91 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Indice ordinato dei prestiti aperti per data di restituzione prevista,
+ * usato da {@link GestorePrestiti#getPrestitiScaduti()}.
+ *
+ * <p>Le chiavi sono terne (scadenza, ISBN, copia): "tutto ciò che è scaduto alla data D"
+ * è la {@code headMap} della mappa, senza scorrere il catalogo.
+ * La mappa è concorrente, quindi prestiti e restituzioni di libri diversi aggiornano
+ * l'indice senza contendersi un lock. L'indice si aggiorna ricevendo le notifiche
+ * del catalogo come {@link OsservatoreCatalogo}, e parte dai prestiti già aperti
+ * ({@link Catalogo#aggiungiOsservatoreDeiPrestiti}); rivedere un prestito non cambia nulla.
+ */
+class IndiceScadenze implements OsservatoreCatalogo {
+
+    private record Chiave(LocalDate scadenza, String isbn, int copia) implements Comparable<Chiave> {
+        @Override
+        public int compareTo(Chiave altra) {
+            int c = scadenza.compareTo(altra.scadenza);
+            if (c == 0) c = isbn.compareTo(altra.isbn);
+            return c != 0 ? c : Integer.compare(copia, altra.copia);
+        }
+    }
+
+    private final NavigableMap<Chiave, Libro> perScadenza = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void libroAggiunto(Libro libro) {
+        if (!libro.isDisponibile()) libroPrestato(libro);
+    }
+
+    @Override
+    public void libroPrestato(Libro libro) {
+        LocalDate scadenza = libro.getDataRestituzionePrevista();
+        if (scadenza != null) perScadenza.put(new Chiave(scadenza, libro.getIsbn(), libro.getCopia()), libro);
+    }
+
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        perScadenza.remove(new Chiave(dataPrevista, libro.getIsbn(), libro.getCopia()));
+    }
+
+    /** Prestiti con data di restituzione prevista strettamente precedente a {@code data}, in ordine di scadenza. */
+    Stream<Libro> scadutiAl(LocalDate data) {
+        return perScadenza.headMap(new Chiave(data, "", 0), false).values().stream();
+    }
+
+    /**
+     * Una pagina di {@link #scadutiAl(LocalDate)} dopo il cursore. Il cursore è la chiave
+     * (scadenza, copia, ISBN) dell'ultimo prestito della pagina precedente, quindi si riparte con
+     * un {@code tailMap} senza rileggere le pagine già viste.
+     */
+    Pagina pagina(LocalDate data, String cursore, int dimensione) {
+        NavigableMap<Chiave, Libro> scaduti = perScadenza.headMap(new Chiave(data, "", 0), false);
+        if (cursore != null) scaduti = scaduti.tailMap(daCursore(cursore), false);
+        List<Libro> libri = new ArrayList<>(Math.min(dimensione, 256));
+        Chiave ultima = null;
+        for (Map.Entry<Chiave, Libro> voce : scaduti.entrySet()) {
+            if (libri.size() == dimensione) break;
+            libri.add(voce.getValue());
+            ultima = voce.getKey();
+        }
+        String successivo = libri.size() == dimensione
+            ? ultima.scadenza().toEpochDay() + ":" + ultima.copia() + ":" + ultima.isbn() : null;
+        return new Pagina(Collections.unmodifiableList(libri), successivo);
+    }
+
+    private static Chiave daCursore(String cursore) {
+        int separatore = cursore.indexOf(':');
+        int secondo = separatore < 0 ? -1 : cursore.indexOf(':', separatore + 1);
+        try {
+            if (separatore > 0 && secondo > separatore + 1) {
+                return new Chiave(LocalDate.ofEpochDay(Long.parseLong(cursore.substring(0, separatore))),
+                                  cursore.substring(secondo + 1),
+                                  Integer.parseInt(cursore.substring(separatore + 1, secondo)));
+            }
+        } catch (RuntimeException e) {
+            // gestito sotto
+        }
+        throw new IllegalArgumentException("Cursore non valido: " + cursore);
+    }
+}
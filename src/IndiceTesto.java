@@ -0,0 +1,319 @@
+package main;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indice invertito a parole su titolo e autore, usato da {@link Catalogo#cercaPerTesto(String, int)}.
+ *
+ * <p>Testi e query passano per la stessa {@link #parole(String)}: minuscole, senza accenti
+ * ("Márquez" → "marquez"), divisi su tutto ciò che non è lettera o cifra (quindi anche
+ * sugli apostrofi, "dell'amore" → "dell", "amore") e senza le parole vuote italiane.
+ *
+ * <p>Ogni parola ha una posting list compressa: per ogni documento la distanza dal precedente
+ * e la frequenza della parola, in varint, di solito 2 byte in tutto. I documenti sono
+ * numerati in ordine di aggiunta, quindi un'aggiunta scrive solo in coda alle liste delle
+ * proprie parole. Una rimozione lascia una lapide; quando le lapidi superano i documenti vivi
+ * le liste vengono riscritte senza di loro. Le ricerche scorrono insieme le sole liste delle
+ * parole della query e tengono i migliori {@code k} documenti per punteggio BM25.
+ *
+ * <p>Gli aggiornamenti arrivano come {@link OsservatoreCatalogo} e sono serializzati dal lock
+ * dell'indice; le ricerche non prendono lock: leggono una posting list fino alla lunghezza
+ * pubblicata, mentre le aggiunte scrivono solo oltre. I dati per documento sono letti da
+ * un'istantanea {@link Documenti} presa prima delle liste: i documenti aggiunti dopo, che
+ * una lista può già contenere in coda, vengono ignorati.
+ */
+final class IndiceTesto implements OsservatoreCatalogo {
+
+    /** Parametri BM25 usuali: saturazione della frequenza e peso della lunghezza del documento. */
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /** Sotto questo numero di lapidi non conviene riscrivere le liste. */
+    private static final int LAPIDI_MINIME = 64;
+
+    /** Articoli, preposizioni (anche articolate ed elise) e congiunzioni, già senza accenti. */
+    private static final Set<String> PAROLE_VUOTE = Set.of(
+        "il", "lo", "la", "i", "gli", "le", "l", "un", "uno", "una",
+        "di", "a", "da", "in", "con", "su", "per", "tra", "fra", "d",
+        "del", "dello", "della", "dei", "degli", "delle", "dell",
+        "al", "allo", "alla", "ai", "agli", "alle", "all",
+        "dal", "dallo", "dalla", "dai", "dagli", "dalle", "dall",
+        "nel", "nello", "nella", "nei", "negli", "nelle", "nell",
+        "sul", "sullo", "sulla", "sui", "sugli", "sulle", "sull",
+        "col", "coi", "e", "ed", "o", "od", "ne", "che", "non", "si", "ci");
+
+    /**
+     * Posting list pubblicata: i lettori leggono {@code dati} solo fino a {@code lunghezza}.
+     *
+     * @param documenti documenti nella lista, lapidi comprese
+     * @param ultimo    ultimo documento scritto, base della prossima distanza
+     */
+    private record Lista(byte[] dati, int lunghezza, int documenti, int ultimo) {}
+
+    /**
+     * Dati per documento pubblicati insieme, per le ricerche. Gli array sono condivisi con chi
+     * scrive, che li modifica solo oltre {@code numero} (o ne fa una copia più grande) e
+     * azzera l'ISBN dei documenti rimossi.
+     *
+     * @param isbn      ISBN per documento, {@code null} per le lapidi
+     * @param lunghezze parole indicizzate per documento
+     * @param numero    documenti validi, lapidi comprese
+     */
+    private record Documenti(String[] isbn, int[] lunghezze, int numero, int vivi, long paroleTotali) {}
+
+    /** Stato dell'indice; una compattazione ne pubblica uno nuovo. */
+    private static final class Segmento {
+        final Map<String, Lista> liste = new ConcurrentHashMap<>();
+        volatile Documenti pubblicati = new Documenti(new String[0], new int[0], 0, 0, 0);
+        /** Solo per chi scrive: le colonne di {@link Documenti}, chiave ISBN → documento, lapidi. */
+        String[] isbn = new String[64];
+        int[] lunghezze = new int[64];
+        int vivi;
+        long paroleTotali;
+        final Map<String, Integer> documenti = new HashMap<>();
+        int prossimo;
+        int lapidi;
+
+        /** Da chiamare dopo ogni modifica, quando le liste contengono già i documenti nuovi. */
+        void pubblica() {
+            pubblicati = new Documenti(isbn, lunghezze, prossimo, vivi, paroleTotali);
+        }
+    }
+
+    private volatile Segmento segmento = new Segmento();
+
+    /** Un documento trovato, con il suo punteggio. */
+    record Risultato(String isbn, double punteggio, int documento) {}
+
+    /** Dal meno al più pertinente; a parità di punteggio il più recente è il meno pertinente. */
+    private static final Comparator<Risultato> PERTINENZA =
+        Comparator.comparingDouble(Risultato::punteggio).thenComparing(Risultato::documento, Comparator.reverseOrder());
+
+    // ------------------------------------------------------------------ aggiornamenti
+
+    synchronized void aggiungi(Libro libro) {
+        Segmento s = segmento;
+        String chiave = Catalogo.chiaveIsbn(libro.getIsbn());
+        if (s.documenti.containsKey(chiave)) return;
+        List<String> parole = parole(libro.getTitolo() + " " + libro.getAutore());
+        int doc = s.prossimo++;
+        if (doc == s.isbn.length) {
+            s.isbn = Arrays.copyOf(s.isbn, doc * 2);
+            s.lunghezze = Arrays.copyOf(s.lunghezze, doc * 2);
+        }
+        s.isbn[doc] = libro.getIsbn();
+        s.lunghezze[doc] = parole.size();
+        s.documenti.put(chiave, doc);
+
+        Map<String, Integer> frequenze = new HashMap<>();
+        for (String p : parole) frequenze.merge(p, 1, Integer::sum);
+        for (Map.Entry<String, Integer> e : frequenze.entrySet()) {
+            s.liste.put(e.getKey(), accoda(s.liste.get(e.getKey()), doc, e.getValue()));
+        }
+        s.paroleTotali += parole.size();
+        s.vivi++;
+        s.pubblica();
+    }
+
+    synchronized void rimuovi(Libro libro) {
+        Segmento s = segmento;
+        Integer doc = s.documenti.remove(Catalogo.chiaveIsbn(libro.getIsbn()));
+        if (doc == null) return;
+        s.isbn[doc] = null;
+        s.paroleTotali -= s.lunghezze[doc];
+        s.vivi--;
+        s.pubblica();
+        if (++s.lapidi >= LAPIDI_MINIME && s.lapidi > s.vivi) compatta(s);
+    }
+
+    /** Le altre copie di un titolo ({@link Libro#getCopia()} > 1) hanno lo stesso documento della prima. */
+    @Override
+    public void libroAggiunto(Libro libro) {
+        if (libro.getCopia() == 1) aggiungi(libro);
+    }
+
+    @Override
+    public void libroRimosso(Libro libro) {
+        if (libro.getCopia() == 1) rimuovi(libro);
+    }
+
+    /** Riscrive le liste senza lapidi, rinumerando i documenti vivi nello stesso ordine. */
+    private void compatta(Segmento vecchio) {
+        int[] nuovoNumero = new int[vecchio.prossimo];
+        Segmento nuovo = new Segmento();
+        int capacita = Math.max(64, Integer.highestOneBit(Math.max(1, vecchio.vivi)) * 2);
+        nuovo.isbn = new String[capacita];
+        nuovo.lunghezze = new int[capacita];
+        for (int doc = 0; doc < vecchio.prossimo; doc++) {
+            String isbn = vecchio.isbn[doc];
+            if (isbn == null) {
+                nuovoNumero[doc] = -1;
+                continue;
+            }
+            int n = nuovo.prossimo++;
+            nuovoNumero[doc] = n;
+            nuovo.isbn[n] = isbn;
+            nuovo.lunghezze[n] = vecchio.lunghezze[doc];
+            nuovo.documenti.put(Catalogo.chiaveIsbn(isbn), n);
+        }
+        for (Map.Entry<String, Lista> e : vecchio.liste.entrySet()) {
+            Lista compattata = null;
+            for (Scorrimento c = new Scorrimento(e.getValue(), 0); c.avanza(); ) {
+                if (nuovoNumero[c.doc] >= 0) compattata = accoda(compattata, nuovoNumero[c.doc], c.frequenza);
+            }
+            if (compattata != null) nuovo.liste.put(e.getKey(), compattata);
+        }
+        nuovo.vivi = vecchio.vivi;
+        nuovo.paroleTotali = vecchio.paroleTotali;
+        nuovo.pubblica();
+        segmento = nuovo;
+    }
+
+    /** {@code lista} con in coda {@code doc}; scrive oltre la lunghezza pubblicata o in una copia. */
+    private static Lista accoda(Lista lista, int doc, int frequenza) {
+        byte[] dati = lista == null ? new byte[8] : lista.dati();
+        int pos = lista == null ? 0 : lista.lunghezza();
+        if (pos + 10 > dati.length) dati = Arrays.copyOf(dati, Math.max(dati.length * 3 / 2, pos + 10));
+        pos = scriviVarint(dati, pos, doc - (lista == null ? 0 : lista.ultimo()));
+        pos = scriviVarint(dati, pos, frequenza);
+        return new Lista(dati, pos, lista == null ? 1 : lista.documenti() + 1, doc);
+    }
+
+    private static int scriviVarint(byte[] dati, int pos, int valore) {
+        while ((valore & ~0x7F) != 0) {
+            dati[pos++] = (byte) ((valore & 0x7F) | 0x80);
+            valore >>>= 7;
+        }
+        dati[pos++] = (byte) valore;
+        return pos;
+    }
+
+    // ------------------------------------------------------------------ ricerca
+
+    /**
+     * I {@code massimo} documenti più pertinenti per le parole di {@code testo}, dal più
+     * pertinente; a parità di punteggio prima il più vecchio. Basta una parola in comune.
+     */
+    List<Risultato> cerca(String testo, int massimo) {
+        Segmento s = segmento;
+        Documenti d = s.pubblicati;   // prima delle liste, che possono contenere documenti più recenti
+        String[] isbn = d.isbn();
+        int[] lunghezze = d.lunghezze();
+        int vivi = d.vivi();
+        if (vivi == 0) return List.of();
+        double lunghezzaMedia = Math.max(1.0, (double) d.paroleTotali() / vivi);
+
+        List<Scorrimento> cursori = new ArrayList<>();
+        for (String parola : new LinkedHashSet<>(parole(testo))) {
+            Lista lista = s.liste.get(parola);
+            if (lista == null) continue;
+            double idf = Math.log(1 + (vivi - lista.documenti() + 0.5) / (lista.documenti() + 0.5));
+            Scorrimento c = new Scorrimento(lista, Math.max(idf, 1e-6));
+            if (c.avanza()) cursori.add(c);
+        }
+
+        // i peggiori in cima, per scartarli quando arriva di meglio
+        PriorityQueue<Risultato> migliori = new PriorityQueue<>(massimo + 1, PERTINENZA);
+        while (!cursori.isEmpty()) {
+            int doc = Integer.MAX_VALUE;
+            for (Scorrimento c : cursori) doc = Math.min(doc, c.doc);
+            if (doc >= d.numero()) break;                                // aggiunti dopo l'istantanea
+            double punteggio = 0;
+            for (int i = cursori.size() - 1; i >= 0; i--) {
+                Scorrimento c = cursori.get(i);
+                if (c.doc != doc) continue;
+                double tf = c.frequenza;
+                punteggio += c.idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lunghezze[doc] / lunghezzaMedia));
+                if (!c.avanza()) cursori.remove(i);
+            }
+            String codice = isbn[doc];
+            if (codice == null) continue;                                // lapide
+            migliori.add(new Risultato(codice, punteggio, doc));
+            if (migliori.size() > massimo) migliori.poll();
+        }
+        List<Risultato> risultati = new ArrayList<>(migliori);
+        risultati.sort(PERTINENZA.reversed());
+        return risultati;
+    }
+
+    /** Decodifica una posting list; {@link #doc} e {@link #frequenza} valgono dopo {@link #avanza()}. */
+    private static final class Scorrimento {
+        private final byte[] dati;
+        private final int fine;
+        private int pos;
+        final double idf;
+        int doc;
+        int frequenza;
+
+        Scorrimento(Lista lista, double idf) {
+            this.dati = lista.dati();
+            this.fine = lista.lunghezza();
+            this.idf = idf;
+        }
+
+        boolean avanza() {
+            if (pos >= fine) return false;
+            doc += leggiVarint();
+            frequenza = leggiVarint();
+            return true;
+        }
+
+        private int leggiVarint() {
+            int valore = 0;
+            for (int spostamento = 0; ; spostamento += 7) {
+                byte b = dati[pos++];
+                valore |= (b & 0x7F) << spostamento;
+                if (b >= 0) return valore;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------ testo
+
+    /** Parole indicizzabili di {@code testo}, nell'ordine, con le ripetizioni. */
+    static List<String> parole(String testo) {
+        List<String> parole = new ArrayList<>();
+        if (testo == null) return parole;
+        String scomposto = Normalizer.normalize(testo, Normalizer.Form.NFD);
+        StringBuilder parola = new StringBuilder();
+        for (int i = 0; i <= scomposto.length(); i++) {
+            char ch = i < scomposto.length() ? scomposto.charAt(i) : ' ';
+            int tipo = Character.getType(ch);
+            if (tipo == Character.NON_SPACING_MARK || tipo == Character.ENCLOSING_MARK) continue;   // accenti
+            if (Character.isLetterOrDigit(ch)) {
+                piega(Character.toLowerCase(ch), parola);
+                continue;
+            }
+            if (parola.length() > 0) {
+                String p = parola.toString();
+                if (!PAROLE_VUOTE.contains(p)) parole.add(p);
+                parola.setLength(0);
+            }
+        }
+        return parole;
+    }
+
+    /** Lettere che NFD non scompone in base più accento. */
+    private static void piega(char ch, StringBuilder parola) {
+        switch (ch) {
+            case 'ß' -> parola.append("ss");
+            case 'æ' -> parola.append("ae");
+            case 'œ' -> parola.append("oe");
+            case 'ø' -> parola.append('o');
+            case 'ł' -> parola.append('l');
+            case 'đ' -> parola.append('d');
+            case 'ı' -> parola.append('i');
+            default -> parola.append(ch);
+        }
+    }
+}
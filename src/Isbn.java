@@ -0,0 +1,164 @@
+package main;
+
+/**
+ * Riconoscimento e codifica dei codici ISBN-10 e ISBN-13.
+ *
+ * <p>{@link #chiave(CharSequence)} verifica la cifra di controllo e riduce un ISBN valido a
+ * un {@code long}: le 13 cifre dell'ISBN-13 (un ISBN-10 viene convertito con il prefisso 978).
+ * Così "978-88-06-22715-9", "9788806227159" e "88-06-22715-7" danno la stessa chiave, senza
+ * allocare stringhe. I codici che non sono ISBN validi (come "ISBN-001") restituiscono
+ * {@link #NON_VALIDO} e restano sul percorso a stringhe di {@link Catalogo}.
+ *
+ * <p>{@link #compatta(String)} aggiunge alla chiave la posizione dei separatori, così che
+ * {@link #formato(long)} possa ricostruire esattamente la stringa originale; lo usa
+ * {@link CatalogoCompatto} per non tenere l'ISBN come testo.
+ */
+final class Isbn {
+
+    static final long NON_VALIDO = -1;
+
+    /** Bit della chiave: le 13 cifre stanno in 44 bit (10^13 < 2^44). */
+    private static final int BIT_CHIAVE = 44;
+    private static final long MASCHERA_CHIAVE = (1L << BIT_CHIAVE) - 1;
+    /** Bit 44-55: separatore dopo la cifra i-esima (al più 12 posizioni). */
+    private static final int BIT_SEPARATORI = 12;
+    private static final long ISBN_10 = 1L << 56;
+    private static final long X_MINUSCOLA = 1L << 57;
+    private static final long SEPARATORE_SPAZIO = 1L << 58;
+
+    private static final long MILIARDO = 1_000_000_000L;
+    private static final long DIECI_ALLA_10 = 10_000_000_000L;
+
+    private Isbn() {}
+
+    /**
+     * Chiave ISBN-13 di {@code s}, oppure {@link #NON_VALIDO}. Sono ammessi spazi esterni e
+     * trattini o spazi tra le cifre; la cifra di controllo deve essere corretta.
+     */
+    static long chiave(CharSequence s) {
+        int inizio = 0;
+        int fine = s.length();
+        while (inizio < fine && Character.isWhitespace(s.charAt(inizio))) inizio++;
+        while (fine > inizio && Character.isWhitespace(s.charAt(fine - 1))) fine--;
+
+        long valore = 0;        // cifre lette, senza una eventuale X finale
+        int cifre = 0;
+        int somma10 = 0;        // pesi 10..1 dell'ISBN-10
+        int somma13 = 0;        // pesi 1,3,1,3... dell'ISBN-13
+        for (int i = inizio; i < fine; i++) {
+            char ch = s.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                if (cifre == 13) return NON_VALIDO;
+                int d = ch - '0';
+                valore = valore * 10 + d;
+                if (cifre < 10) somma10 += d * (10 - cifre);
+                somma13 += d * (cifre % 2 == 0 ? 1 : 3);
+                cifre++;
+            } else if ((ch == 'X' || ch == 'x') && cifre == 9) {
+                somma10 += 10;
+                cifre = 10;
+                if (i != fine - 1) return NON_VALIDO;
+                return somma10 % 11 == 0 ? daIsbn10(valore) : NON_VALIDO;
+            } else if (ch != '-' && ch != ' ') {
+                return NON_VALIDO;
+            }
+        }
+        if (cifre == 10) return somma10 % 11 == 0 ? daIsbn10(valore / 10) : NON_VALIDO;
+        if (cifre == 13) {
+            long prefisso = valore / DIECI_ALLA_10;
+            if ((prefisso != 978 && prefisso != 979) || somma13 % 10 != 0) return NON_VALIDO;
+            return valore;
+        }
+        return NON_VALIDO;
+    }
+
+    /** ISBN-13 corrispondente alle prime 9 cifre di un ISBN-10. */
+    private static long daIsbn10(long primeNove) {
+        long corpo = 978 * MILIARDO + primeNove;         // 12 cifre
+        return corpo * 10 + controllo13(corpo);
+    }
+
+    private static int controllo13(long corpo) {
+        int somma = 0;
+        for (int i = 0; i < 12; i++) {                    // dalla cifra meno significativa, peso 3 per la prima
+            somma += (int) (corpo % 10) * (i % 2 == 0 ? 3 : 1);
+            corpo /= 10;
+        }
+        return (10 - somma % 10) % 10;
+    }
+
+    // ------------------------------------------------------------------ forma compatta
+
+    /**
+     * Chiave più formattazione di {@code s} in un solo {@code long}, oppure {@link #NON_VALIDO}
+     * se non è un ISBN valido o se la sua forma non è ricostruibile (separatori misti,
+     * doppi o alle estremità).
+     */
+    static long compatta(String s) {
+        long chiave = chiave(s);
+        if (chiave == NON_VALIDO || s.isEmpty()) return NON_VALIDO;
+
+        char separatore = 0;
+        long separatori = 0;
+        int cifre = 0;
+        boolean minuscola = false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '-' || ch == ' ') {
+                if (cifre == 0 || i == s.length() - 1 || (separatore != 0 && separatore != ch)
+                        || (separatori & (1L << (cifre - 1))) != 0) {
+                    return NON_VALIDO;
+                }
+                separatore = ch;
+                separatori |= 1L << (cifre - 1);
+            } else if (ch >= '0' && ch <= '9' || ch == 'X' || ch == 'x') {
+                minuscola = ch == 'x';
+                cifre++;
+            } else {
+                return NON_VALIDO;                      // spazi esterni: non ricostruibili
+            }
+        }
+        if (separatori >>> BIT_SEPARATORI != 0) return NON_VALIDO;
+        return chiave
+             | separatori << BIT_CHIAVE
+             | (cifre == 10 ? ISBN_10 : 0)
+             | (minuscola ? X_MINUSCOLA : 0)
+             | (separatore == ' ' ? SEPARATORE_SPAZIO : 0);
+    }
+
+    /** Chiave ISBN-13 di un valore prodotto da {@link #compatta(String)}. */
+    static long chiaveDi(long compatto) {
+        return compatto & MASCHERA_CHIAVE;
+    }
+
+    /** La stringa originale da cui {@link #compatta(String)} ha prodotto {@code compatto}. */
+    static String formato(long compatto) {
+        long chiave = chiaveDi(compatto);
+        String cifre;
+        if ((compatto & ISBN_10) != 0) {
+            long primeNove = (chiave / 10) % MILIARDO;
+            int somma = 0;
+            long resto = primeNove;
+            for (int peso = 2; peso <= 10; peso++) {
+                somma += (int) (resto % 10) * peso;
+                resto /= 10;
+            }
+            int controllo = (11 - somma % 11) % 11;
+            String nove = Long.toString(primeNove);
+            cifre = "0".repeat(9 - nove.length()) + nove
+                  + (controllo == 10 ? ((compatto & X_MINUSCOLA) != 0 ? "x" : "X") : Integer.toString(controllo));
+        } else {
+            cifre = Long.toString(chiave);
+        }
+
+        long separatori = (compatto >>> BIT_CHIAVE) & ((1L << BIT_SEPARATORI) - 1);
+        if (separatori == 0) return cifre;
+        char separatore = (compatto & SEPARATORE_SPAZIO) != 0 ? ' ' : '-';
+        StringBuilder sb = new StringBuilder(cifre.length() + Long.bitCount(separatori));
+        for (int i = 0; i < cifre.length(); i++) {
+            sb.append(cifre.charAt(i));
+            if ((separatori & (1L << i)) != 0) sb.append(separatore);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,246 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * Istantanea binaria di un {@link Catalogo}, pensata per avvii quasi istantanei.
+ *
+ * <p>Il file viene scritto da {@link #scrivi(Catalogo, Path)} e riaperto con
+ * {@link #apri(Path)} tramite {@link MappedByteBuffer}: le ricerche per ISBN lavorano
+ * direttamente sul file mappato, e gli oggetti {@link Libro} vengono creati solo al primo
+ * accesso. Per un catalogo modificabile si passa poi a {@link #inCatalogo()}.
+ *
+ * <p>Formato (big-endian):
+ * <pre>
+ *   intestazione  MAGIC, VERSIONE, numero libri, slot dell'indice,
+ *                 offset della tabella delle stringhe, offset dell'indice
+ *   record        {@value #DIMENSIONE_RECORD} byte ciascuno: rif. ISBN, rif. titolo, rif. autore,
+ *                 anno, rif. prestitario (-1 se disponibile), scadenza in epoch day,
+ *                 numero della copia ({@link Libro#getCopia()}; 0 per la prima)
+ *   stringhe      [int lunghezza][UTF-8], deduplicate (un autore compare una volta sola)
+ *   indice ISBN   tabella ad indirizzamento aperto di int: indice record + 1, 0 = vuoto;
+ *                 dalla versione 2 lo slot dipende da {@link Catalogo#chiaveIsbn(String)};
+ *                 contiene solo le prime copie
+ * </pre>
+ * Un singolo file mappato è limitato a 2 GB.
+ */
+public class IstantaneaCatalogo {
+
+    private static final int MAGIC = 0x4249424C;   // "BIBL"
+    private static final int VERSIONE = 2;
+    private static final int DIMENSIONE_INTESTAZIONE = 4 + 4 + 4 + 4 + 8 + 8;
+    static final int DIMENSIONE_RECORD = 32;
+    private static final int NESSUNO = -1;
+
+    private final ByteBuffer file;
+    private final int totale;
+    private final int slot;
+    private final int inizioStringhe;
+    private final int inizioIndice;
+    private final AtomicReferenceArray<Libro> materializzati;
+
+    private IstantaneaCatalogo(ByteBuffer file) throws IOException {
+        this.file = file;
+        if (file.getInt(0) != MAGIC || file.getInt(4) != VERSIONE) {
+            throw new IOException("File di istantanea non riconosciuto");
+        }
+        this.totale = file.getInt(8);
+        this.slot = file.getInt(12);
+        this.inizioStringhe = (int) file.getLong(16);
+        this.inizioIndice = (int) file.getLong(24);
+        this.materializzati = new AtomicReferenceArray<>(totale);
+    }
+
+    // ------------------------------------------------------------------ scrittura
+
+    /** Scrive l'istantanea di {@code catalogo} su {@code destinazione} (in modo atomico). */
+    public static void scrivi(Catalogo catalogo, Path destinazione) throws IOException {
+        List<Libro> libri = catalogo.getTuttiILibri();
+        int n = libri.size();
+        // dimensioni in long e controllate prima di allocare: in int traboccherebbero
+        long slotNecessari = Long.highestOneBit(Math.max(2L, 2L * n - 1)) << 1;
+        long inizioStringhe = DIMENSIONE_INTESTAZIONE + (long) n * DIMENSIONE_RECORD;
+        controllaDimensione(inizioStringhe + 4L * slotNecessari);
+        int slot = (int) slotNecessari;
+
+        Map<String, Integer> rifStringhe = new HashMap<>();
+        ByteBuffer stringhe = ByteBuffer.allocate(1024);
+        ByteBuffer record = ByteBuffer.allocate(n * DIMENSIONE_RECORD);
+        for (Libro libro : libri) {
+            String utente = libro.getPrestitarioCorrente();
+            LocalDate scadenza = libro.getDataRestituzionePrevista();
+            boolean inPrestito = utente != null && scadenza != null;
+
+            int[] rif = new int[4];
+            String[] valori = { libro.getIsbn(), libro.getTitolo(), libro.getAutore(), utente };
+            for (int i = 0; i < valori.length; i++) {
+                if (valori[i] == null || (i == 3 && !inPrestito)) { rif[i] = NESSUNO; continue; }
+                Integer esistente = rifStringhe.get(valori[i]);
+                if (esistente == null) {
+                    byte[] utf8 = valori[i].getBytes(StandardCharsets.UTF_8);
+                    controllaDimensione(inizioStringhe + stringhe.position() + 4L + utf8.length + 4L * slot);
+                    stringhe = garantisci(stringhe, 4 + utf8.length);
+                    esistente = stringhe.position();
+                    stringhe.putInt(utf8.length).put(utf8);
+                    rifStringhe.put(valori[i], esistente);
+                }
+                rif[i] = esistente;
+            }
+            record.putInt(rif[0]).putInt(rif[1]).putInt(rif[2])
+                  .putInt(libro.getAnnoPubblicazione())
+                  .putInt(rif[3])
+                  .putLong(inPrestito ? scadenza.toEpochDay() : 0L)
+                  .putInt(libro.getCopia() == 1 ? 0 : libro.getCopia());   // 0 come nei file senza copie
+        }
+
+        int[] indice = new int[slot];
+        for (int i = 0; i < n; i++) {
+            if (libri.get(i).getCopia() != 1) continue;
+            int s = posizione(Catalogo.chiaveIsbn(libri.get(i).getIsbn()), slot);
+            while (indice[s] != 0) s = (s + 1) & (slot - 1);
+            indice[s] = i + 1;
+        }
+
+        long inizioIndice = inizioStringhe + stringhe.position();
+
+        ByteBuffer intestazione = ByteBuffer.allocate(DIMENSIONE_INTESTAZIONE);
+        intestazione.putInt(MAGIC).putInt(VERSIONE).putInt(n).putInt(slot)
+                    .putLong(inizioStringhe).putLong(inizioIndice).flip();
+        ByteBuffer tabellaIndice = ByteBuffer.allocate(4 * slot);
+        tabellaIndice.asIntBuffer().put(indice);
+        record.flip();
+        stringhe.flip();
+
+        Path temporaneo = destinazione.resolveSibling(destinazione.getFileName() + ".tmp");
+        try (FileChannel c = FileChannel.open(temporaneo, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer parte : new ByteBuffer[] { intestazione, record, stringhe, tabellaIndice }) {
+                while (parte.hasRemaining()) c.write(parte);
+            }
+            c.force(true);
+        }
+        Files.move(temporaneo, destinazione, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Il file va mappato in un solo {@link ByteBuffer}, quindi non può superare i 2 GB. */
+    private static void controllaDimensione(long byteTotali) throws IOException {
+        if (byteTotali > Integer.MAX_VALUE) {
+            throw new IOException("Catalogo troppo grande per un'istantanea mappata (> 2 GB)");
+        }
+    }
+
+    private static ByteBuffer garantisci(ByteBuffer buffer, int necessari) {
+        if (buffer.remaining() >= necessari) return buffer;
+        int capacita = (int) Math.min(Integer.MAX_VALUE, Math.max(buffer.capacity() * 2L, buffer.position() + (long) necessari));
+        ByteBuffer piuGrande = ByteBuffer.allocate(capacita);
+        buffer.flip();
+        return piuGrande.put(buffer);
+    }
+
+    // ------------------------------------------------------------------ lettura
+
+    /** Mappa in memoria un'istantanea scritta da {@link #scrivi(Catalogo, Path)}. */
+    public static IstantaneaCatalogo apri(Path percorso) throws IOException {
+        try (FileChannel c = FileChannel.open(percorso, StandardOpenOption.READ)) {
+            MappedByteBuffer mappa = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+            return new IstantaneaCatalogo(mappa);
+        }
+    }
+
+    public int getTotaleLibri() { return totale; }
+
+    /** Cerca per ISBN usando l'indice nel file, con la stessa equivalenza di {@link Catalogo#cercaPerIsbn(String)}. */
+    public Optional<Libro> cercaPerIsbn(String isbn) {
+        if (isbn == null || isbn.isBlank()) return Optional.empty();
+        String chiave = Catalogo.chiaveIsbn(isbn);
+        for (int s = posizione(chiave, slot); ; s = (s + 1) & (slot - 1)) {
+            int voce = file.getInt(inizioIndice + 4 * s);
+            if (voce == 0) return Optional.empty();
+            int i = voce - 1;
+            if (Catalogo.chiaveIsbn(stringa(file.getInt(offsetRecord(i)))).equals(chiave)) {
+                return Optional.of(libro(i));
+            }
+        }
+    }
+
+    /** Il libro in posizione {@code i} (ordine del catalogo originale), creato al primo accesso. */
+    public Libro libro(int i) {
+        if (i < 0 || i >= totale) throw new IndexOutOfBoundsException(i);
+        Libro libro = materializzati.get(i);
+        if (libro != null) return libro;
+        libro = leggi(i);
+        return materializzati.compareAndSet(i, null, libro) ? libro : materializzati.get(i);
+    }
+
+    /**
+     * Costruisce un {@link Catalogo} modificabile con tutti i libri dell'istantanea
+     * (importazione massiva). I libri vengono creati di nuovo dai record: i prestiti del
+     * catalogo non toccano quelli di {@link #libro(int)}, e ogni chiamata dà un catalogo
+     * completo e indipendente dagli altri. Le copie oltre la prima le crea il catalogo con
+     * {@link Catalogo#aggiungiCopie(String, int)}, riportandone lo stato di prestito.
+     */
+    public Catalogo inCatalogo() {
+        Catalogo catalogo = new Catalogo();
+        catalogo.aggiungiLibri(IntStream.range(0, totale).filter(i -> copia(i) == 1).mapToObj(this::leggi));
+        for (int i = 0; i < totale; i++) {
+            int k = copia(i);
+            if (k == 1) continue;
+            Libro letto = leggi(i);
+            int mancanti = k - catalogo.getCopie(letto.getIsbn());
+            if (mancanti > 0) catalogo.aggiungiCopie(letto.getIsbn(), mancanti);
+            if (!letto.isDisponibile()) {
+                catalogo.copia(letto.getIsbn(), k).segnaComePrestato(letto.getPrestitarioCorrente(),
+                                                                     letto.getDataRestituzionePrevista());
+            }
+        }
+        return catalogo;
+    }
+
+    /** Un nuovo {@link Libro} con i dati e lo stato di prestito del record {@code i}. */
+    private Libro leggi(int i) {
+        int r = offsetRecord(i);
+        Libro libro = new Libro(stringa(file.getInt(r)), stringa(file.getInt(r + 4)),
+                                stringa(file.getInt(r + 8)), file.getInt(r + 12));
+        if (copia(i) > 1) libro = new Libro(libro, copia(i));
+        int utente = file.getInt(r + 16);
+        if (utente != NESSUNO) libro.segnaComePrestato(stringa(utente), LocalDate.ofEpochDay(file.getLong(r + 20)));
+        return libro;
+    }
+
+    /** Numero della copia del record {@code i}. */
+    private int copia(int i) {
+        return Math.max(1, file.getInt(offsetRecord(i) + 28));
+    }
+
+    private int offsetRecord(int i) {
+        return DIMENSIONE_INTESTAZIONE + i * DIMENSIONE_RECORD;
+    }
+
+    private String stringa(int rif) {
+        int inizio = inizioStringhe + rif;
+        byte[] utf8 = new byte[file.getInt(inizio)];
+        file.get(inizio + 4, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** Slot iniziale per una chiave: {@link String#hashCode()} è stabile tra JVM diverse. */
+    private static int posizione(String chiave, int slot) {
+        int h = chiave.hashCode();
+        return (h ^ (h >>> 16)) & (slot - 1);
+    }
+}
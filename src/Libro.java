@@ -1,19 +1,40 @@
+package main;
+
 import java.time.LocalDate;
 
 /**
  * Rappresenta un libro nella biblioteca.
+ *
+ * <p>Thread-safety: lo stato del prestito è un oggetto immutabile pubblicato con un campo
+ * {@code volatile}, quindi i getter non prendono lock e vedono sempre uno stato coerente.
+ * Le transizioni ({@link #segnaComePrestato(String, int)}, {@link #segnaComRestituito()})
+ * sono sincronizzate sul libro stesso: prestiti di libri diversi non si contendono mai,
+ * mentre due prestiti concorrenti dello stesso libro vengono serializzati e solo uno riesce.
+ * Anche la notifica al {@link Catalogo} avviene sotto lo stesso lock, così gli indici
+ * ricevono i cambi di stato di un libro nell'ordine in cui sono avvenuti.
  */
 public class Libro {
 
+    /** Stato di un prestito aperto; {@code null} quando il libro è disponibile. */
+    record Prestito(String utente, LocalDate dataRestituzionePrevista) {}
+
     private final String isbn;
     private final String titolo;
     private final String autore;
     private final int annoPubblicazione;
-    private boolean disponibile;
-    private String prestitarioCorrente;   // null se il libro è disponibile
-    private LocalDate dataRestituzionePrevista;
+    private final int copia;              // numero dell'esemplare, da 1; vedi Catalogo#aggiungiCopie
+    private volatile Prestito prestito;
+    private volatile Copie copie;         // tutte le copie del titolo, null se ne ha una sola
+    private volatile String riservatoA;   // utente per cui è messo da parte, vedi Prenotazione (scritto con il lock)
+    private Catalogo catalogo;            // catalogo che contiene il libro, null se non catalogato (guardato da this)
+    private long sequenza;                // ordine di inserimento nel catalogo (guardato dal lock di scrittura del catalogo)
 
     public Libro(String isbn, String titolo, String autore, int annoPubblicazione) {
+        this(isbn, titolo, autore, annoPubblicazione, 1);
+    }
+
+    /** Un esemplare con numero {@code copia}, disponibile; per le viste dei cataloghi che non tengono oggetti. */
+    Libro(String isbn, String titolo, String autore, int annoPubblicazione, int copia) {
         if (isbn == null || isbn.isBlank())   throw new IllegalArgumentException("ISBN non può essere vuoto");
         if (titolo == null || titolo.isBlank()) throw new IllegalArgumentException("Titolo non può essere vuoto");
         if (autore == null || autore.isBlank()) throw new IllegalArgumentException("Autore non può essere vuoto");
@@ -22,9 +43,17 @@ public class Libro {
         this.titolo = titolo.trim();
         this.autore = autore.trim();
         this.annoPubblicazione = annoPubblicazione;
-        this.disponibile = true;
-        this.prestitarioCorrente = null;
-        this.dataRestituzionePrevista = null;
+        this.copia = copia;
+        this.prestito = null;
+    }
+
+    /** Un nuovo esemplare, disponibile, dello stesso titolo di {@code originale}. */
+    Libro(Libro originale, int copia) {
+        this.isbn = originale.isbn;
+        this.titolo = originale.titolo;
+        this.autore = originale.autore;
+        this.annoPubblicazione = originale.annoPubblicazione;
+        this.copia = copia;
     }
 
     // ------------------------------------------------------------------ getter
@@ -33,9 +62,29 @@ public class Libro {
     public String getTitolo()             { return titolo; }
     public String getAutore()             { return autore; }
     public int    getAnnoPubblicazione()  { return annoPubblicazione; }
-    public boolean isDisponibile()        { return disponibile; }
-    public String getPrestitarioCorrente(){ return prestitarioCorrente; }
-    public LocalDate getDataRestituzionePrevista() { return dataRestituzionePrevista; }
+    public boolean isDisponibile()        { return prestito == null; }
+
+    /** Numero dell'esemplare tra le copie dello stesso ISBN: 1 per la prima (e per i titoli con una copia sola). */
+    public int    getCopia()              { return copia; }
+
+    /**
+     * Utente per cui il libro, appena restituito, è messo da parte in attesa del ritiro
+     * ({@link GestorePrestiti#prenota(String, String)}); {@code null} se chiunque può prenderlo.
+     */
+    public String getRiservatoA()         { return riservatoA; }
+
+    public String getPrestitarioCorrente() {
+        Prestito p = getPrestito();
+        return p == null ? null : p.utente();
+    }
+
+    public LocalDate getDataRestituzionePrevista() {
+        Prestito p = getPrestito();
+        return p == null ? null : p.dataRestituzionePrevista();
+    }
+
+    /** Prestitario e scadenza letti insieme, {@code null} se il libro è disponibile. */
+    Prestito getPrestito()                { return prestito; }
 
     // ------------------------------------------------------------------ stato
 
@@ -44,16 +93,29 @@ public class Libro {
      *
      * @param utente  nome dell'utente che prende in prestito il libro
      * @param giorni  numero di giorni entro cui restituire il libro
-     * @throws IllegalStateException se il libro non è disponibile
+     * @throws IllegalStateException se il libro non è disponibile o è riservato a un altro utente
      */
     public void segnaComePrestato(String utente, int giorni) {
-        if (!disponibile) {
+        segnaComePrestato(utente, LocalDate.now().plusDays(giorni));
+    }
+
+    /**
+     * Come {@link #segnaComePrestato(String, int)}, ma con la data di restituzione già calcolata
+     * (usato da {@link GestorePrestiti}, che la ricava dal proprio orologio).
+     */
+    synchronized void segnaComePrestato(String utente, LocalDate dataRestituzionePrevista) {
+        Prestito corrente = prestito;
+        if (corrente != null) {
             throw new IllegalStateException(
-                "Il libro \"" + titolo + "\" non è disponibile (in prestito a " + prestitarioCorrente + ")");
+                "Il libro \"" + titolo + "\" non è disponibile (in prestito a " + corrente.utente() + ")");
         }
-        this.disponibile = false;
-        this.prestitarioCorrente = utente;
-        this.dataRestituzionePrevista = LocalDate.now().plusDays(giorni);
+        String riservato = riservatoA;
+        if (riservato != null && !riservato.equals(utente)) {
+            throw new IllegalStateException("Il libro \"" + titolo + "\" è riservato a " + riservato);
+        }
+        this.riservatoA = null;
+        this.prestito = new Prestito(utente, dataRestituzionePrevista);
+        if (catalogo != null) catalogo.libroPrestato(this);
     }
 
     /**
@@ -61,33 +123,67 @@ public class Libro {
      *
      * @throws IllegalStateException se il libro era già disponibile
      */
-    public void segnaComRestituito() {
-        if (disponibile) {
+    public synchronized void segnaComRestituito() {
+        Prestito chiuso = prestito;
+        if (chiuso == null) {
             throw new IllegalStateException("Il libro \"" + titolo + "\" era già disponibile");
         }
-        this.disponibile = true;
-        this.prestitarioCorrente = null;
-        this.dataRestituzionePrevista = null;
+        this.prestito = null;
+        if (catalogo != null) catalogo.libroRestituito(this, chiuso.utente(), chiuso.dataRestituzionePrevista());
+    }
+
+    // ------------------------------------------------------------------ catalogo
+
+    synchronized Catalogo getCatalogo()   { return catalogo; }
+
+    /**
+     * Collega (o scollega, con {@code null}) il libro al catalogo da notificare sui cambi di stato.
+     * Il chiamante deve tenere il lock del libro se vuole leggere lo stato in modo coerente
+     * con il collegamento.
+     */
+    synchronized void setCatalogo(Catalogo catalogo) { this.catalogo = catalogo; }
+
+    /** Numero d'ordine assegnato dal catalogo all'inserimento, crescente; vedi {@link Pagina}. */
+    long getSequenza()                  { return sequenza; }
+
+    void setSequenza(long sequenza)     { this.sequenza = sequenza; }
+
+    /**
+     * Mette da parte il libro disponibile per {@code utente}, o con {@code null} lo rende di nuovo
+     * prestabile a chiunque. Solo per {@link Prenotazioni}, che tiene il lock di prestito del libro.
+     */
+    synchronized void setRiservatoA(String utente) {
+        this.riservatoA = utente;
+        if (catalogo != null) catalogo.riservaCambiata(this);
     }
 
+    /** Le copie del titolo, {@code null} se ne ha una sola. */
+    Copie getCopie()                    { return copie; }
+
+    /** Da chiamare con il lock di scrittura del catalogo e quello del libro. */
+    void setCopie(Copie copie)          { this.copie = copie; }
+
     // ------------------------------------------------------------------ util
 
     @Override
     public String toString() {
-        String stato = disponibile
-            ? "[DISPONIBILE]"
-            : "[PRESTATO a " + prestitarioCorrente + " - restituzione entro " + dataRestituzionePrevista + "]";
-        return String.format("[%s] \"%s\" di %s (%d) %s",
-            isbn, titolo, autore, annoPubblicazione, stato);
+        Prestito p = prestito;
+        String riservato = riservatoA;
+        String stato = p == null
+            ? (riservato == null ? "[DISPONIBILE]" : "[RISERVATO a " + riservato + "]")
+            : "[PRESTATO a " + p.utente() + " - restituzione entro " + p.dataRestituzionePrevista() + "]";
+        return String.format("[%s%s] \"%s\" di %s (%d) %s",
+            isbn, copia > 1 ? " copia " + copia : "", titolo, autore, annoPubblicazione, stato);
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof Libro)) return false;
-        return isbn.equals(((Libro) o).isbn);
+        Libro altro = (Libro) o;
+        return isbn.equals(altro.isbn) && copia == altro.copia;
     }
 
     @Override
-    public int hashCode() { return isbn.hashCode(); }
+    public int hashCode() { return copia == 1 ? isbn.hashCode() : 31 * isbn.hashCode() + copia; }
 }
@@ -1,10 +1,18 @@
+package main;
+
+import java.time.Clock;
+
 /**
  * Punto di ingresso dell'applicazione Biblioteca.
  *
  * <p>Esegui con:
  * <pre>
- *   javac -d out src/main/java/biblioteca/*.java
- *   java  -cp out biblioteca.Main
+ *   mvn -q compile exec:java
+ * </pre>
+ * oppure, senza Maven:
+ * <pre>
+ *   javac -d out src/*.java
+ *   java  -cp out main.Main
  * </pre>
  */
 public class Main {
@@ -15,7 +23,8 @@ public class Main {
 
         // --- Costruzione catalogo demo --------------------------------
         Catalogo catalogo = new Catalogo();
-        GestorePrestiti gestore = new GestorePrestiti(catalogo);
+        // registro sincrono: nella demo i messaggi devono comparire nell'ordine delle operazioni
+        GestorePrestiti gestore = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), RegistroPrestiti.console());
 
         catalogo.aggiungiLibro(new Libro("978-88-06-22715-0", "Il nome della rosa",      "Umberto Eco",        1980));
         catalogo.aggiungiLibro(new Libro("978-88-07-88225-4", "Se questo è un uomo",     "Primo Levi",         1947));
@@ -40,8 +49,8 @@ public class Main {
         System.out.println("\n=== CATALOGO DOPO I PRESTITI ===");
         catalogo.getTuttiILibri().forEach(System.out::println);
 
-        // --- Demo funzionalità DA IMPLEMENTARE -----------------------
-        System.out.println("\n=== FUNZIONALITÀ DA IMPLEMENTARE ===");
+        // --- Demo ricerche, restituzioni e rimozioni -----------------
+        System.out.println("\n=== ALTRE FUNZIONALITÀ ===");
         eseguiConGestione("cercaPerAutore(\"Eco\")",
             () -> catalogo.cercaPerAutore("Eco").forEach(System.out::println));
 
@@ -0,0 +1,140 @@
+package main;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Mappa {@code long → V} ad indirizzamento aperto con scansione lineare, senza boxing delle chiavi.
+ *
+ * <p>Pensata per le chiavi ISBN di {@link Isbn#chiave(CharSequence)}: la chiave 0 non è ammessa
+ * e segna lo slot vuoto. {@link #get(long)} non alloca e non prende lock; le scritture
+ * vanno serializzate dal chiamante (in {@link Catalogo}, dal lock di scrittura).
+ *
+ * <p>Una rimozione azzera solo il valore e lascia la chiave come lapide, così un lettore
+ * concorrente non vede mai una chiave abbinata al valore di un'altra; le lapidi vengono
+ * eliminate al ridimensionamento successivo, che pubblica una nuova {@link Tabella}.
+ *
+ * <p>Gli slot sono letti in acquire e scritti in release attraverso {@link VarHandle}: chi
+ * legge una chiave appena scritta vede anche il valore scritto prima di lei.
+ */
+final class MappaLong<V> {
+
+    private static final long VUOTO = 0;
+
+    private static final VarHandle CHIAVE = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALORE = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private record Tabella(long[] chiavi, Object[] valori) {}
+
+    private volatile Tabella tabella;
+
+    /** Slot con una chiave, comprese le lapidi. */
+    private int occupati;
+    private int dimensione;
+
+    MappaLong() {
+        this(16);
+    }
+
+    MappaLong(int capacitaIniziale) {
+        int slot = Integer.highestOneBit(Math.max(16, capacitaIniziale * 4 / 3 + 1) * 2 - 1);
+        tabella = new Tabella(new long[slot], new Object[slot]);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long chiave) {
+        Tabella t = tabella;
+        long[] chiavi = t.chiavi();
+        int maschera = chiavi.length - 1;
+        for (int s = slot(chiave, maschera); ; s = (s + 1) & maschera) {
+            long k = (long) CHIAVE.getAcquire(chiavi, s);
+            if (k == chiave) return (V) VALORE.getAcquire(t.valori(), s);
+            if (k == VUOTO) return null;
+        }
+    }
+
+    boolean containsKey(long chiave) {
+        return get(chiave) != null;
+    }
+
+    /** Associa {@code valore} se la chiave non c'è; restituisce il valore già presente, altrimenti null. */
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(long chiave, V valore) {
+        if (chiave == VUOTO || valore == null) throw new IllegalArgumentException("Chiave o valore non validi");
+        Tabella t = tabella;
+        long[] chiavi = t.chiavi();
+        int maschera = chiavi.length - 1;
+        int s = slot(chiave, maschera);
+        for (; chiavi[s] != VUOTO; s = (s + 1) & maschera) {
+            if (chiavi[s] == chiave) {
+                Object attuale = t.valori()[s];
+                if (attuale != null) return (V) attuale;
+                VALORE.setRelease(t.valori(), s, valore);   // riusa la propria lapide
+                dimensione++;
+                return null;
+            }
+        }
+        if ((occupati + 1) * 4L > chiavi.length * 3L) {
+            ridimensiona();
+            return putIfAbsent(chiave, valore);
+        }
+        VALORE.setRelease(t.valori(), s, valore);       // prima il valore, poi la chiave che lo rende raggiungibile
+        CHIAVE.setRelease(chiavi, s, chiave);
+        occupati++;
+        dimensione++;
+        return null;
+    }
+
+    /** Toglie la chiave e restituisce il valore associato, o null se non c'era. */
+    @SuppressWarnings("unchecked")
+    V remove(long chiave) {
+        Tabella t = tabella;
+        long[] chiavi = t.chiavi();
+        int maschera = chiavi.length - 1;
+        for (int s = slot(chiave, maschera); chiavi[s] != VUOTO; s = (s + 1) & maschera) {
+            if (chiavi[s] == chiave) {
+                Object attuale = t.valori()[s];
+                if (attuale != null) {
+                    VALORE.setRelease(t.valori(), s, null);
+                    dimensione--;
+                }
+                return (V) attuale;
+            }
+        }
+        return null;
+    }
+
+    int size() { return dimensione; }
+
+    /** Ricostruisce la tabella senza lapidi, raddoppiandola se serve, e la pubblica. */
+    private void ridimensiona() {
+        Tabella vecchia = tabella;
+        int lunghezza = vecchia.chiavi().length;
+        if ((dimensione + 1) * 2L > lunghezza) lunghezza *= 2;
+        long[] chiavi = new long[lunghezza];
+        Object[] valori = new Object[lunghezza];
+        int maschera = lunghezza - 1;
+        for (int i = 0; i < vecchia.chiavi().length; i++) {
+            Object valore = vecchia.valori()[i];
+            if (valore == null) continue;
+            long chiave = vecchia.chiavi()[i];
+            int s = slot(chiave, maschera);
+            while (chiavi[s] != VUOTO) s = (s + 1) & maschera;
+            chiavi[s] = chiave;
+            valori[s] = valore;
+        }
+        occupati = dimensione;
+        tabella = new Tabella(chiavi, valori);
+    }
+
+    /** Mescola i bit (finalizzatore di MurmurHash3): gli ISBN consecutivi non devono cadere in slot vicini. */
+    private static int slot(long chiave, int maschera) {
+        long h = chiave;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87cdL;
+        h ^= h >>> 33;
+        return (int) h & maschera;
+    }
+}
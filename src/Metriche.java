@@ -0,0 +1,191 @@
+package main;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Contatori e istogrammi di latenza per le operazioni di {@link Catalogo} e {@link GestorePrestiti}.
+ *
+ * <p>Si attivano con {@link Catalogo#abilitaMetriche()}; finché sono disabilitate le operazioni
+ * non leggono nemmeno l'orologio. Le stesse operazioni emettono anche gli eventi JFR
+ * {@code biblioteca.Ricerca}, {@code biblioteca.Prestito} e {@code biblioteca.Restituzione}
+ * (vedi {@link Misura}), che restano attivi indipendentemente da queste metriche.
+ *
+ * <p>Gli istogrammi sono log-lineari come quelli di HdrHistogram: 32 sotto-intervalli per
+ * ogni potenza di due, quindi i percentili hanno un errore relativo di circa il 3%.
+ * Contatori e istogrammi sono divisi in strisce per thread, così 64 thread che prestano
+ * libri non si contendono la stessa cella.
+ */
+public final class Metriche {
+
+    /** Operazioni misurate. */
+    public enum Operazione {
+        CERCA_PER_ISBN, CERCA_PER_AUTORE, LIBRI_DISPONIBILI, LIBRI_IN_PRESTITO,
+        PRESTITO, RESTITUZIONE, PRESTITI_SCADUTI, CERCA_PER_TESTO, CERCA_PER_ANNO
+    }
+
+    /**
+     * Statistiche di una operazione al momento dell'istantanea. Le latenze sono in nanosecondi
+     * e i percentili sono il limite superiore dell'intervallo dell'istogramma che li contiene.
+     */
+    public record Statistica(Operazione operazione, long chiamate, long errori, long mediaNanos,
+                             long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+
+        /** Chiamate al secondo nell'intervallo indicato. */
+        public double alSecondo(Duration intervallo) {
+            long nanos = intervallo.toNanos();
+            return nanos == 0 ? 0 : chiamate * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-18s n=%d errori=%d media=%dns p50=%dns p99=%dns p99.9=%dns max=%dns",
+                operazione, chiamate, errori, mediaNanos, p50Nanos, p99Nanos, p999Nanos, maxNanos);
+        }
+    }
+
+    /**
+     * Istantanea di tutte le metriche.
+     *
+     * @param intervallo         tempo trascorso dall'abilitazione (o dall'ultimo {@link #azzera()})
+     * @param dimensioneCatalogo libri nel catalogo al momento dell'istantanea
+     * @param operazioni         statistiche per operazione, anche quelle mai chiamate
+     */
+    public record Istantanea(Duration intervallo, int dimensioneCatalogo, Map<Operazione, Statistica> operazioni) {
+
+        public Statistica di(Operazione operazione) { return operazioni.get(operazione); }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("Metriche su %d libri, ultimi %d ms%n",
+                dimensioneCatalogo, intervallo.toMillis()));
+            for (Statistica s : operazioni.values()) {
+                if (s.chiamate() > 0) sb.append("  ").append(s).append(System.lineSeparator());
+            }
+            return sb.toString();
+        }
+    }
+
+    private final IntSupplier dimensioneCatalogo;
+    private final Istogramma[] istogrammi = new Istogramma[Operazione.values().length];
+    private volatile long inizio;
+
+    Metriche(IntSupplier dimensioneCatalogo) {
+        this.dimensioneCatalogo = dimensioneCatalogo;
+        for (int i = 0; i < istogrammi.length; i++) istogrammi[i] = new Istogramma();
+        this.inizio = System.nanoTime();
+    }
+
+    /** Registra una chiamata durata {@code nanos} nanosecondi. */
+    void registra(Operazione operazione, long nanos, boolean riuscita) {
+        istogrammi[operazione.ordinal()].registra(nanos, riuscita);
+    }
+
+    /**
+     * Legge tutte le metriche. I contatori vengono letti senza fermare le operazioni in corso,
+     * quindi un'istantanea presa sotto carico può essere indietro di qualche chiamata.
+     */
+    public Istantanea istantanea() {
+        Map<Operazione, Statistica> operazioni = new EnumMap<>(Operazione.class);
+        for (Operazione op : Operazione.values()) {
+            operazioni.put(op, istogrammi[op.ordinal()].statistica(op));
+        }
+        return new Istantanea(Duration.ofNanos(System.nanoTime() - inizio),
+                              dimensioneCatalogo.getAsInt(), Collections.unmodifiableMap(operazioni));
+    }
+
+    /** Azzera contatori e istogrammi e fa ripartire l'intervallo. */
+    public void azzera() {
+        for (Istogramma istogramma : istogrammi) istogramma.azzera();
+        inizio = System.nanoTime();
+    }
+
+    // ------------------------------------------------------------------ istogramma
+
+    /** Istogramma log-lineare di latenze, diviso in strisce per thread. */
+    private static final class Istogramma {
+
+        private static final int BIT_SOTTO = 5;
+        private static final int SOTTO = 1 << BIT_SOTTO;
+        private static final int ESPONENTE_MAX = 40;                 // oltre ~18 minuti si satura
+        private static final long VALORE_MAX = (1L << (ESPONENTE_MAX + 1)) - 1;
+        private static final int INTERVALLI = (ESPONENTE_MAX - BIT_SOTTO + 2) * SOTTO;
+        private static final int STRISCE =
+            Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+        private final AtomicLongArray conteggi = new AtomicLongArray(STRISCE * INTERVALLI);
+        private final LongAdder chiamate = new LongAdder();
+        private final LongAdder errori = new LongAdder();
+        private final LongAdder sommaNanos = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void registra(long nanos, boolean riuscita) {
+            long v = Math.min(Math.max(nanos, 0), VALORE_MAX);
+            int striscia = (int) Thread.currentThread().getId() & (STRISCE - 1);
+            conteggi.getAndIncrement(striscia * INTERVALLI + intervallo(v));
+            chiamate.increment();
+            sommaNanos.add(v);
+            if (!riuscita) errori.increment();
+            max.accumulate(v);
+        }
+
+        Statistica statistica(Operazione operazione) {
+            long[] unione = new long[INTERVALLI];
+            long totale = 0;
+            for (int i = 0; i < conteggi.length(); i++) {
+                long c = conteggi.get(i);
+                unione[i % INTERVALLI] += c;
+                totale += c;
+            }
+            long n = chiamate.sum();
+            long massimo = max.get();
+            return new Statistica(operazione, n, errori.sum(), n == 0 ? 0 : sommaNanos.sum() / n,
+                Math.min(percentile(unione, totale, 0.50), massimo), Math.min(percentile(unione, totale, 0.90), massimo),
+                Math.min(percentile(unione, totale, 0.99), massimo), Math.min(percentile(unione, totale, 0.999), massimo),
+                massimo);
+        }
+
+        void azzera() {
+            for (int i = 0; i < conteggi.length(); i++) conteggi.set(i, 0);
+            chiamate.reset();
+            errori.reset();
+            sommaNanos.reset();
+            max.reset();
+        }
+
+        private static long percentile(long[] unione, long totale, double quantile) {
+            if (totale == 0) return 0;
+            long soglia = (long) Math.ceil(totale * quantile);
+            long cumulato = 0;
+            for (int i = 0; i < unione.length; i++) {
+                cumulato += unione[i];
+                if (cumulato >= soglia) return limiteSuperiore(i);
+            }
+            return VALORE_MAX;
+        }
+
+        /**
+         * Sotto {@link #SOTTO} ogni valore ha il suo intervallo; sopra, l'esponente sceglie il
+         * gruppo e i {@link #BIT_SOTTO} bit successivi al più significativo il sotto-intervallo.
+         */
+        static int intervallo(long v) {
+            if (v < SOTTO) return (int) v;
+            int esponente = 63 - Long.numberOfLeadingZeros(v);
+            int alti = (int) (v >>> (esponente - BIT_SOTTO));          // in [SOTTO, 2 * SOTTO)
+            return (esponente - BIT_SOTTO + 1) * SOTTO + alti - SOTTO;
+        }
+
+        static long limiteSuperiore(int intervallo) {
+            if (intervallo < 2 * SOTTO) return intervallo;
+            int esponente = intervallo / SOTTO + BIT_SOTTO - 1;
+            long alti = intervallo % SOTTO + SOTTO;
+            return ((alti + 1) << (esponente - BIT_SOTTO)) - 1;
+        }
+    }
+}
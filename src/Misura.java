@@ -0,0 +1,144 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Misura di una singola operazione: è un evento JDK Flight Recorder e, se il catalogo ha le
+ * {@link Metriche} abilitate, registra anche la latenza nel relativo istogramma.
+ *
+ * <p>Uso tipico:
+ * <pre>
+ *   Misura misura = new Misura.Ricerca(metriche, Operazione.CERCA_PER_ISBN, isbn);
+ *   ...
+ *   misura.concludi(true, risultati, dimensioneCatalogo);
+ * </pre>
+ * Senza registrazione JFR attiva e senza metriche il costo si riduce a un controllo:
+ * l'evento non viene scritto e l'orologio non viene letto. Per questo chiavi e ISBN si passano
+ * così come sono (anche un cestino intero o un {@link Intervallo}) e diventano testo solo
+ * quando l'evento viene davvero scritto. Gli eventi riportano la dimensione
+ * del catalogo e il numero di risultati; la contesa sui lock dei libri si vede dagli eventi
+ * {@code jdk.JavaMonitorEnter} della stessa registrazione, sullo stesso thread.
+ */
+@Category("Biblioteca")
+@StackTrace(false)
+abstract class Misura extends Event {
+
+    @Label("Libri nel catalogo")
+    int dimensioneCatalogo;
+
+    @Label("Risultati")
+    int risultati;
+
+    @Label("Riuscita")
+    boolean riuscita;
+
+    // non fanno parte dell'evento: JFR ignora i campi transient
+    private final transient Metriche metriche;
+    private final transient Metriche.Operazione operazione;
+    private final transient long inizio;
+
+    Misura(Metriche metriche, Metriche.Operazione operazione) {
+        this.metriche = metriche;
+        this.operazione = operazione;
+        this.inizio = metriche == null ? 0 : System.nanoTime();
+        begin();
+    }
+
+    /** Chiude la misura; da chiamare una volta sola, anche quando l'operazione fallisce. */
+    void concludi(boolean riuscita, int risultati, int dimensioneCatalogo) {
+        if (metriche != null) metriche.registra(operazione, System.nanoTime() - inizio, riuscita);
+        if (shouldCommit()) {
+            this.riuscita = riuscita;
+            this.risultati = risultati;
+            this.dimensioneCatalogo = dimensioneCatalogo;
+            completa();
+            commit();
+        }
+    }
+
+    /** Riempie i campi di testo dell'evento; chiamato solo se l'evento viene scritto. */
+    abstract void completa();
+
+    /** Testo di una chiave passata così com'è, {@code null} se manca. */
+    static String testo(Object valore) {
+        return valore == null ? null : valore.toString();
+    }
+
+    /** Chiave di una ricerca per intervallo di anni, scritta come "da-a". */
+    record Intervallo(int da, int a) {
+        @Override
+        public String toString() { return da + "-" + a; }
+    }
+
+    @Name("biblioteca.Ricerca")
+    @Label("Ricerca nel catalogo")
+    static final class Ricerca extends Misura {
+
+        @Label("Tipo")
+        String tipo;
+
+        @Label("Chiave")
+        String chiave;
+
+        private final transient Object valore;
+
+        Ricerca(Metriche metriche, Metriche.Operazione operazione, Object chiave) {
+            super(metriche, operazione);
+            this.tipo = operazione.name();
+            this.valore = chiave;
+        }
+
+        @Override
+        void completa() { chiave = testo(valore); }
+    }
+
+    @Name("biblioteca.Prestito")
+    @Label("Prestito")
+    static final class Prestito extends Misura {
+
+        @Label("ISBN")
+        String isbn;
+
+        @Label("Utente")
+        String utente;
+
+        @Label("Giorni")
+        int giorni;
+
+        private final transient Object libri;
+
+        /** @param isbn un ISBN, o la collezione degli ISBN di un cestino */
+        Prestito(Metriche metriche, Object isbn, String utente, int giorni) {
+            super(metriche, Metriche.Operazione.PRESTITO);
+            this.libri = isbn;
+            this.utente = utente;
+            this.giorni = giorni;
+        }
+
+        @Override
+        void completa() { isbn = testo(libri); }
+    }
+
+    @Name("biblioteca.Restituzione")
+    @Label("Restituzione")
+    static final class Restituzione extends Misura {
+
+        @Label("ISBN")
+        String isbn;
+
+        private final transient Object libri;
+
+        /** @param isbn un ISBN, o la collezione degli ISBN di un cestino */
+        Restituzione(Metriche metriche, Object isbn) {
+            super(metriche, Metriche.Operazione.RESTITUZIONE);
+            this.libri = isbn;
+        }
+
+        @Override
+        void completa() { isbn = testo(libri); }
+    }
+}
@@ -0,0 +1,41 @@
+package main;
+
+import java.time.LocalDate;
+
+/**
+ * Una modifica del catalogo pubblicata da {@link FlussoModifiche}: aggiunta, rimozione,
+ * prestito o restituzione di un libro.
+ *
+ * <p>{@link #sequenza()} numera le modifiche da 1, senza buchi, nell'ordine in cui sono state
+ * applicate; chi consuma il flusso la salva e alla ripartenza riprende da lì con
+ * {@link FlussoModifiche#iscrivi(java.util.concurrent.Flow.Subscriber, long)}. Le modifiche
+ * di uno stesso libro arrivano sempre nell'ordine in cui sono avvenute; quelle di un cestino
+ * ({@link GestorePrestiti#prestaLibri}) hanno numeri consecutivi.
+ *
+ * <p>{@link #copia()} distingue gli esemplari dello stesso ISBN ({@link Catalogo#aggiungiCopie}):
+ * è 1 per la prima copia e per i titoli con una copia sola, come {@link Libro#getCopia()}.
+ * Rimuovere un titolo con più copie produce una {@link Rimozione} per copia.
+ */
+public sealed interface ModificaCatalogo {
+
+    long sequenza();
+
+    String isbn();
+
+    int copia();
+
+    record Aggiunta(long sequenza, String isbn, int copia, String titolo, String autore, int annoPubblicazione)
+        implements ModificaCatalogo {}
+
+    record Rimozione(long sequenza, String isbn, int copia) implements ModificaCatalogo {}
+
+    record Prestito(long sequenza, String isbn, int copia, String utente, LocalDate dataRestituzionePrevista)
+        implements ModificaCatalogo {}
+
+    /**
+     * @param utente       prestitario del prestito chiuso
+     * @param dataPrevista restituzione prevista del prestito chiuso, per riconoscere i ritardi
+     */
+    record Restituzione(long sequenza, String isbn, int copia, String utente, LocalDate dataPrevista)
+        implements ModificaCatalogo {}
+}
@@ -0,0 +1,44 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Riceve le notifiche di modifica di un {@link Catalogo}: aggiunte, rimozioni,
+ * prestiti e restituzioni (anche quelle fatte direttamente su {@link Libro}).
+ *
+ * <p>Le notifiche arrivano dopo che la modifica è stata applicata.
+ * Serve a mantenere allineati gli indici che vivono fuori dal catalogo,
+ * come quello delle scadenze di {@link GestorePrestiti}.
+ */
+interface OsservatoreCatalogo {
+
+    /** Un prestito appena chiuso da una restituzione. */
+    record Restituzione(Libro libro, String utente, LocalDate dataPrevista) {}
+
+    default void libroAggiunto(Libro libro) {}
+
+    default void libroRimosso(Libro libro) {}
+
+    default void libroPrestato(Libro libro) {}
+
+    /**
+     * @param utente       prestitario del prestito appena chiuso
+     * @param dataPrevista data di restituzione prevista del prestito appena chiuso
+     */
+    default void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {}
+
+    /**
+     * Prestiti di un cestino ({@link GestorePrestiti#prestaLibri}), applicati tutti insieme:
+     * arrivano qui invece che a {@link #libroPrestato(Libro)}. Per default vengono inoltrati
+     * uno alla volta.
+     */
+    default void libriPrestati(List<Libro> libri) {
+        for (Libro libro : libri) libroPrestato(libro);
+    }
+
+    /** Restituzioni di un cestino ({@link GestorePrestiti#restituisciLibri}), come {@link #libriPrestati(List)}. */
+    default void libriRestituiti(List<Restituzione> restituzioni) {
+        for (Restituzione r : restituzioni) libroRestituito(r.libro(), r.utente(), r.dataPrevista());
+    }
+}
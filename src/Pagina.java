@@ -0,0 +1,21 @@
+package main;
+
+import java.util.List;
+
+/**
+ * Una pagina di risultati, con il cursore per chiedere la successiva.
+ *
+ * <p>Il cursore identifica la posizione dell'ultimo libro della pagina nell'ordine della
+ * query (di inserimento per il catalogo, di scadenza per i prestiti scaduti): la pagina
+ * successiva riparte da lì senza rileggere le precedenti, e aggiunte o rimozioni avvenute
+ * nel frattempo non fanno saltare né ripetere libri. Va trattato come un valore opaco.
+ *
+ * @param libri   i libri della pagina, al più quanti richiesti
+ * @param cursore da passare alla chiamata successiva; {@code null} se la pagina non è piena,
+ *                quindi è l'ultima (una pagina piena ha sempre un cursore, e la successiva
+ *                può risultare vuota)
+ */
+public record Pagina(List<Libro> libri, String cursore) {
+
+    public boolean haSuccessiva() { return cursore != null; }
+}
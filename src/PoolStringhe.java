@@ -0,0 +1,90 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Insieme di stringhe deduplicate, memorizzate in UTF-8 in un unico array di byte.
+ * Ogni stringa distinta riceve un identificativo intero stabile; "Umberto Eco" occupa
+ * quindi lo spazio di una sola copia, qualunque sia il numero di libri che lo citano.
+ *
+ * <p>Usato da {@link CatalogoCompatto}, che tiene solo gli identificativi: le {@link String}
+ * vengono ricreate da {@link #get(int)} quando serve una vista del libro.
+ *
+ * <p>{@link #interna(String)} è sincronizzato; {@link #get(int)} non prende lock e legge
+ * un'istantanea pubblicata con un campo {@code volatile}, come l'elenco di {@link Catalogo}.
+ */
+class PoolStringhe {
+
+    /** Byte e offset pubblicati: le stringhe {@code [0, numero)} non cambiano più. */
+    private record Arena(byte[] dati, int[] inizi, int numero) {}
+
+    private volatile Arena arena = new Arena(new byte[256], new int[16], 0);
+
+    /** Tabella ad indirizzamento aperto per la deduplicazione: id + 1, 0 = vuoto (guardata da this). */
+    private int[] tabella = new int[32];
+
+    /** Restituisce l'identificativo di {@code s}, aggiungendola se non c'è ancora. */
+    synchronized int interna(String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        Arena a = arena;
+        int maschera = tabella.length - 1;
+        for (int slot = hash(utf8) & maschera; ; slot = (slot + 1) & maschera) {
+            int voce = tabella[slot];
+            if (voce == 0) break;
+            if (uguale(a, voce - 1, utf8)) return voce - 1;
+        }
+
+        int id = a.numero();
+        int usati = a.inizi()[id];
+        byte[] dati = a.dati();
+        if (usati + utf8.length > dati.length) {
+            dati = Arrays.copyOf(dati, Math.max(dati.length + (dati.length >> 1), usati + utf8.length));
+        }
+        int[] inizi = a.inizi();
+        if (id + 1 == inizi.length) inizi = Arrays.copyOf(inizi, inizi.length + (inizi.length >> 1));
+        System.arraycopy(utf8, 0, dati, usati, utf8.length);
+        inizi[id + 1] = usati + utf8.length;
+        arena = new Arena(dati, inizi, id + 1);
+
+        if (2 * (id + 1) > tabella.length) ridimensiona();
+        else inserisci(tabella, utf8, id);
+        return id;
+    }
+
+    /** La stringa con identificativo {@code id}, restituito in precedenza da {@link #interna(String)}. */
+    String get(int id) {
+        Arena a = arena;
+        int inizio = a.inizi()[id];
+        return new String(a.dati(), inizio, a.inizi()[id + 1] - inizio, StandardCharsets.UTF_8);
+    }
+
+    /** Numero di stringhe distinte. */
+    int numero() { return arena.numero(); }
+
+    private void ridimensiona() {
+        Arena a = arena;
+        int[] nuova = new int[tabella.length * 2];
+        for (int id = 0; id < a.numero(); id++) {
+            inserisci(nuova, Arrays.copyOfRange(a.dati(), a.inizi()[id], a.inizi()[id + 1]), id);
+        }
+        tabella = nuova;
+    }
+
+    private static void inserisci(int[] tabella, byte[] utf8, int id) {
+        int maschera = tabella.length - 1;
+        int slot = hash(utf8) & maschera;
+        while (tabella[slot] != 0) slot = (slot + 1) & maschera;
+        tabella[slot] = id + 1;
+    }
+
+    private static int hash(byte[] utf8) {
+        int h = Arrays.hashCode(utf8);
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean uguale(Arena a, int id, byte[] utf8) {
+        int inizio = a.inizi()[id];
+        return Arrays.equals(a.dati(), inizio, a.inizi()[id + 1], utf8, 0, utf8.length);
+    }
+}
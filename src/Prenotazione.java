@@ -0,0 +1,85 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Prenotazione di un titolo da parte di un utente, creata da
+ * {@link GestorePrestiti#prenota(String, String)}.
+ *
+ * <p>Finché tutte le copie sono prese la prenotazione è {@link Stato#IN_ATTESA}, in coda dietro
+ * a quelle fatte prima per lo stesso titolo. Quando una copia torna, invece di tornare libera
+ * passa alla prima prenotazione in coda, che diventa {@link Stato#PRONTA}: la copia resta da
+ * parte per l'utente ({@link Libro#getRiservatoA()}) fino a {@link #getRitiroEntro()}, e
+ * solo lui può prenderla in prestito. Se non la ritira in tempo la prenotazione
+ * {@link Stato#SCADUTA scade} e la copia passa alla successiva.
+ *
+ * <p>L'oggetto è vivo: lo stato cambia man mano, e si può rileggere in ogni momento.
+ */
+public final class Prenotazione {
+
+    public enum Stato {
+        /** In coda: nessuna copia è ancora tornata per questo utente. */
+        IN_ATTESA,
+        /** Una copia è messa da parte per l'utente, fino alla data di ritiro. */
+        PRONTA,
+        /** L'utente ha preso in prestito il titolo. */
+        RITIRATA,
+        /** La copia non è stata ritirata in tempo ed è passata oltre. */
+        SCADUTA,
+        ANNULLATA;
+
+        /** {@code true} per gli stati da cui non si esce più. */
+        public boolean isConclusa() { return this != IN_ATTESA && this != PRONTA; }
+    }
+
+    /** Stato, copia messa da parte e data di ritiro, letti e cambiati insieme. */
+    record Fase(Stato stato, Libro copia, LocalDate ritiroEntro) {}
+
+    private static final Fase IN_ATTESA = new Fase(Stato.IN_ATTESA, null, null);
+
+    private final String isbn;
+    private final String utente;
+    private final AtomicReference<Fase> fase = new AtomicReference<>(IN_ATTESA);
+
+    Prenotazione(String isbn, String utente) {
+        this.isbn = isbn;
+        this.utente = utente;
+    }
+
+    public String getIsbn()   { return isbn; }
+    public String getUtente() { return utente; }
+    public Stato  getStato()  { return fase.get().stato(); }
+
+    /** La copia messa da parte, se la prenotazione è {@link Stato#PRONTA}; altrimenti {@code null}. */
+    public Libro getCopia() {
+        Fase f = fase.get();
+        return f.stato() == Stato.PRONTA ? f.copia() : null;
+    }
+
+    /** Ultimo giorno utile per ritirare la copia, se la prenotazione è {@link Stato#PRONTA}. */
+    public LocalDate getRitiroEntro() {
+        Fase f = fase.get();
+        return f.stato() == Stato.PRONTA ? f.ritiroEntro() : null;
+    }
+
+    Fase fase() { return fase.get(); }
+
+    /** Da {@link Stato#IN_ATTESA} a {@link Stato#PRONTA}; {@code false} se nel frattempo è stata annullata. */
+    boolean pronta(Libro copia, LocalDate ritiroEntro) {
+        return fase.compareAndSet(IN_ATTESA, new Fase(Stato.PRONTA, copia, ritiroEntro));
+    }
+
+    /** Porta la prenotazione in {@code stato} se è ancora nella fase {@code attesa}. */
+    boolean concludi(Fase attesa, Stato stato) {
+        return fase.compareAndSet(attesa, new Fase(stato, attesa.copia(), attesa.ritiroEntro()));
+    }
+
+    @Override
+    public String toString() {
+        Fase f = fase.get();
+        String dettaglio = f.stato() == Stato.PRONTA
+            ? " (copia " + f.copia().getCopia() + ", ritiro entro " + f.ritiroEntro() + ")" : "";
+        return "Prenotazione di " + isbn + " per " + utente + ": " + f.stato() + dettaglio;
+    }
+}
@@ -0,0 +1,263 @@
+package main;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Code di prenotazione per titolo, usate da {@link GestorePrestiti#prenota(String, String)}.
+ *
+ * <p>Ogni titolo ha la sua {@link Coda}: una coda FIFO senza lock, più le prenotazioni aperte
+ * per utente. Accodarsi e annullare costano un compare-and-set, e titoli diversi non
+ * condividono nulla: migliaia di prenotazioni sullo stesso titolo non rallentano i prestiti
+ * degli altri. Un annullamento lascia la voce nella coda, che viene scartata quando arriva
+ * in testa.
+ *
+ * <p>La consegna avviene ricevendo le notifiche del catalogo come {@link OsservatoreCatalogo}:
+ * la restituzione arriva sotto il lock di prestito della copia ({@link Catalogo#lockDelCestino(List)}),
+ * subito dopo il cambio di stato, e qui la
+ * copia viene messa da parte ({@link Libro#setRiservatoA(String)}) per la prima prenotazione
+ * in attesa prima che il lock venga rilasciato. Nessun altro prestito può quindi inserirsi,
+ * nemmeno dei cestini o fatto direttamente su {@link Libro}. Le riserve non ritirate in tempo
+ * vengono passate alla prenotazione successiva quando si torna sul titolo, o con
+ * {@link #rilasciaScadute()}.
+ *
+ * <p>Le prenotazioni vivono in memoria, come gli indici di {@link GestorePrestiti}: non sono
+ * nel {@link Giornale}.
+ */
+final class Prenotazioni implements OsservatoreCatalogo {
+
+    /** Le prenotazioni di un titolo. */
+    private static final class Coda {
+        /** In ordine di arrivo; comprende voci già annullate o ritirate, scartate alla lettura. */
+        final ConcurrentLinkedQueue<Prenotazione> inAttesa = new ConcurrentLinkedQueue<>();
+        /** Prenotazioni non concluse, al più una per utente. */
+        final Map<String, Prenotazione> aperte = new ConcurrentHashMap<>();
+        /** Prenotazioni con una copia da parte, da ricontrollare alla scadenza del ritiro. */
+        final Set<Prenotazione> daRitirare = ConcurrentHashMap.newKeySet();
+        /** Prenotazioni {@link Prenotazione.Stato#IN_ATTESA}, contate dopo l'inserimento in coda. */
+        final AtomicInteger numeroInAttesa = new AtomicInteger();
+    }
+
+    private final Catalogo catalogo;
+    private final Clock clock;
+    private volatile int giorniRitiro = GestorePrestiti.GIORNI_RITIRO_PREDEFINITI;
+
+    /** Chiave ISBN ({@link Catalogo#chiaveIsbn(String)}) → coda del titolo. */
+    private final Map<String, Coda> code = new ConcurrentHashMap<>();
+
+    Prenotazioni(Catalogo catalogo, Clock clock) {
+        this.catalogo = catalogo;
+        this.clock = clock;
+    }
+
+    int giorniRitiro()                  { return giorniRitiro; }
+
+    void setGiorniRitiro(int giorni)    { this.giorniRitiro = giorni; }
+
+    // ------------------------------------------------------------------ operazioni
+
+    /** Accoda {@code utente} per il titolo, o restituisce la prenotazione che ha già aperta. */
+    Prenotazione prenota(Libro titolo, String utente) {
+        Coda coda = code.computeIfAbsent(Catalogo.chiaveIsbn(titolo.getIsbn()), k -> new Coda());
+        Prenotazione nuova = new Prenotazione(titolo.getIsbn(), utente);
+        Prenotazione aperta = coda.aperte.putIfAbsent(utente, nuova);
+        if (aperta != null) return aperta;
+        coda.inAttesa.add(nuova);
+        coda.numeroInAttesa.incrementAndGet();
+        if (!catalogo.contiene(titolo)) {
+            // rimosso mentre ci accodavamo: la coda potrebbe non essere più quella del titolo
+            annulla(coda, nuova);
+            throw new IllegalStateException("Nessun libro con ISBN: " + titolo.getIsbn());
+        }
+        rilasciaScadute(coda);
+        servi(titolo, coda);
+        return nuova;
+    }
+
+    /** Annulla la prenotazione aperta di {@code utente}; una copia già da parte passa alla successiva. */
+    boolean annulla(Libro titolo, String utente) {
+        Coda coda = code.get(Catalogo.chiaveIsbn(titolo.getIsbn()));
+        Prenotazione p = coda == null ? null : coda.aperte.get(utente);
+        return p != null && annulla(coda, p);
+    }
+
+    /** Prenotazioni in attesa di una copia per il titolo. */
+    int numeroInAttesa(String isbn) {
+        Coda coda = code.get(Catalogo.chiaveIsbn(isbn));
+        return coda == null ? 0 : Math.max(0, coda.numeroInAttesa.get());
+    }
+
+    /**
+     * La copia del titolo messa da parte per {@code utente}, o {@code null}. Prima fa scadere
+     * le riserve non ritirate in tempo, così una riserva scaduta non viene più offerta.
+     */
+    Libro riservataA(Libro titolo, String utente) {
+        if (code.isEmpty()) return null;
+        Coda coda = code.get(Catalogo.chiaveIsbn(titolo.getIsbn()));
+        if (coda == null) return null;
+        if (!coda.daRitirare.isEmpty()) rilasciaScadute(coda);
+        Prenotazione p = coda.aperte.get(utente);
+        return p == null ? null : p.getCopia();
+    }
+
+    /** Fa scadere le riserve di tutti i titoli non ritirate in tempo; restituisce quante. */
+    int rilasciaScadute() {
+        int scadute = 0;
+        for (Coda coda : code.values()) scadute += rilasciaScadute(coda);
+        return scadute;
+    }
+
+    // ------------------------------------------------------------------ notifiche
+
+    /** Sotto il lock della copia appena restituita: passa alla prima prenotazione in attesa. */
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        if (code.isEmpty()) return;
+        Coda coda = code.get(Catalogo.chiaveIsbn(libro.getIsbn()));
+        if (coda != null && coda.numeroInAttesa.get() > 0 && libro.getRiservatoA() == null) assegna(coda, libro);
+    }
+
+    /** Un utente che prende il titolo, in qualunque modo, non lo aspetta più. */
+    @Override
+    public void libroPrestato(Libro libro) {
+        if (code.isEmpty()) return;
+        Coda coda = code.get(Catalogo.chiaveIsbn(libro.getIsbn()));
+        String utente = libro.getPrestitarioCorrente();
+        Prenotazione p = coda == null || utente == null ? null : coda.aperte.get(utente);
+        if (p == null) return;
+        for (;;) {
+            Prenotazione.Fase f = p.fase();
+            if (f.stato().isConclusa()) return;
+            if (p.concludi(f, Prenotazione.Stato.RITIRATA)) {
+                coda.aperte.remove(utente, p);
+                if (f.stato() == Prenotazione.Stato.IN_ATTESA) coda.numeroInAttesa.decrementAndGet();
+                // una copia diversa da questa resta da parte: la libera rilasciaScadute, fuori da questo lock
+                else if (libro.equals(f.copia())) coda.daRitirare.remove(p);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void libroRimosso(Libro libro) {
+        Coda coda = code.remove(Catalogo.chiaveIsbn(libro.getIsbn()));
+        if (coda == null) return;
+        for (Prenotazione p : coda.aperte.values()) {
+            for (Prenotazione.Fase f = p.fase(); !f.stato().isConclusa(); f = p.fase()) {
+                if (p.concludi(f, Prenotazione.Stato.ANNULLATA)) break;
+            }
+        }
+        coda.aperte.clear();
+        coda.daRitirare.clear();
+        coda.numeroInAttesa.set(0);
+    }
+
+    // ------------------------------------------------------------------ consegna
+
+    /** Mette da parte per le prenotazioni in attesa le copie libere del titolo, finché ce ne sono. */
+    private void servi(Libro titolo, Coda coda) {
+        while (coda.numeroInAttesa.get() > 0) {
+            Copie copie = titolo.getCopie();
+            Libro libera = copie != null ? copie.primaLibera()
+                : titolo.isDisponibile() && titolo.getRiservatoA() == null ? titolo : null;
+            if (libera == null) return;
+            boolean avanti = conLockDi(libera, () -> catalogo.contiene(libera)
+                && (!libera.isDisponibile() || libera.getRiservatoA() != null || assegna(coda, libera)));
+            if (!avanti) return;
+        }
+    }
+
+    /**
+     * Mette da parte {@code copia}, disponibile, per la prima prenotazione in attesa; se non ce
+     * ne sono la rende prestabile a chiunque. Va chiamato con il lock della copia.
+     *
+     * @return {@code true} se la copia è andata a una prenotazione
+     */
+    private boolean assegna(Coda coda, Libro copia) {
+        LocalDate entro = LocalDate.now(clock).plusDays(giorniRitiro);
+        for (Prenotazione p; (p = coda.inAttesa.poll()) != null; ) {
+            if (p.pronta(copia, entro)) {
+                coda.numeroInAttesa.decrementAndGet();
+                coda.daRitirare.add(p);
+                copia.setRiservatoA(p.getUtente());
+                return true;
+            }
+        }
+        if (copia.getRiservatoA() != null) copia.setRiservatoA(null);
+        return false;
+    }
+
+    private boolean annulla(Coda coda, Prenotazione p) {
+        for (;;) {
+            Prenotazione.Fase f = p.fase();
+            switch (f.stato()) {
+                case IN_ATTESA -> {
+                    if (p.concludi(f, Prenotazione.Stato.ANNULLATA)) {
+                        coda.numeroInAttesa.decrementAndGet();
+                        coda.aperte.remove(p.getUtente(), p);
+                        return true;
+                    }
+                }
+                case PRONTA -> {
+                    if (rilascia(coda, p, f, Prenotazione.Stato.ANNULLATA)) return true;
+                }
+                default -> {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /** Fa scadere le riserve non ritirate entro la data, e libera quelle rimaste a prenotazioni già concluse. */
+    private int rilasciaScadute(Coda coda) {
+        LocalDate oggi = LocalDate.now(clock);
+        int scadute = 0;
+        for (Prenotazione p : coda.daRitirare) {
+            Prenotazione.Fase f = p.fase();
+            if (f.stato() != Prenotazione.Stato.PRONTA) {
+                rilascia(coda, p, f, null);
+            } else if (f.ritiroEntro().isBefore(oggi) && rilascia(coda, p, f, Prenotazione.Stato.SCADUTA)) {
+                scadute++;
+            }
+        }
+        return scadute;
+    }
+
+    /**
+     * Toglie a {@code p} la copia messa da parte nella fase {@code f} e la passa alla prenotazione
+     * successiva. Se {@code stato} non è null porta prima {@code p} in quello stato.
+     *
+     * @return {@code false} se {@code p} è cambiata nel frattempo
+     */
+    private boolean rilascia(Coda coda, Prenotazione p, Prenotazione.Fase f, Prenotazione.Stato stato) {
+        Libro copia = f.copia();
+        return conLockDi(copia, () -> {
+            if (stato != null) {
+                if (!p.concludi(f, stato)) return false;
+                coda.aperte.remove(p.getUtente(), p);
+            }
+            coda.daRitirare.remove(p);
+            if (copia.isDisponibile() && p.getUtente().equals(copia.getRiservatoA()) && catalogo.contiene(copia)) {
+                assegna(coda, copia);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Esegue {@code azione} con il lock di prestito di {@code copia}, lo stesso sotto cui arrivano
+     * le notifiche: l'oggetto {@link Libro} nel catalogo normale, la sua striscia in quello compatto.
+     */
+    private boolean conLockDi(Libro copia, BooleanSupplier azione) {
+        boolean[] esito = new boolean[1];
+        Catalogo.conLock(catalogo.lockDelCestino(List.of(copia)), 0, () -> esito[0] = azione.getAsBoolean());
+        return esito[0];
+    }
+}
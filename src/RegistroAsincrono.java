@@ -0,0 +1,153 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link RegistroPrestiti} non bloccante: gli eventi finiscono in un buffer circolare
+ * limitato e un thread di background li formatta e li passa alla destinazione vera
+ * (console, file...). Il thread del prestito paga solo l'accodamento.
+ *
+ * <p>Quando il buffer è pieno si applica la {@link PoliticaCodaPiena} scelta.
+ */
+public class RegistroAsincrono implements RegistroPrestiti {
+
+    /** Cosa fare quando il buffer è pieno. */
+    public enum PoliticaCodaPiena {
+        /** L'evento viene scartato e contato in {@link #getEventiScartati()}. */
+        SCARTA,
+        /** Il chiamante attende che si liberi un posto. */
+        BLOCCA,
+        /** Un evento in eccesso ogni {@value #INTERVALLO_CAMPIONAMENTO} attende un posto, gli altri sono scartati. */
+        CAMPIONA
+    }
+
+    public static final int CAPACITA_PREDEFINITA = 8192;
+    static final int INTERVALLO_CAMPIONAMENTO = 64;
+    private static final int DIMENSIONE_LOTTO = 256;
+
+    private final BlockingQueue<EventoPrestito> coda;
+    private final PoliticaCodaPiena politica;
+    private final RegistroPrestiti destinazione;
+    private final Thread consumatore;
+
+    private final AtomicLong accodati  = new AtomicLong();
+    private final AtomicLong scritti   = new AtomicLong();
+    private final AtomicLong scartati  = new AtomicLong();
+    private final AtomicLong inEccesso = new AtomicLong();
+    private volatile boolean chiuso;
+
+    public RegistroAsincrono(RegistroPrestiti destinazione) {
+        this(destinazione, CAPACITA_PREDEFINITA, PoliticaCodaPiena.SCARTA);
+    }
+
+    public RegistroAsincrono(RegistroPrestiti destinazione, int capacita, PoliticaCodaPiena politica) {
+        if (destinazione == null) throw new IllegalArgumentException("La destinazione non può essere null");
+        if (capacita <= 0) throw new IllegalArgumentException("La capacità deve essere > 0");
+        if (politica == null) throw new IllegalArgumentException("La politica non può essere null");
+        this.coda = new ArrayBlockingQueue<>(capacita);
+        this.politica = politica;
+        this.destinazione = destinazione;
+        this.consumatore = new Thread(this::svuota, "registro-prestiti");
+        this.consumatore.setDaemon(true);
+        this.consumatore.start();
+    }
+
+    /** Registro asincrono su console condiviso da tutti i {@link GestorePrestiti} creati senza registro. */
+    static RegistroPrestiti consoleCondivisa() {
+        return ConsoleCondivisa.ISTANZA;
+    }
+
+    private static final class ConsoleCondivisa {
+        static final RegistroAsincrono ISTANZA = new RegistroAsincrono(RegistroPrestiti.console());
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(ISTANZA::close, "registro-prestiti-chiusura"));
+        }
+    }
+
+    // ------------------------------------------------------------------ produttori
+
+    @Override
+    public void registra(EventoPrestito evento) {
+        if (chiuso) throw new IllegalStateException("Registro chiuso");
+        if (coda.offer(evento)) {
+            accodati.incrementAndGet();
+            return;
+        }
+        boolean attendi = switch (politica) {
+            case SCARTA   -> false;
+            case BLOCCA   -> true;
+            case CAMPIONA -> inEccesso.incrementAndGet() % INTERVALLO_CAMPIONAMENTO == 0;
+        };
+        if (!attendi) {
+            scartati.incrementAndGet();
+            return;
+        }
+        try {
+            coda.put(evento);
+            accodati.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            scartati.incrementAndGet();
+        }
+    }
+
+    /** Attende che tutti gli eventi accodati finora siano stati scritti dalla destinazione. */
+    @Override
+    public void flush() {
+        long obiettivo = accodati.get();
+        while (scritti.get() < obiettivo && consumatore.isAlive()) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /** Scrive gli eventi rimasti nel buffer, ferma il thread e chiude la destinazione. */
+    @Override
+    public void close() {
+        if (chiuso) return;
+        chiuso = true;
+        try {
+            consumatore.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        destinazione.close();
+    }
+
+    /** Eventi persi perché il buffer era pieno. */
+    public long getEventiScartati() { return scartati.get(); }
+
+    // ------------------------------------------------------------------ consumatore
+
+    private void svuota() {
+        List<EventoPrestito> lotto = new ArrayList<>(DIMENSIONE_LOTTO);
+        while (!chiuso || !coda.isEmpty()) {
+            try {
+                EventoPrestito primo = coda.poll(50, TimeUnit.MILLISECONDS);
+                if (primo == null) continue;
+                lotto.add(primo);
+                coda.drainTo(lotto, DIMENSIONE_LOTTO - 1);
+                scrivi(lotto);
+            } catch (InterruptedException e) {
+                // si esce solo con close(): il ciclo ricontrolla "chiuso"
+            }
+            lotto.clear();
+        }
+    }
+
+    private void scrivi(List<EventoPrestito> lotto) {
+        try {
+            for (EventoPrestito evento : lotto) destinazione.registra(evento);
+            destinazione.flush();
+        } catch (RuntimeException e) {
+            System.err.println("Registro prestiti: scrittura fallita (" + e + ")");
+        } finally {
+            scritti.addAndGet(lotto.size());
+        }
+    }
+}
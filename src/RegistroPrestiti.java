@@ -0,0 +1,79 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Destinazione degli {@link EventoPrestito} prodotti da {@link GestorePrestiti}.
+ *
+ * <p>Le implementazioni di {@link #console()} e {@link #file(Path)} scrivono in modo
+ * sincrono; per togliere la scrittura dal thread del prestito vanno avvolte in un
+ * {@link RegistroAsincrono}.
+ */
+public interface RegistroPrestiti extends AutoCloseable {
+
+    void registra(EventoPrestito evento);
+
+    /** Rende persistenti gli eventi eventualmente bufferizzati. */
+    default void flush() {}
+
+    @Override
+    default void close() { flush(); }
+
+    /** Scrive ogni evento su {@code System.out}. */
+    static RegistroPrestiti console() {
+        return evento -> System.out.println(evento.formatta());
+    }
+
+    /** Non registra nulla. */
+    static RegistroPrestiti nessuno() {
+        return evento -> {};
+    }
+
+    /**
+     * Accoda gli eventi, una riga ciascuno, al file indicato (creato se non esiste).
+     * Le righe sono bufferizzate fino al prossimo {@link #flush()}.
+     */
+    static RegistroPrestiti file(Path percorso) {
+        try {
+            BufferedWriter out = Files.newBufferedWriter(percorso, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return new RegistroPrestiti() {
+                @Override
+                public void registra(EventoPrestito evento) {
+                    try {
+                        out.write(evento.formatta());
+                        out.newLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package main;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servizio HTTP/JSON per catalogo e prestiti, basato sul server incluso nel JDK
+ * ({@code com.sun.net.httpserver}).
+ *
+ * <p>Endpoint:
+ * <pre>
+ *   GET  /libri/{isbn}            → il libro, 404 se non esiste
+ *   GET  /libri?autore=eco        → libri dell'autore
+ *   POST /prestiti                isbn, utente, giorni → il libro prestato (201)
+ *   POST /restituzioni            isbn[, copia] → il libro restituito
+ *   GET  /prestiti/scaduti        → prestiti scaduti, in ordine di scadenza
+ * </pre>
+ * I parametri delle POST vanno nel corpo, come form ({@code application/x-www-form-urlencoded}),
+ * o nella query string. Gli errori di validazione rispondono 400, i conflitti di stato
+ * (libro inesistente, già prestato, già disponibile) 409, sempre con {@code {"errore": "..."}}.
+ * Per i titoli con più copie il JSON riporta anche il numero della copia prestata o restituita.
+ *
+ * <p>Ogni richiesta è servita da un thread proprio: un thread virtuale se il JDK li offre
+ * (dal 21), altrimenti un thread di piattaforma da un pool che cresce con il carico.
+ * Prestiti e ricerche non prendono lock globali, quindi non serve dimensionare un pool.
+ * Per provare il servizio sotto carico c'è {@link GeneratoreCarico}.
+ *
+ * <p>Senza TCP_NODELAY le risposte piccole aspettano l'ACK ritardato del client (~40 ms):
+ * conviene avviare la JVM con {@code -Dsun.net.httpserver.nodelay=true}. Il server del JDK
+ * legge la proprietà una volta sola, al primo avvio, ed è globale per la JVM, quindi la
+ * imposta chi la lancia e non questa classe.
+ */
+public final class ServizioPrestiti implements AutoCloseable {
+
+    private final Catalogo catalogo;
+    private final GestorePrestiti gestore;
+    private final HttpServer server;
+    private final ExecutorService esecutore;
+
+    private ServizioPrestiti(Catalogo catalogo, GestorePrestiti gestore, InetSocketAddress indirizzo) throws IOException {
+        this.catalogo = catalogo;
+        this.gestore = gestore;
+        this.esecutore = threadPerRichiesta("http-prestiti-");
+        this.server = HttpServer.create(indirizzo, 1024);
+        server.setExecutor(esecutore);
+        server.createContext("/libri", this::libri);
+        server.createContext("/prestiti", this::prestiti);
+        server.createContext("/restituzioni", this::restituzioni);
+        server.start();
+    }
+
+    /**
+     * Avvia il servizio sull'indirizzo di loopback.
+     *
+     * @param porta porta TCP, 0 per sceglierne una libera (vedi {@link #getPorta()})
+     */
+    public static ServizioPrestiti avvia(Catalogo catalogo, GestorePrestiti gestore, int porta) throws IOException {
+        return avvia(catalogo, gestore, new InetSocketAddress(InetAddress.getLoopbackAddress(), porta));
+    }
+
+    public static ServizioPrestiti avvia(Catalogo catalogo, GestorePrestiti gestore, InetSocketAddress indirizzo) throws IOException {
+        if (catalogo == null || gestore == null) throw new IllegalArgumentException("Catalogo e gestore non possono essere null");
+        return new ServizioPrestiti(catalogo, gestore, indirizzo);
+    }
+
+    public int getPorta() { return server.getAddress().getPort(); }
+
+    /** Smette di accettare richieste, aspetta fino a un secondo quelle in corso e ferma i thread. */
+    @Override
+    public void close() {
+        server.stop(1);
+        esecutore.shutdown();
+    }
+
+    /**
+     * Un thread virtuale per attività se il JDK li supporta, altrimenti un pool di thread
+     * di piattaforma senza limite che riusa quelli inattivi. La scelta avviene a runtime,
+     * così lo stesso codice compila con il JDK 17 e usa i thread virtuali dal 21.
+     */
+    static ExecutorService threadPerRichiesta(String prefisso) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger contatore = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, prefisso + contatore.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // ===================================================================
+    //  ENDPOINT
+    // ===================================================================
+
+    private void libri(HttpExchange scambio) throws IOException {
+        gestisci(scambio, "GET", () -> {
+            String percorso = scambio.getRequestURI().getRawPath();
+            if (percorso.length() > "/libri/".length()) {
+                String isbn = URLDecoder.decode(percorso.substring("/libri/".length()), StandardCharsets.UTF_8);
+                Optional<Libro> libro = catalogo.cercaPerIsbn(isbn);
+                return libro.map(l -> new Risposta(200, json(l)))
+                            .orElseGet(() -> errore(404, "Libro non trovato: " + isbn));
+            }
+            String autore = parametri(scambio, null).get("autore");
+            if (autore == null) return errore(400, "Indicare l'ISBN nel percorso o il parametro autore");
+            return new Risposta(200, json(catalogo.cercaPerAutore(autore)));
+        });
+    }
+
+    private void prestiti(HttpExchange scambio) throws IOException {
+        if (scambio.getRequestURI().getPath().equals("/prestiti/scaduti")) {
+            gestisci(scambio, "GET", () -> new Risposta(200, json(gestore.getPrestitiScaduti())));
+            return;
+        }
+        gestisci(scambio, "POST", () -> {
+            Map<String, String> p = parametri(scambio, corpo(scambio));
+            String isbn = p.get("isbn");
+            int giorni;
+            try {
+                giorni = Integer.parseInt(p.getOrDefault("giorni", ""));
+            } catch (NumberFormatException e) {
+                return errore(400, "Parametro giorni non valido: " + p.get("giorni"));
+            }
+            return new Risposta(201, json(gestore.prestaLibro(isbn, p.get("utente"), giorni)));
+        });
+    }
+
+    private void restituzioni(HttpExchange scambio) throws IOException {
+        gestisci(scambio, "POST", () -> {
+            Map<String, String> p = parametri(scambio, corpo(scambio));
+            String isbn = p.get("isbn");
+            if (!p.containsKey("copia")) return new Risposta(200, json(gestore.restituisciLibro(isbn)));
+            int copia;
+            try {
+                copia = Integer.parseInt(p.get("copia"));
+            } catch (NumberFormatException e) {
+                return errore(400, "Parametro copia non valido: " + p.get("copia"));
+            }
+            return new Risposta(200, json(gestore.restituisciLibro(isbn, copia)));
+        });
+    }
+
+    // ===================================================================
+    //  HTTP
+    // ===================================================================
+
+    private record Risposta(int codice, String json) {}
+
+    @FunctionalInterface
+    private interface Azione {
+        Risposta esegui() throws IOException;
+    }
+
+    /** Controlla il metodo, esegue l'azione e traduce le eccezioni del dominio in codici HTTP. */
+    private static void gestisci(HttpExchange scambio, String metodo, Azione azione) throws IOException {
+        try (scambio) {
+            Risposta risposta;
+            if (!scambio.getRequestMethod().equals(metodo)) {
+                scambio.getResponseHeaders().set("Allow", metodo);
+                risposta = errore(405, "Metodo non ammesso: " + scambio.getRequestMethod());
+            } else {
+                try {
+                    risposta = azione.esegui();
+                } catch (IllegalArgumentException e) {
+                    risposta = errore(400, e.getMessage());
+                } catch (IllegalStateException e) {
+                    risposta = errore(409, e.getMessage());
+                }
+            }
+            byte[] corpo = risposta.json().getBytes(StandardCharsets.UTF_8);
+            scambio.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            scambio.sendResponseHeaders(risposta.codice(), corpo.length);
+            try (OutputStream out = scambio.getResponseBody()) {
+                out.write(corpo);
+            }
+        }
+    }
+
+    private static Risposta errore(int codice, String messaggio) {
+        return new Risposta(codice, "{\"errore\":" + stringa(messaggio) + "}");
+    }
+
+    private static String corpo(HttpExchange scambio) throws IOException {
+        try (InputStream in = scambio.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Parametri della query string più quelli del corpo form, che prevalgono. */
+    private static Map<String, String> parametri(HttpExchange scambio, String corpo) {
+        Map<String, String> parametri = new HashMap<>();
+        decodifica(scambio.getRequestURI().getRawQuery(), parametri);
+        decodifica(corpo, parametri);
+        return parametri;
+    }
+
+    private static void decodifica(String form, Map<String, String> destinazione) {
+        if (form == null || form.isBlank()) return;
+        for (String coppia : form.split("&")) {
+            int uguale = coppia.indexOf('=');
+            String nome = uguale < 0 ? coppia : coppia.substring(0, uguale);
+            String valore = uguale < 0 ? "" : coppia.substring(uguale + 1);
+            destinazione.put(URLDecoder.decode(nome, StandardCharsets.UTF_8),
+                             URLDecoder.decode(valore, StandardCharsets.UTF_8));
+        }
+    }
+
+    // ===================================================================
+    //  JSON
+    // ===================================================================
+
+    static String json(Libro libro) {
+        StringBuilder sb = new StringBuilder(160);
+        scrivi(libro, sb);
+        return sb.toString();
+    }
+
+    static String json(List<Libro> libri) {
+        StringBuilder sb = new StringBuilder(2 + 160 * libri.size()).append('[');
+        for (int i = 0; i < libri.size(); i++) {
+            if (i > 0) sb.append(',');
+            scrivi(libri.get(i), sb);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void scrivi(Libro libro, StringBuilder sb) {
+        // stato letto una volta sola: il libro può cambiare mentre lo serializziamo
+        Libro.Prestito prestito = libro.getPrestito();
+        sb.append("{\"isbn\":").append(stringa(libro.getIsbn()))
+          .append(",\"titolo\":").append(stringa(libro.getTitolo()))
+          .append(",\"autore\":").append(stringa(libro.getAutore()))
+          .append(",\"anno\":").append(libro.getAnnoPubblicazione());
+        if (libro.getCopia() > 1) sb.append(",\"copia\":").append(libro.getCopia());
+        sb.append(",\"disponibile\":").append(prestito == null);
+        if (prestito != null) {
+            if (prestito.utente() != null) sb.append(",\"prestitario\":").append(stringa(prestito.utente()));
+            sb.append(",\"restituzioneEntro\":\"").append(prestito.dataRestituzionePrevista()).append('"');
+        }
+        sb.append('}');
+    }
+
+    static String stringa(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"'  -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default   -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
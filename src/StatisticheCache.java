@@ -0,0 +1,30 @@
+package main;
+
+/**
+ * Contatori della cache delle ricerche ({@link Catalogo#abilitaCache(long)}) al momento della lettura.
+ *
+ * @param successi       ricerche servite dalla cache
+ * @param mancati        ricerche calcolate, compresi i risultati trovati ma non più validi
+ * @param sfratti        risultati tolti per fare spazio
+ * @param rifiutati      risultati calcolati ma non ammessi, perché meno richiesti di quelli che avrebbero tolto
+ * @param invalidazioni  risultati tolti perché una modifica del catalogo li aveva resi vecchi
+ * @param voci           risultati in cache
+ * @param peso           peso dei risultati in cache: i libri che contengono, più uno per risultato
+ * @param pesoMassimo    peso oltre il quale la cache toglie i risultati usati meno di recente
+ */
+public record StatisticheCache(long successi, long mancati, long sfratti, long rifiutati, long invalidazioni,
+                               int voci, long peso, long pesoMassimo) {
+
+    /** Frazione delle ricerche servite dalla cache, 0 se non ce ne sono state. */
+    public double tassoSuccessi() {
+        long totale = successi + mancati;
+        return totale == 0 ? 0 : (double) successi / totale;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache: %d successi, %d mancati (%.1f%%), %d sfratti, %d rifiutati, %d invalidazioni, "
+            + "%d voci, peso %d/%d", successi, mancati, 100 * tassoSuccessi(), sfratti, rifiutati, invalidazioni,
+            voci, peso, pesoMassimo);
+    }
+}
@@ -0,0 +1,260 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versioni successive del catalogo, lette tramite {@link VersioneCatalogo}.
+ *
+ * <p>Ogni aggiunta, rimozione, prestito o restituzione produce un nuovo {@link Stato}
+ * immutabile: le schede stanno in un trie persistente a 32 vie indicizzato dalla posizione
+ * di inserimento, e una modifica copia solo il percorso dalla radice alla scheda
+ * (4 nodi per un milione di libri), condividendo il resto con la versione precedente.
+ * Prendere una versione costa quindi una sola lettura, e una versione già presa non
+ * cambia più.
+ *
+ * <p>Gli stati vengono pubblicati con un compare-and-set: prestiti concorrenti di libri
+ * diversi non si bloccano, al più uno dei due ripete la copia del percorso. Lo storico
+ * si aggiorna ricevendo le notifiche del catalogo come {@link OsservatoreCatalogo}.
+ */
+final class StoricoCatalogo implements OsservatoreCatalogo {
+
+    private static final int BIT = 5;
+    private static final int LARGHEZZA = 1 << BIT;
+    private static final int MASCHERA = LARGHEZZA - 1;
+
+    /**
+     * Una versione del catalogo.
+     *
+     * @param radice      radice del trie; le foglie sono {@link VersioneCatalogo.Scheda}
+     * @param spostamento bit della posizione sopra il livello delle foglie (0 = la radice è una foglia)
+     * @param prossima    posizione che riceverà il prossimo libro aggiunto
+     * @param numero      numero della versione, +1 per ogni modifica
+     */
+    record Stato(Object[] radice, int spostamento, int prossima, long numero, int totale, int inPrestito) {
+
+        VersioneCatalogo.Scheda get(int posizione) {
+            if (posizione >= capacita(spostamento)) return null;
+            Object[] nodo = radice;
+            for (int s = spostamento; s > 0; s -= BIT) {
+                nodo = (Object[]) nodo[(posizione >>> s) & MASCHERA];
+                if (nodo == null) return null;
+            }
+            return (VersioneCatalogo.Scheda) nodo[posizione & MASCHERA];
+        }
+
+        /** Aggiunge a {@code destinazione} le schede presenti, in ordine di posizione. */
+        void raccogli(List<VersioneCatalogo.Scheda> destinazione) {
+            raccogli(radice, spostamento, destinazione);
+        }
+
+        private static void raccogli(Object[] nodo, int spostamento, List<VersioneCatalogo.Scheda> destinazione) {
+            for (Object figlio : nodo) {
+                if (figlio == null) continue;
+                if (spostamento == 0) destinazione.add((VersioneCatalogo.Scheda) figlio);
+                else raccogli((Object[]) figlio, spostamento - BIT, destinazione);
+            }
+        }
+    }
+
+    private final AtomicReference<Stato> stato;
+
+    /**
+     * Posizioni assegnate a ogni copia ({@link Catalogo#chiaveCopia(Libro)}), dalla più
+     * vecchia: un libro rimosso e poi riaggiunto ne ha due. Le voci non vengono mai tolte,
+     * così una versione vecchia trova ancora i libri rimossi dopo di lei.
+     */
+    private final Map<String, int[]> posizioni = new ConcurrentHashMap<>();
+
+    /**
+     * Assegna le posizioni ai libri attuali del catalogo. Va chiamato con il lock di scrittura
+     * del catalogo, poi lo storico va registrato come osservatore e infine va chiamato
+     * {@link #popola(List)} con gli stessi libri, sempre sotto lo stesso lock.
+     */
+    StoricoCatalogo(List<Libro> libri) {
+        int spostamento = 0;
+        while (libri.size() > capacita(spostamento)) spostamento += BIT;
+        for (int i = 0; i < libri.size(); i++) {
+            posizioni.put(Catalogo.chiaveCopia(libri.get(i)), new int[] {i});
+        }
+        stato = new AtomicReference<>(new Stato(new Object[LARGHEZZA], spostamento, libri.size(), 0, 0, 0));
+    }
+
+    /**
+     * Legge lo stato dei libri e lo pubblica come prima versione. I prestiti e le restituzioni
+     * notificati da quando lo storico è registrato sono già nello stato corrente e prevalgono
+     * su quanto letto qui: ognuno di loro è stato notificato dopo il cambio di stato, quindi
+     * è almeno altrettanto recente.
+     */
+    void popola(List<Libro> libri) {
+        int spostamento = stato.get().spostamento();
+        Object[] radice = new Object[LARGHEZZA];
+        for (int i = 0; i < libri.size(); i++) imposta(radice, spostamento, i, scheda(libri.get(i)));
+        for (;;) {
+            Stato notificato = stato.get();
+            sovrapponi(notificato.radice(), spostamento, 0, radice, spostamento);
+            Stato primo = new Stato(radice, spostamento, libri.size(), notificato.numero() + 1,
+                                    libri.size(), contaInPrestito(radice, spostamento));
+            if (stato.compareAndSet(notificato, primo)) return;
+        }
+    }
+
+    /** La versione corrente. */
+    Stato stato() { return stato.get(); }
+
+    /** Posizioni assegnate nel tempo a una chiave ISBN, o {@code null}. */
+    int[] posizioni(String chiave) { return posizioni.get(chiave); }
+
+    // ------------------------------------------------------------------ notifiche
+
+    /** Le aggiunte arrivano con il lock di scrittura del catalogo, quindi una alla volta. */
+    @Override
+    public void libroAggiunto(Libro libro) {
+        String chiave = Catalogo.chiaveCopia(libro);
+        int posizione = stato.get().prossima();
+        int[] vecchie = posizioni.get(chiave);
+        int[] nuove = vecchie == null ? new int[1] : Arrays.copyOf(vecchie, vecchie.length + 1);
+        nuove[nuove.length - 1] = posizione;
+        posizioni.put(chiave, nuove);
+        aggiorna(posizione, scheda(libro));
+    }
+
+    @Override
+    public void libroRimosso(Libro libro) {
+        int posizione = ultimaPosizione(libro);
+        if (posizione >= 0) aggiorna(posizione, null);
+    }
+
+    @Override
+    public void libroPrestato(Libro libro) {
+        int posizione = ultimaPosizione(libro);
+        if (posizione >= 0) aggiorna(posizione, scheda(libro));
+    }
+
+    @Override
+    public void libroRestituito(Libro libro, String utente, LocalDate dataPrevista) {
+        int posizione = ultimaPosizione(libro);
+        if (posizione >= 0) aggiorna(posizione, scheda(libro));
+    }
+
+    /** Un cestino diventa una sola versione: nessuna versione ne contiene solo una parte. */
+    @Override
+    public void libriPrestati(List<Libro> libri) {
+        aggiornaTutti(libri);
+    }
+
+    @Override
+    public void libriRestituiti(List<Restituzione> restituzioni) {
+        aggiornaTutti(restituzioni.stream().map(Restituzione::libro).toList());
+    }
+
+    // ------------------------------------------------------------------ trie
+
+    private int ultimaPosizione(Libro libro) {
+        int[] p = posizioni.get(Catalogo.chiaveCopia(libro));
+        return p == null ? -1 : p[p.length - 1];
+    }
+
+    /** Pubblica una versione con {@code scheda} (null = rimossa) in {@code posizione}. */
+    private void aggiorna(int posizione, VersioneCatalogo.Scheda scheda) {
+        for (;;) {
+            Stato s = stato.get();
+            if (stato.compareAndSet(s, con(s, posizione, scheda, s.numero() + 1))) return;
+        }
+    }
+
+    /** Pubblica in una sola versione le schede attuali dei {@code libri}. */
+    private void aggiornaTutti(List<Libro> libri) {
+        int[] posizioni = new int[libri.size()];
+        VersioneCatalogo.Scheda[] schede = new VersioneCatalogo.Scheda[libri.size()];
+        for (int i = 0; i < libri.size(); i++) {
+            posizioni[i] = ultimaPosizione(libri.get(i));
+            schede[i] = scheda(libri.get(i));
+        }
+        for (;;) {
+            Stato s = stato.get();
+            Stato nuovo = s;
+            for (int i = 0; i < posizioni.length; i++) {
+                if (posizioni[i] >= 0) nuovo = con(nuovo, posizioni[i], schede[i], s.numero() + 1);
+            }
+            if (stato.compareAndSet(s, nuovo)) return;
+        }
+    }
+
+    /** {@code s} con {@code scheda} in {@code posizione}, numerato {@code numero}. */
+    private static Stato con(Stato s, int posizione, VersioneCatalogo.Scheda scheda, long numero) {
+        Object[] radice = s.radice();
+        int spostamento = s.spostamento();
+        while (posizione >= capacita(spostamento)) {
+            Object[] piuAlta = new Object[LARGHEZZA];
+            piuAlta[0] = radice;
+            radice = piuAlta;
+            spostamento += BIT;
+        }
+        VersioneCatalogo.Scheda vecchia = s.get(posizione);
+        return new Stato(copiaPercorso(radice, spostamento, posizione, scheda), spostamento,
+            Math.max(s.prossima(), posizione + 1), numero,
+            s.totale() + (scheda != null ? 1 : 0) - (vecchia != null ? 1 : 0),
+            s.inPrestito() + (inPrestito(scheda) ? 1 : 0) - (inPrestito(vecchia) ? 1 : 0));
+    }
+
+    private static Object[] copiaPercorso(Object[] nodo, int spostamento, int posizione, VersioneCatalogo.Scheda scheda) {
+        Object[] copia = nodo == null ? new Object[LARGHEZZA] : nodo.clone();
+        int i = (posizione >>> spostamento) & MASCHERA;
+        copia[i] = spostamento == 0 ? scheda : copiaPercorso((Object[]) copia[i], spostamento - BIT, posizione, scheda);
+        return copia;
+    }
+
+    /** Scrive sul posto, per un trie non ancora pubblicato. */
+    private static void imposta(Object[] radice, int spostamento, int posizione, VersioneCatalogo.Scheda scheda) {
+        Object[] nodo = radice;
+        for (int s = spostamento; s > 0; s -= BIT) {
+            int i = (posizione >>> s) & MASCHERA;
+            if (nodo[i] == null) nodo[i] = new Object[LARGHEZZA];
+            nodo = (Object[]) nodo[i];
+        }
+        nodo[posizione & MASCHERA] = scheda;
+    }
+
+    /**
+     * Copia in {@code destinazione}, che ha la stessa altezza, le schede di {@code nodo},
+     * il sottoalbero che copre le posizioni da {@code base}.
+     */
+    private static void sovrapponi(Object[] nodo, int spostamento, int base, Object[] destinazione, int altezza) {
+        for (int i = 0; i < LARGHEZZA; i++) {
+            Object figlio = nodo[i];
+            if (figlio == null) continue;
+            int posizione = base + (i << spostamento);
+            if (spostamento == 0) imposta(destinazione, altezza, posizione, (VersioneCatalogo.Scheda) figlio);
+            else sovrapponi((Object[]) figlio, spostamento - BIT, posizione, destinazione, altezza);
+        }
+    }
+
+    private static int contaInPrestito(Object[] nodo, int spostamento) {
+        int n = 0;
+        for (Object figlio : nodo) {
+            if (figlio == null) continue;
+            if (spostamento == 0) n += inPrestito((VersioneCatalogo.Scheda) figlio) ? 1 : 0;
+            else n += contaInPrestito((Object[]) figlio, spostamento - BIT);
+        }
+        return n;
+    }
+
+    private static boolean inPrestito(VersioneCatalogo.Scheda scheda) {
+        return scheda != null && !scheda.isDisponibile();
+    }
+
+    private static long capacita(int spostamento) {
+        return 1L << (spostamento + BIT);
+    }
+
+    static VersioneCatalogo.Scheda scheda(Libro libro) {
+        return new VersioneCatalogo.Scheda(libro.getIsbn(), libro.getTitolo(), libro.getAutore(),
+            libro.getAnnoPubblicazione(), libro.getCopia(), !libro.isDisponibile(),
+            libro.getPrestitarioCorrente(), libro.getDataRestituzionePrevista());
+    }
+}
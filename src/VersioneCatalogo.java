@@ -0,0 +1,99 @@
+package main;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Fotografia immutabile del catalogo e dei prestiti in un istante, ottenuta con
+ * {@link Catalogo#versioneCorrente()}.
+ *
+ * <p>Pensata per report ed esportazioni lunghi: la versione non cambia mentre la si legge,
+ * anche se nel frattempo il banco presta, restituisce o aggiunge libri, e leggerla non
+ * blocca nessuno. I libri sono {@link Scheda} immutabili e non i {@link Libro} vivi, quindi
+ * prestitario e scadenza restano quelli dell'istante della versione.
+ *
+ * <p>Due versioni con lo stesso {@link #getNumero()} descrivono lo stesso stato.
+ */
+public final class VersioneCatalogo {
+
+    /**
+     * Un libro com'era nella versione; {@code inPrestito} è falso per i libri disponibili e
+     * {@code copia} è il {@linkplain Libro#getCopia() numero della copia}.
+     */
+    public record Scheda(String isbn, String titolo, String autore, int annoPubblicazione, int copia,
+                         boolean inPrestito, String prestitario, LocalDate dataRestituzionePrevista) {
+
+        public boolean isDisponibile() { return !inPrestito; }
+    }
+
+    private final StoricoCatalogo storico;
+    private final StoricoCatalogo.Stato stato;
+
+    VersioneCatalogo(StoricoCatalogo storico, StoricoCatalogo.Stato stato) {
+        this.storico = storico;
+        this.stato = stato;
+    }
+
+    /** Numero progressivo della versione: cresce di uno per ogni modifica del catalogo. */
+    public long getNumero()             { return stato.numero(); }
+    public int  getTotaleLibri()        { return stato.totale(); }
+    public int  getNumeroInPrestito()   { return stato.inPrestito(); }
+    public int  getNumeroDisponibili()  { return stato.totale() - stato.inPrestito(); }
+
+    /** Tutti i libri della versione, in ordine di inserimento. */
+    public List<Scheda> getTuttiILibri() {
+        List<Scheda> libri = new ArrayList<>(stato.totale());
+        stato.raccogli(libri);
+        return Collections.unmodifiableList(libri);
+    }
+
+    /** Cerca per ISBN con la stessa equivalenza di {@link Catalogo#cercaPerIsbn(String)}: la prima copia. */
+    public Optional<Scheda> cercaPerIsbn(String isbn) {
+        if (isbn == null || isbn.isBlank()) return Optional.empty();
+        int[] posizioni = storico.posizioni(Catalogo.chiaveIsbn(isbn));
+        if (posizioni == null) return Optional.empty();
+        for (int i = posizioni.length - 1; i >= 0; i--) {
+            if (posizioni[i] >= stato.prossima()) continue;      // aggiunto dopo questa versione
+            Scheda scheda = stato.get(posizioni[i]);
+            if (scheda != null) return Optional.of(scheda);
+        }
+        return Optional.empty();
+    }
+
+    public List<Scheda> getLibriDisponibili() {
+        return filtra(false);
+    }
+
+    public List<Scheda> getLibriInPrestito() {
+        return filtra(true);
+    }
+
+    /** Prestiti con restituzione prevista strettamente prima di {@code data}, in ordine di scadenza. */
+    public List<Scheda> getPrestitiScaduti(LocalDate data) {
+        if (data == null) throw new IllegalArgumentException("La data non può essere null");
+        List<Scheda> scaduti = new ArrayList<>();
+        for (Scheda s : getTuttiILibri()) {
+            LocalDate scadenza = s.dataRestituzionePrevista();
+            if (s.inPrestito() && scadenza != null && scadenza.isBefore(data)) scaduti.add(s);
+        }
+        scaduti.sort(Comparator.comparing(Scheda::dataRestituzionePrevista));
+        return Collections.unmodifiableList(scaduti);
+    }
+
+    private List<Scheda> filtra(boolean inPrestito) {
+        List<Scheda> risultati = new ArrayList<>(inPrestito ? getNumeroInPrestito() : getNumeroDisponibili());
+        for (Scheda s : getTuttiILibri()) {
+            if (s.inPrestito() == inPrestito) risultati.add(s);
+        }
+        return Collections.unmodifiableList(risultati);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Versione %d: %d libri, %d in prestito", getNumero(), getTotaleLibri(), getNumeroInPrestito());
+    }
+}
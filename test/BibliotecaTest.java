@@ -1,12 +1,60 @@
 package test;
 
 import main.Catalogo;
+import main.CatalogoCompatto;
+import main.CatalogoPartizionato;
 import main.GestorePrestiti;
+import main.EsitoCestino;
+import main.EsitoImportazione;
+import main.EventoPrestito;
+import main.Faccette;
+import main.FlussoModifiche;
+import main.GeneratoreCarico;
+import main.Giornale;
+import main.IstantaneaCatalogo;
 import main.Libro;
+import main.Metriche;
+import main.ModificaCatalogo;
+import main.Pagina;
+import main.Prenotazione;
+import main.RegistroAsincrono;
+import main.RegistroPrestiti;
+import main.ServizioPrestiti;
+import main.StatisticheCache;
+import main.VersioneCatalogo;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -86,6 +134,22 @@ class BibliotecaTest {
             assertFalse(risultato.isPresent());
         }
 
+        @Test
+        @DisplayName("cercaPerIsbn ignora maiuscole e spazi esterni")
+        void testCercaIsbnNormalizzato() {
+            Optional<Libro> trovato = catalogo.cercaPerIsbn("  isbn-002 ");
+            assertTrue(trovato.isPresent());
+            assertSame(levi, trovato.get());
+        }
+
+        @Test
+        @DisplayName("aggiungiLibro rifiuta ISBN duplicato che differisce solo per maiuscole")
+        void testIsbnDuplicatoCaseInsensitive() {
+            Libro duplicato = new Libro("isbn-001", "Altro titolo", "Altro Autore", 2000);
+            assertThrows(IllegalArgumentException.class, () -> catalogo.aggiungiLibro(duplicato));
+            assertEquals(4, catalogo.getTotaleLibri());
+        }
+
         @Test
         @DisplayName("prestaLibro segna il libro come non disponibile")
         void testPrestaLibro() {
@@ -133,6 +197,25 @@ class BibliotecaTest {
             List<Libro> risultati = catalogo.cercaPerAutore("Tolkien");
             assertTrue(risultati.isEmpty());
         }
+
+        @Test
+        @DisplayName("query più corte di un trigramma trovano comunque le sottostringhe")
+        void testCercaPerAutore_queryCorta() {
+            List<Libro> risultati = catalogo.cercaPerAutore("vo");
+            assertEquals(1, risultati.size());
+            assertEquals("ISBN-003", risultati.get(0).getIsbn());
+        }
+
+        @Test
+        @DisplayName("l'indice autori segue aggiunte e rimozioni")
+        void testCercaPerAutore_indiceAggiornato() {
+            catalogo.aggiungiLibro(new Libro("ISBN-005", "Il pendolo di Foucault", "Umberto Eco", 1988));
+            assertEquals(2, catalogo.cercaPerAutore("umberto").size());
+
+            catalogo.rimuoviLibro("ISBN-001");
+            catalogo.rimuoviLibro("ISBN-005");
+            assertTrue(catalogo.cercaPerAutore("Eco").isEmpty());
+        }
     }
 
     @Nested
@@ -182,6 +265,19 @@ class BibliotecaTest {
             List<Libro> inPrestito = catalogo.getLibriInPrestito();
             assertEquals(2, inPrestito.size());
         }
+
+        @Test
+        @DisplayName("le partizioni seguono i cambi di stato fatti direttamente sul libro")
+        void testPartizioniAggiornateDalLibro() {
+            eco.segnaComePrestato("Utente", 7);
+            assertEquals(List.of(eco), catalogo.getLibriInPrestito());
+            assertEquals(1, catalogo.getNumeroInPrestito());
+            assertEquals(3, catalogo.getNumeroDisponibili());
+
+            eco.segnaComRestituito();
+            assertTrue(catalogo.getLibriInPrestito().isEmpty());
+            assertEquals(4, catalogo.getNumeroDisponibili());
+        }
     }
 
     @Nested
@@ -237,6 +333,24 @@ class BibliotecaTest {
             // Con 1 giorno il libro non è ancora scaduto (scade domani)
             assertEquals(0, scaduti.size());
         }
+
+        @Test
+        @DisplayName("con un orologio fisso i prestiti scadono nell'ordine delle date")
+        void testPrestitiScadutiConOrologio() {
+            LocalDate oggi = LocalDate.of(2024, 3, 1);
+            Clock clock = Clock.fixed(oggi.atStartOfDay().toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+            GestorePrestiti gestoreFisso = new GestorePrestiti(catalogo, clock);
+
+            gestoreFisso.prestaLibro("ISBN-001", "Utente A", 14);
+            gestoreFisso.prestaLibro("ISBN-002", "Utente B", 7);
+
+            assertTrue(gestoreFisso.getPrestitiScaduti().isEmpty());
+            assertEquals(List.of(levi), gestoreFisso.getPrestitiScaduti(oggi.plusDays(8)));
+            assertEquals(List.of(levi, eco), gestoreFisso.getPrestitiScaduti(oggi.plusDays(15)));
+
+            gestoreFisso.restituisciLibro("ISBN-002");
+            assertEquals(1, gestoreFisso.streamPrestitiScaduti(oggi.plusDays(15)).count());
+        }
     }
 
     @Nested
@@ -267,4 +381,1781 @@ class BibliotecaTest {
                 () -> catalogo.rimuoviLibro("ISBN-001"));
         }
     }
+
+    @Nested
+    @DisplayName("aggiungiLibri: importazione massiva")
+    class TestImportazione {
+
+        @Test
+        @DisplayName("scarta i duplicati del catalogo e del lotto senza interrompere l'importazione")
+        void testDuplicatiRiportati() {
+            Libro nuovo = new Libro("ISBN-010", "Il sistema periodico", "Primo Levi", 1975);
+            EsitoImportazione esito = catalogo.aggiungiLibri(List.of(
+                nuovo,
+                new Libro("isbn-001", "Doppione", "Altro Autore", 2000),
+                new Libro("ISBN-010", "Doppione nel lotto", "Altro Autore", 2000)));
+
+            assertEquals(1, esito.getAggiunti());
+            assertEquals(2, esito.getScartati());
+            assertEquals(EsitoImportazione.Stato.AGGIUNTO, esito.getEsiti().get(0).stato());
+            assertEquals(EsitoImportazione.Stato.DUPLICATO_CATALOGO, esito.getEsiti().get(1).stato());
+            assertEquals(EsitoImportazione.Stato.DUPLICATO_LOTTO, esito.getEsiti().get(2).stato());
+
+            assertEquals(5, catalogo.getTotaleLibri());
+            assertSame(nuovo, catalogo.cercaPerIsbn("ISBN-010").orElseThrow());
+            assertEquals(2, catalogo.cercaPerAutore("Levi").size());
+            assertEquals(5, catalogo.getNumeroDisponibili());
+        }
+
+        @Test
+        @DisplayName("mantiene l'ordine del lotto in getTuttiILibri")
+        void testOrdineMantenuto() {
+            List<Libro> lotto = new ArrayList<>();
+            for (int i = 0; i < 100; i++) lotto.add(new Libro("LOTTO-" + i, "Titolo " + i, "Autore", 2000));
+            catalogo.aggiungiLibri(lotto.stream());
+
+            List<Libro> tutti = catalogo.getTuttiILibri();
+            assertEquals(104, tutti.size());
+            assertEquals(lotto, tutti.subList(4, 104));
+        }
+    }
+
+    @Nested
+    @DisplayName("giornale write-ahead e ripristino")
+    class TestGiornale {
+
+        @TempDir
+        Path cartella;
+
+        @Test
+        @DisplayName("dopo il riavvio catalogo e prestiti aperti vengono ricostruiti")
+        void testRipristinoDopoRiavvio() throws Exception {
+            Catalogo originale = new Catalogo();
+            try (Giornale giornale = Giornale.apri(cartella, originale)) {
+                GestorePrestiti g = new GestorePrestiti(originale, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                originale.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                originale.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+                originale.aggiungiLibro(new Libro("ISBN-003", "La coscienza di Zeno", "Italo Svevo", 1923));
+                g.prestaLibro("ISBN-001", "Mario Rossi", 14);
+                g.prestaLibro("ISBN-002", "Giulia Bianchi", 7);
+                g.restituisciLibro("ISBN-002");
+                originale.rimuoviLibro("ISBN-003");
+                giornale.sincronizza();
+            }
+
+            Catalogo ripristinato = new Catalogo();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(2, ripristinato.getTotaleLibri());
+            Libro rosa = ripristinato.cercaPerIsbn("ISBN-001").orElseThrow();
+            assertEquals("Mario Rossi", rosa.getPrestitarioCorrente());
+            assertEquals(originale.cercaPerIsbn("ISBN-001").orElseThrow().getDataRestituzionePrevista(),
+                rosa.getDataRestituzionePrevista());
+            assertTrue(ripristinato.cercaPerIsbn("ISBN-002").orElseThrow().isDisponibile());
+            assertTrue(ripristinato.cercaPerIsbn("ISBN-003").isEmpty());
+        }
+
+        @Test
+        @DisplayName("il checkpoint svuota il giornale senza perdere stato")
+        void testCheckpoint() throws Exception {
+            Catalogo originale = new Catalogo();
+            try (Giornale giornale = Giornale.apri(cartella, originale)) {
+                GestorePrestiti g = new GestorePrestiti(originale, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                originale.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                g.prestaLibro("ISBN-001", "Mario Rossi", 14);
+                giornale.checkpoint();
+                assertEquals(0, Files.size(cartella.resolve("giornale.wal")));
+                originale.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+            }
+
+            Catalogo ripristinato = new Catalogo();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(2, ripristinato.getTotaleLibri());
+            assertEquals(1, ripristinato.getNumeroInPrestito());
+        }
+
+        @Test
+        @DisplayName("checkpoint ripetuti durante prestiti concorrenti sul catalogo compatto non si bloccano")
+        void testCheckpointConPrestitiConcorrenti() throws Exception {
+            Catalogo compatto = new CatalogoCompatto();
+            try (Giornale giornale = Giornale.apri(cartella, compatto)) {
+                for (int i = 0; i < 64; i++) {
+                    compatto.aggiungiLibro(new Libro("CKP-" + i, "Titolo " + i, "Autore " + i, 2000));
+                }
+                GestorePrestiti g = new GestorePrestiti(compatto, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                ExecutorService pool = Executors.newFixedThreadPool(8);
+                List<Future<?>> thread = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int primo = t * 8;
+                    thread.add(pool.submit(() -> {
+                        for (int giro = 0; giro < 200; giro++) {
+                            String isbn = "CKP-" + (primo + giro % 8);
+                            g.prestaLibro(isbn, "Utente", 7);
+                            g.restituisciLibro(isbn);
+                        }
+                        return null;
+                    }));
+                }
+                for (int k = 0; k < 20; k++) giornale.checkpoint();
+                for (Future<?> f : thread) f.get(30, TimeUnit.SECONDS);
+                pool.shutdown();
+                giornale.checkpoint();
+            }
+
+            Catalogo ripristinato = new CatalogoCompatto();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(64, ripristinato.getTotaleLibri());
+            assertEquals(0, ripristinato.getNumeroInPrestito());
+        }
+
+        @Test
+        @DisplayName("un checkpoint durante un commit non fa rigiocare record più vecchi del suo stato")
+        void testCheckpointDuranteCommit() throws Exception {
+            Catalogo originale = new Catalogo();
+            try (Giornale giornale = Giornale.apri(cartella, originale)) {
+                ExecutorService pool = Executors.newFixedThreadPool(4);
+                List<Future<?>> scrittori = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    int scrittore = t;
+                    scrittori.add(pool.submit(() -> {
+                        for (int i = 0; i < 5000; i++) {
+                            String isbn = "GRC-" + scrittore + "-" + i;
+                            originale.aggiungiLibro(new Libro(isbn, "Titolo " + i, "Autore", 2000));
+                            originale.rimuoviLibro(isbn);
+                        }
+                        return null;
+                    }));
+                }
+                while (!scrittori.stream().allMatch(Future::isDone)) giornale.checkpoint();
+                for (Future<?> f : scrittori) f.get(30, TimeUnit.SECONDS);
+                pool.shutdown();
+                originale.aggiungiLibro(new Libro("GRC-FINE", "L'ultimo", "Autore", 2000));
+                giornale.sincronizza();
+            }
+
+            Catalogo ripristinato = new Catalogo();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(List.of("GRC-FINE"), ripristinato.getTuttiILibri().stream().map(Libro::getIsbn).toList());
+        }
+
+        @Test
+        @DisplayName("un record incompleto in coda viene scartato")
+        void testCodaCorrotta() throws Exception {
+            Catalogo originale = new Catalogo();
+            try (Giornale giornale = Giornale.apri(cartella, originale)) {
+                originale.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                giornale.sincronizza();
+            }
+            Path wal = cartella.resolve("giornale.wal");
+            long integro = Files.size(wal);
+            Files.write(wal, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+            Catalogo ripristinato = new Catalogo();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(1, ripristinato.getTotaleLibri());
+            assertEquals(integro, Files.size(wal));
+        }
+    }
+
+    @Nested
+    @DisplayName("istantanea binaria mappata in memoria")
+    class TestIstantanea {
+
+        @TempDir
+        Path cartella;
+
+        @Test
+        @DisplayName("le ricerche funzionano direttamente sul file mappato")
+        void testCercaNellIstantanea() throws Exception {
+            gestore.prestaLibro("ISBN-002", "Giulia Bianchi", 7);
+            Path file = cartella.resolve("catalogo.snap");
+            IstantaneaCatalogo.scrivi(catalogo, file);
+
+            IstantaneaCatalogo istantanea = IstantaneaCatalogo.apri(file);
+            assertEquals(4, istantanea.getTotaleLibri());
+            assertEquals("García Márquez", istantanea.cercaPerIsbn(" isbn-004 ").orElseThrow().getAutore());
+            assertEquals("Giulia Bianchi", istantanea.cercaPerIsbn("ISBN-002").orElseThrow().getPrestitarioCorrente());
+            assertTrue(istantanea.cercaPerIsbn("ISBN-999").isEmpty());
+            assertSame(istantanea.libro(0), istantanea.cercaPerIsbn("ISBN-001").orElseThrow());
+        }
+
+        @Test
+        @DisplayName("inCatalogo ricostruisce un catalogo completo")
+        void testInCatalogo() throws Exception {
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            Path file = cartella.resolve("catalogo.snap");
+            IstantaneaCatalogo.scrivi(catalogo, file);
+
+            IstantaneaCatalogo istantanea = IstantaneaCatalogo.apri(file);
+            Libro letto = istantanea.libro(1);
+            Catalogo ricostruito = istantanea.inCatalogo();
+            assertEquals(4, ricostruito.getTotaleLibri());
+            assertEquals(1, ricostruito.getNumeroInPrestito());
+            assertEquals(1, ricostruito.cercaPerAutore("eco").size());
+
+            // i libri dell'istantanea restano suoi: un secondo catalogo è completo e indipendente
+            new GestorePrestiti(ricostruito, Clock.systemDefaultZone(), RegistroPrestiti.nessuno())
+                .prestaLibro(letto.getIsbn(), "Giulia Bianchi", 7);
+            assertTrue(istantanea.libro(1).isDisponibile());
+            Catalogo secondo = istantanea.inCatalogo();
+            assertEquals(4, secondo.getTotaleLibri());
+            assertEquals(1, secondo.getNumeroInPrestito());
+        }
+    }
+
+    @Nested
+    @DisplayName("catalogo compatto")
+    class TestCatalogoCompatto {
+
+        private Catalogo compatto;
+        private GestorePrestiti gestoreCompatto;
+
+        @BeforeEach
+        void setUpCompatto() {
+            compatto = new CatalogoCompatto();
+            compatto.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+            compatto.aggiungiLibro(new Libro("0306406152", "Il pendolo di Foucault", "Umberto Eco", 1988));
+            compatto.aggiungiLibro(new Libro("9788806227150", "Se questo è un uomo", "Primo Levi", 1947));
+            gestoreCompatto = new GestorePrestiti(compatto, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+        }
+
+        @Test
+        @DisplayName("le viste restituiscono i dati originali, ISBN numerici compresi")
+        void testViste() {
+            Libro pendolo = compatto.cercaPerIsbn("0306406152").orElseThrow();
+            assertEquals("0306406152", pendolo.getIsbn());
+            assertEquals("Il pendolo di Foucault", pendolo.getTitolo());
+            assertEquals(1988, pendolo.getAnnoPubblicazione());
+            assertEquals("ISBN-001", compatto.cercaPerIsbn(" isbn-001 ").orElseThrow().getIsbn());
+            assertEquals(2, compatto.cercaPerAutore("eco").size());
+            assertEquals(pendolo, compatto.getTuttiILibri().get(1));
+            assertThrows(IllegalArgumentException.class,
+                () -> compatto.aggiungiLibro(new Libro("0306406152", "Doppione", "Qualcuno", 2000)));
+        }
+
+        @Test
+        @DisplayName("prestiti, scadenze e rimozioni funzionano come nel catalogo normale")
+        void testPrestiti() {
+            gestoreCompatto.prestaLibro("9788806227150", "Mario Rossi", 14);
+            Libro levi = compatto.cercaPerIsbn("9788806227150").orElseThrow();
+            assertFalse(levi.isDisponibile());
+            assertEquals("Mario Rossi", levi.getPrestitarioCorrente());
+            assertEquals(List.of(levi), compatto.getLibriInPrestito());
+            assertEquals(2, compatto.getLibriDisponibili().size());
+            assertEquals(List.of(levi), gestoreCompatto.getPrestitiScaduti(LocalDate.now().plusDays(15)));
+            assertThrows(IllegalStateException.class, () -> gestoreCompatto.prestaLibro("9788806227150", "Luca", 7));
+            assertThrows(IllegalStateException.class, () -> compatto.rimuoviLibro("9788806227150"));
+
+            gestoreCompatto.restituisciLibro("9788806227150");
+            assertTrue(levi.isDisponibile());
+            assertEquals(0, compatto.getNumeroInPrestito());
+            assertTrue(compatto.rimuoviLibro("9788806227150"));
+            assertTrue(compatto.cercaPerIsbn("9788806227150").isEmpty());
+            assertTrue(compatto.cercaPerAutore("Levi").isEmpty());
+            assertEquals(2, compatto.getTotaleLibri());
+        }
+
+        @Test
+        @DisplayName("importazione massiva e crescita delle colonne")
+        void testImportazione() {
+            List<Libro> lotto = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                lotto.add(new Libro(String.valueOf(9780000000000L + i), "Titolo " + i, "Autore " + (i % 50), 2000));
+            }
+            lotto.add(new Libro("ISBN-001", "Doppione", "Qualcuno", 2000));
+            lotto.add(new Libro("9780000000000", "Doppione nel lotto", "Qualcuno", 2000));
+
+            EsitoImportazione esito = compatto.aggiungiLibri(lotto);
+            assertEquals(5000, esito.getAggiunti());
+            assertEquals(EsitoImportazione.Stato.DUPLICATO_CATALOGO, esito.getEsiti().get(5000).stato());
+            assertEquals(EsitoImportazione.Stato.DUPLICATO_LOTTO, esito.getEsiti().get(5001).stato());
+            assertEquals(5003, compatto.getTotaleLibri());
+            assertEquals(100, compatto.cercaPerAutore("Autore 7").size());
+            assertEquals("Titolo 4321", compatto.cercaPerIsbn("9780000004321").orElseThrow().getTitolo());
+        }
+    }
+
+    @Nested
+    @DisplayName("concorrenza: prestiti e restituzioni da 64 thread")
+    class TestConcorrenza {
+
+        private static final int THREAD = 64;
+
+        /** Avvia {@code THREAD} copie di {@code compito} insieme e attende che finiscano tutte. */
+        private void eseguiInParallelo(Runnable compito) throws Exception {
+            ExecutorService pool = Executors.newFixedThreadPool(THREAD);
+            CountDownLatch via = new CountDownLatch(1);
+            List<Future<?>> esiti = new ArrayList<>();
+            for (int t = 0; t < THREAD; t++) {
+                esiti.add(pool.submit(() -> {
+                    via.await();
+                    compito.run();
+                    return null;
+                }));
+            }
+            via.countDown();
+            for (Future<?> esito : esiti) esito.get(30, TimeUnit.SECONDS);
+            pool.shutdown();
+        }
+
+        @Test
+        @DisplayName("lo stesso libro viene prestato a un solo thread")
+        void testUnSoloPrestitoVince() throws Exception {
+            AtomicInteger riusciti = new AtomicInteger();
+            eseguiInParallelo(() -> {
+                try {
+                    gestore.prestaLibro("ISBN-001", Thread.currentThread().getName(), 7);
+                    riusciti.incrementAndGet();
+                } catch (IllegalStateException atteso) {
+                    // un altro thread ha già il libro
+                }
+            });
+            assertEquals(1, riusciti.get());
+            assertEquals(List.of(eco), catalogo.getLibriInPrestito());
+        }
+
+        @Test
+        @DisplayName("cicli prestito/restituzione concorrenti lasciano gli indici coerenti")
+        void testCicliPrestitoRestituzione() throws Exception {
+            for (int i = 0; i < 200; i++) {
+                catalogo.aggiungiLibro(new Libro("STRESS-" + i, "Titolo " + i, "Autore " + (i % 10), 2000));
+            }
+            AtomicInteger prestiti = new AtomicInteger();
+            AtomicInteger restituzioni = new AtomicInteger();
+            eseguiInParallelo(() -> {
+                for (int giro = 0; giro < 500; giro++) {
+                    String isbn = "STRESS-" + ThreadLocalRandom.current().nextInt(200);
+                    try {
+                        gestore.prestaLibro(isbn, "Utente", 7);
+                        prestiti.incrementAndGet();
+                        gestore.restituisciLibro(isbn);
+                        restituzioni.incrementAndGet();
+                    } catch (IllegalStateException occupato) {
+                        // libro preso da un altro thread: si riprova con il successivo
+                    }
+                }
+            });
+
+            assertEquals(prestiti.get(), restituzioni.get());
+            assertEquals(0, catalogo.getNumeroInPrestito());
+            assertEquals(catalogo.getTotaleLibri(), catalogo.getNumeroDisponibili());
+            assertTrue(gestore.getPrestitiScaduti(LocalDate.now().plusYears(1)).isEmpty());
+        }
+
+        @Test
+        @DisplayName("aggiunte concorrenti non perdono libri")
+        void testAggiunteConcorrenti() throws Exception {
+            AtomicInteger prossimo = new AtomicInteger();
+            eseguiInParallelo(() -> {
+                for (int i = 0; i < 50; i++) {
+                    int n = prossimo.getAndIncrement();
+                    catalogo.aggiungiLibro(new Libro("CONC-" + n, "Titolo " + n, "Autore " + n, 2000));
+                }
+            });
+            assertEquals(4 + THREAD * 50, catalogo.getTotaleLibri());
+            assertEquals(4 + THREAD * 50, catalogo.getTuttiILibri().size());
+            assertTrue(catalogo.cercaPerIsbn("CONC-" + (THREAD * 50 - 1)).isPresent());
+        }
+    }
+
+    @Nested
+    @DisplayName("registro asincrono degli eventi di prestito")
+    class TestRegistroAsincrono {
+
+        @Test
+        @DisplayName("prestiti e restituzioni arrivano alla destinazione in ordine")
+        void testEventiConsegnati() {
+            List<EventoPrestito> ricevuti = new CopyOnWriteArrayList<>();
+            try (RegistroAsincrono registro = new RegistroAsincrono(ricevuti::add)) {
+                GestorePrestiti g = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), registro);
+                g.prestaLibro("ISBN-001", "Mario Rossi", 14);
+                g.restituisciLibro("ISBN-001");
+                registro.flush();
+            }
+            assertEquals(2, ricevuti.size());
+            assertEquals(EventoPrestito.Tipo.PRESTITO, ricevuti.get(0).tipo());
+            assertEquals("Mario Rossi", ricevuti.get(0).utente());
+            assertEquals(EventoPrestito.Tipo.RESTITUZIONE, ricevuti.get(1).tipo());
+        }
+
+        @Test
+        @DisplayName("con la politica SCARTA un buffer pieno non blocca il prestito")
+        void testBufferPienoScarta() throws Exception {
+            CountDownLatch sblocca = new CountDownLatch(1);
+            RegistroAsincrono registro = new RegistroAsincrono(evento -> {
+                try {
+                    sblocca.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, 1, RegistroAsincrono.PoliticaCodaPiena.SCARTA);
+            GestorePrestiti g = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), registro);
+
+            for (int i = 0; i < 10; i++) {
+                g.prestaLibro("ISBN-001", "Utente", 7);
+                g.restituisciLibro("ISBN-001");
+            }
+            assertTrue(registro.getEventiScartati() > 0);
+
+            sblocca.countDown();
+            registro.close();
+        }
+    }
+
+    @Nested
+    @DisplayName("metriche ed eventi JFR")
+    class TestMetriche {
+
+        @Test
+        @DisplayName("disabilitate per default; una volta abilitate contano chiamate ed errori")
+        void testConteggi() {
+            assertTrue(catalogo.getMetriche().isEmpty());
+            Metriche metriche = catalogo.abilitaMetriche();
+            assertSame(metriche, catalogo.abilitaMetriche());
+
+            catalogo.cercaPerIsbn("ISBN-001");
+            catalogo.cercaPerIsbn("ISBN-999");
+            catalogo.cercaPerAutore("Eco");
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            assertThrows(IllegalStateException.class, () -> gestore.prestaLibro("ISBN-001", "Luca Bianchi", 7));
+            gestore.restituisciLibro("ISBN-001");
+
+            Metriche.Istantanea istantanea = metriche.istantanea();
+            assertEquals(4, istantanea.dimensioneCatalogo());
+            assertEquals(2, istantanea.di(Metriche.Operazione.CERCA_PER_ISBN).chiamate());
+            assertEquals(1, istantanea.di(Metriche.Operazione.CERCA_PER_AUTORE).chiamate());
+            Metriche.Statistica prestiti = istantanea.di(Metriche.Operazione.PRESTITO);
+            assertEquals(2, prestiti.chiamate());
+            assertEquals(1, prestiti.errori());
+            assertTrue(prestiti.p50Nanos() <= prestiti.p99Nanos() && prestiti.p99Nanos() <= prestiti.maxNanos());
+            assertEquals(1, istantanea.di(Metriche.Operazione.RESTITUZIONE).chiamate());
+
+            metriche.azzera();
+            assertEquals(0, metriche.istantanea().di(Metriche.Operazione.PRESTITO).chiamate());
+            catalogo.disabilitaMetriche();
+            catalogo.cercaPerIsbn("ISBN-001");
+            assertEquals(0, metriche.istantanea().di(Metriche.Operazione.CERCA_PER_ISBN).chiamate());
+        }
+
+        @Test
+        @DisplayName("prestiti e ricerche producono eventi JFR")
+        void testEventiJfr(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("biblioteca.jfr");
+            try (Recording registrazione = new Recording()) {
+                registrazione.enable("biblioteca.Ricerca");
+                registrazione.enable("biblioteca.Prestito");
+                registrazione.start();
+                catalogo.cercaPerIsbn("ISBN-002");
+                gestore.prestaLibro("ISBN-002", "Mario Rossi", 14);
+                gestore.prestaLibri(List.of("ISBN-003", "ISBN-004"), "Anna Verdi", 14);
+                registrazione.stop();
+                registrazione.dump(file);
+            }
+            List<RecordedEvent> eventi = RecordingFile.readAllEvents(file);
+            RecordedEvent ricerca = eventi.stream()
+                .filter(e -> e.getEventType().getName().equals("biblioteca.Ricerca")).findFirst().orElseThrow();
+            assertEquals("CERCA_PER_ISBN", ricerca.getString("tipo"));
+            assertEquals("ISBN-002", ricerca.getString("chiave"));
+            assertEquals(4, ricerca.getInt("dimensioneCatalogo"));
+            List<RecordedEvent> prestiti = eventi.stream()
+                .filter(e -> e.getEventType().getName().equals("biblioteca.Prestito")).toList();
+            assertEquals(2, prestiti.size());
+            RecordedEvent prestito = prestiti.get(0);
+            assertEquals("Mario Rossi", prestito.getString("utente"));
+            assertEquals("ISBN-002", prestito.getString("isbn"));
+            assertTrue(prestito.getBoolean("riuscita"));
+            assertEquals("[ISBN-003, ISBN-004]", prestiti.get(1).getString("isbn"));
+        }
+    }
+
+    @Nested
+    @DisplayName("ISBN-10/13 come chiave numerica")
+    class TestIsbn {
+
+        @Test
+        @DisplayName("ISBN-13, ISBN-10 e forme con separatori indicano lo stesso libro")
+        void testEquivalenza() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("978-88-06-22715-9", "Il nome della rosa", "Umberto Eco", 1980));
+                for (String isbn : List.of("9788806227159", "88-06-22715-7", "8806227157", " 978 88 06 22715 9 ")) {
+                    assertEquals("978-88-06-22715-9", c.cercaPerIsbn(isbn).orElseThrow().getIsbn(), isbn);
+                }
+                assertThrows(IllegalArgumentException.class,
+                    () -> c.aggiungiLibro(new Libro("8806227157", "Doppione", "Qualcuno", 2000)));
+                EsitoImportazione esito = c.aggiungiLibri(List.of(
+                    new Libro("0-8044-2957-x", "Primo", "Qualcuno", 2000),
+                    new Libro("9780804429573", "Doppione nel lotto", "Qualcuno", 2000)));
+                assertEquals(1, esito.getAggiunti());
+                assertEquals("0-8044-2957-x", c.cercaPerIsbn("080442957X").orElseThrow().getIsbn());
+                assertTrue(c.rimuoviLibro("9788806227159"));
+                assertTrue(c.cercaPerIsbn("978-88-06-22715-9").isEmpty());
+            }
+        }
+
+        @Test
+        @DisplayName("cifra di controllo errata e codici non ISBN restano sul confronto per stringa")
+        void testCodiciNonIsbn() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("9788806227150", "Cifra sbagliata", "Qualcuno", 2000));
+                c.aggiungiLibro(new Libro("ISBN-001", "Codice interno", "Qualcuno", 2000));
+                assertTrue(c.cercaPerIsbn("978-88-06-22715-0").isEmpty());
+                assertEquals("Cifra sbagliata", c.cercaPerIsbn("9788806227150").orElseThrow().getTitolo());
+                assertEquals("Codice interno", c.cercaPerIsbn(" isbn-001 ").orElseThrow().getTitolo());
+                c.aggiungiLibro(new Libro("9788806227159", "Cifra giusta", "Qualcuno", 2000));
+                assertEquals(3, c.getTotaleLibri());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("versioneCorrente  [report coerenti]")
+    class TestVersioni {
+
+        @Test
+        @DisplayName("una versione non cambia con prestiti, aggiunte e rimozioni successive")
+        void testVersioneImmutabile() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                c.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+                GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                g.prestaLibro("ISBN-001", "Mario Rossi", 14);
+
+                VersioneCatalogo prima = c.versioneCorrente();
+                g.restituisciLibro("ISBN-001");
+                g.prestaLibro("ISBN-002", "Giulia Bianchi", 7);
+                c.aggiungiLibro(new Libro("ISBN-003", "La coscienza di Zeno", "Italo Svevo", 1923));
+                assertTrue(c.rimuoviLibro("ISBN-001"));
+
+                assertEquals(2, prima.getTotaleLibri());
+                assertEquals(1, prima.getNumeroInPrestito());
+                VersioneCatalogo.Scheda rosa = prima.cercaPerIsbn("isbn-001").orElseThrow();
+                assertEquals("Mario Rossi", rosa.prestitario());
+                assertFalse(rosa.isDisponibile());
+                assertTrue(prima.cercaPerIsbn("ISBN-003").isEmpty());
+                assertEquals(List.of("ISBN-001", "ISBN-002"),
+                    prima.getTuttiILibri().stream().map(VersioneCatalogo.Scheda::isbn).toList());
+
+                VersioneCatalogo dopo = c.versioneCorrente();
+                assertTrue(dopo.getNumero() > prima.getNumero());
+                assertEquals(List.of("ISBN-002", "ISBN-003"),
+                    dopo.getTuttiILibri().stream().map(VersioneCatalogo.Scheda::isbn).toList());
+                assertTrue(dopo.cercaPerIsbn("ISBN-001").isEmpty());
+                assertEquals("Giulia Bianchi", dopo.getLibriInPrestito().get(0).prestitario());
+                assertEquals(1, dopo.getPrestitiScaduti(LocalDate.now().plusDays(30)).size());
+            }
+        }
+
+        @Test
+        @DisplayName("un libro rimosso e riaggiunto è visto da ogni versione com'era allora")
+        void testRiaggiunto() {
+            Libro rosa = new Libro("978-88-06-22715-9", "Il nome della rosa", "Umberto Eco", 1980);
+            catalogo.aggiungiLibro(rosa);
+            VersioneCatalogo prima = catalogo.versioneCorrente();
+            catalogo.rimuoviLibro("9788806227159");
+            catalogo.aggiungiLibro(new Libro("88-06-22715-7", "Il nome della rosa (nuova edizione)", "Umberto Eco", 2012));
+
+            assertEquals(1980, prima.cercaPerIsbn("88-06-22715-7").orElseThrow().annoPubblicazione());
+            assertEquals(2012, catalogo.versioneCorrente().cercaPerIsbn("978-88-06-22715-9").orElseThrow().annoPubblicazione());
+        }
+    }
+
+    @Nested
+    @DisplayName("prestaLibri / restituisciLibri  [cestini]")
+    class TestCestino {
+
+        @Test
+        @DisplayName("un cestino con un libro non prestabile non presta nulla e riporta ogni esito")
+        void testTuttoONiente() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                c.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+                c.aggiungiLibro(new Libro("ISBN-003", "La coscienza di Zeno", "Italo Svevo", 1923));
+                List<EventoPrestito> eventi = new ArrayList<>();
+                GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), eventi::add);
+                g.prestaLibro("ISBN-002", "Giulia Bianchi", 7);
+
+                EsitoCestino fallito = g.prestaLibri(
+                    List.of("ISBN-001", "ISBN-002", "ISBN-999", " ", "isbn-001"), "Mario Rossi", 14);
+                assertFalse(fallito.isRiuscito());
+                assertEquals(List.of(EsitoCestino.Stato.ANNULLATO, EsitoCestino.Stato.NON_DISPONIBILE,
+                                     EsitoCestino.Stato.NON_TROVATO, EsitoCestino.Stato.NON_VALIDO,
+                                     EsitoCestino.Stato.DUPLICATO),
+                    fallito.getEsiti().stream().map(EsitoCestino.Esito::stato).toList());
+                assertEquals(3, fallito.getScartati().size());
+                assertTrue(c.cercaPerIsbn("ISBN-001").orElseThrow().isDisponibile());
+                assertEquals(1, c.getNumeroInPrestito());
+
+                EsitoCestino riuscito = g.prestaLibri(List.of("ISBN-001", "ISBN-003", "isbn-001"), "Mario Rossi", 14);
+                assertTrue(riuscito.isRiuscito());
+                assertEquals(2, riuscito.getEseguiti());
+                assertEquals("Mario Rossi", c.cercaPerIsbn("ISBN-003").orElseThrow().getPrestitarioCorrente());
+                assertEquals(3, c.getNumeroInPrestito());
+
+                assertEquals(3, g.restituisciLibri(List.of("ISBN-001", "ISBN-002", "ISBN-003", "ISBN-002")).getEseguiti());
+                assertEquals(0, c.getNumeroInPrestito());
+                EsitoCestino giaDisponibile = g.restituisciLibri(List.of("ISBN-001"));
+                assertEquals(EsitoCestino.Stato.GIA_DISPONIBILE, giaDisponibile.getEsiti().get(0).stato());
+
+                assertEquals(List.of(EventoPrestito.Tipo.PRESTITO, EventoPrestito.Tipo.PRESTITI, EventoPrestito.Tipo.RESTITUZIONI),
+                    eventi.stream().map(EventoPrestito::tipo).toList());
+                assertEquals("ISBN-001, ISBN-003", eventi.get(1).isbn());
+                assertThrows(IllegalArgumentException.class, () -> g.prestaLibri(List.of(), "Mario Rossi", 14));
+            }
+        }
+
+        @Test
+        @DisplayName("un cestino è un solo record di giornale e una sola versione")
+        void testGiornaleEVersioni(@TempDir Path cartella) throws Exception {
+            Catalogo originale = new Catalogo();
+            try (Giornale giornale = Giornale.apri(cartella, originale)) {
+                GestorePrestiti g = new GestorePrestiti(originale, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                originale.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+                originale.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+                originale.aggiungiLibro(new Libro("ISBN-003", "La coscienza di Zeno", "Italo Svevo", 1923));
+                VersioneCatalogo prima = originale.versioneCorrente();
+                assertTrue(g.prestaLibri(List.of("ISBN-001", "ISBN-002", "ISBN-003"), "Mario Rossi", 14).isRiuscito());
+                VersioneCatalogo dopo = originale.versioneCorrente();
+                assertEquals(prima.getNumero() + 1, dopo.getNumero());
+                assertEquals(3, dopo.getNumeroInPrestito());
+                assertTrue(g.restituisciLibri(List.of("ISBN-002", "ISBN-003")).isRiuscito());
+                giornale.sincronizza();
+            }
+
+            Catalogo ripristinato = new Catalogo();
+            Giornale.apri(cartella, ripristinato).close();
+            assertEquals(1, ripristinato.getNumeroInPrestito());
+            assertEquals("Mario Rossi", ripristinato.cercaPerIsbn("ISBN-001").orElseThrow().getPrestitarioCorrente());
+        }
+
+        @Test
+        @DisplayName("cestini concorrenti con libri in comune non si bloccano e non si sovrappongono")
+        void testCestiniConcorrenti() throws Exception {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                List<String> isbn = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    isbn.add("CEST-" + i);
+                    c.aggiungiLibro(new Libro("CEST-" + i, "Titolo " + i, "Autore " + i, 2000));
+                }
+                GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                ExecutorService pool = Executors.newFixedThreadPool(8);
+                List<Future<Integer>> thread = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    thread.add(pool.submit(() -> {
+                        int prestati = 0;
+                        for (int giro = 0; giro < 300; giro++) {
+                            List<String> cestino = new ArrayList<>();
+                            for (int k = 0; k < 4; k++) cestino.add(isbn.get(ThreadLocalRandom.current().nextInt(isbn.size())));
+                            EsitoCestino esito = g.prestaLibri(cestino, "Utente", 7);
+                            if (!esito.isRiuscito()) continue;
+                            prestati += esito.getEseguiti();
+                            assertTrue(g.restituisciLibri(cestino).isRiuscito());
+                        }
+                        return prestati;
+                    }));
+                }
+                for (Future<Integer> f : thread) assertTrue(f.get(30, TimeUnit.SECONDS) > 0);
+                pool.shutdown();
+                assertEquals(0, c.getNumeroInPrestito());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("getPrestitiDi / setLimitePrestiti  [prestiti per utente]")
+    class TestPrestitiPerUtente {
+
+        @Test
+        @DisplayName("l'indice per utente segue prestiti, restituzioni e prestiti fatti sul libro")
+        void testPrestitiDi() {
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            gestore.prestaLibro("ISBN-003", "Mario Rossi", 7);
+            gestore.prestaLibro("ISBN-002", "Giulia Bianchi", 7);
+            marquez.segnaComePrestato("Mario Rossi", 30);
+
+            assertEquals(List.of(svevo, eco, marquez), gestore.getPrestitiDi("Mario Rossi"));
+            assertEquals(3, gestore.getNumeroPrestitiDi("Mario Rossi"));
+            gestore.restituisciLibro("ISBN-001");
+            assertEquals(List.of(svevo, marquez), gestore.getPrestitiDi("Mario Rossi"));
+            assertEquals(List.of(levi), gestore.getPrestitiDi("Giulia Bianchi"));
+            assertTrue(gestore.getPrestitiDi("Nessuno").isEmpty());
+
+            // un gestore creato dopo trova i prestiti già aperti
+            GestorePrestiti altro = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+            assertEquals(2, altro.getNumeroPrestitiDi("Mario Rossi"));
+
+            // chiuso, non segue più il catalogo: vede ancora i due prestiti di prima e non il nuovo
+            altro.close();
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            assertEquals(2, altro.getNumeroPrestitiDi("Mario Rossi"));
+            assertEquals(3, gestore.getNumeroPrestitiDi("Mario Rossi"));
+        }
+
+        @Test
+        @DisplayName("il limite blocca il prestito singolo e il cestino che lo supererebbero")
+        void testLimite() {
+            gestore.setLimitePrestiti(2);
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            EsitoCestino cestino = gestore.prestaLibri(List.of("ISBN-002", "ISBN-003"), "Mario Rossi", 14);
+            assertFalse(cestino.isRiuscito());
+            assertEquals(EsitoCestino.Stato.ANNULLATO, cestino.getEsiti().get(0).stato());
+            assertEquals(EsitoCestino.Stato.OLTRE_LIMITE, cestino.getEsiti().get(1).stato());
+            assertTrue(levi.isDisponibile());
+
+            gestore.prestaLibro("ISBN-002", "Mario Rossi", 14);
+            IllegalStateException ex = assertThrows(IllegalStateException.class,
+                () -> gestore.prestaLibro("ISBN-003", "Mario Rossi", 14));
+            assertTrue(ex.getMessage().contains("limite 2"), ex.getMessage());
+            assertTrue(svevo.isDisponibile());
+            gestore.prestaLibro("ISBN-003", "Giulia Bianchi", 14);
+
+            gestore.restituisciLibro("ISBN-001");
+            gestore.prestaLibro("ISBN-004", "Mario Rossi", 14);
+            assertThrows(IllegalArgumentException.class, () -> gestore.setLimitePrestiti(0));
+        }
+
+        @Test
+        @DisplayName("prestiti concorrenti allo stesso utente non superano il limite")
+        void testLimiteConcorrente() throws Exception {
+            for (int i = 0; i < 100; i++) {
+                catalogo.aggiungiLibro(new Libro("LIM-" + i, "Titolo " + i, "Autore " + i, 2000));
+            }
+            gestore.setLimitePrestiti(5);
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            AtomicInteger prossimo = new AtomicInteger();
+            List<Future<?>> thread = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                thread.add(pool.submit(() -> {
+                    for (int n; (n = prossimo.getAndIncrement()) < 100; ) {
+                        try {
+                            gestore.prestaLibro("LIM-" + n, "Mario Rossi", 7);
+                        } catch (IllegalStateException limite) {
+                            // limite raggiunto
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : thread) f.get(30, TimeUnit.SECONDS);
+            pool.shutdown();
+            assertEquals(5, gestore.getNumeroPrestitiDi("Mario Rossi"));
+            assertEquals(5, catalogo.getNumeroInPrestito());
+        }
+    }
+
+    @Nested
+    @DisplayName("pagine con cursore e stream pigri")
+    class TestPagine {
+
+        /** Scorre tutte le pagine di {@code pagina} e restituisce gli ISBN letti. */
+        private List<String> leggiTutte(BiFunction<String, Integer, Pagina> pagina, int dimensione) {
+            List<String> letti = new ArrayList<>();
+            String cursore = null;
+            do {
+                Pagina p = pagina.apply(cursore, dimensione);
+                assertTrue(p.libri().size() <= dimensione);
+                p.libri().forEach(l -> letti.add(l.getIsbn()));
+                cursore = p.cursore();
+            } while (cursore != null);
+            return letti;
+        }
+
+        @Test
+        @DisplayName("le pagine coprono il catalogo in ordine di inserimento anche con rimozioni tra una pagina e l'altra")
+        void testPagineStabili() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                for (int i = 0; i < 250; i++) c.aggiungiLibro(new Libro("PAG-" + i, "Titolo " + i, "Autore " + (i % 7), 2000));
+
+                List<String> tutti = leggiTutte(c::getTuttiILibri, 40);
+                assertEquals(250, tutti.size());
+                assertEquals("PAG-0", tutti.get(0));
+                assertEquals("PAG-249", tutti.get(249));
+
+                Pagina prima = c.getTuttiILibri(null, 100);
+                assertTrue(c.rimuoviLibro("PAG-10"));
+                assertTrue(c.rimuoviLibro("PAG-150"));
+                c.aggiungiLibro(new Libro("PAG-NUOVO", "Nuovo", "Autore 0", 2024));
+                Pagina seconda = c.getTuttiILibri(prima.cursore(), 100);
+                assertEquals("PAG-100", seconda.libri().get(0).getIsbn());
+                assertFalse(seconda.libri().stream().anyMatch(l -> l.getIsbn().equals("PAG-150")));
+                assertEquals("PAG-NUOVO", c.getTuttiILibri(seconda.cursore(), 100).libri().get(49).getIsbn());
+
+                assertThrows(IllegalArgumentException.class, () -> c.getTuttiILibri("non-un-cursore", 10));
+                assertThrows(IllegalArgumentException.class, () -> c.getTuttiILibri(null, 0));
+            }
+        }
+
+        @Test
+        @DisplayName("disponibili, in prestito, autore e scaduti hanno le loro pagine; gli stream si fermano presto")
+        void testFiltriEStream() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                for (int i = 0; i < 100; i++) c.aggiungiLibro(new Libro("PAG-" + i, "Titolo " + i, "Autore " + (i % 4), 2000));
+                GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+                for (int i = 0; i < 100; i += 3) g.prestaLibro("PAG-" + i, "Mario Rossi", 1 + i % 10);
+
+                List<String> inPrestito = leggiTutte(c::getLibriInPrestito, 7);
+                assertEquals(34, inPrestito.size());
+                assertEquals(c.streamLibriInPrestito().map(Libro::getIsbn).toList(), inPrestito);
+                assertEquals(inPrestito, c.getLibriInPrestito().stream().map(Libro::getIsbn).toList());
+                assertEquals(c.streamLibriDisponibili().map(Libro::getIsbn).toList(),
+                             c.getLibriDisponibili().stream().map(Libro::getIsbn).toList());
+                assertEquals(66, leggiTutte(c::getLibriDisponibili, 10).size());
+                assertEquals("PAG-1", c.streamLibriDisponibili().findFirst().orElseThrow().getIsbn());
+                assertEquals(100, c.streamTuttiILibri().count());
+
+                List<String> autore2 = leggiTutte((cur, n) -> c.cercaPerAutore("autore 2", cur, n), 4);
+                assertEquals(25, autore2.size());
+                assertEquals("PAG-2", autore2.get(0));
+                assertEquals("PAG-98", autore2.get(24));
+                assertEquals(10, c.contaPerAutore("autore", 10));
+                assertTrue(c.esistePerAutore("Autore 3"));
+                assertFalse(c.esistePerAutore("Nessuno"));
+
+                LocalDate fra20Giorni = LocalDate.now().plusDays(20);
+                List<String> scaduti = leggiTutte((cur, n) -> g.getPrestitiScaduti(fra20Giorni, cur, n), 5);
+                assertEquals(g.getPrestitiScaduti(fra20Giorni).stream().map(Libro::getIsbn).toList(), scaduti);
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("FlussoModifiche")
+    class TestFlussoModifiche {
+
+        private Catalogo catalogo;
+        private GestorePrestiti gestore;
+        private FlussoModifiche flusso;
+
+        /** Iscritto che chiede {@code richiesta} modifiche all'inizio e ne tiene traccia. */
+        private static final class Raccoglitore implements Flow.Subscriber<ModificaCatalogo> {
+            final List<ModificaCatalogo> ricevute = new ArrayList<>();
+            final long richiesta;
+            Flow.Subscription iscrizione;
+            Throwable errore;
+            boolean completato;
+
+            Raccoglitore(long richiesta) { this.richiesta = richiesta; }
+
+            @Override public void onSubscribe(Flow.Subscription s) { iscrizione = s; if (richiesta > 0) s.request(richiesta); }
+            @Override public void onNext(ModificaCatalogo m)       { ricevute.add(m); }
+            @Override public void onError(Throwable t)             { errore = t; }
+            @Override public void onComplete()                     { completato = true; }
+        }
+
+        @BeforeEach
+        void setUp() {
+            catalogo = new Catalogo();
+            // consegna sul thread del chiamante: i test non devono aspettare
+            flusso = FlussoModifiche.attiva(catalogo, 8, Runnable::run);
+            gestore = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+            catalogo.aggiungiLibro(new Libro("ISBN-001", "Il nome della rosa", "Umberto Eco", 1980));
+            catalogo.aggiungiLibro(new Libro("ISBN-002", "Se questo è un uomo", "Primo Levi", 1947));
+        }
+
+        @Test
+        @DisplayName("gli iscritti ricevono le modifiche tipizzate e numerate, solo quante ne chiedono")
+        void testModificheEContropressione() {
+            Raccoglitore tutto = new Raccoglitore(Long.MAX_VALUE);
+            Raccoglitore lento = new Raccoglitore(2);
+            flusso.subscribe(tutto);
+            flusso.subscribe(lento);
+
+            gestore.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            gestore.restituisciLibro("ISBN-001");
+            assertTrue(catalogo.rimuoviLibro("ISBN-002"));
+
+            assertEquals(3, tutto.ricevute.size());
+            ModificaCatalogo.Prestito prestito = assertInstanceOf(ModificaCatalogo.Prestito.class, tutto.ricevute.get(0));
+            assertEquals("Mario Rossi", prestito.utente());
+            assertEquals(3, prestito.sequenza());
+            assertInstanceOf(ModificaCatalogo.Restituzione.class, tutto.ricevute.get(1));
+            assertEquals(new ModificaCatalogo.Rimozione(5, "ISBN-002", 1), tutto.ricevute.get(2));
+
+            assertEquals(2, lento.ricevute.size());
+            lento.iscrizione.request(10);
+            assertEquals(3, lento.ricevute.size());
+
+            assertTrue(gestore.prestaLibri(List.of("ISBN-001"), "Anna Bianchi", 7).isRiuscito());
+            assertEquals(6, tutto.ricevute.get(3).sequenza());
+            flusso.close();
+            assertTrue(tutto.completato);
+            assertEquals(0, flusso.getNumeroIscritti());
+        }
+
+        @Test
+        @DisplayName("si riprende dall'ultima sequenza ricevuta; chi è troppo indietro riceve un errore")
+        void testRipresa() {
+            Raccoglitore daCapo = new Raccoglitore(Long.MAX_VALUE);
+            flusso.iscrivi(daCapo, 0);
+            ModificaCatalogo.Aggiunta prima = assertInstanceOf(ModificaCatalogo.Aggiunta.class, daCapo.ricevute.get(0));
+            assertEquals("Umberto Eco", prima.autore());
+
+            Raccoglitore ripresa = new Raccoglitore(Long.MAX_VALUE);
+            flusso.iscrivi(ripresa, 1);
+            assertEquals(List.of("ISBN-002"), ripresa.ricevute.stream().map(ModificaCatalogo::isbn).toList());
+            assertThrows(IllegalArgumentException.class, () -> flusso.iscrivi(new Raccoglitore(1), 99));
+
+            Raccoglitore fermo = new Raccoglitore(0);
+            flusso.subscribe(fermo);
+            for (int i = 0; i < 10; i++) catalogo.aggiungiLibro(new Libro("FLUSSO-" + i, "Titolo", "Autore", 2000));
+            assertEquals(12, daCapo.ricevute.size());
+            fermo.iscrizione.request(1);
+            assertInstanceOf(IllegalStateException.class, fermo.errore);
+            assertTrue(fermo.ricevute.isEmpty());
+
+            Raccoglitore tardi = new Raccoglitore(Long.MAX_VALUE);
+            flusso.iscrivi(tardi, 1);
+            assertInstanceOf(IllegalStateException.class, tardi.errore);
+            assertEquals(5, flusso.getPrimaDisponibile());
+        }
+
+        @Test
+        @DisplayName("modifiche ed eventi di prestito riportano la copia")
+        void testCopie() {
+            Raccoglitore tutto = new Raccoglitore(Long.MAX_VALUE);
+            flusso.subscribe(tutto);
+            List<EventoPrestito> eventi = new ArrayList<>();
+            GestorePrestiti g = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), eventi::add);
+
+            catalogo.aggiungiCopie("ISBN-001", 2);
+            g.prestaLibro("ISBN-001", "Mario Rossi", 14);
+            g.prestaLibro("ISBN-001", "Giulia Bianchi", 14);
+            g.restituisciLibro("ISBN-001", 2);
+            assertTrue(g.prestaLibri(List.of("ISBN-001", "ISBN-002"), "Anna Verdi", 7).isRiuscito());
+
+            assertEquals(List.of(2, 3, 1, 2, 2, 2, 1),
+                tutto.ricevute.stream().map(ModificaCatalogo::copia).toList());
+            assertEquals("Giulia Bianchi",
+                assertInstanceOf(ModificaCatalogo.Prestito.class, tutto.ricevute.get(3)).utente());
+            assertInstanceOf(ModificaCatalogo.Restituzione.class, tutto.ricevute.get(4));
+
+            assertEquals(List.of(1, 2, 2, 0), eventi.stream().map(EventoPrestito::copia).toList());
+            assertTrue(eventi.get(1).formatta().contains("(copia 2)"), eventi.get(1).formatta());
+            assertEquals("ISBN-001 copia 2, ISBN-002", eventi.get(3).isbn());
+        }
+
+        @Test
+        @DisplayName("un prestito in gara con la rimozione del libro fallisce oppure compare nel flusso")
+        void testPrestitoDuranteRimozione() throws Exception {
+            AtomicInteger prestitiNelFlusso = new AtomicInteger();
+            flusso.subscribe(new Flow.Subscriber<>() {
+                @Override public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+                @Override public void onNext(ModificaCatalogo m) {
+                    if (m instanceof ModificaCatalogo.Prestito) prestitiNelFlusso.incrementAndGet();
+                }
+                @Override public void onError(Throwable t) {}
+                @Override public void onComplete()          {}
+            });
+            AtomicInteger eventi = new AtomicInteger();
+            GestorePrestiti g = new GestorePrestiti(catalogo, Clock.systemDefaultZone(), e -> eventi.incrementAndGet());
+
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            for (int i = 0; i < 5000; i++) {
+                String isbn = "GARA-" + i;
+                catalogo.aggiungiLibro(new Libro(isbn, "Titolo " + i, "Autore", 2000));
+                CountDownLatch via = new CountDownLatch(1);
+                Future<?> prestito = pool.submit(() -> {
+                    via.await();
+                    try {
+                        g.prestaLibro(isbn, "Mario Rossi", 14);
+                    } catch (IllegalStateException rimosso) {
+                        // la rimozione è arrivata prima
+                    }
+                    return null;
+                });
+                via.countDown();
+                try {
+                    catalogo.rimuoviLibro(isbn);
+                } catch (IllegalStateException inPrestito) {
+                    // il prestito è arrivato prima
+                }
+                prestito.get(30, TimeUnit.SECONDS);
+            }
+            pool.shutdown();
+            assertEquals(prestitiNelFlusso.get(), eventi.get());
+        }
+    }
+
+    @Nested
+    @DisplayName("cercaPerTesto()")
+    class TestRicercaTestuale {
+
+        private List<String> titoli(List<Libro> libri) {
+            return libri.stream().map(Libro::getTitolo).toList();
+        }
+
+        @Test
+        @DisplayName("ignora accenti, maiuscole e parole vuote e ordina per pertinenza")
+        void testPertinenza() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto(), new CatalogoPartizionato(3))) {
+                c.aggiungiLibro(new Libro("T-1", "Cent'anni di solitudine", "Gabriel García Márquez", 1967));
+                c.aggiungiLibro(new Libro("T-2", "L'amore ai tempi del colera", "Gabriel García Márquez", 1985));
+                c.aggiungiLibro(new Libro("T-3", "La solitudine dei numeri primi", "Paolo Giordano", 2008));
+                c.aggiungiLibro(new Libro("T-4", "Il nome della rosa", "Umberto Eco", 1980));
+
+                assertEquals(List.of("Cent'anni di solitudine", "L'amore ai tempi del colera"),
+                             titoli(c.cercaPerTesto("MARQUEZ", 10)));
+                assertEquals("Cent'anni di solitudine", titoli(c.cercaPerTesto("solitudine márquez", 10)).get(0));
+                assertEquals(2, c.cercaPerTesto("SOLITUDINE", 10).size());
+                assertEquals(1, c.cercaPerTesto("solitudine", 1).size());
+                assertTrue(c.cercaPerTesto("della di il", 10).isEmpty());
+                assertTrue(c.cercaPerTesto("   ", 10).isEmpty());
+                assertThrows(IllegalArgumentException.class, () -> c.cercaPerTesto("rosa", 0));
+
+                c.aggiungiLibro(new Libro("T-5", "Amore e ginnastica", "Edmondo De Amicis", 1892));
+                assertEquals(List.of("Amore e ginnastica", "L'amore ai tempi del colera"), titoli(c.cercaPerTesto("amore", 10)));
+            }
+        }
+
+        @Test
+        @DisplayName("segue aggiunte e rimozioni, anche dopo molte rimozioni")
+        void testAggiornamenti() {
+            Catalogo c = new Catalogo();
+            for (int i = 0; i < 300; i++) c.aggiungiLibro(new Libro("T-" + i, "Racconto numero " + i, "Autore " + (i % 3), 2000));
+            assertEquals(10, c.cercaPerTesto("racconto", 10).size());
+            assertEquals("T-42", c.cercaPerTesto("42", 5).get(0).getIsbn());
+
+            for (int i = 0; i < 250; i++) assertTrue(c.rimuoviLibro("T-" + i));
+            assertTrue(c.cercaPerTesto("42", 5).isEmpty());
+            assertEquals(50, c.cercaPerTesto("racconto", 100).size());
+            assertEquals("T-250", c.cercaPerTesto("racconto", 100).get(0).getIsbn());
+
+            c.aggiungiLibro(new Libro("T-42", "Il ritorno del racconto", "Autore 9", 2024));
+            assertEquals("Il ritorno del racconto", c.cercaPerTesto("ritorno 42", 5).get(0).getTitolo());
+            assertEquals("T-42", c.cercaPerTesto("autore 9", 5).get(0).getIsbn());
+        }
+
+        @Test
+        @DisplayName("le ricerche concorrenti alle aggiunte non vedono documenti a metà")
+        void testRicercheDuranteLeAggiunte() throws Exception {
+            Catalogo c = new Catalogo();
+            AtomicBoolean finito = new AtomicBoolean();
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            Future<Integer> ricerche = pool.submit(() -> {
+                int n = 0;
+                while (!finito.get()) {
+                    List<Libro> trovati = c.cercaPerTesto("racconto", 20);
+                    assertTrue(trovati.size() <= 20);
+                    n++;
+                }
+                return n;
+            });
+            for (int i = 0; i < 20_000; i++) {
+                c.aggiungiLibro(new Libro("T-" + i, "Racconto numero " + i, "Autore " + (i % 7), 2000));
+            }
+            finito.set(true);
+            assertTrue(ricerche.get(30, TimeUnit.SECONDS) > 0);
+            pool.shutdown();
+            assertEquals(20, c.cercaPerTesto("racconto", 20).size());
+        }
+    }
+
+    @Nested
+    @DisplayName("più copie dello stesso ISBN")
+    class TestCopie {
+
+        @TempDir
+        Path cartella;
+
+        private GestorePrestiti gestoreDi(Catalogo c) {
+            return new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+        }
+
+        /** ISBN, copia e prestitario dei libri in prestito, in ordine. */
+        private List<String> prestiti(Catalogo c) {
+            return c.getLibriInPrestito().stream()
+                .map(l -> l.getIsbn() + "/" + l.getCopia() + ":" + l.getPrestitarioCorrente())
+                .sorted()
+                .toList();
+        }
+
+        @Test
+        @DisplayName("64 thread si contendono 100 copie: ne prestano esattamente 100, tutte diverse")
+        void testPrestitiConcorrenti() throws Exception {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("C-1", "Il best seller", "Autrice Famosa", 2024));
+                c.aggiungiCopie("C-1", 99);
+                GestorePrestiti g = gestoreDi(c);
+
+                ExecutorService pool = Executors.newFixedThreadPool(64);
+                CountDownLatch via = new CountDownLatch(1);
+                List<Future<List<Integer>>> esiti = new ArrayList<>();
+                for (int t = 0; t < 64; t++) {
+                    String utente = "utente-" + t;
+                    esiti.add(pool.submit(() -> {
+                        via.await();
+                        List<Integer> presi = new ArrayList<>();
+                        for (int i = 0; i < 3; i++) {
+                            try {
+                                presi.add(g.prestaLibro("C-1", utente, 14).getCopia());
+                            } catch (IllegalStateException esaurite) {
+                                // nessuna copia libera
+                            }
+                        }
+                        return presi;
+                    }));
+                }
+                via.countDown();
+                java.util.Set<Integer> copie = new java.util.HashSet<>();
+                int prestati = 0;
+                for (Future<List<Integer>> esito : esiti) {
+                    List<Integer> presi = esito.get(30, TimeUnit.SECONDS);
+                    prestati += presi.size();
+                    copie.addAll(presi);
+                }
+                pool.shutdown();
+
+                assertEquals(100, prestati);
+                assertEquals(100, copie.size());
+                assertEquals(0, c.getCopieDisponibili("C-1"));
+                assertEquals(100, c.getNumeroInPrestito());
+                assertThrows(IllegalStateException.class, () -> g.prestaLibro("C-1", "ritardatario", 14));
+
+                g.restituisciLibro("C-1", 57);
+                assertEquals(1, c.getCopieDisponibili("C-1"));
+                assertEquals(57, g.prestaLibro("C-1", "ritardatario", 14).getCopia());
+            }
+        }
+
+        @Test
+        @DisplayName("conteggi, restituzione della copia giusta e rimozione del titolo")
+        void testConteggiERestituzioni() {
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto())) {
+                c.aggiungiLibro(new Libro("978-88-06-22715-9", "Il nome della rosa", "Umberto Eco", 1980));
+                c.aggiungiCopie("9788806227159", 2);
+                GestorePrestiti g = gestoreDi(c);
+
+                assertEquals(3, c.getCopie("88-06-22715-7"));
+                assertEquals(3, c.getCopieDisponibili("9788806227159"));
+                assertEquals(3, c.getTotaleLibri());
+                assertEquals(1, c.cercaPerAutore("eco").size());
+                assertEquals(1, c.cercaPerIsbn("9788806227159").orElseThrow().getCopia());
+                assertEquals(0, c.getCopie("ISBN-999"));
+                assertThrows(IllegalStateException.class, () -> c.aggiungiCopie("ISBN-999", 1));
+                assertThrows(IllegalArgumentException.class, () -> c.aggiungiCopie("9788806227159", 0));
+
+                assertEquals(1, g.prestaLibro("9788806227159", "Mario Rossi", 14).getCopia());
+                Libro seconda = g.prestaLibro("9788806227159", "Giulia Bianchi", 14);
+                assertEquals(2, seconda.getCopia());
+                assertTrue(seconda.toString().startsWith("[978-88-06-22715-9 copia 2] "), seconda.toString());
+                assertEquals(1, c.getCopieDisponibili("9788806227159"));
+                assertEquals(List.of("978-88-06-22715-9/1:Mario Rossi", "978-88-06-22715-9/2:Giulia Bianchi"), prestiti(c));
+
+                assertThrows(IllegalStateException.class, () -> g.restituisciLibro("9788806227159"));
+                EsitoCestino cestino = g.restituisciLibri(List.of("9788806227159"));
+                assertFalse(cestino.isRiuscito());
+                assertEquals(EsitoCestino.Stato.COPIA_DA_INDICARE, cestino.getEsiti().get(0).stato());
+                assertThrows(IllegalStateException.class, () -> c.rimuoviLibro("9788806227159"));
+
+                assertEquals("Giulia Bianchi", g.getPrestitiDi("Giulia Bianchi").get(0).getPrestitarioCorrente());
+                assertEquals(2, g.restituisciLibro("9788806227159", 2).getCopia());
+                assertThrows(IllegalStateException.class, () -> g.restituisciLibro("9788806227159", 3));
+                assertThrows(IllegalStateException.class, () -> g.restituisciLibro("9788806227159", 4));
+                assertEquals(1, g.restituisciLibro("9788806227159").getCopia());
+                assertTrue(g.prestaLibri(List.of("9788806227159"), "Mario Rossi", 7).isRiuscito());
+                assertTrue(g.restituisciLibri(List.of("9788806227159")).isRiuscito());
+
+                assertTrue(c.rimuoviLibro("9788806227159"));
+                assertEquals(0, c.getTotaleLibri());
+                assertEquals(0, c.getNumeroDisponibili());
+                assertEquals(0, c.getCopie("9788806227159"));
+            }
+        }
+
+        @Test
+        @DisplayName("giornale, checkpoint e istantanea ricostruiscono copie e prestiti")
+        void testRipristino() throws Exception {
+            List<Supplier<Catalogo>> tipi = List.of(Catalogo::new, CatalogoCompatto::new);
+            for (int t = 0; t < tipi.size(); t++) {
+                Supplier<Catalogo> nuovo = tipi.get(t);
+                Path dati = cartella.resolve("catalogo-" + t);
+                Catalogo originale = nuovo.get();
+                try (Giornale giornale = Giornale.apri(dati, originale)) {
+                    GestorePrestiti g = gestoreDi(originale);
+                    originale.aggiungiLibro(new Libro("C-1", "Il best seller", "Autrice Famosa", 2024));
+                    originale.aggiungiLibro(new Libro("C-2", "Un altro titolo", "Autore Qualunque", 2020));
+                    originale.aggiungiCopie("C-1", 2);
+                    g.prestaLibro("C-1", "Mario Rossi", 14);
+                    giornale.checkpoint();
+                    originale.aggiungiCopie("C-1", 1);
+                    g.prestaLibro("C-1", "Giulia Bianchi", 14);
+                    assertTrue(g.prestaLibri(List.of("C-1", "C-2"), "Anna Verdi", 7).isRiuscito());
+                    g.restituisciLibro("C-1", 1);
+                    giornale.sincronizza();
+                }
+                List<String> attesi = List.of("C-1/2:Giulia Bianchi", "C-1/3:Anna Verdi", "C-2/1:Anna Verdi");
+                assertEquals(attesi, prestiti(originale));
+
+                Catalogo ripristinato = nuovo.get();
+                Giornale.apri(dati, ripristinato).close();
+                assertEquals(4, ripristinato.getCopie("C-1"));
+                assertEquals(2, ripristinato.getCopieDisponibili("C-1"));
+                assertEquals(attesi, prestiti(ripristinato));
+
+                Path file = dati.resolve("catalogo.snap");
+                IstantaneaCatalogo.scrivi(ripristinato, file);
+                IstantaneaCatalogo istantanea = IstantaneaCatalogo.apri(file);
+                assertEquals(1, istantanea.cercaPerIsbn("C-1").orElseThrow().getCopia());
+                Catalogo ricostruito = istantanea.inCatalogo();
+                assertEquals(4, ricostruito.getCopie("C-1"));
+                assertEquals(attesi, prestiti(ricostruito));
+                assertEquals(2, ricostruito.getCopieDisponibili("C-1"));
+                assertEquals(1, gestoreDi(ricostruito).prestaLibro("C-1", "Luca Neri", 7).getCopia());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Prenotazioni  [coda per titolo, consegna alla restituzione]")
+    class TestPrenotazioni {
+
+        /** Orologio che i test spostano avanti a mano. */
+        private final java.util.concurrent.atomic.AtomicReference<java.time.Instant> adesso =
+            new java.util.concurrent.atomic.AtomicReference<>(LocalDate.of(2024, 3, 1).atStartOfDay().toInstant(ZoneOffset.UTC));
+
+        private final Clock orologio = new Clock() {
+            @Override public java.time.ZoneId getZone()                  { return ZoneOffset.UTC; }
+            @Override public Clock withZone(java.time.ZoneId zona)       { return this; }
+            @Override public java.time.Instant instant()                 { return adesso.get(); }
+        };
+
+        @Test
+        @DisplayName("la copia restituita passa alla prima prenotazione e solo lei può prenderla")
+        void testConsegnaInOrdine() {
+            Catalogo c = new Catalogo();
+            c.aggiungiLibro(new Libro("P-1", "Il titolo conteso", "Autore", 2020));
+            GestorePrestiti g = new GestorePrestiti(c, orologio, RegistroPrestiti.nessuno());
+            g.prestaLibro("P-1", "anna", 14);
+
+            Prenotazione bruno = g.prenota("P-1", "bruno");
+            Prenotazione carla = g.prenota("P-1", "carla");
+            assertSame(bruno, g.prenota("P-1", "bruno"));
+            assertEquals(Prenotazione.Stato.IN_ATTESA, bruno.getStato());
+            assertEquals(2, g.getNumeroInAttesa("P-1"));
+
+            Libro libro = g.restituisciLibro("P-1");
+            assertEquals(Prenotazione.Stato.PRONTA, bruno.getStato());
+            assertSame(libro, bruno.getCopia());
+            assertEquals(LocalDate.of(2024, 3, 4), bruno.getRitiroEntro());
+            assertEquals("bruno", libro.getRiservatoA());
+            assertEquals(1, g.getNumeroInAttesa("P-1"));
+            assertTrue(c.cercaDisponibiliPerAnno(2020, 2020).isEmpty());
+            assertEquals(0, c.getCopieDisponibili("P-1"));
+
+            assertThrows(IllegalStateException.class, () -> g.prestaLibro("P-1", "dario", 14));
+            assertThrows(IllegalStateException.class, () -> libro.segnaComePrestato("dario", 14));
+            assertEquals(EsitoCestino.Stato.NON_DISPONIBILE,
+                         g.prestaLibri(List.of("P-1"), "dario", 14).getEsiti().get(0).stato());
+
+            g.prestaLibro("P-1", "bruno", 14);
+            assertEquals(Prenotazione.Stato.RITIRATA, bruno.getStato());
+            assertNull(libro.getRiservatoA());
+
+            g.restituisciLibro("P-1");
+            assertEquals("carla", libro.getRiservatoA());
+            assertTrue(g.annullaPrenotazione("P-1", "carla"));
+            assertFalse(g.annullaPrenotazione("P-1", "carla"));
+            assertEquals(Prenotazione.Stato.ANNULLATA, carla.getStato());
+            assertNull(libro.getRiservatoA());
+
+            // con una copia libera la prenotazione è pronta subito
+            assertEquals(Prenotazione.Stato.PRONTA, g.prenota("P-1", "elena").getStato());
+            assertThrows(IllegalStateException.class, () -> g.prenota("P-999", "elena"));
+            assertThrows(IllegalArgumentException.class, () -> g.prenota("P-1", " "));
+        }
+
+        @Test
+        @DisplayName("nel catalogo compatto la riserva sta nelle colonne e vale per ogni vista del libro")
+        void testRiservaNelCatalogoCompatto() {
+            CatalogoCompatto c = new CatalogoCompatto();
+            c.aggiungiLibro(new Libro("P-4", "Il titolo compatto", "Autore", 2022));
+            GestorePrestiti g = new GestorePrestiti(c, orologio, RegistroPrestiti.nessuno());
+            g.prestaLibro("P-4", "anna", 14);
+
+            Prenotazione bruno = g.prenota("P-4", "bruno");
+            Libro restituito = g.restituisciLibro("P-4");
+            assertEquals(Prenotazione.Stato.PRONTA, bruno.getStato());
+            assertEquals(restituito, bruno.getCopia());
+            Libro vista = c.cercaPerIsbn("P-4").orElseThrow();
+            assertNotSame(restituito, vista);
+            assertEquals("bruno", vista.getRiservatoA());
+            assertTrue(vista.toString().contains("[RISERVATO a bruno]"));
+            assertTrue(c.cercaDisponibiliPerAnno(2022, 2022).isEmpty());
+            assertEquals(0, c.getCopieDisponibili("P-4"));
+
+            assertThrows(IllegalStateException.class, () -> g.prestaLibro("P-4", "dario", 14));
+            assertThrows(IllegalStateException.class, () -> vista.segnaComePrestato("dario", 14));
+            assertEquals(EsitoCestino.Stato.NON_DISPONIBILE,
+                         g.prestaLibri(List.of("P-4"), "dario", 14).getEsiti().get(0).stato());
+
+            g.prestaLibro("P-4", "bruno", 14);
+            assertEquals(Prenotazione.Stato.RITIRATA, bruno.getStato());
+            assertNull(vista.getRiservatoA());
+            g.restituisciLibro("P-4");
+            assertEquals(Prenotazione.Stato.PRONTA, g.prenota("P-4", "carla").getStato());
+            assertTrue(g.annullaPrenotazione("P-4", "carla"));
+            assertNull(vista.getRiservatoA());
+            assertEquals(List.of(vista), c.cercaDisponibiliPerAnno(2022, 2022));
+            assertEquals("dario", g.prestaLibro("P-4", "dario", 14).getPrestitarioCorrente());
+        }
+
+        @Test
+        @DisplayName("una copia non ritirata in tempo passa alla prenotazione successiva")
+        void testScadenzaRitiro() {
+            for (Supplier<Catalogo> nuovo : List.<Supplier<Catalogo>>of(Catalogo::new, CatalogoCompatto::new)) {
+                scadenzaRitiro(nuovo.get());
+            }
+        }
+
+        private void scadenzaRitiro(Catalogo c) {
+            c.aggiungiLibro(new Libro("P-2", "Il titolo a due copie", "Autore", 2021));
+            c.aggiungiCopie("P-2", 1);
+            GestorePrestiti g = new GestorePrestiti(c, orologio, RegistroPrestiti.nessuno());
+            g.setGiorniRitiro(2);
+            g.prestaLibro("P-2", "anna", 14);
+            g.prestaLibro("P-2", "anna", 14);
+
+            Prenotazione bruno = g.prenota("P-2", "bruno");
+            Prenotazione carla = g.prenota("P-2", "carla");
+            Prenotazione dario = g.prenota("P-2", "dario");
+            g.restituisciLibro("P-2", 2);
+            assertEquals(2, bruno.getCopia().getCopia());
+            assertEquals(0, c.getCopieDisponibili("P-2"));
+            assertEquals(0, g.rilasciaRitiriScaduti());
+
+            adesso.set(adesso.get().plus(Duration.ofDays(3)));
+            assertEquals(1, g.rilasciaRitiriScaduti());
+            assertEquals(Prenotazione.Stato.SCADUTA, bruno.getStato());
+            assertEquals(Prenotazione.Stato.PRONTA, carla.getStato());
+            assertEquals(2, carla.getCopia().getCopia());
+            assertThrows(IllegalStateException.class, () -> g.prestaLibro("P-2", "bruno", 14));
+
+            g.restituisciLibro("P-2", 1);
+            assertEquals(1, dario.getCopia().getCopia());
+            assertEquals(1, g.prestaLibro("P-2", "dario", 14).getCopia());
+            assertEquals(2, g.prestaLibro("P-2", "carla", 14).getCopia());
+            assertEquals(0, g.getNumeroInAttesa("P-2"));
+        }
+
+        @Test
+        @DisplayName("un cestino presta all'utente la copia messa da parte per lui")
+        void testCestinoConCopiaRiservata() {
+            for (Supplier<Catalogo> nuovo : List.<Supplier<Catalogo>>of(Catalogo::new, CatalogoCompatto::new)) {
+                Catalogo c = nuovo.get();
+                c.aggiungiLibro(new Libro("P-5", "Il titolo in cestino", "Autore", 2023));
+                c.aggiungiCopie("P-5", 1);
+                GestorePrestiti g = new GestorePrestiti(c, orologio, RegistroPrestiti.nessuno());
+                g.prestaLibro("P-5", "anna", 14);
+                g.prestaLibro("P-5", "dario", 14);
+                Prenotazione bruno = g.prenota("P-5", "bruno");
+                g.restituisciLibro("P-5", 2);
+                assertEquals(2, bruno.getCopia().getCopia());
+
+                assertEquals(EsitoCestino.Stato.NON_DISPONIBILE,
+                             g.prestaLibri(List.of("P-5"), "elena", 14).getEsiti().get(0).stato());
+                EsitoCestino esito = g.prestaLibri(List.of("P-5"), "bruno", 14);
+                assertTrue(esito.isRiuscito());
+                assertEquals(2, esito.getEsiti().get(0).libro().getCopia());
+                assertEquals(Prenotazione.Stato.RITIRATA, bruno.getStato());
+
+                // con un'altra copia libera l'utente riceve comunque la sua, che non resta bloccata
+                Prenotazione carla = g.prenota("P-5", "carla");
+                g.restituisciLibro("P-5", 2);
+                g.restituisciLibro("P-5", 1);
+                assertEquals(2, carla.getCopia().getCopia());
+                assertEquals(2, g.prestaLibri(List.of("P-5"), "carla", 14).getEsiti().get(0).libro().getCopia());
+                assertEquals(1, c.getCopieDisponibili("P-5"));
+            }
+        }
+
+        @Test
+        @DisplayName("200 prenotazioni e 100 restituzioni concorrenti: ogni copia va a una prenotazione diversa")
+        void testPrenotazioniConcorrenti() throws Exception {
+            for (Supplier<Catalogo> nuovo : List.<Supplier<Catalogo>>of(Catalogo::new, CatalogoCompatto::new)) {
+                prenotazioniConcorrenti(nuovo.get());
+            }
+        }
+
+        private void prenotazioniConcorrenti(Catalogo c) throws Exception {
+            c.aggiungiLibro(new Libro("P-3", "Il titolo del momento", "Autore", 2024));
+            c.aggiungiCopie("P-3", 99);
+            GestorePrestiti g = new GestorePrestiti(c, orologio, RegistroPrestiti.nessuno());
+            for (int i = 0; i < 100; i++) g.prestaLibro("P-3", "lettore-" + i, 14);
+
+            ExecutorService pool = Executors.newFixedThreadPool(32);
+            CountDownLatch via = new CountDownLatch(1);
+            List<Future<Prenotazione>> prenotazioni = new ArrayList<>();
+            List<Future<?>> restituzioni = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String utente = "utente-" + i;
+                prenotazioni.add(pool.submit(() -> {
+                    via.await();
+                    return g.prenota("P-3", utente);
+                }));
+                int copia = i / 2 + 1;
+                if (i % 2 == 0) restituzioni.add(pool.submit(() -> {
+                    via.await();
+                    return g.restituisciLibro("P-3", copia);
+                }));
+            }
+            via.countDown();
+            for (Future<?> r : restituzioni) r.get(30, TimeUnit.SECONDS);
+            java.util.Set<Libro> copie = new java.util.HashSet<>();
+            int pronte = 0;
+            for (Future<Prenotazione> f : prenotazioni) {
+                Prenotazione p = f.get(30, TimeUnit.SECONDS);
+                if (p.getStato() == Prenotazione.Stato.PRONTA) {
+                    pronte++;
+                    copie.add(p.getCopia());
+                    assertEquals(p.getUtente(), p.getCopia().getRiservatoA());
+                }
+            }
+            pool.shutdown();
+
+            assertEquals(100, pronte);
+            assertEquals(100, copie.size());
+            assertEquals(100, g.getNumeroInAttesa("P-3"));
+            assertEquals(0, c.getCopieDisponibili("P-3"));
+            assertThrows(IllegalStateException.class, () -> g.prestaLibro("P-3", "ritardatario", 14));
+        }
+    }
+
+    @Nested
+    @DisplayName("Anni e faccette  [indice per anno, conteggi incrementali]")
+    class TestAnniEFaccette {
+
+        private List<Libro> libri() {
+            return List.of(
+                new Libro("A-1", "Ossi di seppia", "Eugenio Montale", 1925),
+                new Libro("A-2", "Le occasioni", "Eugenio Montale", 1939),
+                new Libro("A-3", "Se questo è un uomo", "Primo Levi", 1947),
+                new Libro("A-4", "La tregua", "Primo Levi", 1963),
+                new Libro("A-5", "Il sistema periodico", "Primo Levi", 1975),
+                new Libro("A-6", "Il Gattopardo", "Giuseppe Tomasi di Lampedusa", 1958),
+                new Libro("A-7", "Il barone rampante", "Italo Calvino", 1957),
+                new Libro("A-8", "Il sentiero dei nidi di ragno", "Italo Calvino", 1947));
+        }
+
+        private List<String> isbn(List<Libro> libri) {
+            return libri.stream().map(Libro::getIsbn).toList();
+        }
+
+        @Test
+        @DisplayName("intervalli di anni in ordine, filtro di disponibilità e faccette aggiornate")
+        void testIntervalliEFaccette() {
+            Catalogo c = new Catalogo();
+            c.aggiungiLibri(libri());
+            c.aggiungiCopie("A-7", 1);
+            GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+
+            assertEquals(List.of("A-3", "A-8", "A-7", "A-6"), isbn(c.cercaPerAnno(1940, 1960)));
+            assertEquals(4, c.contaPerAnno(1940, 1960));
+            assertEquals(List.of("A-2"), isbn(c.cercaPerAnno(1939, 1939)));
+            assertTrue(c.cercaPerAnno(1800, 1899).isEmpty());
+            assertThrows(IllegalArgumentException.class, () -> c.cercaPerAnno(1960, 1940));
+
+            g.prestaLibro("A-3", "anna", 14);
+            g.prestaLibro("A-7", "bruno", 14);
+            assertEquals(List.of("A-8", "A-7", "A-6"), isbn(c.cercaDisponibiliPerAnno(1940, 1960)));
+            g.prestaLibro("A-7", "carla", 14);
+            assertEquals(List.of("A-8", "A-6"), isbn(c.cercaDisponibiliPerAnno(1940, 1960)));
+
+            Faccette f = c.getFaccette(2);
+            assertEquals(java.util.Map.of(1920, 1, 1930, 1, 1940, 2, 1950, 2, 1960, 1, 1970, 1), f.perDecennio());
+            assertEquals(List.of(1920, 1930, 1940, 1950, 1960, 1970), List.copyOf(f.perDecennio().keySet()));
+            assertEquals(List.of("Primo Levi", "Eugenio Montale"), List.copyOf(f.perAutore().keySet()));
+            assertEquals(3, f.perAutore().get("Primo Levi"));
+
+            assertTrue(c.rimuoviLibro("A-6"));
+            assertEquals(3, c.contaPerAnno(1940, 1960));
+            assertFalse(c.getFaccette(10).perAutore().containsKey("Giuseppe Tomasi di Lampedusa"));
+            assertEquals(1, c.getFaccette(10).perDecennio().get(1950));
+            assertThrows(IllegalArgumentException.class, () -> c.getFaccette(0));
+        }
+
+        @Test
+        @DisplayName("catalogo compatto e partizionato danno gli stessi intervalli e le stesse faccette")
+        void testStessiRisultatiSuTuttiICataloghi() {
+            Catalogo riferimento = new Catalogo();
+            riferimento.aggiungiLibri(libri());
+            List<String> attesi = isbn(riferimento.cercaPerAnno(1940, 1970));
+            Faccette faccette = riferimento.getFaccette(10);
+
+            for (Catalogo c : List.of(new CatalogoCompatto(), new CatalogoPartizionato(4),
+                                      new CatalogoPartizionato(3, CatalogoCompatto::new))) {
+                c.aggiungiLibri(libri());
+                String nome = c.getClass().getSimpleName();
+                List<Libro> trovati = c.cercaPerAnno(1940, 1970);
+                assertEquals(new java.util.HashSet<>(attesi), new java.util.HashSet<>(isbn(trovati)), nome);
+                for (int i = 1; i < trovati.size(); i++) {
+                    assertTrue(trovati.get(i - 1).getAnnoPubblicazione() <= trovati.get(i).getAnnoPubblicazione(), nome);
+                }
+                assertEquals(faccette, c.getFaccette(10), nome);
+
+                c.cercaPerIsbn("A-4").orElseThrow().segnaComePrestato("anna", 14);
+                assertFalse(isbn(c.cercaDisponibiliPerAnno(1940, 1970)).contains("A-4"), nome);
+                c.cercaPerIsbn("A-4").orElseThrow().segnaComRestituito();
+                assertTrue(c.rimuoviLibro("A-4"));
+                assertEquals(attesi.size() - 1, c.contaPerAnno(1940, 1970), nome);
+                assertEquals(2, c.getFaccette(10).perAutore().get("Primo Levi"), nome);
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Cache delle ricerche")
+    class TestCacheRicerche {
+
+        private List<Libro> libri() {
+            return List.of(
+                new Libro("C-1", "Ossi di seppia", "Eugenio Montale", 1925),
+                new Libro("C-2", "Le occasioni", "Eugenio Montale", 1939),
+                new Libro("C-3", "Se questo è un uomo", "Primo Levi", 1947),
+                new Libro("C-4", "La tregua", "Primo Levi", 1963),
+                new Libro("C-5", "Il sistema periodico", "Primo Levi", 1975),
+                new Libro("C-6", "Il Gattopardo", "Giuseppe Tomasi di Lampedusa", 1958),
+                new Libro("C-7", "Il barone rampante", "Italo Calvino", 1957),
+                new Libro("C-8", "Il sentiero dei nidi di ragno", "Italo Calvino", 1947));
+        }
+
+        private List<String> isbn(List<Libro> libri) {
+            return libri.stream().map(Libro::getIsbn).sorted().toList();
+        }
+
+        @Test
+        @DisplayName("le ricerche ripetute vengono dalla cache e un'aggiunta invalida solo l'autore del libro")
+        void testSuccessiEInvalidazionePerAutore() {
+            Catalogo c = new Catalogo();
+            c.aggiungiLibri(libri());
+            assertTrue(c.getStatisticheCache().isEmpty());
+            assertThrows(IllegalArgumentException.class, () -> c.abilitaCache(0));
+            c.abilitaCache(1_000);
+
+            List<Libro> levi = c.cercaPerAutore("levi");
+            assertSame(levi, c.cercaPerAutore("LEVI "));
+            List<Libro> calvino = c.cercaPerAutore("Calvino");
+            assertThrows(UnsupportedOperationException.class, () -> levi.add(levi.get(0)));
+            StatisticheCache s = c.getStatisticheCache().orElseThrow();
+            assertEquals(1, s.successi());
+            assertEquals(2, s.mancati());
+            assertEquals(2, s.voci());
+            assertEquals(4 + 3, s.peso());
+
+            c.aggiungiLibro(new Libro("C-9", "La chiave a stella", "Primo Levi", 1978));
+            assertEquals(List.of("C-3", "C-4", "C-5", "C-9"), isbn(c.cercaPerAutore("levi")));
+            assertSame(calvino, c.cercaPerAutore("calvino"));
+            assertTrue(c.rimuoviLibro("C-7"));
+            assertEquals(List.of("C-8"), isbn(c.cercaPerAutore("calvino")));
+            assertEquals(2, c.getStatisticheCache().orElseThrow().invalidazioni());
+
+            c.disabilitaCache();
+            assertTrue(c.getStatisticheCache().isEmpty());
+            assertNotSame(c.cercaPerAutore("levi"), c.cercaPerAutore("levi"));
+        }
+
+        @Test
+        @DisplayName("prestiti e restituzioni invalidano disponibili, prestiti e scaduti su ogni catalogo")
+        void testInvalidazioneConIPrestiti() {
+            LocalDate traUnMese = LocalDate.now().plusDays(30);
+            for (Catalogo c : List.of(new Catalogo(), new CatalogoCompatto(), new CatalogoPartizionato(4))) {
+                String nome = c.getClass().getSimpleName();
+                c.aggiungiLibri(libri());
+                c.abilitaCache(1_000);
+                GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+
+                assertEquals(8, c.getLibriDisponibili().size(), nome);
+                assertTrue(c.getLibriInPrestito().isEmpty(), nome);
+                assertTrue(g.getPrestitiScaduti(traUnMese).isEmpty(), nome);
+                assertSame(c.getLibriDisponibili(), c.getLibriDisponibili(), nome);
+
+                g.prestaLibro("C-3", "anna", 14);
+                assertEquals(7, c.getLibriDisponibili().size(), nome);
+                assertEquals(List.of("C-3"), isbn(c.getLibriInPrestito()), nome);
+                assertEquals(List.of("C-3"), isbn(g.getPrestitiScaduti(traUnMese)), nome);
+                assertTrue(g.getPrestitiScaduti(LocalDate.now()).isEmpty(), nome);
+
+                g.prestaLibri(List.of("C-6", "C-7"), "bruno", 14);
+                assertEquals(List.of("C-3", "C-6", "C-7"), isbn(g.getPrestitiScaduti(traUnMese)), nome);
+                g.restituisciLibro("C-3");
+                assertEquals(List.of("C-6", "C-7"), isbn(c.getLibriInPrestito()), nome);
+                assertEquals(6, c.getLibriDisponibili().size(), nome);
+                assertTrue(c.getStatisticheCache().orElseThrow().invalidazioni() > 0, nome);
+            }
+        }
+
+        @Test
+        @DisplayName("oltre il peso massimo entra solo ciò che è chiesto più spesso di quanto toglierebbe")
+        void testSfrattoEAmmissione() {
+            Catalogo c = new Catalogo();
+            c.aggiungiLibri(libri());
+            c.abilitaCache(6);
+
+            for (int i = 0; i < 3; i++) c.cercaPerAutore("montale");     // peso 3
+            c.cercaPerAutore("lampedusa");                                  // peso 2
+            c.cercaPerAutore("calvino");                                    // peso 3: non entra
+            assertEquals(1, c.getStatisticheCache().orElseThrow().rifiutati());
+            assertEquals(0, c.getStatisticheCache().orElseThrow().sfratti());
+
+            long successi = c.getStatisticheCache().orElseThrow().successi();
+            for (int i = 0; i < 10 && c.getStatisticheCache().orElseThrow().successi() == successi; i++) {
+                c.cercaPerAutore("calvino");
+            }
+            StatisticheCache s = c.getStatisticheCache().orElseThrow();
+            assertEquals(successi + 1, s.successi());
+            assertEquals(1, s.sfratti());
+            assertTrue(s.peso() <= 6);
+
+            c.getLibriDisponibili();                                        // peso 9: mai in cache
+            c.getLibriDisponibili();
+            assertEquals(s.mancati() + 2, c.getStatisticheCache().orElseThrow().mancati());
+            assertEquals(s.voci(), c.getStatisticheCache().orElseThrow().voci());
+        }
+    }
+
+    @Nested
+    @DisplayName("ServizioPrestiti  [HTTP]")
+    class TestServizioHttp {
+
+        private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        private HttpResponse<String> invia(URI base, String metodo, String percorso, String form) throws Exception {
+            HttpRequest.Builder richiesta = HttpRequest.newBuilder(base.resolve(percorso));
+            if (form == null) richiesta.method(metodo, HttpRequest.BodyPublishers.noBody());
+            else richiesta.header("Content-Type", "application/x-www-form-urlencoded")
+                          .method(metodo, HttpRequest.BodyPublishers.ofString(form));
+            return http.send(richiesta.build(), HttpResponse.BodyHandlers.ofString());
+        }
+
+        @Test
+        @DisplayName("ricerca, prestito, restituzione e scaduti rispondono JSON con i codici giusti")
+        void testEndpoint() throws Exception {
+            try (ServizioPrestiti servizio = ServizioPrestiti.avvia(catalogo, gestore, 0)) {
+                URI base = URI.create("http://127.0.0.1:" + servizio.getPorta());
+
+                HttpResponse<String> libro = invia(base, "GET", "/libri/isbn-001", null);
+                assertEquals(200, libro.statusCode());
+                assertTrue(libro.body().contains("\"titolo\":\"Il nome della rosa\""), libro.body());
+                assertEquals(404, invia(base, "GET", "/libri/ISBN-999", null).statusCode());
+                assertTrue(invia(base, "GET", "/libri?autore=levi", null).body().contains("ISBN-002"));
+
+                HttpResponse<String> prestito = invia(base, "POST", "/prestiti", "isbn=ISBN-001&utente=Mario+Rossi&giorni=14");
+                assertEquals(201, prestito.statusCode());
+                assertTrue(prestito.body().contains("\"prestitario\":\"Mario Rossi\""), prestito.body());
+                assertFalse(eco.isDisponibile());
+                assertEquals(409, invia(base, "POST", "/prestiti", "isbn=ISBN-001&utente=Luca&giorni=7").statusCode());
+                assertEquals(400, invia(base, "POST", "/prestiti", "isbn=ISBN-002&utente=Luca&giorni=mai").statusCode());
+                assertEquals(405, invia(base, "DELETE", "/prestiti", null).statusCode());
+                assertEquals("[]", invia(base, "GET", "/prestiti/scaduti", null).body());
+
+                assertEquals(200, invia(base, "POST", "/restituzioni", "isbn=ISBN-001").statusCode());
+                assertTrue(eco.isDisponibile());
+            }
+        }
+
+        @Test
+        @DisplayName("il generatore di carico completa richieste senza errori del server")
+        void testGeneratoreCarico() throws Exception {
+            try (ServizioPrestiti servizio = ServizioPrestiti.avvia(catalogo, gestore, 0)) {
+                URI base = URI.create("http://127.0.0.1:" + servizio.getPorta());
+                GeneratoreCarico.Risultato r = GeneratoreCarico.esegui(base,
+                    List.of("ISBN-001", "ISBN-002", "ISBN-003", "ISBN-004"), List.of("eco", "levi"),
+                    8, Duration.ofMillis(300));
+                assertTrue(r.richieste() > 0);
+                // gli unici errori ammessi sono i prestiti di libri già presi da un altro client
+                assertTrue(r.errori() <= r.latenze().di(Metriche.Operazione.PRESTITO).errori(), r.toString());
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("CatalogoPartizionato")
+    class TestCatalogoPartizionato {
+
+        @Test
+        @DisplayName("ISBN equivalenti vanno nella stessa partizione; conteggi e ricerche coprono tutte le partizioni")
+        void testInstradamento() {
+            for (CatalogoPartizionato c : List.of(new CatalogoPartizionato(8), new CatalogoPartizionato(3, CatalogoCompatto::new))) {
+                c.aggiungiLibro(new Libro("978-88-06-22715-9", "Il nome della rosa", "Umberto Eco", 1980));
+                assertThrows(IllegalArgumentException.class,
+                    () -> c.aggiungiLibro(new Libro("88-06-22715-7", "Doppione", "Umberto Eco", 1980)));
+                assertEquals("Il nome della rosa", c.cercaPerIsbn("9788806227159").orElseThrow().getTitolo());
+
+                List<Libro> lotto = new ArrayList<>();
+                for (int i = 0; i < 200; i++) lotto.add(new Libro("PART-" + i, "Titolo " + i, "Autore " + (i % 5), 2000));
+                lotto.add(new Libro("PART-7", "Doppione", "Autore 2", 2000));
+                lotto.add(null);
+                EsitoImportazione esito = c.aggiungiLibri(lotto);
+                assertEquals(200, esito.getAggiunti());
+                assertEquals(EsitoImportazione.Stato.DUPLICATO_LOTTO, esito.getEsiti().get(200).stato());
+                assertEquals(EsitoImportazione.Stato.NON_VALIDO, esito.getEsiti().get(201).stato());
+
+                assertEquals(201, c.getTotaleLibri());
+                assertEquals(201, c.getTuttiILibri().size());
+                assertEquals(40, c.cercaPerAutore("autore 3").size());
+                assertTrue(c.rimuoviLibro("PART-3"));
+                assertEquals(39, c.cercaPerAutore("autore 3").size());
+                assertTrue(c.cercaPerIsbn("PART-3").isEmpty());
+                assertThrows(IllegalArgumentException.class, () -> new CatalogoPartizionato(0));
+            }
+        }
+
+        @Test
+        @DisplayName("prestiti, cestini, scaduti e pagine funzionano come su un catalogo unico")
+        void testPrestitiEPagine() {
+            CatalogoPartizionato c = new CatalogoPartizionato(4);
+            for (int i = 0; i < 100; i++) c.aggiungiLibro(new Libro("PART-" + i, "Titolo " + i, "Autore " + (i % 4), 2000));
+            GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+            VersioneCatalogo prima = c.versioneCorrente();
+            for (int i = 0; i < 100; i += 5) g.prestaLibro("PART-" + i, "Mario Rossi", 1 + i % 10);
+            assertTrue(g.prestaLibri(List.of("PART-1", "PART-2", "PART-3"), "Anna Bianchi", 30).isRiuscito());
+            assertFalse(g.prestaLibri(List.of("PART-4", "PART-5"), "Anna Bianchi", 30).isRiuscito());
+            assertTrue(c.cercaPerIsbn("PART-4").orElseThrow().isDisponibile());
+
+            assertEquals(23, c.getNumeroInPrestito());
+            assertEquals(23, c.getLibriInPrestito().size());
+            assertEquals(77, c.getLibriDisponibili().size());
+            assertEquals(3, g.getNumeroPrestitiDi("Anna Bianchi"));
+            assertEquals(0, prima.getNumeroInPrestito());
+            assertEquals(23, c.versioneCorrente().getNumeroInPrestito());
+
+            LocalDate fra8Giorni = LocalDate.now().plusDays(8);
+            List<Libro> scaduti = g.getPrestitiScaduti(fra8Giorni);
+            assertEquals(20, scaduti.size());
+            for (int i = 1; i < scaduti.size(); i++) {
+                assertFalse(scaduti.get(i).getDataRestituzionePrevista().isBefore(scaduti.get(i - 1).getDataRestituzionePrevista()));
+            }
+
+            List<String> letti = new ArrayList<>();
+            String cursore = null;
+            do {
+                Pagina p = c.getLibriDisponibili(cursore, 9);
+                p.libri().forEach(l -> letti.add(l.getIsbn()));
+                cursore = p.cursore();
+            } while (cursore != null);
+            assertEquals(c.streamLibriDisponibili().map(Libro::getIsbn).toList(), letti);
+            assertEquals(77, letti.size());
+            assertEquals(25, c.cercaPerAutore("autore 1", null, 30).libri().size());
+            assertEquals(10, c.contaPerAutore("autore", 10));
+        }
+
+        @Test
+        @DisplayName("sopra la soglia le ricerche vanno in parallelo e danno gli stessi risultati")
+        void testRicercheParallele() {
+            CatalogoPartizionato c = new CatalogoPartizionato(6);
+            Catalogo unico = new Catalogo();
+            List<Libro> lotto = new ArrayList<>();
+            for (int i = 0; i < 30_000; i++) lotto.add(new Libro("PAR-" + i, "Titolo " + i, "Autore " + (i % 100), 2000));
+            c.aggiungiLibri(lotto);
+            unico.aggiungiLibri(lotto.stream().map(l -> new Libro(l.getIsbn(), l.getTitolo(), l.getAutore(), 2000)).toList());
+            GestorePrestiti g = new GestorePrestiti(c, Clock.systemDefaultZone(), RegistroPrestiti.nessuno());
+            for (int i = 0; i < 30_000; i += 7) g.prestaLibro("PAR-" + i, "Mario Rossi", 14);
+
+            assertEquals(300, c.cercaPerAutore("autore 42").size());
+            assertEquals(isbnOrdinati(unico.cercaPerAutore("autore 42")), isbnOrdinati(c.cercaPerAutore("autore 42")));
+            assertEquals(4286, c.getLibriInPrestito().size());
+            assertEquals(30_000 - 4286, c.getLibriDisponibili().size());
+        }
+
+        private List<String> isbnOrdinati(List<Libro> libri) {
+            return libri.stream().map(Libro::getIsbn).sorted().toList();
+        }
+    }
 }